@@ -0,0 +1,714 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+import com.rockagen.upos.message.IsoBufferPool;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.store.IsoJournal;
+import com.rockagen.upos.util.IsoFormatter;
+import com.rockagen.upos.util.SimpleTraceGenerator;
+
+/**
+ * Multiplexed outbound link
+ * <p>
+ * Many requests share one connection: {@link #send(WriteIsoMessage)}
+ * assigns field 11 from a {@link SimpleTraceGenerator} (unless set), keeps
+ * the request in flight by its {@link IsoTraceKey} (fields 11, 41 and 7)
+ * and returns at once; the reader thread of the link completes the
+ * {@link IsoFuture} whose key the response carries. Requests without a
+ * response within the response timeout fail with {@link TimeoutException},
+ * their timeouts hang on an {@link IsoTimeoutWheel} so tracking one costs
+ * no timer.
+ * </p>
+ * <p>
+ * With {@link #setReversals(IsoReversalBuilder, IsoRetryQueue)} an
+ * authorization or financial request timed out or lost with the link is
+ * reversed: the reversal is built from the bytes the request was sent with
+ * and sent until answered.
+ * </p>
+ * <p>
+ * With {@link #setJournal(IsoJournal)} every frame sent and received is
+ * journaled under the id of the connection.
+ * </p>
+ * <p>
+ * A link created without a registry follows the default iso8583.xml: a
+ * reload by {@link com.rockagen.upos.define.IsoPredefineWatcher} or
+ * {@link IsoPreDefineParser#replaceDefault(IsoPredefine)} applies from the
+ * next frame. A registry given, eg: a set of
+ * {@link com.rockagen.upos.define.IsoSchemaSets}, is pinned for the life of
+ * the link; a replaced set needs a new link.
+ * </p>
+ *
+ * <pre>
+ * IsoClient client = new IsoClient(issuer, framing, registry);
+ * client.connect();
+ * IsoFuture f = client.send(wim);
+ * ReadIsoMessage response = f.get(5, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoClient implements IsoSender {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory.getLogger(IsoClient.class);
+
+	/**
+	 * Events of a link.
+	 */
+	public interface Listener {
+
+		/**
+		 * A message matching no request in flight, eg: a late response or a
+		 * request of the host.
+		 *
+		 * @param client
+		 *            {@link IsoClient}
+		 * @param message
+		 *            message
+		 */
+		void unmatched(IsoClient client, ReadIsoMessage message);
+
+		/**
+		 * The link closed, requests in flight have failed.
+		 *
+		 * @param client
+		 *            {@link IsoClient}
+		 * @param cause
+		 *            cause, null if closed by {@link IsoClient#close()}
+		 */
+		void disconnected(IsoClient client, Throwable cause);
+	}
+
+	private static final int MAX_STAN_TRIES = 16;
+
+	private final InetSocketAddress address;
+
+	private final IsoFraming framing;
+
+	/**
+	 * Null to follow the default.
+	 */
+	private final IsoSchemaRegistry registry;
+
+	private final ConcurrentMap<IsoTraceKey, IsoFuture> inFlight = new ConcurrentHashMap<IsoTraceKey, IsoFuture>();
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private final IsoTimeoutWheel.Task expiry = new IsoTimeoutWheel.Task() {
+		@Override
+		public void expired(IsoTimeoutWheel.Timeout timeout) {
+			expire((IsoFuture) timeout.getAttachment());
+		}
+	};
+
+	private Charset charset = Charset.defaultCharset();
+
+	private SimpleTraceGenerator trace = new SimpleTraceGenerator();
+
+	private IsoBufferPool bufferPool = new IsoBufferPool(2048, 256);
+
+	private int connectTimeout = 5000;
+
+	private volatile long responseTimeout = 30000;
+
+	private int maxFrameLength = 8192;
+
+	private volatile Listener listener;
+
+	private volatile IsoTimeoutWheel wheel;
+
+	private volatile IsoReversalBuilder reversalBuilder;
+
+	private volatile IsoRetryQueue reversals;
+
+	private volatile IsoJournal journal;
+
+	private long connectionId;
+
+	private Socket socket;
+
+	private OutputStream out;
+
+	private volatile boolean connected;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a link.
+	 *
+	 * @param address
+	 *            host address
+	 * @param framing
+	 *            {@link IsoFraming} of the link, it must have a length prefix
+	 * @param registry
+	 *            compiled schemas, pinned; null to follow the default
+	 *            iso8583.xml
+	 */
+	public IsoClient(InetSocketAddress address, IsoFraming framing,
+			IsoSchemaRegistry registry) {
+		if (address == null || framing == null) {
+			throw new IllegalArgumentException(
+					"Address and framing must not be null");
+		}
+		if (framing.getPrefix() == IsoLengthPrefix.NONE) {
+			throw new IllegalArgumentException(
+					"A stream needs a length prefix");
+		}
+		if (registry == null && IsoPreDefineParser.createDefault() == null) {
+			throw new IllegalArgumentException("No default iso8583.xml");
+		}
+		this.address = address;
+		this.framing = framing;
+		this.registry = registry;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Connect and start the reader.
+	 *
+	 * @throws IOException
+	 *             if connect failed
+	 */
+	public synchronized void connect() throws IOException {
+		if (connected) {
+			throw new IllegalStateException("Already connected");
+		}
+		Socket s = new Socket();
+		try {
+			s.setTcpNoDelay(true);
+			s.connect(address, connectTimeout);
+			out = s.getOutputStream();
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		socket = s;
+		if (wheel == null) {
+			wheel = IsoTimeoutWheel.shared();
+		}
+		IsoJournal j = journal;
+		if (j != null) {
+			connectionId = j.nextConnectionId();
+		}
+		connected = true;
+		final Socket bound = s;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				s.getInputStream(), 8192));
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read(bound, in);
+			}
+		}, "upos-client-" + address);
+		reader.setDaemon(true);
+		reader.start();
+		log.info("Connected to {}", address);
+	}
+
+	/**
+	 * Send a request.
+	 *
+	 * @param request
+	 *            request, field 11 is assigned if not set
+	 * @return {@link IsoFuture} of the response, failed at once if the link
+	 *         is closed or the key of the request is already in flight
+	 */
+	public IsoFuture send(WriteIsoMessage request) {
+		boolean assign = !request.hasIsoValue(11);
+		IsoFuture future = null;
+		for (int i = 0; i < MAX_STAN_TRIES; i++) {
+			if (assign) {
+				byte[] stan = new byte[6];
+				IsoFormatter.numeric(trace.next(), 6, stan, 0);
+				request.setIsoValue(11, stan);
+			}
+			IsoTraceKey key = IsoTraceKey.of(request);
+			IsoFuture f = new IsoFuture(key);
+			if (inFlight.putIfAbsent(key, f) == null) {
+				future = f;
+				break;
+			}
+			if (!assign) {
+				f.fail(new IllegalArgumentException(key + " already in flight"));
+				return f;
+			}
+		}
+		if (future == null) {
+			IsoFuture f = new IsoFuture(IsoTraceKey.of(request));
+			f.fail(new IllegalStateException("No free STAN"));
+			return f;
+		}
+		future.bind(this);
+		if (!connected) {
+			fail(future, new IOException("Not connected to " + address));
+			return future;
+		}
+		ByteBuffer frame = framing.encode(request, null, bufferPool);
+		try {
+			IsoReversalBuilder rb = reversalBuilder;
+			if (rb != null && rb.isReversible(request.getType())) {
+				// type, bitmap and data as sent
+				int from = frame.position() + framing.overhead()
+						+ request.getHeaderLength();
+				byte[] original = new byte[frame.limit() - from];
+				System.arraycopy(frame.array(), frame.arrayOffset() + from,
+						original, 0, original.length);
+				future.original = original;
+			}
+			future.timeout = wheel.schedule(expiry, future, responseTimeout,
+					TimeUnit.MILLISECONDS);
+			if (future.isDone()) {
+				// completed before its timeout was set
+				future.timeout.cancel();
+			}
+			journal(IsoJournal.Direction.OUT, frame);
+			write(frame);
+		} catch (IOException e) {
+			// may be partly written: the outcome is unknown
+			fail(future, e);
+			reverse(future);
+			close(e);
+		} finally {
+			bufferPool.release(frame);
+		}
+		return future;
+	}
+
+	/**
+	 * Send a message no response is expected to, eg: an advice answer.
+	 *
+	 * @param msg
+	 *            message
+	 * @throws IOException
+	 *             if the link is closed
+	 */
+	public void post(WriteIsoMessage msg) throws IOException {
+		if (!connected) {
+			throw new IOException("Not connected to " + address);
+		}
+		ByteBuffer frame = framing.encode(msg, null, bufferPool);
+		try {
+			journal(IsoJournal.Direction.OUT, frame);
+			write(frame);
+		} catch (IOException e) {
+			close(e);
+			throw e;
+		} finally {
+			bufferPool.release(frame);
+		}
+	}
+
+	private void write(ByteBuffer frame) throws IOException {
+		writeLock.lock();
+		try {
+			out.write(frame.array(), frame.arrayOffset() + frame.position(),
+					frame.remaining());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void journal(IsoJournal.Direction direction, ByteBuffer frame) {
+		IsoJournal j = journal;
+		if (j != null) {
+			try {
+				j.append(direction, connectionId, frame);
+			} catch (RuntimeException e) {
+				log.error("Journal frame of " + address + " failed", e);
+			}
+		}
+	}
+
+	private void fail(IsoFuture future, Throwable cause) {
+		inFlight.remove(future.getKey(), future);
+		future.fail(cause);
+	}
+
+	/**
+	 * Drop a cancelled request.
+	 */
+	void forget(IsoTraceKey key, IsoFuture future) {
+		inFlight.remove(key, future);
+	}
+
+	/**
+	 * Read the frames of a socket until it closes, then close the link if
+	 * it is still on that socket.
+	 */
+	private void read(Socket s, DataInputStream in) {
+		Throwable cause = null;
+		int plen = framing.getPrefix().getLen();
+		byte[] prefix = new byte[plen];
+		try {
+			while (connected) {
+				try {
+					in.readFully(prefix);
+				} catch (EOFException e) {
+					cause = new IOException("Closed by " + address);
+					break;
+				}
+				int len = framing.frameLength(ByteBuffer.wrap(prefix));
+				if (len > maxFrameLength) {
+					cause = new IOException("Frame of " + len
+							+ " bytes exceeds " + maxFrameLength);
+					break;
+				}
+				byte[] frame = new byte[len];
+				System.arraycopy(prefix, 0, frame, 0, plen);
+				in.readFully(frame, plen, len - plen);
+				received(frame);
+			}
+		} catch (IOException e) {
+			cause = e;
+		} catch (IllegalArgumentException e) {
+			cause = e;
+		}
+		close(s, cause);
+	}
+
+	private void received(byte[] frame) {
+		journal(IsoJournal.Direction.IN, ByteBuffer.wrap(frame));
+		ReadIsoMessage msg;
+		try {
+			msg = framing.decode(frame, getRegistry(), charset);
+		} catch (IllegalArgumentException e) {
+			log.warn("Drop frame from {}: {}", address, e.getMessage());
+			return;
+		}
+		if (msg == null) {
+			log.warn("Drop frame of unknown type [{}] from {}", new String(
+					frame, framing.typeOffset(), 4, charset), address);
+			return;
+		}
+		IsoFuture future = inFlight.remove(IsoTraceKey.of(msg));
+		if (future != null) {
+			future.complete(msg);
+			return;
+		}
+		Listener l = listener;
+		if (l != null) {
+			l.unmatched(this, msg);
+		} else {
+			log.warn("Drop unmatched [{}] from {}", msg.getType(), address);
+		}
+	}
+
+	/**
+	 * Fail a request without response, reverse it if enabled.
+	 */
+	private void expire(IsoFuture f) {
+		if (!inFlight.remove(f.getKey(), f)) {
+			return;
+		}
+		f.fail(new TimeoutException("No response of " + f.getKey() + " in "
+				+ responseTimeout + "ms"));
+		reverse(f);
+	}
+
+	/**
+	 * Queue the reversal of a request failed without response, if enabled.
+	 */
+	private void reverse(IsoFuture f) {
+		byte[] original = f.original;
+		IsoRetryQueue queue = reversals;
+		if (original == null || queue == null) {
+			return;
+		}
+		try {
+			queue.offer(reversalBuilder.build(original));
+		} catch (RuntimeException e) {
+			log.error("Reverse " + f.getKey() + " failed", e);
+		}
+	}
+
+	/**
+	 * Close the link, requests in flight fail and are reversed if enabled.
+	 */
+	public void close() {
+		close(null);
+	}
+
+	private void close(Throwable cause) {
+		close(null, cause);
+	}
+
+	/**
+	 * Close the link.
+	 *
+	 * @param s
+	 *            socket the cause comes from, null for the current one
+	 * @param cause
+	 *            cause, null if closed by {@link #close()}
+	 */
+	private void close(Socket s, Throwable cause) {
+		synchronized (this) {
+			if (!connected || s != null && s != socket) {
+				// a reader of a link closed before
+				return;
+			}
+			connected = false;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.debug("Close {} failed: {}", address, e.getMessage());
+			}
+		}
+		IOException failure = new IOException("Link to " + address
+				+ " closed");
+		if (cause != null) {
+			failure.initCause(cause);
+			log.warn("Link to {} lost: {}", address, cause.toString());
+		}
+		Iterator<IsoFuture> it = inFlight.values().iterator();
+		while (it.hasNext()) {
+			IsoFuture f = it.next();
+			// not expired meanwhile
+			if (inFlight.remove(f.getKey(), f)) {
+				f.fail(failure);
+				// lost with the link, its outcome is unknown
+				reverse(f);
+			}
+		}
+		Listener l = listener;
+		if (l != null) {
+			l.disconnected(this, cause);
+		}
+	}
+
+	/**
+	 * Is the link connected?
+	 *
+	 * @return true if connected
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Requests waiting for a response.
+	 *
+	 * @return count
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Return host address.
+	 *
+	 * @return address
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Return {@link IsoFraming}.
+	 *
+	 * @return {@link IsoFraming}
+	 */
+	public IsoFraming getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Return the compiled schemas.
+	 *
+	 * @return {@link IsoSchemaRegistry} given, else the current default
+	 */
+	public IsoSchemaRegistry getRegistry() {
+		return registry != null ? registry : IsoPreDefineParser
+				.createDefault().compile();
+	}
+
+	/**
+	 * Return charset of the messages.
+	 *
+	 * @return charset
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Set charset of the messages, default the platform charset.
+	 *
+	 * @param charset
+	 *            charset
+	 */
+	public void setCharset(Charset charset) {
+		if (charset == null) {
+			throw new IllegalArgumentException("Charset must not be null");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * Set the STAN generator, eg: shared by the links of a terminal.
+	 *
+	 * @param trace
+	 *            {@link SimpleTraceGenerator}
+	 */
+	public void setTraceGenerator(SimpleTraceGenerator trace) {
+		if (trace == null) {
+			throw new IllegalArgumentException("Generator must not be null");
+		}
+		this.trace = trace;
+	}
+
+	/**
+	 * Set the listener of unmatched messages and disconnection.
+	 *
+	 * @param listener
+	 *            {@link Listener}, null for none
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Set the wheel of the response timeouts, default the shared
+	 * {@link IsoTimeoutWheel}.
+	 *
+	 * @param wheel
+	 *            {@link IsoTimeoutWheel}
+	 */
+	public void setTimeoutWheel(IsoTimeoutWheel wheel) {
+		if (wheel == null) {
+			throw new IllegalArgumentException("Wheel must not be null");
+		}
+		this.wheel = wheel;
+	}
+
+	/**
+	 * Reverse the requests that time out or are lost with the link.
+	 *
+	 * @param builder
+	 *            {@link IsoReversalBuilder}, it tells the types reversed
+	 * @param queue
+	 *            {@link IsoRetryQueue} the reversals are sent by, usually
+	 *            through this link or its pool
+	 */
+	public void setReversals(IsoReversalBuilder builder, IsoRetryQueue queue) {
+		if ((builder == null) != (queue == null)) {
+			throw new IllegalArgumentException(
+					"Builder and queue must be both set or both null");
+		}
+		this.reversals = queue;
+		this.reversalBuilder = builder;
+	}
+
+	/**
+	 * Journal every frame sent and received, set before {@link #connect()}.
+	 *
+	 * @param journal
+	 *            open {@link IsoJournal}, null for none
+	 */
+	public void setJournal(IsoJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Set connect timeout, default 5000ms.
+	 *
+	 * @param connectTimeout
+	 *            millis
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Return response timeout.
+	 *
+	 * @return millis
+	 */
+	public long getResponseTimeout() {
+		return responseTimeout;
+	}
+
+	/**
+	 * Set response timeout, default 30000ms.
+	 *
+	 * @param responseTimeout
+	 *            millis
+	 */
+	public void setResponseTimeout(long responseTimeout) {
+		if (responseTimeout < 1) {
+			throw new IllegalArgumentException("responseTimeout must be > 0");
+		}
+		this.responseTimeout = responseTimeout;
+	}
+
+	/**
+	 * Set max frame length, the link closes on a longer frame, default 8192.
+	 *
+	 * @param maxFrameLength
+	 *            max frame length, length prefix included
+	 */
+	public void setMaxFrameLength(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Set pool of write buffers, default 256 heap buffers of 2048 bytes.
+	 *
+	 * @param bufferPool
+	 *            {@link IsoBufferPool} of heap buffers
+	 */
+	public void setBufferPool(IsoBufferPool bufferPool) {
+		if (bufferPool == null) {
+			throw new IllegalArgumentException("Pool must not be null");
+		}
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoClient[" + address + (connected ? ", connected" : "")
+				+ ", inFlight=" + inFlight.size() + "]";
+	}
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.enums.IsoType;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Pooled links to one issuer
+ * <p>
+ * A request goes to the healthy link with the least requests in flight.
+ * Every link is probed by a 0800 echo test (field 70 = 301) each echo
+ * interval: a link whose echo fails, is refused or is not answered within
+ * the max echo latency (or the echo timeout if shorter) leaves the rotation
+ * as soon as that is known, a closed link is reconnected. The links
+ * connected by {@link #start()} join at once, a link out of the rotation,
+ * reconnected or not, returns once an echo passes again.
+ * </p>
+ * <p>
+ * While no link is healthy the circuit is open: {@link #send(WriteIsoMessage)}
+ * fails at once instead of waiting for a response timeout, so a dead
+ * issuer does not hold threads or drag the latency of other traffic. The
+ * echoes keep probing and close the circuit when a link recovers.
+ * </p>
+ *
+ * <pre>
+ * IsoClientPool pool = new IsoClientPool(Arrays.asList(link1, link2, link3));
+ * pool.start();
+ * IsoFuture f = pool.send(wim);
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoClientPool implements IsoSender {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoClientPool.class);
+
+	private static final byte[] ECHO_TEST = { '3', '0', '1' };
+
+	private final Link[] links;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private ScheduledExecutorService scheduler;
+
+	private long echoInterval = 30000;
+
+	private long echoTimeout = 5000;
+
+	private long maxEchoLatency = 2000;
+
+	private String echoType = "0800";
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a pool.
+	 *
+	 * @param clients
+	 *            links, not connected yet
+	 */
+	public IsoClientPool(List<IsoClient> clients) {
+		if (clients == null || clients.isEmpty()) {
+			throw new IllegalArgumentException("No link");
+		}
+		links = new Link[clients.size()];
+		for (int i = 0; i < links.length; i++) {
+			if (clients.get(i) == null) {
+				throw new IllegalArgumentException("Link must not be null");
+			}
+			links[i] = new Link(clients.get(i));
+		}
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Connect the links and start the echo tests.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			throw new IllegalStateException("Pool already started");
+		}
+		for (Link link : links) {
+			if (connect(link)) {
+				link.healthy = true;
+			}
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "upos-pool-echo");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (Link link : links) {
+					try {
+						probe(link);
+					} catch (RuntimeException e) {
+						log.error("Echo of " + link.client.getAddress()
+								+ " failed", e);
+					}
+				}
+			}
+		}, echoInterval, echoInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send a request on the healthy link with the least requests in flight.
+	 *
+	 * @param request
+	 *            request
+	 * @return {@link IsoFuture}, failed at once if the circuit is open
+	 */
+	public IsoFuture send(WriteIsoMessage request) {
+		Link link = pick();
+		if (link == null) {
+			rejected.incrementAndGet();
+			IsoFuture f = new IsoFuture(IsoTraceKey.of(request));
+			f.fail(new IOException("Circuit open: no healthy link"));
+			return f;
+		}
+		return link.client.send(request);
+	}
+
+	private Link pick() {
+		int n = links.length;
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+		Link best = null;
+		int least = Integer.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			Link link = links[(start + i) % n];
+			if (!link.healthy || !link.client.isConnected()) {
+				continue;
+			}
+			int inFlight = link.client.getInFlight();
+			if (inFlight < least) {
+				best = link;
+				least = inFlight;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Connect a link, it stays out of the rotation.
+	 *
+	 * @return true if connected
+	 */
+	private boolean connect(Link link) {
+		try {
+			link.client.connect();
+			return true;
+		} catch (IOException e) {
+			down(link, "connect failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Send an echo test or reconnect.
+	 */
+	void probe(final Link link) {
+		IsoClient client = link.client;
+		if (!client.isConnected()) {
+			down(link, "closed");
+			if (!connect(link)) {
+				return;
+			}
+			// back once the echo below passes
+		}
+		IsoFuture pending = link.echo;
+		if (pending != null && !pending.isDone()) {
+			// its deadlines are scheduled
+			return;
+		}
+		WriteIsoMessage echo = new WriteIsoMessage(client.getRegistry()
+				.schema(echoType), client.getCharset());
+		Charset cs = client.getCharset();
+		echo.setIsoValue(7, IsoType.DATE10.format(new Date()).getBytes(cs));
+		echo.setIsoValue(70, ECHO_TEST);
+		final IsoFuture f = client.send(echo);
+		link.echo = f;
+		deadlines(link, f);
+		f.addListener(new IsoFuture.Listener() {
+			@Override
+			public void completed(ReadIsoMessage response) {
+				long latency = TimeUnit.NANOSECONDS.toMillis(System
+						.nanoTime() - f.getSentAt());
+				link.latency = latency;
+				byte[] rc = response.getIsoValue(39);
+				if (rc != null && !(rc.length == 2 && rc[0] == '0' && rc[1] == '0')) {
+					down(link, "echo refused");
+				} else if (latency > maxEchoLatency) {
+					down(link, "echo took " + latency + "ms");
+				} else if (!link.healthy) {
+					link.healthy = true;
+					log.info("Link {} back, echo {}ms", link.client
+							.getAddress(), latency);
+				}
+			}
+
+			@Override
+			public void failed(Throwable cause) {
+				down(link, "echo failed: " + cause);
+			}
+		});
+	}
+
+	/**
+	 * Take the link down when its echo is late, without waiting for the
+	 * next probe, and expire the echo at the echo timeout.
+	 */
+	private void deadlines(final Link link, final IsoFuture f) {
+		final long timeout = echoTimeout;
+		final long limit = Math.min(timeout, maxEchoLatency);
+		if (limit < timeout) {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (!f.isDone()) {
+						down(link, "no echo in " + limit + "ms");
+					}
+				}
+			}, limit, TimeUnit.MILLISECONDS);
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!f.isDone()) {
+					link.client.forget(f.getKey(), f);
+					f.fail(new TimeoutException("No echo in " + timeout
+							+ "ms"));
+				}
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	private void down(Link link, String reason) {
+		if (link.healthy) {
+			link.healthy = false;
+			log.warn("Link {} out of rotation: {}", link.client.getAddress(),
+					reason);
+		}
+	}
+
+	/**
+	 * Stop the echo tests and close the links.
+	 */
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		for (Link link : links) {
+			link.healthy = false;
+			link.client.close();
+		}
+	}
+
+	/**
+	 * Links in rotation.
+	 *
+	 * @return count
+	 */
+	public int getHealthyLinks() {
+		int n = 0;
+		for (Link link : links) {
+			if (link.healthy && link.client.isConnected()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Is the circuit open, that is no link is healthy?
+	 *
+	 * @return true if requests fail fast
+	 */
+	public boolean isCircuitOpen() {
+		return getHealthyLinks() == 0;
+	}
+
+	/**
+	 * Requests failed fast while the circuit was open.
+	 *
+	 * @return count
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Latency of the last echo of a link.
+	 *
+	 * @param index
+	 *            link index
+	 * @return millis, -1 if none answered yet
+	 */
+	public long getEchoLatency(int index) {
+		return links[index].latency;
+	}
+
+	/**
+	 * Set echo interval, default 30000ms, set before {@link #start()}.
+	 *
+	 * @param echoInterval
+	 *            millis
+	 */
+	public void setEchoInterval(long echoInterval) {
+		if (echoInterval < 1) {
+			throw new IllegalArgumentException("echoInterval must be > 0");
+		}
+		this.echoInterval = echoInterval;
+	}
+
+	/**
+	 * Set echo timeout, default 5000ms.
+	 *
+	 * @param echoTimeout
+	 *            millis
+	 */
+	public void setEchoTimeout(long echoTimeout) {
+		if (echoTimeout < 1) {
+			throw new IllegalArgumentException("echoTimeout must be > 0");
+		}
+		this.echoTimeout = echoTimeout;
+	}
+
+	/**
+	 * Set the echo latency a link leaves the rotation beyond, default
+	 * 2000ms.
+	 *
+	 * @param maxEchoLatency
+	 *            millis
+	 */
+	public void setMaxEchoLatency(long maxEchoLatency) {
+		if (maxEchoLatency < 1) {
+			throw new IllegalArgumentException("maxEchoLatency must be > 0");
+		}
+		this.maxEchoLatency = maxEchoLatency;
+	}
+
+	/**
+	 * Set type of the echo test, default 0800.
+	 *
+	 * @param echoType
+	 *            iso8583 message type
+	 */
+	public void setEchoType(String echoType) {
+		if (echoType == null) {
+			throw new IllegalArgumentException("Type must not be null");
+		}
+		this.echoType = echoType;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoClientPool[" + getHealthyLinks() + "/" + links.length
+				+ " healthy]";
+	}
+
+	/**
+	 * State of a link, written by the echo thread and the readers.
+	 */
+	private static final class Link {
+
+		private final IsoClient client;
+
+		private volatile boolean healthy;
+
+		private volatile long latency = -1;
+
+		private volatile IsoFuture echo;
+
+		Link(IsoClient client) {
+			this.client = client;
+		}
+	}
+
+}
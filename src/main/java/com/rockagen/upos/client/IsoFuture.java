@@ -0,0 +1,267 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.message.ReadIsoMessage;
+
+/**
+ * Pending response of a request sent by an {@link IsoClient}
+ * <p>
+ * Wait by {@link #get()} or be called back by
+ * {@link #addListener(Listener)}. Listeners run on the thread that completes
+ * the future, usually the reader of the link, they must not block.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoFuture implements Future<ReadIsoMessage> {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory.getLogger(IsoFuture.class);
+
+	/**
+	 * Completion callback.
+	 */
+	public interface Listener {
+
+		/**
+		 * The response arrived.
+		 *
+		 * @param response
+		 *            response
+		 */
+		void completed(ReadIsoMessage response);
+
+		/**
+		 * The request failed, eg: {@link TimeoutException}, link closed,
+		 * cancelled.
+		 *
+		 * @param cause
+		 *            cause
+		 */
+		void failed(Throwable cause);
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final IsoTraceKey key;
+
+	private final long sentAt;
+
+	private IsoClient client;
+
+	/**
+	 * Response timeout, cancelled when done.
+	 */
+	volatile IsoTimeoutWheel.Timeout timeout;
+
+	/**
+	 * Request as sent (type, bitmap, data) if it is reversed on timeout.
+	 */
+	byte[] original;
+
+	private List<Listener> listeners;
+
+	private ReadIsoMessage response;
+
+	private Throwable cause;
+
+	private boolean completed;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a pending response.
+	 *
+	 * @param key
+	 *            {@link IsoTraceKey} of the request
+	 */
+	public IsoFuture(IsoTraceKey key) {
+		this.key = key;
+		this.sentAt = System.nanoTime();
+	}
+
+	// ~ Methods ==================================================
+
+	void bind(IsoClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Complete with a response.
+	 *
+	 * @param response
+	 *            response
+	 * @return false if already done
+	 */
+	public boolean complete(ReadIsoMessage response) {
+		return finish(response, null);
+	}
+
+	/**
+	 * Complete with a failure.
+	 *
+	 * @param cause
+	 *            cause
+	 * @return false if already done
+	 */
+	public boolean fail(Throwable cause) {
+		return finish(null, cause);
+	}
+
+	private boolean finish(ReadIsoMessage response, Throwable cause) {
+		List<Listener> ls;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			completed = true;
+			this.response = response;
+			this.cause = cause;
+			ls = listeners;
+			listeners = null;
+		}
+		done.countDown();
+		IsoTimeoutWheel.Timeout t = timeout;
+		if (t != null) {
+			t.cancel();
+		}
+		if (ls != null) {
+			for (Listener l : ls) {
+				notify(l);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a listener, called at once if already done.
+	 *
+	 * @param listener
+	 *            {@link Listener}
+	 * @return this
+	 */
+	public IsoFuture addListener(Listener listener) {
+		synchronized (this) {
+			if (!completed) {
+				if (listeners == null) {
+					listeners = new ArrayList<Listener>(2);
+				}
+				listeners.add(listener);
+				return this;
+			}
+		}
+		notify(listener);
+		return this;
+	}
+
+	private void notify(Listener l) {
+		try {
+			if (cause == null) {
+				l.completed(response);
+			} else {
+				l.failed(cause);
+			}
+		} catch (RuntimeException e) {
+			log.error("Listener of " + key + " failed", e);
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!fail(new CancellationException())) {
+			return false;
+		}
+		if (client != null) {
+			client.forget(key, this);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cause instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return completed;
+	}
+
+	@Override
+	public ReadIsoMessage get() throws InterruptedException,
+			ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public ReadIsoMessage get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("No response of " + key);
+		}
+		return result();
+	}
+
+	private synchronized ReadIsoMessage result() throws ExecutionException {
+		if (cause instanceof CancellationException) {
+			throw (CancellationException) cause;
+		}
+		if (cause != null) {
+			throw new ExecutionException(cause);
+		}
+		return response;
+	}
+
+	/**
+	 * Return {@link IsoTraceKey} of the request.
+	 *
+	 * @return key
+	 */
+	public IsoTraceKey getKey() {
+		return key;
+	}
+
+	/**
+	 * {@link System#nanoTime()} when the request was sent.
+	 *
+	 * @return nanos
+	 */
+	public long getSentAt() {
+		return sentAt;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoFuture[" + key + (isDone() ? ", done" : "") + "]";
+	}
+
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.store.IsoStoreQueue;
+
+/**
+ * Sends messages until they are answered, eg: reversals
+ * <p>
+ * A message is sent at once, and again after the retry interval while it
+ * fails (timeout, link lost), up to the max attempts. Waits between
+ * attempts hang on an {@link IsoTimeoutWheel}, stores and sends run on the
+ * thread of the queue, so offering never blocks the caller, eg: the thread
+ * of the wheel. Only the response type of the message acknowledges it, eg:
+ * a 0410 a 0400; another type under the same key fails the attempt.
+ * </p>
+ * <p>
+ * Without a store the queue is in memory: messages not acknowledged are lost
+ * with the process. With {@link #setStore(IsoStoreQueue)} a message is
+ * appended before its first attempt and acknowledged in the store when
+ * answered; {@link #recover(IsoSchemaRegistry, Charset)} queues again the
+ * messages of the store not answered before a restart, exhausted ones
+ * included.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoRetryQueue {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoRetryQueue.class);
+
+	/**
+	 * Outcome of the messages.
+	 */
+	public interface Listener {
+
+		/**
+		 * A message was answered.
+		 *
+		 * @param message
+		 *            message
+		 * @param response
+		 *            response
+		 */
+		void acknowledged(WriteIsoMessage message, ReadIsoMessage response);
+
+		/**
+		 * A message failed its last attempt.
+		 *
+		 * @param message
+		 *            message
+		 * @param cause
+		 *            failure of the last attempt
+		 */
+		void exhausted(WriteIsoMessage message, Throwable cause);
+	}
+
+	private final IsoSender sender;
+
+	private final IsoTimeoutWheel wheel;
+
+	private final ExecutorService executor;
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final AtomicLong acknowledged = new AtomicLong();
+
+	private final AtomicLong exhausted = new AtomicLong();
+
+	private final IsoTimeoutWheel.Task retry = new IsoTimeoutWheel.Task() {
+		@Override
+		public void expired(IsoTimeoutWheel.Timeout timeout) {
+			submit((Entry) timeout.getAttachment());
+		}
+	};
+
+	private volatile int maxAttempts = 5;
+
+	private volatile long retryInterval = 30000;
+
+	private volatile Listener listener;
+
+	private volatile IsoStoreQueue store;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a queue.
+	 *
+	 * @param sender
+	 *            {@link IsoSender} of the messages
+	 * @param wheel
+	 *            {@link IsoTimeoutWheel} of the waits, null as the shared
+	 *            wheel
+	 */
+	public IsoRetryQueue(IsoSender sender, IsoTimeoutWheel wheel) {
+		if (sender == null) {
+			throw new IllegalArgumentException("Sender must not be null");
+		}
+		this.sender = sender;
+		this.wheel = wheel == null ? IsoTimeoutWheel.shared() : wheel;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "upos-retry");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Queue a message, it is stored and its first attempt is made on the
+	 * thread of the queue.
+	 * <p>
+	 * If the store fails, the message is still sent but not kept across a
+	 * restart, the failure is logged.
+	 * </p>
+	 *
+	 * @param message
+	 *            message
+	 */
+	public void offer(WriteIsoMessage message) {
+		if (message == null) {
+			throw new IllegalArgumentException("Message must not be null");
+		}
+		Entry entry = new Entry(message);
+		entry.store = store;
+		pending.incrementAndGet();
+		submit(entry);
+	}
+
+	/**
+	 * Append a new entry to the store, on the thread of the queue.
+	 */
+	private void store(Entry entry) {
+		IsoStoreQueue s = entry.store;
+		entry.store = null;
+		try {
+			entry.id = s.append(entry.message);
+		} catch (Exception e) {
+			log.error("Store [" + entry.message.getType()
+					+ "] failed, it is sent unstored", e);
+		}
+	}
+
+	/**
+	 * Queue the messages of the store not acknowledged, in the order they
+	 * were stored, eg: after a restart.
+	 *
+	 * @param registry
+	 *            compiled schemas, the stored types must have a parser
+	 * @param charset
+	 *            charset of the messages
+	 * @return messages queued
+	 */
+	public int recover(final IsoSchemaRegistry registry, final Charset charset) {
+		IsoStoreQueue s = store;
+		if (s == null) {
+			throw new IllegalStateException("No store to recover from");
+		}
+		final int[] queued = new int[1];
+		s.replay(new IsoStoreQueue.Visitor() {
+			@Override
+			public void visit(IsoStoreQueue.Entry stored) {
+				Entry entry;
+				try {
+					entry = new Entry(stored.toMessage(registry, charset));
+				} catch (RuntimeException e) {
+					log.error("Can not recover " + stored + ", kept", e);
+					return;
+				}
+				entry.id = stored.getId();
+				pending.incrementAndGet();
+				submit(entry);
+				queued[0]++;
+			}
+		});
+		return queued[0];
+	}
+
+	private void submit(final Entry entry) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					attempt(entry);
+				}
+			});
+		} catch (RuntimeException e) {
+			done(entry, null, e);
+		}
+	}
+
+	private void attempt(final Entry entry) {
+		if (entry.store != null) {
+			store(entry);
+		}
+		entry.attempts++;
+		IsoFuture f;
+		try {
+			f = sender.send(entry.message);
+		} catch (RuntimeException e) {
+			failed(entry, e);
+			return;
+		}
+		f.addListener(new IsoFuture.Listener() {
+			@Override
+			public void completed(ReadIsoMessage response) {
+				String type = entry.message.getType();
+				if (IsoTraceKey.isResponse(type, response.getType())) {
+					done(entry, response, null);
+				} else {
+					IsoRetryQueue.this.failed(entry, new IOException("["
+							+ response.getType() + "] does not answer ["
+							+ type + "]"));
+				}
+			}
+
+			@Override
+			public void failed(Throwable cause) {
+				IsoRetryQueue.this.failed(entry, cause);
+			}
+		});
+	}
+
+	private void failed(Entry entry, Throwable cause) {
+		if (entry.attempts >= maxAttempts) {
+			done(entry, null, cause);
+			return;
+		}
+		log.debug("Attempt {} of [{}] failed: {}", new Object[] {
+				entry.attempts, entry.message.getType(), cause.toString() });
+		wheel.schedule(retry, entry, retryInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private void done(Entry entry, ReadIsoMessage response, Throwable cause) {
+		pending.decrementAndGet();
+		if (response != null) {
+			acknowledged.incrementAndGet();
+			IsoStoreQueue s = store;
+			if (s != null && entry.id >= 0) {
+				try {
+					s.ack(entry.id);
+				} catch (IllegalStateException e) {
+					log.warn("Ack [{}] failed: {}", entry.message.getType(),
+							e.getMessage());
+				}
+			}
+		} else {
+			exhausted.incrementAndGet();
+			log.warn("Gave up [{}] after {} attempts: {}", new Object[] {
+					entry.message.getType(), entry.attempts, cause.toString() });
+		}
+		Listener l = listener;
+		if (l == null) {
+			return;
+		}
+		try {
+			if (response != null) {
+				l.acknowledged(entry.message, response);
+			} else {
+				l.exhausted(entry.message, cause);
+			}
+		} catch (RuntimeException e) {
+			log.error("Listener of [" + entry.message.getType() + "] failed", e);
+		}
+	}
+
+	/**
+	 * Stop sending, messages not acknowledged are dropped.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Messages neither acknowledged nor exhausted.
+	 *
+	 * @return count
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Messages answered.
+	 *
+	 * @return count
+	 */
+	public long getAcknowledged() {
+		return acknowledged.get();
+	}
+
+	/**
+	 * Messages given up.
+	 *
+	 * @return count
+	 */
+	public long getExhausted() {
+		return exhausted.get();
+	}
+
+	/**
+	 * Set the listener of outcomes.
+	 *
+	 * @param listener
+	 *            {@link Listener}, null for none
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Keep the messages in a store until acknowledged.
+	 *
+	 * @param store
+	 *            open {@link IsoStoreQueue}, null for none
+	 */
+	public void setStore(IsoStoreQueue store) {
+		this.store = store;
+	}
+
+	/**
+	 * Set attempts per message, default 5.
+	 *
+	 * @param maxAttempts
+	 *            attempts, first one included
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be > 0");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Set wait after a failed attempt, default 30000ms.
+	 *
+	 * @param retryInterval
+	 *            millis
+	 */
+	public void setRetryInterval(long retryInterval) {
+		if (retryInterval < 0) {
+			throw new IllegalArgumentException("retryInterval must be >= 0");
+		}
+		this.retryInterval = retryInterval;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoRetryQueue[pending=" + pending.get() + ", acknowledged="
+				+ acknowledged.get() + ", exhausted=" + exhausted.get() + "]";
+	}
+
+	/**
+	 * A queued message.
+	 */
+	private static final class Entry {
+
+		private final WriteIsoMessage message;
+
+		/**
+		 * Id in the store, -1 if not stored.
+		 */
+		private long id = -1;
+
+		/**
+		 * Store to append to before the first attempt, null once done.
+		 */
+		private IsoStoreQueue store;
+
+		// read and written by the thread of the queue, then by the thread
+		// completing the future it published
+		private volatile int attempts;
+
+		Entry(WriteIsoMessage message) {
+			this.message = message;
+		}
+	}
+
+}
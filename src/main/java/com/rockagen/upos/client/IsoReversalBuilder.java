@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Builds the reversal of a request whose outcome is unknown
+ * <p>
+ * The reversal is built from the bytes the request was sent with (type,
+ * bitmap and data), so nothing but those bytes is kept per request in
+ * flight. It carries the echoed fields of the request as they were sent and
+ * field 90, the original data elements:
+ * </p>
+ *
+ * <pre>
+ * type(4) + field 11(6) + field 7(10) + field 32(11) + field 33(11)
+ * </pre>
+ * <p>
+ * Fields 32 and 33 are zero-filled on the left, absent fields are zeros.
+ * </p>
+ *
+ * @author RA
+ * @see IsoClient#setReversals(IsoReversalBuilder, IsoRetryQueue)
+ * @since JDK1.6
+ */
+public class IsoReversalBuilder {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * Default echoed fields.
+	 */
+	private static final int[] DEFAULT_ECHO = { 2, 3, 4, 7, 11, 12, 13, 14,
+			18, 22, 25, 32, 33, 37, 41, 42, 49 };
+
+	private final IsoSchemaRegistry registry;
+
+	private final Charset charset;
+
+	private String type = "0400";
+
+	private String[] reversible = { "0100", "0200" };
+
+	private int[] echo = DEFAULT_ECHO.clone();
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a builder.
+	 *
+	 * @param registry
+	 *            compiled schemas, the requests must have a parser
+	 * @param charset
+	 *            charset of the messages
+	 */
+	public IsoReversalBuilder(IsoSchemaRegistry registry, Charset charset) {
+		if (registry == null || charset == null) {
+			throw new IllegalArgumentException(
+					"Registry and charset must not be null");
+		}
+		this.registry = registry;
+		this.charset = charset;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Is a request of type reversed when its outcome is unknown?
+	 *
+	 * @param requestType
+	 *            request type
+	 * @return true if reversible
+	 */
+	public boolean isReversible(String requestType) {
+		for (String t : reversible) {
+			if (t.equals(requestType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Build the reversal of a request.
+	 *
+	 * @param original
+	 *            request as sent: type, bitmap and data, no header
+	 * @return the reversal
+	 * @throws IllegalArgumentException
+	 *             if the request can not be read
+	 */
+	public WriteIsoMessage build(byte[] original) {
+		if (original == null || original.length < 12) {
+			throw new IllegalArgumentException("No request to reverse");
+		}
+		String requestType = new String(original, 0, 4, charset);
+		ReadIsoMessage request = new ReadIsoMessage(
+				registry.schema(requestType), Arrays.copyOfRange(original, 4,
+						original.length), charset);
+		WriteIsoMessage reversal = new WriteIsoMessage(registry.schema(type),
+				charset);
+		for (int num : echo) {
+			int len = request.getRawLength(num);
+			if (len > 0) {
+				reversal.setIsoValue(num, request.getRawIsoValue(num));
+			}
+		}
+		byte[] f90 = new byte[42];
+		Arrays.fill(f90, (byte) '0');
+		System.arraycopy(original, 0, f90, 0, 4);
+		put(request.getIsoValue(11), f90, 4, 6);
+		put(request.getIsoValue(7), f90, 10, 10);
+		put(request.getIsoValue(32), f90, 20, 11);
+		put(request.getIsoValue(33), f90, 31, 11);
+		reversal.setIsoValue(90, f90);
+		return reversal;
+	}
+
+	/**
+	 * Right-align a value in len bytes, keep its rightmost len bytes if
+	 * longer.
+	 */
+	private static void put(byte[] value, byte[] dst, int off, int len) {
+		if (value == null) {
+			return;
+		}
+		int n = Math.min(value.length, len);
+		System.arraycopy(value, value.length - n, dst, off + len - n, n);
+	}
+
+	/**
+	 * Set type of the reversals, default 0400.
+	 *
+	 * @param type
+	 *            eg: 0420 for acquirer reversal advices
+	 */
+	public void setType(String type) {
+		if (type == null || type.length() != 4) {
+			throw new IllegalArgumentException("Type must be 4 digits");
+		}
+		this.type = type;
+	}
+
+	/**
+	 * Set the request types reversed, default 0100 and 0200.
+	 *
+	 * @param types
+	 *            request types
+	 */
+	public void setReversible(String... types) {
+		if (types == null) {
+			throw new IllegalArgumentException("Types must not be null");
+		}
+		this.reversible = types.clone();
+	}
+
+	/**
+	 * Set the fields copied from the request, default 2, 3, 4, 7, 11, 12,
+	 * 13, 14, 18, 22, 25, 32, 33, 37, 41, 42 and 49.
+	 *
+	 * @param fields
+	 *            field nums
+	 */
+	public void setEchoFields(int... fields) {
+		for (int num : fields) {
+			if (num < 2 || num > 128 || num == 90) {
+				throw new IllegalArgumentException("Can not echo field " + num);
+			}
+		}
+		this.echo = fields.clone();
+	}
+
+	/**
+	 * Get the fields copied from the request.
+	 *
+	 * @return field nums, a copy
+	 */
+	public int[] getEchoFields() {
+		return echo.clone();
+	}
+
+	@Override
+	public String toString() {
+		return "IsoReversalBuilder[" + type + " of "
+				+ Arrays.toString(reversible) + "]";
+	}
+
+}
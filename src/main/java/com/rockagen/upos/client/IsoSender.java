@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Something requests can be sent through, eg: an {@link IsoClient} or an
+ * {@link IsoClientPool}.
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public interface IsoSender {
+
+	/**
+	 * Send a request.
+	 *
+	 * @param request
+	 *            request
+	 * @return {@link IsoFuture} of the response
+	 */
+	IsoFuture send(WriteIsoMessage request);
+
+}
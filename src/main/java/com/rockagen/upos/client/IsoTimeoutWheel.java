@@ -0,0 +1,459 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel
+ * <p>
+ * Timeouts hang in a ring of buckets, one bucket per tick; a timeout further
+ * than one turn counts its remaining rounds. Scheduling pushes the timeout
+ * on a lock-free stack and cancelling is one CAS, both O(1) whatever the
+ * count in flight; the wheel thread links, unlinks and expires them. The
+ * lists are intrusive, so a tick allocates nothing.
+ * </p>
+ * <p>
+ * Timeouts fire up to one tick late. Tasks run on the wheel thread, they
+ * must not block.
+ * </p>
+ * <p>
+ * A wheel never started can be driven by the caller instead, eg: a test
+ * overriding {@link #elapsed()} with its own clock and calling
+ * {@link #advance()}.
+ * </p>
+ *
+ * <pre>
+ * IsoTimeoutWheel wheel = new IsoTimeoutWheel(10, TimeUnit.MILLISECONDS, 512);
+ * IsoTimeoutWheel.Timeout t = wheel.schedule(task, request, 30, TimeUnit.SECONDS);
+ * // response arrived
+ * t.cancel();
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoTimeoutWheel {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoTimeoutWheel.class);
+
+	private static final int PENDING = 0;
+
+	private static final int CANCELLED = 1;
+
+	private static final int EXPIRED = 2;
+
+	private static IsoTimeoutWheel shared;
+
+	/**
+	 * Action of an expired timeout.
+	 */
+	public interface Task {
+
+		/**
+		 * The timeout expired.
+		 *
+		 * @param timeout
+		 *            {@link Timeout}
+		 */
+		void expired(Timeout timeout);
+	}
+
+	private final long tick;
+
+	private final int mask;
+
+	private final Timeout[] buckets;
+
+	private final AtomicReference<Timeout> added = new AtomicReference<Timeout>();
+
+	private final AtomicReference<Timeout> cancelled = new AtomicReference<Timeout>();
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final long origin = System.nanoTime();
+
+	private Thread worker;
+
+	private volatile boolean running;
+
+	/**
+	 * Driven by {@link #advance()}, never started.
+	 */
+	private volatile boolean manual;
+
+	/**
+	 * Ticks done, read by the wheel thread only.
+	 */
+	private long ticks;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a wheel.
+	 *
+	 * @param tick
+	 *            tick duration
+	 * @param unit
+	 *            {@link TimeUnit}
+	 * @param size
+	 *            buckets, rounded up to a power of two
+	 */
+	public IsoTimeoutWheel(long tick, TimeUnit unit, int size) {
+		if (tick <= 0 || size < 1 || size > 1 << 20) {
+			throw new IllegalArgumentException(
+					"tick must be > 0 and size in 1.." + (1 << 20));
+		}
+		this.tick = Math.max(unit.toNanos(tick), TimeUnit.MILLISECONDS
+				.toNanos(1));
+		int n = Integer.highestOneBit(size);
+		if (n < size) {
+			n <<= 1;
+		}
+		this.buckets = new Timeout[n];
+		this.mask = n - 1;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * The wheel shared by the links, 10ms ticks and 512 buckets, started on
+	 * first use.
+	 *
+	 * @return {@link IsoTimeoutWheel}
+	 */
+	public static synchronized IsoTimeoutWheel shared() {
+		if (shared == null) {
+			shared = new IsoTimeoutWheel(10, TimeUnit.MILLISECONDS, 512);
+			shared.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Start the wheel thread.
+	 */
+	public synchronized void start() {
+		if (worker != null) {
+			return;
+		}
+		if (manual) {
+			throw new IllegalStateException("Wheel driven by advance()");
+		}
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		}, "upos-timeout-wheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stop the wheel thread, pending timeouts never fire.
+	 */
+	public synchronized void stop() {
+		if (worker == null || !running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(worker);
+		try {
+			worker.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Schedule a task.
+	 *
+	 * @param task
+	 *            {@link Task}, run on the wheel thread
+	 * @param attachment
+	 *            object of the task, eg: the request
+	 * @param delay
+	 *            delay
+	 * @param unit
+	 *            {@link TimeUnit}
+	 * @return {@link Timeout}
+	 */
+	public Timeout schedule(Task task, Object attachment, long delay,
+			TimeUnit unit) {
+		if (task == null) {
+			throw new IllegalArgumentException("Task must not be null");
+		}
+		if (!running && !manual) {
+			start();
+		}
+		long deadline = elapsed() + Math.max(0, unit.toNanos(delay));
+		Timeout t = new Timeout(this, task, attachment, deadline);
+		pending.incrementAndGet();
+		Timeout head;
+		do {
+			head = added.get();
+			t.nextAdded = head;
+		} while (!added.compareAndSet(head, t));
+		return t;
+	}
+
+	/**
+	 * Timeouts neither expired nor cancelled.
+	 *
+	 * @return count
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Tick duration.
+	 *
+	 * @return nanoseconds
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Run the ticks ended at {@link #elapsed()} on the caller, tasks
+	 * included. The first call makes the wheel manual: it is never started,
+	 * scheduling included.
+	 *
+	 * @return ticks run
+	 * @throws IllegalStateException
+	 *             if the wheel thread was started
+	 */
+	public synchronized int advance() {
+		if (worker != null) {
+			throw new IllegalStateException("Wheel thread started");
+		}
+		manual = true;
+		int n = 0;
+		long end;
+		while ((end = (ticks + 1) * tick) <= elapsed()) {
+			tick(end);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Time of the wheel, nanoseconds since it was created.
+	 *
+	 * @return nanoseconds
+	 */
+	protected long elapsed() {
+		return System.nanoTime() - origin;
+	}
+
+	private void cancelled(Timeout t) {
+		pending.decrementAndGet();
+		Timeout head;
+		do {
+			head = cancelled.get();
+			t.nextCancelled = head;
+		} while (!cancelled.compareAndSet(head, t));
+	}
+
+	private void turn() {
+		while (running) {
+			long end = (ticks + 1) * tick;
+			long sleep;
+			while (running && (sleep = end - elapsed()) > 0) {
+				LockSupport.parkNanos(this, sleep);
+			}
+			if (!running) {
+				break;
+			}
+			tick(end);
+		}
+	}
+
+	private void tick(long end) {
+		link();
+		unlink();
+		expire(end);
+		ticks++;
+	}
+
+	private void link() {
+		for (Timeout t = added.getAndSet(null); t != null;) {
+			Timeout next = t.nextAdded;
+			t.nextAdded = null;
+			if (t.state == PENDING) {
+				// the tick whose end covers the deadline, not in the past
+				long target = Math.max((t.deadline + tick - 1) / tick - 1,
+						ticks);
+				t.rounds = (target - ticks) >>> Integer.numberOfTrailingZeros(buckets.length);
+				t.slot = (int) (target & mask);
+				t.next = buckets[t.slot];
+				if (t.next != null) {
+					t.next.prev = t;
+				}
+				buckets[t.slot] = t;
+			}
+			t = next;
+		}
+	}
+
+	private void unlink() {
+		for (Timeout t = cancelled.getAndSet(null); t != null;) {
+			Timeout next = t.nextCancelled;
+			t.nextCancelled = null;
+			remove(t);
+			t = next;
+		}
+	}
+
+	private void remove(Timeout t) {
+		if (t.slot < 0) {
+			return;
+		}
+		if (t.prev != null) {
+			t.prev.next = t.next;
+		} else {
+			buckets[t.slot] = t.next;
+		}
+		if (t.next != null) {
+			t.next.prev = t.prev;
+		}
+		t.prev = null;
+		t.next = null;
+		t.slot = -1;
+	}
+
+	private void expire(long end) {
+		Timeout t = buckets[(int) (ticks & mask)];
+		while (t != null) {
+			Timeout next = t.next;
+			if (t.state != PENDING) {
+				remove(t);
+			} else if (t.rounds > 0) {
+				t.rounds--;
+			} else if (t.deadline <= end) {
+				remove(t);
+				if (Timeout.STATE.compareAndSet(t, PENDING, EXPIRED)) {
+					pending.decrementAndGet();
+					try {
+						t.task.expired(t);
+					} catch (Throwable e) {
+						log.error("Timeout task " + t.task + " failed", e);
+					}
+				}
+			}
+			t = next;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IsoTimeoutWheel[tick=" + tick / 1000 + "us, buckets="
+				+ buckets.length + ", pending=" + getPending() + "]";
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public static final class Timeout {
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private final IsoTimeoutWheel wheel;
+		private final Task task;
+		private final Object attachment;
+		private final long deadline;
+
+		private volatile int state;
+
+		// wheel thread only
+		private long rounds;
+		private int slot = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		// set before the push, read after the pop
+		private Timeout nextAdded;
+		private Timeout nextCancelled;
+
+		Timeout(IsoTimeoutWheel wheel, Task task, Object attachment,
+				long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.attachment = attachment;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel, the task will not run.
+		 *
+		 * @return false if already expired or cancelled
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+				return false;
+			}
+			wheel.cancelled(this);
+			return true;
+		}
+
+		/**
+		 * Was it cancelled?
+		 *
+		 * @return true if cancelled
+		 */
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		/**
+		 * Did it expire?
+		 *
+		 * @return true if the task ran or is running
+		 */
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		/**
+		 * Object of the task.
+		 *
+		 * @return attachment
+		 */
+		public Object getAttachment() {
+			return attachment;
+		}
+
+		@Override
+		public String toString() {
+			return "Timeout[" + task + ", " + attachment + "]";
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.client;
+
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.util.IsoFormatter;
+
+/**
+ * Correlation key of a request and its response: message class, STAN (field
+ * 11), terminal id (field 41) and transmission date time (field 7)
+ * <p>
+ * Numeric fields are packed into longs, building a key copies no String.
+ * An absent field counts as empty.
+ * </p>
+ * <p>
+ * The class is the type with the request/response digit dropped: 0100 and
+ * 0110 share a key, 0400 and 0410 too, but a 0210 never answers a 0400
+ * that echoes its STAN, time and terminal, eg: a reversal of a timed out
+ * request whose late response comes in.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public final class IsoTraceKey {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * Field 7 * 10^6 + field 11.
+	 */
+	private final long time;
+
+	/**
+	 * Field 41, 8 bytes big-endian.
+	 */
+	private final long terminal;
+
+	/**
+	 * Version, class and function / 2 of the type, -1 if not 4 digits.
+	 */
+	private final int kind;
+
+	// ~ Constructors ==================================================
+
+	private IsoTraceKey(int kind, long time, long terminal) {
+		this.kind = kind;
+		this.time = time;
+		this.terminal = terminal;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Key of a message to send.
+	 *
+	 * @param msg
+	 *            {@link WriteIsoMessage}
+	 * @return key
+	 */
+	public static IsoTraceKey of(WriteIsoMessage msg) {
+		return of(msg.getType(), msg.getIsoValue(11), msg.getIsoValue(7),
+				msg.getIsoValue(41));
+	}
+
+	/**
+	 * Key of a received message.
+	 *
+	 * @param msg
+	 *            {@link ReadIsoMessage}
+	 * @return key
+	 */
+	public static IsoTraceKey of(ReadIsoMessage msg) {
+		return of(msg.getType(), msg.getIsoValue(11), msg.getIsoValue(7),
+				msg.getIsoValue(41));
+	}
+
+	/**
+	 * Key of raw values.
+	 *
+	 * @param type
+	 *            iso8583 message type, request or response
+	 * @param stan
+	 *            field 11, null if absent
+	 * @param time
+	 *            field 7, null if absent
+	 * @param terminal
+	 *            field 41, null if absent
+	 * @return key
+	 */
+	public static IsoTraceKey of(String type, byte[] stan, byte[] time,
+			byte[] terminal) {
+		long t = digits(time) * 1000000L + digits(stan);
+		long id = 0;
+		if (terminal != null) {
+			for (int i = 0; i < terminal.length; i++) {
+				// longer than 8 bytes folds, still a valid key
+				id = (id << 8 | id >>> 56) ^ (terminal[i] & 0xFF);
+			}
+		}
+		return new IsoTraceKey(kind(type), t, id);
+	}
+
+	private static int kind(String type) {
+		if (type == null || type.length() != 4) {
+			return -1;
+		}
+		int k = 0;
+		for (int i = 0; i < 3; i++) {
+			int d = type.charAt(i) - '0';
+			if (d < 0 || d > 9) {
+				return -1;
+			}
+			k = k * 10 + (i == 2 ? d >> 1 : d);
+		}
+		return k;
+	}
+
+	/**
+	 * Is a type the response of a request type? eg: 0410 of 0400 and of
+	 * 0401 (repeat), not 0210 of 0400.
+	 *
+	 * @param request
+	 *            request type
+	 * @param response
+	 *            response type
+	 * @return true if it answers the request
+	 */
+	public static boolean isResponse(String request, String response) {
+		int k = kind(request);
+		return k >= 0 && k == kind(response)
+				&& (request.charAt(2) - '0') % 2 == 0
+				&& response.charAt(2) == request.charAt(2) + 1;
+	}
+
+	private static long digits(byte[] value) {
+		if (value == null || value.length == 0) {
+			return 0;
+		}
+		long v = IsoFormatter.parseDigits(value, 0, Math.min(value.length, 10));
+		return v < 0 ? 0 : v;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = time * 0x9E3779B97F4A7C15L ^ terminal ^ (long) kind << 40;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof IsoTraceKey)) {
+			return false;
+		}
+		IsoTraceKey o = (IsoTraceKey) obj;
+		return time == o.time && terminal == o.terminal && kind == o.kind;
+	}
+
+	@Override
+	public String toString() {
+		long stan = time % 1000000L;
+		return "IsoTraceKey[kind=" + kind + ", stan=" + stan + ", time="
+				+ time / 1000000L + ", terminal=" + Long.toHexString(terminal) + "]";
+	}
+
+}
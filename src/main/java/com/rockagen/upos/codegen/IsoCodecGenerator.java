@@ -0,0 +1,601 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.codegen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.rockagen.upos.define.IsoCodec;
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoType;
+
+/**
+ * Generate specialized message classes from iso8583.xml
+ * <p>
+ * For every parser type <code>XXXX</code> a <code>IsoXXXXReader</code> is
+ * generated, a {@link com.rockagen.upos.message.ReadIsoMessage} with typed
+ * getters (<code>getStan()</code>, <code>getAmount()</code>...) and a nested
+ * <code>Codec</code> that locates the fields in straight-line code, lengths
+ * and bit masks are constants. For every parser or template type a
+ * <code>IsoXXXXWriter</code> is generated, a
+ * {@link com.rockagen.upos.message.WriteIsoMessage} with typed setters.
+ * </p>
+ * <p>
+ * The codecs are declared in
+ * <code>META-INF/services/com.rockagen.upos.define.IsoCodec</code>, so any
+ * {@link com.rockagen.upos.message.ReadIsoMessage} of a matching schema uses
+ * them; a schema whose parser changed after generation falls back to the
+ * interpreted path.
+ * </p>
+ *
+ * <pre>
+ * gradle isoCodecs -PisoXml=iso8583.xml -PisoPackage=com.acme.iso
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoCodecGenerator {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * Accessor names of ISO 8583:1987 data elements.
+	 */
+	private static final Map<Integer, String> NAMES = new HashMap<Integer, String>();
+
+	/**
+	 * NUMERIC data elements that are codes, accessed as String.
+	 */
+	private static final Set<Integer> CODES = new TreeSet<Integer>();
+
+	static {
+		String[] names = { "2", "Pan", "3", "ProcessingCode", "4", "Amount",
+				"5", "SettlementAmount", "6", "BillingAmount", "7",
+				"TransmissionDateTime", "11", "Stan", "12", "LocalTime", "13",
+				"LocalDate", "14", "ExpirationDate", "15", "SettlementDate",
+				"18", "MerchantType", "22", "PosEntryMode", "23",
+				"CardSequenceNumber", "25", "PosConditionCode", "26",
+				"PinCaptureCode", "32", "AcquirerId", "33", "ForwardingId",
+				"35", "Track2", "36", "Track3", "37", "Rrn", "38",
+				"AuthorizationCode", "39", "ResponseCode", "41", "TerminalId",
+				"42", "MerchantId", "43", "MerchantNameLocation", "44",
+				"AdditionalResponseData", "45", "Track1", "48",
+				"AdditionalData", "49", "CurrencyCode", "50",
+				"SettlementCurrencyCode", "52", "PinData", "53",
+				"SecurityControlInfo", "54", "AdditionalAmounts", "55",
+				"IccData", "64", "Mac", "70", "NetworkManagementCode", "90",
+				"OriginalDataElements", "96", "MessageSecurityCode", "100",
+				"ReceivingInstitutionId", "102", "AccountId1", "103",
+				"AccountId2", "128", "Mac2" };
+		for (int i = 0; i < names.length; i += 2) {
+			NAMES.put(Integer.valueOf(names[i]), names[i + 1]);
+		}
+		int[] codes = { 3, 18, 22, 23, 25, 26, 49, 50, 53, 70 };
+		for (int c : codes) {
+			CODES.add(c);
+		}
+	}
+
+	private static final String NL = "\n";
+
+	private final IsoPredefine predefine;
+
+	private final String packageName;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a generator.
+	 *
+	 * @param predefine
+	 *            {@link IsoPredefine}
+	 * @param packageName
+	 *            package of the generated classes
+	 */
+	public IsoCodecGenerator(IsoPredefine predefine, String packageName) {
+		if (predefine == null || packageName == null) {
+			throw new IllegalArgumentException(
+					"Predefine and package must not be null");
+		}
+		IsoPreDefineParser.validate(predefine);
+		this.predefine = predefine;
+		this.packageName = packageName;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Generate the sources.
+	 *
+	 * @return simple class name -> source, readers first
+	 */
+	public Map<String, String> generate() {
+		IsoSchemaRegistry registry = predefine.compile();
+		Map<String, String> sources = new LinkedHashMap<String, String>();
+		for (String type : types(true)) {
+			sources.put(readerName(type), reader(registry.get(type)));
+		}
+		for (String type : types(false)) {
+			sources.put(writerName(type), writer(registry.get(type)));
+		}
+		return sources;
+	}
+
+	/**
+	 * Binary names of the generated codecs, the content of the services file.
+	 *
+	 * @return class names
+	 */
+	public List<String> codecNames() {
+		List<String> names = new ArrayList<String>();
+		for (String type : types(true)) {
+			names.add(packageName + "." + readerName(type) + "$Codec");
+		}
+		return names;
+	}
+
+	/**
+	 * Write the sources under srcDir and the services file under
+	 * resourcesDir.
+	 *
+	 * @param srcDir
+	 *            java source root
+	 * @param resourcesDir
+	 *            resources root, null to skip the services file
+	 * @throws IOException
+	 */
+	public void writeTo(File srcDir, File resourcesDir) throws IOException {
+		File dir = new File(srcDir, packageName.replace('.', File.separatorChar));
+		mkdirs(dir);
+		for (Map.Entry<String, String> e : generate().entrySet()) {
+			write(new File(dir, e.getKey() + ".java"), e.getValue());
+		}
+		if (resourcesDir != null) {
+			File services = new File(resourcesDir, "META-INF/services");
+			mkdirs(services);
+			StringBuilder sb = new StringBuilder();
+			for (String name : codecNames()) {
+				sb.append(name).append(NL);
+			}
+			write(new File(services, IsoCodec.class.getName()), sb.toString());
+		}
+	}
+
+	/**
+	 * Parser types (readers) or parser and template types (writers) that are
+	 * valid class name parts.
+	 */
+	private Set<String> types(boolean parsersOnly) {
+		Set<String> types = new TreeSet<String>();
+		if (predefine.getParsers() != null) {
+			for (IsoPredefine.IsoParser p : predefine.getParsers()) {
+				types.add(p.getType());
+			}
+		}
+		if (!parsersOnly && predefine.getTemplates() != null) {
+			for (IsoPredefine.IsoTemplate t : predefine.getTemplates()) {
+				types.add(t.getType());
+			}
+		}
+		Set<String> valid = new TreeSet<String>();
+		for (String type : types) {
+			if (type.matches("[A-Za-z0-9_]+")) {
+				valid.add(type);
+			}
+		}
+		return valid;
+	}
+
+	private static String readerName(String type) {
+		return "Iso" + type + "Reader";
+	}
+
+	private static String writerName(String type) {
+		return "Iso" + type + "Writer";
+	}
+
+	private String reader(IsoSchema schema) {
+		String type = schema.getType();
+		String name = readerName(type);
+		StringBuilder sb = new StringBuilder(8192);
+		header(sb, "parser " + type);
+		sb.append("import java.nio.charset.Charset;").append(NL).append(NL);
+		sb.append("import com.rockagen.upos.define.IsoCodec;").append(NL);
+		sb.append("import com.rockagen.upos.define.IsoPredefine;").append(NL);
+		sb.append("import com.rockagen.upos.define.IsoSchema;").append(NL);
+		sb.append("import com.rockagen.upos.message.ReadIsoMessage;").append(NL);
+		sb.append("import com.rockagen.upos.util.IsoFormatter;").append(NL)
+				.append(NL);
+		sb.append("/**").append(NL);
+		sb.append(" * Reader of ").append(type)
+				.append(", generated from iso8583.xml, do not edit.")
+				.append(NL);
+		sb.append(" */").append(NL);
+		sb.append("public class ").append(name)
+				.append(" extends ReadIsoMessage {").append(NL).append(NL);
+		sb.append("\tpublic static final String TYPE = \"").append(type)
+				.append("\";").append(NL).append(NL);
+		sb.append("\tpublic static final String LAYOUT = \"")
+				.append(schema.getLayout()).append("\";").append(NL)
+				.append(NL);
+
+		sb.append("\tpublic ").append(name).append("(byte[] bytes) {")
+				.append(NL);
+		sb.append("\t\tsuper(TYPE, bytes, Charset.defaultCharset(), null);")
+				.append(NL);
+		sb.append("\t}").append(NL).append(NL);
+		sb.append("\tpublic ").append(name)
+				.append("(byte[] bytes, Charset charset, IsoPredefine isopredefine) {")
+				.append(NL);
+		sb.append("\t\tsuper(TYPE, bytes, charset, isopredefine);").append(NL);
+		sb.append("\t}").append(NL).append(NL);
+		sb.append("\tpublic ").append(name)
+				.append("(IsoSchema schema, byte[] bytes, Charset charset) {")
+				.append(NL);
+		sb.append("\t\tsuper(schema, bytes, charset);").append(NL);
+		sb.append("\t}").append(NL).append(NL);
+
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			IsoField f = schema.getParserField(num);
+			if (f != null) {
+				getter(sb, f);
+			}
+		}
+		codec(sb, schema);
+		sb.append("}").append(NL);
+		return sb.toString();
+	}
+
+	private void getter(StringBuilder sb, IsoField f) {
+		int num = f.getNum();
+		IsoType t = f.getType();
+		String returns;
+		String body;
+		if (t == IsoType.BINARY) {
+			returns = "byte[]";
+			body = "getIsoValue(" + num + ")";
+		} else if (isLong(f)) {
+			returns = "long";
+			body = "digits(" + num + ", 0)";
+		} else {
+			returns = "String";
+			body = "string(" + num + ", " + prefix(t) + ")";
+		}
+		sb.append("\t/**").append(NL);
+		sb.append("\t * Field ").append(num).append(' ').append(describe(f))
+				.append('.').append(NL);
+		sb.append("\t *").append(NL);
+		sb.append("\t * @return value, ")
+				.append("long".equals(returns) ? "-1" : "null")
+				.append(" if not exist").append(NL);
+		sb.append("\t */").append(NL);
+		sb.append("\tpublic ").append(returns).append(" get")
+				.append(accessor(num)).append("() {").append(NL);
+		sb.append("\t\treturn ").append(body).append(";").append(NL);
+		sb.append("\t}").append(NL).append(NL);
+	}
+
+	private void codec(StringBuilder sb, IsoSchema schema) {
+		long mask0 = Long.MIN_VALUE;
+		long mask1 = 0L;
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			if (schema.getParserField(num) != null) {
+				if (num <= 64) {
+					mask0 |= bit(num);
+				} else {
+					mask1 |= bit(num);
+				}
+			}
+		}
+		sb.append("\t/**").append(NL);
+		sb.append("\t * Field locator of ").append(schema.getType())
+				.append('.').append(NL);
+		sb.append("\t */").append(NL);
+		sb.append("\tpublic static final class Codec implements IsoCodec {")
+				.append(NL).append(NL);
+		sb.append("\t\tprivate static final long MASK0 = ").append(hex(mask0))
+				.append(";").append(NL).append(NL);
+		sb.append("\t\tprivate static final long MASK1 = ").append(hex(mask1))
+				.append(";").append(NL).append(NL);
+		sb.append("\t\t@Override").append(NL);
+		sb.append("\t\tpublic String getType() {").append(NL);
+		sb.append("\t\t\treturn TYPE;").append(NL);
+		sb.append("\t\t}").append(NL).append(NL);
+		sb.append("\t\t@Override").append(NL);
+		sb.append("\t\tpublic String getLayout() {").append(NL);
+		sb.append("\t\t\treturn LAYOUT;").append(NL);
+		sb.append("\t\t}").append(NL).append(NL);
+		sb.append("\t\t@Override").append(NL);
+		sb.append("\t\tpublic int locate(byte[] d, int off, int end, long bm0, long bm1,")
+				.append(NL);
+		sb.append("\t\t\t\tint[] offsets, int[] lengths) {").append(NL);
+		sb.append("\t\t\tif ((bm0 & ~MASK0) != 0 || (bm1 & ~MASK1) != 0) {")
+				.append(NL);
+		sb.append("\t\t\t\treturn -1;").append(NL);
+		sb.append("\t\t\t}").append(NL);
+		sb.append("\t\t\tint p = off;").append(NL);
+		boolean var = false;
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			if (schema.getParserField(num) != null
+					&& prefix(schema.getParserField(num).getType()) > 0) {
+				var = true;
+			}
+		}
+		if (var) {
+			sb.append("\t\t\tint n;").append(NL);
+		}
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			IsoField f = schema.getParserField(num);
+			if (f == null) {
+				continue;
+			}
+			sb.append("\t\t\t// ").append(num).append(' ').append(describe(f))
+					.append(NL);
+			sb.append("\t\t\tif ((").append(num <= 64 ? "bm0" : "bm1")
+					.append(" & ").append(hex(bit(num))).append(") != 0) {")
+					.append(NL);
+			int prefix = prefix(f.getType());
+			if (prefix > 0) {
+				sb.append("\t\t\t\tif (p + ").append(prefix)
+						.append(" > end) {").append(NL);
+				sb.append("\t\t\t\t\treturn -1;").append(NL);
+				sb.append("\t\t\t\t}").append(NL);
+				sb.append("\t\t\t\tn = (int) IsoFormatter.parseDigits(d, p, ")
+						.append(prefix).append(");").append(NL);
+				sb.append("\t\t\t\tif (n < 0) {").append(NL);
+				sb.append("\t\t\t\t\treturn -1;").append(NL);
+				sb.append("\t\t\t\t}").append(NL);
+				sb.append("\t\t\t\toffsets[").append(num).append("] = p;")
+						.append(NL);
+				sb.append("\t\t\t\tlengths[").append(num).append("] = ")
+						.append(prefix).append(" + n;").append(NL);
+				sb.append("\t\t\t\tp += ").append(prefix).append(" + n;")
+						.append(NL);
+			} else {
+				int len = fixedLength(f);
+				sb.append("\t\t\t\toffsets[").append(num).append("] = p;")
+						.append(NL);
+				sb.append("\t\t\t\tlengths[").append(num).append("] = ")
+						.append(len).append(";").append(NL);
+				sb.append("\t\t\t\tp += ").append(len).append(";").append(NL);
+			}
+			sb.append("\t\t\t}").append(NL);
+		}
+		sb.append("\t\t\treturn p <= end ? p : -1;").append(NL);
+		sb.append("\t\t}").append(NL).append(NL);
+		sb.append("\t}").append(NL).append(NL);
+	}
+
+	private String writer(IsoSchema schema) {
+		String type = schema.getType();
+		String name = writerName(type);
+		StringBuilder sb = new StringBuilder(8192);
+		header(sb, "parser/template " + type);
+		boolean date = false;
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			IsoField f = writerField(schema, num);
+			if (f != null && isDate(f.getType())) {
+				date = true;
+			}
+		}
+		sb.append("import java.nio.charset.Charset;").append(NL);
+		if (date) {
+			sb.append("import java.util.Date;").append(NL);
+		}
+		sb.append(NL);
+		sb.append("import com.rockagen.upos.define.IsoPredefine;").append(NL);
+		sb.append("import com.rockagen.upos.define.IsoSchema;").append(NL);
+		sb.append("import com.rockagen.upos.enums.IsoType;").append(NL);
+		sb.append("import com.rockagen.upos.message.WriteIsoMessage;")
+				.append(NL).append(NL);
+		sb.append("/**").append(NL);
+		sb.append(" * Writer of ").append(type)
+				.append(", generated from iso8583.xml, do not edit.")
+				.append(NL);
+		sb.append(" */").append(NL);
+		sb.append("public class ").append(name)
+				.append(" extends WriteIsoMessage {").append(NL).append(NL);
+		sb.append("\tpublic static final String TYPE = \"").append(type)
+				.append("\";").append(NL).append(NL);
+		sb.append("\tpublic ").append(name).append("() {").append(NL);
+		sb.append("\t\tsuper(TYPE);").append(NL);
+		sb.append("\t}").append(NL).append(NL);
+		sb.append("\tpublic ").append(name)
+				.append("(Charset charset, IsoPredefine isopredefine) {")
+				.append(NL);
+		sb.append("\t\tsuper(TYPE, charset, isopredefine);").append(NL);
+		sb.append("\t}").append(NL).append(NL);
+		sb.append("\tpublic ").append(name)
+				.append("(IsoSchema schema, Charset charset) {").append(NL);
+		sb.append("\t\tsuper(schema, charset);").append(NL);
+		sb.append("\t}").append(NL).append(NL);
+
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			IsoField f = writerField(schema, num);
+			if (f != null) {
+				setter(sb, name, f);
+			}
+		}
+		sb.append("}").append(NL);
+		return sb.toString();
+	}
+
+	/**
+	 * Template field, else parser field of the same type.
+	 */
+	private static IsoField writerField(IsoSchema schema, int num) {
+		IsoField f = schema.getTemplateField(num);
+		return f != null ? f : schema.getParserField(num);
+	}
+
+	private void setter(StringBuilder sb, String name, IsoField f) {
+		int num = f.getNum();
+		IsoType t = f.getType();
+		String param;
+		String body;
+		if (t == IsoType.BINARY) {
+			param = "byte[]";
+			body = "setBinary(" + num + ", value, " + f.getLength() + ")";
+		} else if (t == IsoType.AMOUNT) {
+			param = "long";
+			body = "setAmount(" + num + ", value)";
+		} else if (isLong(f)) {
+			param = "long";
+			body = "setNumeric(" + num + ", value, " + f.getLength() + ")";
+		} else if (isDate(t)) {
+			param = "Date";
+			body = "setText(" + num + ", IsoType." + t.name() + ", IsoType."
+					+ t.name() + ".format(value), " + t.getLen() + ")";
+		} else {
+			param = "String";
+			body = "setText(" + num + ", IsoType." + t.name() + ", value, "
+					+ f.getLength() + ")";
+		}
+		sb.append("\t/**").append(NL);
+		sb.append("\t * Field ").append(num).append(' ').append(describe(f))
+				.append('.').append(NL);
+		sb.append("\t *").append(NL);
+		sb.append("\t * @param value").append(NL);
+		if (t == IsoType.AMOUNT) {
+			sb.append("\t *            amount in minor units").append(NL);
+		}
+		sb.append("\t * @return this").append(NL);
+		sb.append("\t */").append(NL);
+		sb.append("\tpublic ").append(name).append(" set")
+				.append(accessor(num)).append('(').append(param)
+				.append(" value) {").append(NL);
+		sb.append("\t\t").append(body).append(";").append(NL);
+		sb.append("\t\treturn this;").append(NL);
+		sb.append("\t}").append(NL).append(NL);
+	}
+
+	private void header(StringBuilder sb, String from) {
+		sb.append("/*").append(NL);
+		sb.append(" * Generated by ").append(getClass().getName())
+				.append(" from iso8583.xml ").append(from).append(", do not edit.")
+				.append(NL);
+		sb.append(" */").append(NL);
+		sb.append("package ").append(packageName).append(";").append(NL)
+				.append(NL);
+	}
+
+	private static boolean isLong(IsoField f) {
+		if (f.getType() == IsoType.AMOUNT) {
+			return true;
+		}
+		return f.getType() == IsoType.NUMERIC && f.getLength() <= 18
+				&& !CODES.contains(f.getNum());
+	}
+
+	private static boolean isDate(IsoType t) {
+		return t == IsoType.DATE10 || t == IsoType.DATE4_MD
+				|| t == IsoType.DATE4_YM || t == IsoType.TIME;
+	}
+
+	private static int prefix(IsoType t) {
+		if (t == IsoType.LLVAR) {
+			return 2;
+		}
+		return t == IsoType.LLLVAR ? 3 : 0;
+	}
+
+	private static int fixedLength(IsoField f) {
+		return f.getType().isNsLen() ? f.getLength() : f.getType().getLen();
+	}
+
+	private static String describe(IsoField f) {
+		IsoType t = f.getType();
+		if (t.isNsLen()) {
+			return t.name() + "(" + f.getLength() + ")";
+		}
+		return t.name();
+	}
+
+	private static String accessor(int num) {
+		String name = NAMES.get(num);
+		return name == null ? "Field" + num : name;
+	}
+
+	private static long bit(int num) {
+		return Long.MIN_VALUE >>> ((num - 1) & 63);
+	}
+
+	private static String hex(long v) {
+		return "0x" + Long.toHexString(v).toUpperCase() + "L";
+	}
+
+	private static void mkdirs(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can not create " + dir);
+		}
+	}
+
+	private static void write(File file, String content) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file),
+				Charset.forName("UTF-8"));
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Generate sources from an iso8583.xml.
+	 *
+	 * @param args
+	 *            iso8583.xml path, source dir, package, [resources dir]
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3 || args.length > 4) {
+			System.err.println("Usage: IsoCodecGenerator <iso8583.xml> <src dir> <package> [resources dir]");
+			System.exit(2);
+		}
+		IsoPredefine predefine;
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			predefine = IsoPreDefineParser.createFromStream(in);
+		} finally {
+			in.close();
+		}
+		IsoCodecGenerator generator = new IsoCodecGenerator(predefine,
+				args[2]);
+		generator.writeTo(new File(args[1]), args.length == 4 ? new File(
+				args[3]) : null);
+		System.out.println("Generated " + generator.generate().size()
+				+ " classes of " + args[0] + " to " + args[1]);
+	}
+
+}
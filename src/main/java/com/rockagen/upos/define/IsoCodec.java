@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+/**
+ * Specialized field locator of one message type
+ * <p>
+ * A codec knows the parser fields of its type, it finds the fields of a
+ * message without interpreting {@link IsoPredefine.IsoField}s. It is only
+ * used for a schema whose {@link IsoSchema#getLayout()} equals
+ * {@link #getLayout()}, otherwise the message is read by the interpreted
+ * path. Implementations must be stateless.
+ * </p>
+ *
+ * @author RA
+ * @see IsoCodecs
+ * @since JDK1.6
+ */
+public interface IsoCodec {
+
+	/**
+	 * Message type of this codec.
+	 *
+	 * @return iso8583 message type eg: 0200,0210...
+	 */
+	String getType();
+
+	/**
+	 * Parser layout this codec is made for.
+	 *
+	 * @return layout
+	 * @see IsoSchema#getLayout()
+	 */
+	String getLayout();
+
+	/**
+	 * Locate the fields of a message.
+	 * <p>
+	 * The raw offset and raw length (LLVAR/LLLVAR length prefix included) of
+	 * every present field are stored at the field num of offsets and lengths.
+	 * </p>
+	 *
+	 * @param data
+	 *            message bytes after the bitmap
+	 * @param off
+	 *            first field offset
+	 * @param end
+	 *            end of the message, exclusive
+	 * @param bm0
+	 *            primary bitmap, field 1 is the highest bit
+	 * @param bm1
+	 *            secondary bitmap, 0 if absent
+	 * @param offsets
+	 *            raw offsets by field num
+	 * @param lengths
+	 *            raw lengths by field num
+	 * @return offset after the last field, -1 if the message has a field
+	 *         this codec does not know or can not be located
+	 */
+	int locate(byte[] data, int off, int end, long bm0, long bm1,
+			int[] offsets, int[] lengths);
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of {@link IsoCodec}s
+ * <p>
+ * Codecs generated at build time are declared in
+ * <code>META-INF/services/com.rockagen.upos.define.IsoCodec</code> and
+ * loaded once, others can be added by {@link #register(IsoCodec)} before the
+ * schemas that use them are compiled.
+ * </p>
+ * <p>
+ * A schema without a registered codec, eg: provisioned or reloaded at
+ * runtime, gets an {@link IsoPlanCodec} built from its parser. Set the
+ * system property <code>upos.codec.plan=false</code> or call
+ * {@link #setPlanEnabled(boolean)} to read such schemas by the interpreted
+ * path.
+ * </p>
+ *
+ * @author RA
+ * @see IsoSchema#getCodec()
+ * @since JDK1.6
+ */
+public final class IsoCodecs {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory.getLogger(IsoCodecs.class);
+
+	/**
+	 * type@layout -> codec
+	 */
+	private static final ConcurrentMap<String, IsoCodec> codecs = new ConcurrentHashMap<String, IsoCodec>();
+
+	private static volatile boolean planEnabled = !"false"
+			.equalsIgnoreCase(System.getProperty("upos.codec.plan"));
+
+	static {
+		load();
+	}
+
+	// ~ Constructors ==================================================
+
+	private IsoCodecs() {
+	}
+
+	// ~ Methods ==================================================
+
+	private static void load() {
+		try {
+			Iterator<IsoCodec> it = ServiceLoader.load(IsoCodec.class,
+					IsoCodecs.class.getClassLoader()).iterator();
+			while (it.hasNext()) {
+				register(it.next());
+			}
+		} catch (ServiceConfigurationError e) {
+			log.warn("Load IsoCodec services failed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Register a codec, it replaces a codec of the same type and layout.
+	 *
+	 * @param codec
+	 *            {@link IsoCodec}
+	 */
+	public static void register(IsoCodec codec) {
+		if (codec == null || codec.getType() == null
+				|| codec.getLayout() == null) {
+			throw new IllegalArgumentException(
+					"Codec, its type and layout must not be null");
+		}
+		codecs.put(key(codec.getType(), codec.getLayout()), codec);
+		log.debug("Registered IsoCodec {} for [{}]", codec.getClass()
+				.getName(), codec.getType());
+	}
+
+	/**
+	 * Find the codec of a schema: a registered codec of the same layout, else
+	 * an {@link IsoPlanCodec} if enabled.
+	 *
+	 * @param schema
+	 *            {@link IsoSchema}
+	 * @return {@link IsoCodec}, null if the schema is read by the interpreted
+	 *         path
+	 */
+	public static IsoCodec find(IsoSchema schema) {
+		String layout = schema.getLayout();
+		if (layout == null) {
+			return null;
+		}
+		IsoCodec codec = codecs.get(key(schema.getType(), layout));
+		if (codec != null || !planEnabled) {
+			return codec;
+		}
+		try {
+			return IsoPlanCodec.compile(schema);
+		} catch (RuntimeException e) {
+			log.warn("Build IsoCodec of [{}] failed,interpret it: {}",
+					schema.getType(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Enable or disable {@link IsoPlanCodec}s for schemas compiled from now
+	 * on.
+	 *
+	 * @param enabled
+	 *            true to build plans
+	 */
+	public static void setPlanEnabled(boolean enabled) {
+		planEnabled = enabled;
+	}
+
+	/**
+	 * Are {@link IsoPlanCodec}s built?
+	 *
+	 * @return true if enabled
+	 */
+	public static boolean isPlanEnabled() {
+		return planEnabled;
+	}
+
+	private static String key(String type, String layout) {
+		return type + '@' + layout;
+	}
+
+}
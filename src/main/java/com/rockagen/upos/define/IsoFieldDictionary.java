@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.enums.IsoType;
+
+/**
+ * Shared field definitions of compiled schemas
+ * <p>
+ * Parsers and templates of different types usually repeat the same
+ * <code>&lt;field&gt;</code>s. Every distinct definition (num, type, length
+ * and value) is kept once here, a schema refers to it by a small int. The
+ * kept {@link IsoField}s are copies, changing the predefine after compile
+ * does not change them.
+ * </p>
+ * <p>
+ * Definitions are only added while schemas are compiled, by the thread that
+ * compiles them; afterwards the dictionary is read only.
+ * </p>
+ *
+ * @author RA
+ * @see IsoSchemaRegistry#getDictionary()
+ * @since JDK1.6
+ */
+public final class IsoFieldDictionary {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * Max ids, refs are stored as char.
+	 */
+	static final int MAX_SIZE = Character.MAX_VALUE - 1;
+
+	private final Map<Key, Integer> ids = new HashMap<Key, Integer>();
+
+	private IsoField[] fields = new IsoField[64];
+
+	private int size;
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Get the id of a definition, add it if new.
+	 *
+	 * @param field
+	 *            {@link IsoField}
+	 * @return id
+	 */
+	int intern(IsoField field) {
+		Key key = new Key(field.getNum(), field.getType(), field.getLength(),
+				field.getValue());
+		Integer id = ids.get(key);
+		if (id != null) {
+			return id;
+		}
+		if (size == MAX_SIZE) {
+			throw new IllegalStateException("More than " + MAX_SIZE
+					+ " distinct fields");
+		}
+		if (size == fields.length) {
+			fields = Arrays.copyOf(fields, size << 1);
+		}
+		String value = field.getValue();
+		fields[size] = new IsoField(field.getNum(), field.getType(),
+				field.getLength(), value == null ? null : value.intern());
+		ids.put(key, size);
+		return size++;
+	}
+
+	/**
+	 * Get a definition by id.
+	 *
+	 * @param id
+	 *            id
+	 * @return {@link IsoField}
+	 */
+	public IsoField get(int id) {
+		if (id < 0 || id >= size) {
+			throw new IllegalArgumentException("No field of id " + id);
+		}
+		return fields[id];
+	}
+
+	/**
+	 * Count of distinct definitions.
+	 *
+	 * @return count
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoFieldDictionary[" + size + " fields]";
+	}
+
+	/**
+	 * Value key of a definition, {@link IsoField#equals(Object)} only
+	 * compares num.
+	 */
+	private static final class Key {
+
+		private final int num;
+		private final IsoType type;
+		private final int length;
+		private final String value;
+
+		Key(int num, IsoType type, int length, String value) {
+			this.num = num;
+			this.type = type;
+			this.length = length;
+			this.value = value;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = num;
+			h = 31 * h + (type == null ? 0 : type.hashCode());
+			h = 31 * h + length;
+			return 31 * h + (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key o = (Key) obj;
+			return num == o.num && type == o.type && length == o.length
+					&& (value == null ? o.value == null : value.equals(o.value));
+		}
+	}
+
+}
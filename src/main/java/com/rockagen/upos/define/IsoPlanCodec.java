@@ -0,0 +1,352 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.enums.IsoType;
+import com.rockagen.upos.util.IsoFormatter;
+
+/**
+ * {@link IsoCodec} built at runtime from a schema
+ * <p>
+ * The field types are folded into a length table when the schema is
+ * compiled: a fixed field is its length, a LLVAR/LLLVAR field is the negated
+ * size of its length prefix. Locating a message walks the set bits of the
+ * bitmap and reads the table, no {@link IsoField} is looked at and no type
+ * is switched on.
+ * </p>
+ * <p>
+ * Traffic of a type usually carries few distinct bitmaps, so the walk of a
+ * bitmap is kept in a bounded cache: the present fields in order, the
+ * offsets of the leading fixed-length fields (fully determined by the
+ * bitmap) and the fields left to scan. The cache is direct-mapped, a bitmap
+ * evicts the one of its slot, so its size is fixed whatever the bitmap
+ * variety (system property <code>upos.codec.layouts</code>, default 64, 0 to
+ * disable).
+ * </p>
+ *
+ * @author RA
+ * @see IsoCodecs
+ * @since JDK1.6
+ */
+public final class IsoPlanCodec implements IsoCodec {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * Default cached bitmaps per type.
+	 */
+	public static final int DEFAULT_LAYOUTS = Integer.getInteger(
+			"upos.codec.layouts", 64);
+
+	private final String type;
+
+	private final String layout;
+
+	/**
+	 * Length by field num, -2/-3 for LLVAR/LLLVAR.
+	 */
+	private final int[] lens = new int[IsoSchema.MAX_FIELD + 1];
+
+	/**
+	 * Defined fields of the primary bitmap (and field 1, the secondary
+	 * bitmap indicator).
+	 */
+	private final long mask0;
+
+	/**
+	 * Defined fields of the secondary bitmap.
+	 */
+	private final long mask1;
+
+	/**
+	 * Direct-mapped layouts, length is a power of two, empty if disabled.
+	 */
+	private final BitmapLayout[] layouts;
+
+	// ~ Constructors ==================================================
+
+	private IsoPlanCodec(IsoSchema schema, int cached) {
+		this.type = schema.getType();
+		this.layout = schema.getLayout();
+		long m0 = Long.MIN_VALUE;
+		long m1 = 0L;
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			IsoField f = schema.getParserField(num);
+			if (f == null) {
+				continue;
+			}
+			lens[num] = length(f);
+			long bit = Long.MIN_VALUE >>> ((num - 1) & 63);
+			if (num <= 64) {
+				m0 |= bit;
+			} else {
+				m1 |= bit;
+			}
+		}
+		mask0 = m0;
+		mask1 = m1;
+		int n = 0;
+		if (cached > 0) {
+			n = Integer.highestOneBit(Math.min(cached, 1 << 16));
+			if (n < cached) {
+				n <<= 1;
+			}
+		}
+		layouts = new BitmapLayout[n];
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Build the codec of a schema.
+	 *
+	 * @param schema
+	 *            {@link IsoSchema}
+	 * @return {@link IsoPlanCodec}, null if the schema has no parser
+	 * @throws IllegalArgumentException
+	 *             if a parser field can not be planned
+	 */
+	public static IsoPlanCodec compile(IsoSchema schema) {
+		return compile(schema, DEFAULT_LAYOUTS);
+	}
+
+	/**
+	 * Build the codec of a schema.
+	 *
+	 * @param schema
+	 *            {@link IsoSchema}
+	 * @param layouts
+	 *            bitmaps cached, rounded up to a power of two, 0 to disable
+	 * @return {@link IsoPlanCodec}, null if the schema has no parser
+	 * @throws IllegalArgumentException
+	 *             if a parser field can not be planned
+	 */
+	public static IsoPlanCodec compile(IsoSchema schema, int layouts) {
+		if (schema.getLayout() == null) {
+			return null;
+		}
+		return new IsoPlanCodec(schema, layouts);
+	}
+
+	private static int length(IsoField f) {
+		IsoType t = f.getType();
+		if (t == IsoType.LLVAR) {
+			return -2;
+		} else if (t == IsoType.LLLVAR) {
+			return -3;
+		}
+		int len = t.isNsLen() ? f.getLength() : t.getLen();
+		if (len <= 0) {
+			throw new IllegalArgumentException("No length of field["
+					+ f.getNum() + "]");
+		}
+		return len;
+	}
+
+	@Override
+	public String getType() {
+		return type;
+	}
+
+	@Override
+	public String getLayout() {
+		return layout;
+	}
+
+	@Override
+	public int locate(byte[] data, int off, int end, long bm0, long bm1,
+			int[] offsets, int[] lengths) {
+		if ((bm0 & ~mask0) != 0 || (bm1 & ~mask1) != 0) {
+			return -1;
+		}
+		// field 1 only flags the secondary bitmap
+		bm0 &= Long.MAX_VALUE;
+		if (layouts.length > 0) {
+			return layout(bm0, bm1).locate(data, off, end, offsets, lengths);
+		}
+		int p = scan(data, off, end, bm0, 0, offsets, lengths);
+		if (p < 0 || bm1 == 0) {
+			return p;
+		}
+		return scan(data, p, end, bm1, 64, offsets, lengths);
+	}
+
+	private int scan(byte[] data, int p, int end, long word, int base,
+			int[] offsets, int[] lengths) {
+		while (word != 0) {
+			int z = Long.numberOfLeadingZeros(word);
+			word &= ~(Long.MIN_VALUE >>> z);
+			int num = base + z + 1;
+			int len = lens[num];
+			if (len < 0) {
+				int prefix = -len;
+				if (p + prefix > end) {
+					return -1;
+				}
+				long n = IsoFormatter.parseDigits(data, p, prefix);
+				if (n < 0) {
+					return -1;
+				}
+				len = prefix + (int) n;
+			}
+			offsets[num] = p;
+			lengths[num] = len;
+			p += len;
+		}
+		return p <= end ? p : -1;
+	}
+
+	/**
+	 * Offset of a field that is fully determined by the bitmap, that is the
+	 * field and every field before it are fixed-length.
+	 *
+	 * @param bm0
+	 *            primary bitmap
+	 * @param bm1
+	 *            secondary bitmap, 0 if absent
+	 * @param num
+	 *            field num
+	 * @return offset from the first field, -1 if not present or it follows a
+	 *         LLVAR/LLLVAR field
+	 */
+	public int fixedOffset(long bm0, long bm1, int num) {
+		if ((bm0 & ~mask0) != 0 || (bm1 & ~mask1) != 0) {
+			return -1;
+		}
+		BitmapLayout layout = layouts.length > 0 ? layout(
+				bm0 & Long.MAX_VALUE, bm1) : new BitmapLayout(this,
+				bm0 & Long.MAX_VALUE, bm1);
+		return layout.fixedOffset(num);
+	}
+
+	private BitmapLayout layout(long bm0, long bm1) {
+		long h = bm0 * 0x9E3779B97F4A7C15L + bm1 * 0xC2B2AE3D27D4EB4FL;
+		int slot = (int) (h ^ (h >>> 32)) & (layouts.length - 1);
+		// racy but safe: layouts are immutable, a lost write costs a rebuild
+		BitmapLayout layout = layouts[slot];
+		if (layout == null || layout.bm0 != bm0 || layout.bm1 != bm1) {
+			layout = new BitmapLayout(this, bm0, bm1);
+			layouts[slot] = layout;
+		}
+		return layout;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoPlanCodec[" + type + "]";
+	}
+
+	/**
+	 * Walk of one bitmap.
+	 */
+	private static final class BitmapLayout {
+
+		private final long bm0;
+		private final long bm1;
+
+		/**
+		 * Present field nums in order.
+		 */
+		private final int[] nums;
+
+		/**
+		 * Length of nums[i], -2/-3 for LLVAR/LLLVAR.
+		 */
+		private final int[] lens;
+
+		/**
+		 * Offset of nums[i] for i < fixed.
+		 */
+		private final int[] rels;
+
+		/**
+		 * Count of leading fixed-length fields.
+		 */
+		private final int fixed;
+
+		/**
+		 * Length of the leading fixed-length fields.
+		 */
+		private final int fixedLen;
+
+		BitmapLayout(IsoPlanCodec codec, long bm0, long bm1) {
+			this.bm0 = bm0;
+			this.bm1 = bm1;
+			int count = Long.bitCount(bm0) + Long.bitCount(bm1);
+			nums = new int[count];
+			lens = new int[count];
+			rels = new int[count];
+			int i = 0;
+			for (int w = 0; w < 2; w++) {
+				long word = w == 0 ? bm0 : bm1;
+				while (word != 0) {
+					int z = Long.numberOfLeadingZeros(word);
+					word &= ~(Long.MIN_VALUE >>> z);
+					nums[i] = w * 64 + z + 1;
+					lens[i] = codec.lens[nums[i]];
+					i++;
+				}
+			}
+			int f = 0;
+			int rel = 0;
+			while (f < count && lens[f] > 0) {
+				rels[f] = rel;
+				rel += lens[f];
+				f++;
+			}
+			fixed = f;
+			fixedLen = rel;
+		}
+
+		int locate(byte[] data, int off, int end, int[] offsets,
+				int[] lengths) {
+			for (int i = 0; i < fixed; i++) {
+				offsets[nums[i]] = off + rels[i];
+				lengths[nums[i]] = lens[i];
+			}
+			int p = off + fixedLen;
+			for (int i = fixed; i < nums.length; i++) {
+				int len = lens[i];
+				if (len < 0) {
+					int prefix = -len;
+					if (p + prefix > end) {
+						return -1;
+					}
+					long n = IsoFormatter.parseDigits(data, p, prefix);
+					if (n < 0) {
+						return -1;
+					}
+					len = prefix + (int) n;
+				}
+				offsets[nums[i]] = p;
+				lengths[nums[i]] = len;
+				p += len;
+			}
+			return p <= end ? p : -1;
+		}
+
+		int fixedOffset(int num) {
+			for (int i = 0; i < fixed; i++) {
+				if (nums[i] == num) {
+					return rels[i];
+				}
+			}
+			return -1;
+		}
+	}
+
+}
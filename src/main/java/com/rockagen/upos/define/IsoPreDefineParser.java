@@ -15,36 +15,28 @@
  */
 package com.rockagen.upos.define;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
+import java.net.URLConnection;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.rockagen.commons.util.CommUtil;
-import com.rockagen.commons.util.XmlUtil;
-import com.rockagen.commons.util.XmlUtil.XAlias;
-import com.rockagen.commons.util.XmlUtil.XAliasAttribute;
-import com.rockagen.commons.util.XmlUtil.XConverter;
-import com.rockagen.commons.util.XmlUtil.XImplicitCollection;
-import com.rockagen.upos.define.IsoPredefine.IsoField;
-import com.rockagen.upos.define.IsoPredefine.IsoHeader;
 import com.rockagen.upos.enums.IsoType;
-import com.thoughtworks.xstream.converters.Converter;
-import com.thoughtworks.xstream.converters.MarshallingContext;
-import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.io.HierarchicalStreamReader;
-import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 
 /**
  * Parsing iso8583.xml predefine file
  * <p>
- * Through this to get an {@link IsoPredefine} instance
+ * Through this to get an {@link IsoPredefine} instance, the xml is read by
+ * {@link IsoPredefineReader} from a file, a stream or any URL (eg: a jar
+ * entry). When a precompiled {@link #SNAPSHOT} is on the classpath next to
+ * iso8583.xml and matches it, the default is loaded from the snapshot.
  * </p>
  * 
  * @author RA
@@ -59,43 +51,14 @@ public class IsoPreDefineParser {
 			.getLogger(IsoPreDefineParser.class);
 
 	/**
-	 * XStream alias
-	 */
-	private final static XAlias[] XA = {
-			new XAlias("define", IsoPredefine.class),
-			new XAlias("parser", IsoPredefine.IsoParser.class),
-			new XAlias("header", IsoPredefine.IsoHeader.class),
-			new XAlias("template", IsoPredefine.IsoTemplate.class) };
-	/**
-	 * XStream aliasAttribute
-	 */
-	private final static XAliasAttribute[] XAA = {
-			new XAliasAttribute("type", IsoPredefine.IsoHeader.class, "type"),
-			new XAliasAttribute("type", IsoPredefine.IsoParser.class, "type"),
-			new XAliasAttribute("type", IsoPredefine.IsoTemplate.class, "type"),
-			new XAliasAttribute("num", IsoPredefine.IsoField.class, "num"),
-			new XAliasAttribute("type", IsoPredefine.IsoField.class, "type"),
-			new XAliasAttribute("length", IsoPredefine.IsoField.class, "length") };
-	/**
-	 * XStream implicitCollection
-	 */
-	private final static XImplicitCollection[] XIC = {
-			new XImplicitCollection(IsoPredefine.IsoParser.class, "fields",
-					"field", IsoPredefine.IsoField.class),
-			new XImplicitCollection(IsoPredefine.IsoTemplate.class, "fields",
-					"field", IsoPredefine.IsoField.class) };
-
-	/**
-	 * XStream Converter
+	 * IsoPredefine
 	 */
-	private final static XConverter[] XC = {
-			new XConverter(new IsoFieldValueConverter(), 20),
-			new XConverter(new IsoHeaderValueConverter(), 21) };
+	private static volatile IsoPredefine isoPredefine = null;
 
 	/**
-	 * IsoPredefine
+	 * Classpath name of the precompiled snapshot of iso8583.xml
 	 */
-	private static IsoPredefine isoPredefine = null;
+	public static final String SNAPSHOT = "iso8583.bin";
 
 	static {
 		// initialize
@@ -108,12 +71,34 @@ public class IsoPreDefineParser {
 		ClassLoader loader = IsoPreDefineParser.class.getClassLoader();
 		log.debug("Load the iso8583.xml file from classpath");
 		URL url = loader.getResource("iso8583.xml");
+		URL snapshot = loader.getResource(SNAPSHOT);
+		if (snapshot != null) {
+			try {
+				return createFromSnapshot(readBytes(snapshot),
+						url == null ? null : readBytes(url));
+			} catch (IOException e) {
+				log.warn("Load {} failed: {}", SNAPSHOT, e.getMessage());
+			} catch (RuntimeException e) {
+				// corrupt, the xml is still there
+				log.warn("Load {} failed: {}", SNAPSHOT, e.toString());
+			}
+		}
 		if (url == null) {
 			log.warn("Not found the iso8583.xml file from classpath,please checked ensure iso8583.xml file exist.");
 			return null;
 		}
-		String path = url.getFile();
-		return createFromPath(path);
+		return createFromUrl(url);
+	}
+
+	private static byte[] readBytes(URL url) throws IOException {
+		URLConnection conn = url.openConnection();
+		conn.setUseCaches(false);
+		InputStream in = conn.getInputStream();
+		try {
+			return IsoSchemaSnapshot.readFully(in);
+		} finally {
+			close(in);
+		}
 	}
 
 	/**
@@ -123,12 +108,97 @@ public class IsoPreDefineParser {
 	 * @return {@link IsoPredefine}
 	 */
 	public static IsoPredefine createDefault() {
-		if (isoPredefine == null) {
-			isoPredefine = create();
+		IsoPredefine ipf = isoPredefine;
+		if (ipf == null) {
+			synchronized (IsoPreDefineParser.class) {
+				ipf = isoPredefine;
+				if (ipf == null) {
+					ipf = create();
+					isoPredefine = ipf;
+				}
+			}
+		}
 
+		return ipf;
+	}
+
+	/**
+	 * Replace the default {@link IsoPredefine} returned by
+	 * {@link #createDefault()}.
+	 * <p>
+	 * The predefine is validated and compiled before it is published, so
+	 * readers see either the old or the new one, never a half built one.
+	 * Messages created before keep the predefine they were created with.
+	 * </p>
+	 * 
+	 * @param predefine
+	 *            the new default
+	 * @throws IllegalArgumentException
+	 *             if the predefine is not valid
+	 * @see IsoPredefineWatcher
+	 */
+	public static void replaceDefault(IsoPredefine predefine) {
+		validate(predefine);
+		predefine.compile();
+		isoPredefine = predefine;
+		log.info("Default IsoPredefine replaced");
+	}
+
+	/**
+	 * Check a {@link IsoPredefine}: every field has a num and a type, fixed
+	 * ALPHA, NUMERIC and BINARY fields have a length, echo lists are valid.
+	 * 
+	 * @param predefine
+	 *            {@link IsoPredefine}
+	 * @throws IllegalArgumentException
+	 *             if the predefine is not valid
+	 */
+	public static void validate(IsoPredefine predefine) {
+		if (predefine == null) {
+			throw new IllegalArgumentException("IsoPredefine must not be null");
 		}
+		if (predefine.getParsers() != null) {
+			for (IsoPredefine.IsoParser parser : predefine.getParsers()) {
+				if (parser == null || parser.getType() == null) {
+					throw new IllegalArgumentException("Parser without type");
+				}
+				validate("parser", parser.getType(), parser.getFields());
+			}
+		}
+		if (predefine.getTemplates() != null) {
+			for (IsoPredefine.IsoTemplate template : predefine.getTemplates()) {
+				if (template == null || template.getType() == null) {
+					throw new IllegalArgumentException("Template without type");
+				}
+				validate("template", template.getType(), template.getFields());
+				// parse the echo list
+				template.getEchoFields();
+			}
+		}
+	}
 
-		return isoPredefine;
+	private static void validate(String kind, String type,
+			Set<IsoPredefine.IsoField> fields) {
+		if (fields == null) {
+			return;
+		}
+		for (IsoPredefine.IsoField field : fields) {
+			if (field == null) {
+				continue;
+			}
+			String where = kind + "[" + type + "].field[" + field.getNum()
+					+ "]";
+			if (field.getNum() < 0 || field.getNum() > IsoSchema.MAX_FIELD) {
+				throw new IllegalArgumentException("Illegal num of " + where);
+			}
+			IsoType itype = field.getType();
+			if (itype == null) {
+				throw new IllegalArgumentException("No type of " + where);
+			}
+			if (itype.isNsLen() && field.getLength() <= 0) {
+				throw new IllegalArgumentException("No length of " + where);
+			}
+		}
 	}
 
 	/**
@@ -136,143 +206,104 @@ public class IsoPreDefineParser {
 	 * 
 	 * @param xmlString
 	 * @return {@link IsoPredefine}
+	 * @throws IllegalArgumentException
+	 *             if the xml is not a valid predefine
 	 */
 	public static IsoPredefine createFromXml(String xmlString) {
-		IsoPredefine bean = (IsoPredefine) XmlUtil.toBean(xmlString, XA, null,
-				XAA, null, XIC, null, XC);
-		return bean;
+		return IsoPredefineReader.read(new StringReader(xmlString));
 	}
 
 	/**
 	 * Create a {@link IsoPredefine} from a xml file
 	 * 
 	 * @param path
-	 * @return {@link IsoPredefine}
+	 * @return {@link IsoPredefine}, null if the file can not be read
+	 * @throws IllegalArgumentException
+	 *             if the xml is not a valid predefine
 	 */
 	public static IsoPredefine createFromPath(String path) {
 		log.debug("Load the iso8583 configuration file [{}]", path);
-		IsoPredefine bean = null;
-		RandomAccessFile in = null;
-		FileChannel fc = null;
-		ByteBuffer bb = null;
-		CharBuffer cb;
+		InputStream in = null;
 		try {
-			in = new RandomAccessFile(path, "r");
+			in = new FileInputStream(path);
 			log.debug("Found on {}", path);
-			fc = in.getChannel();
-			bb = ByteBuffer.allocateDirect((int) fc.size());
-			fc.read(bb);
-			bb.flip();
-			cb = Charset.defaultCharset().decode(bb);
-			String xmlString = cb.toString();
-			bean = createFromXml(xmlString);
+			return IsoPredefineReader.read(in);
 		} catch (IOException e) {
 			log.error("{}", e.getMessage(), e);
+			return null;
 		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-				}
-			}
-
-			if (fc != null) {
-				try {
-					fc.close();
-				} catch (IOException e) {
-				}
-			}
-			bb = null;
+			close(in);
 		}
-
-		return bean;
-
 	}
-	
-	
-	/**
-	 * Attribute names
-	 */
-	private final static String A_NUM="num";
-	private final static String A_TYPE="type";
-	private final static String A_LEN="length";
 
 	/**
-	 * IsoHeader value converter.
+	 * Create a {@link IsoPredefine} from a xml url, works for a file packaged
+	 * in a jar
 	 * 
-	 * @author RA
+	 * @param url
+	 * @return {@link IsoPredefine}, null if the url can not be read
+	 * @throws IllegalArgumentException
+	 *             if the xml is not a valid predefine
 	 */
-	static class IsoHeaderValueConverter implements Converter {
-
-		@SuppressWarnings("rawtypes")
-		@Override
-		public boolean canConvert(Class type) {
-			if (type == null)
-				return false;
-			return IsoHeader.class.equals(type);
-		}
-
-		@Override
-		public void marshal(Object source, HierarchicalStreamWriter writer,
-				MarshallingContext context) {
-			IsoHeader header = (IsoHeader) source;
-			writer.addAttribute(A_TYPE, header.getType());
-			writer.setValue(header.getValue());
-		}
-
-		@Override
-		public Object unmarshal(HierarchicalStreamReader reader,
-				UnmarshallingContext context) {
-			IsoHeader header = new IsoHeader();
-			header.setType(reader.getAttribute(A_TYPE));
-			header.setValue(reader.getValue());
-			return header;
+	public static IsoPredefine createFromUrl(URL url) {
+		log.debug("Load the iso8583 configuration [{}]", url);
+		try {
+			return IsoPredefineReader.read(url);
+		} catch (IOException e) {
+			log.error("{}", e.getMessage(), e);
+			return null;
 		}
-
 	}
 
 	/**
-	 * IsoField value converter
+	 * Create a {@link IsoPredefine} from a snapshot written by
+	 * {@link IsoSchemaSnapshot}, the xml is parsed instead when the snapshot
+	 * is stale
 	 * 
-	 * @author RA
+	 * @param snapshot
+	 *            snapshot bytes
+	 * @param xml
+	 *            the iso8583.xml bytes the snapshot must match, null to trust
+	 *            the snapshot
+	 * @return {@link IsoPredefine}
+	 * @throws IllegalArgumentException
+	 *             if the snapshot is stale and there is no xml, or the xml is
+	 *             not a valid predefine
 	 */
-	static class IsoFieldValueConverter implements Converter {
-
-		@SuppressWarnings("rawtypes")
-		@Override
-		public boolean canConvert(Class type) {
-			if (type == null)
-				return false;
-			return IsoField.class.equals(type);
+	public static IsoPredefine createFromSnapshot(byte[] snapshot, byte[] xml) {
+		IsoPredefine predefine = IsoSchemaSnapshot.read(snapshot, xml);
+		if (predefine != null) {
+			log.debug("Loaded the iso8583 snapshot");
+			return predefine;
 		}
-
-		@Override
-		public void marshal(Object source, HierarchicalStreamWriter writer,
-				MarshallingContext context) {
-			IsoField field = (IsoField) source;
-			writer.addAttribute(A_NUM, String.valueOf(field.getNum()));
-			writer.addAttribute(A_TYPE, field.getType().name());
-			writer.addAttribute(A_LEN, String.valueOf(field.getLength()));
-			writer.setValue(field.getValue());
+		if (xml == null) {
+			throw new IllegalArgumentException(
+					"Snapshot is of another version and no xml to fall back");
 		}
+		log.info("The iso8583 snapshot is stale,parse the xml");
+		return IsoPredefineReader.read(new ByteArrayInputStream(xml));
+	}
 
-		@Override
-		public Object unmarshal(HierarchicalStreamReader reader,
-				UnmarshallingContext context) {
-			String num = reader.getAttribute(A_NUM);
-			String length = reader.getAttribute(A_LEN);
-			String type = reader.getAttribute(A_TYPE);
-			String value = reader.getValue();
-
-			if (CommUtil.isBlank(length))
-				length = "0";
+	/**
+	 * Create a {@link IsoPredefine} from a xml stream, the stream is not
+	 * closed
+	 * 
+	 * @param in
+	 * @return {@link IsoPredefine}
+	 * @throws IllegalArgumentException
+	 *             if the xml is not a valid predefine
+	 */
+	public static IsoPredefine createFromStream(InputStream in) {
+		return IsoPredefineReader.read(in);
+	}
 
-			IsoType itype = IsoType.valueOf(type);
-			IsoField header = new IsoField(Integer.parseInt(num), itype,
-					Integer.parseInt(length), value);
-			return header;
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
 		}
-
 	}
 
 }
@@ -15,6 +15,7 @@
  */
 package com.rockagen.upos.define;
 
+import java.util.Arrays;
 import java.util.Set;
 
 import com.rockagen.upos.enums.IsoType;
@@ -36,6 +37,27 @@ public class IsoPredefine {
 	/** The parsers. */
 	private Set<IsoParser> parsers;
 
+	/** The compiled registry, reset by the setters. */
+	private transient volatile IsoSchemaRegistry compiled;
+
+	/**
+	 * Compile this predefine into an {@link IsoSchemaRegistry}.
+	 * <p>
+	 * The result is cached until a setter is called; changes made to the
+	 * sets themselves are not seen by a cached registry.
+	 * </p>
+	 * 
+	 * @return the registry
+	 */
+	public IsoSchemaRegistry compile() {
+		IsoSchemaRegistry registry = compiled;
+		if (registry == null) {
+			registry = IsoSchemaRegistry.compile(this);
+			compiled = registry;
+		}
+		return registry;
+	}
+
 	/**
 	 * Gets the headers.
 	 * 
@@ -53,6 +75,7 @@ public class IsoPredefine {
 	 */
 	public void setHeaders(Set<IsoHeader> headers) {
 		this.headers = headers;
+		this.compiled = null;
 	}
 
 	/**
@@ -72,6 +95,7 @@ public class IsoPredefine {
 	 */
 	public void setTemplates(Set<IsoTemplate> templates) {
 		this.templates = templates;
+		this.compiled = null;
 	}
 
 	/**
@@ -91,6 +115,7 @@ public class IsoPredefine {
 	 */
 	public void setParsers(Set<IsoParser> parsers) {
 		this.parsers = parsers;
+		this.compiled = null;
 	}
 
 	/**
@@ -221,6 +246,12 @@ public class IsoPredefine {
 		/** The fields. */
 		private Set<IsoField> fields;
 
+		/** The request type this template responds to. */
+		private String request;
+
+		/** The echo field list, eg: "3,7,11". */
+		private String echo;
+
 		/**
 		 * Instantiates a new iso template.
 		 * 
@@ -272,6 +303,67 @@ public class IsoPredefine {
 			this.fields = fields;
 		}
 
+		/**
+		 * Gets the request type this template responds to.
+		 * 
+		 * @return the request type, null if not declared
+		 */
+		public String getRequest() {
+			return request;
+		}
+
+		/**
+		 * Sets the request type this template responds to.
+		 * 
+		 * @param request
+		 *            the request type
+		 */
+		public void setRequest(String request) {
+			this.request = request;
+		}
+
+		/**
+		 * Gets the echo field list.
+		 * 
+		 * @return the echo field list, eg: "3,7,11"
+		 */
+		public String getEcho() {
+			return echo;
+		}
+
+		/**
+		 * Sets the echo field list.
+		 * 
+		 * @param echo
+		 *            the echo field list, eg: "3,7,11"
+		 */
+		public void setEcho(String echo) {
+			this.echo = echo;
+		}
+
+		/**
+		 * Gets the echo field nums in ascending order.
+		 * 
+		 * @return the echo field nums, empty if not declared
+		 */
+		public int[] getEchoFields() {
+			if (echo == null || echo.trim().length() == 0) {
+				return new int[0];
+			}
+			String[] nums = echo.split(",");
+			int[] fields = new int[nums.length];
+			for (int i = 0; i < nums.length; i++) {
+				int num = Integer.parseInt(nums[i].trim());
+				if (num < 2 || num > 128) {
+					throw new IllegalArgumentException("Illegal echo field ["
+							+ num + "] of template [" + type + "]");
+				}
+				fields[i] = num;
+			}
+			Arrays.sort(fields);
+			return fields;
+		}
+
 		/**
 		 * Hash code.
 		 * 
@@ -326,7 +418,7 @@ public class IsoPredefine {
 				s_fields=sb.toString();
 			}
 			 
-			return "IsoTemplate["+type+"] IsoFields={"+s_fields+"}";
+			return "IsoTemplate["+type+"] request="+request+" echo={"+echo+"} IsoFields={"+s_fields+"}";
 		}
 	}
 
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.define.IsoPredefine.IsoHeader;
+import com.rockagen.upos.define.IsoPredefine.IsoParser;
+import com.rockagen.upos.define.IsoPredefine.IsoTemplate;
+import com.rockagen.upos.enums.IsoType;
+
+/**
+ * Streaming reader of iso8583.xml
+ * <p>
+ * Reads the predefine with a StAX cursor in one pass, the beans are built as
+ * the elements go by, the document is never held in memory as a whole and
+ * no reflection is involved. Any {@link InputStream} or {@link URL} is
+ * accepted, so iso8583.xml can be packaged in a jar.
+ * </p>
+ *
+ * <pre>
+ * IsoPredefine ipd = IsoPredefineReader.read(url);
+ * IsoSchemaRegistry registry = ipd.compile();
+ * </pre>
+ *
+ * @author RA
+ * @see IsoPreDefineParser
+ * @since JDK1.6
+ */
+public final class IsoPredefineReader {
+
+	// ~ Instance fields ==================================================
+
+	private static final String E_HEADER = "header";
+	private static final String E_TEMPLATE = "template";
+	private static final String E_PARSER = "parser";
+	private static final String E_FIELD = "field";
+
+	private static final String A_NUM = "num";
+	private static final String A_TYPE = "type";
+	private static final String A_LEN = "length";
+	private static final String A_REQUEST = "request";
+	private static final String A_ECHO = "echo";
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	// ~ Constructors ==================================================
+
+	private IsoPredefineReader() {
+	}
+
+	// ~ Methods ==================================================
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		// a predefine has no DTD, refuse external entities
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Read a predefine from a URL (file, jar...).
+	 *
+	 * @param url
+	 *            iso8583.xml url
+	 * @return {@link IsoPredefine}
+	 * @throws IOException
+	 *             if the url can not be read
+	 * @throws IllegalArgumentException
+	 *             if the document is not a valid predefine
+	 */
+	public static IsoPredefine read(URL url) throws IOException {
+		if (url == null) {
+			throw new IllegalArgumentException("URL must not be null");
+		}
+		URLConnection conn = url.openConnection();
+		// a reloaded jar must not be served from the jar cache
+		conn.setUseCaches(false);
+		InputStream in = conn.getInputStream();
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a predefine from a stream, the stream is not closed.
+	 *
+	 * @param in
+	 *            iso8583.xml stream, encoding is taken from the xml
+	 *            declaration
+	 * @return {@link IsoPredefine}
+	 * @throws IllegalArgumentException
+	 *             if the document is not a valid predefine
+	 */
+	public static IsoPredefine read(InputStream in) {
+		if (in == null) {
+			throw new IllegalArgumentException("InputStream must not be null");
+		}
+		XMLStreamReader reader;
+		try {
+			reader = createReader(new BufferedInputStream(in, 8192));
+		} catch (XMLStreamException e) {
+			throw illegal(e);
+		}
+		return read(reader);
+	}
+
+	/**
+	 * Read a predefine from a character stream, the stream is not closed.
+	 *
+	 * @param in
+	 *            iso8583.xml characters
+	 * @return {@link IsoPredefine}
+	 * @throws IllegalArgumentException
+	 *             if the document is not a valid predefine
+	 */
+	public static IsoPredefine read(Reader in) {
+		if (in == null) {
+			throw new IllegalArgumentException("Reader must not be null");
+		}
+		XMLStreamReader reader;
+		try {
+			synchronized (FACTORY) {
+				reader = FACTORY.createXMLStreamReader(in);
+			}
+		} catch (XMLStreamException e) {
+			throw illegal(e);
+		}
+		return read(reader);
+	}
+
+	private static XMLStreamReader createReader(InputStream in)
+			throws XMLStreamException {
+		// factories are not guaranteed to be thread-safe
+		synchronized (FACTORY) {
+			return FACTORY.createXMLStreamReader(in);
+		}
+	}
+
+	private static IsoPredefine read(XMLStreamReader reader) {
+		Set<IsoHeader> headers = new LinkedHashSet<IsoHeader>();
+		Set<IsoTemplate> templates = new LinkedHashSet<IsoTemplate>();
+		Set<IsoParser> parsers = new LinkedHashSet<IsoParser>();
+		// fields of the current template or parser
+		Set<IsoField> fields = null;
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String name = reader.getLocalName();
+				if (E_FIELD.equals(name)) {
+					if (fields == null) {
+						throw illegal(reader, "field outside template/parser");
+					}
+					fields.add(readField(reader));
+				} else if (E_HEADER.equals(name)) {
+					String type = attribute(reader, A_TYPE);
+					headers.add(new IsoHeader(type, reader.getElementText()));
+				} else if (E_TEMPLATE.equals(name)) {
+					fields = new LinkedHashSet<IsoField>();
+					IsoTemplate template = new IsoTemplate(attribute(reader,
+							A_TYPE), fields);
+					template.setRequest(attribute(reader, A_REQUEST));
+					template.setEcho(attribute(reader, A_ECHO));
+					templates.add(template);
+				} else if (E_PARSER.equals(name)) {
+					fields = new LinkedHashSet<IsoField>();
+					parsers.add(new IsoParser(attribute(reader, A_TYPE), fields));
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw illegal(e);
+		} finally {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// ignore
+			}
+		}
+		IsoPredefine predefine = new IsoPredefine();
+		predefine.setHeaders(headers);
+		predefine.setTemplates(templates);
+		predefine.setParsers(parsers);
+		return predefine;
+	}
+
+	private static IsoField readField(XMLStreamReader reader)
+			throws XMLStreamException {
+		String num = attribute(reader, A_NUM);
+		String type = attribute(reader, A_TYPE);
+		String length = attribute(reader, A_LEN);
+		if (num == null || type == null) {
+			throw illegal(reader, "field without num or type");
+		}
+		IsoType itype;
+		int inum;
+		int ilength;
+		try {
+			itype = IsoType.valueOf(type);
+			inum = Integer.parseInt(num);
+			ilength = length == null ? 0 : Integer.parseInt(length);
+		} catch (IllegalArgumentException e) {
+			throw illegal(reader, "bad field attribute (" + e.getMessage()
+					+ ")");
+		}
+		return new IsoField(inum, itype, ilength, reader.getElementText());
+	}
+
+	private static String attribute(XMLStreamReader reader, String name) {
+		String value = reader.getAttributeValue(null, name);
+		if (value == null) {
+			return null;
+		}
+		value = value.trim();
+		return value.length() == 0 ? null : value;
+	}
+
+	private static IllegalArgumentException illegal(XMLStreamReader reader,
+			String message) {
+		Location loc = reader.getLocation();
+		return new IllegalArgumentException("Invalid iso8583.xml, " + message
+				+ " at line " + loc.getLineNumber() + ", column "
+				+ loc.getColumnNumber());
+	}
+
+	private static IllegalArgumentException illegal(XMLStreamException e) {
+		return new IllegalArgumentException("Invalid iso8583.xml, "
+				+ e.getMessage(), e);
+	}
+
+}
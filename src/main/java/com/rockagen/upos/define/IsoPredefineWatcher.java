@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hot reload of an iso8583.xml file
+ * <p>
+ * A daemon thread polls the file, when it changes the file is parsed,
+ * validated and compiled in the background, then handed to the
+ * {@link Listener}. A file that fails to load is logged and ignored, the
+ * active predefine stays in use. The default listener swaps the default
+ * predefine of {@link IsoPreDefineParser}, which the hot path reads with a
+ * single volatile read; messages created before keep their old schema.
+ * </p>
+ *
+ * <pre>
+ * IsoPredefineWatcher watcher = IsoPredefineWatcher.watchDefault(2000);
+ * watcher.start();
+ * ...
+ * watcher.stop();
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoPredefineWatcher {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoPredefineWatcher.class);
+
+	/**
+	 * Receives every successfully loaded predefine.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the watcher thread with a validated and compiled
+		 * predefine.
+		 *
+		 * @param predefine
+		 *            the new predefine
+		 */
+		void reloaded(IsoPredefine predefine);
+	}
+
+	/**
+	 * Swaps the default predefine.
+	 */
+	private static final Listener REPLACE_DEFAULT = new Listener() {
+		@Override
+		public void reloaded(IsoPredefine predefine) {
+			IsoPreDefineParser.replaceDefault(predefine);
+		}
+	};
+
+	private final File file;
+
+	private final long interval;
+
+	private final Listener listener;
+
+	private long lastModified;
+
+	private long lastLength;
+
+	private volatile Thread thread;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a watcher, call {@link #start()} to begin polling.
+	 *
+	 * @param path
+	 *            iso8583.xml path
+	 * @param interval
+	 *            poll interval in milliseconds
+	 * @param listener
+	 *            {@link Listener}
+	 */
+	public IsoPredefineWatcher(String path, long interval, Listener listener) {
+		if (path == null || listener == null) {
+			throw new IllegalArgumentException(
+					"path and listener must not be null");
+		}
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be > 0");
+		}
+		this.file = new File(path);
+		this.interval = interval;
+		this.listener = listener;
+		this.lastModified = file.lastModified();
+		this.lastLength = file.length();
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Watch the iso8583.xml of the classpath and replace the default
+	 * predefine on change.
+	 *
+	 * @param interval
+	 *            poll interval in milliseconds
+	 * @return a watcher, not started
+	 * @throws IllegalArgumentException
+	 *             if iso8583.xml is not a file of the classpath (eg: in a jar)
+	 */
+	public static IsoPredefineWatcher watchDefault(long interval) {
+		URL url = IsoPreDefineParser.class.getClassLoader().getResource(
+				"iso8583.xml");
+		if (url == null) {
+			throw new IllegalArgumentException(
+					"iso8583.xml is not on the classpath");
+		}
+		if (!"file".equals(url.getProtocol())) {
+			throw new IllegalArgumentException("iso8583.xml is in " + url
+					+ ", only a file can be watched: pass its path");
+		}
+		File file;
+		try {
+			// decodes the path, eg: %20
+			file = new File(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Bad iso8583.xml url: " + url, e);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Bad iso8583.xml url: " + url, e);
+		}
+		return new IsoPredefineWatcher(file.getPath(), interval,
+				REPLACE_DEFAULT);
+	}
+
+	/**
+	 * Watch a file and replace the default predefine on change.
+	 *
+	 * @param path
+	 *            iso8583.xml path
+	 * @param interval
+	 *            poll interval in milliseconds
+	 * @return a watcher, not started
+	 */
+	public static IsoPredefineWatcher watchDefault(String path, long interval) {
+		return new IsoPredefineWatcher(path, interval, REPLACE_DEFAULT);
+	}
+
+	/**
+	 * Watch a file and replace a named schema set on change.
+	 *
+	 * @param name
+	 *            set name of {@link IsoSchemaSets}
+	 * @param path
+	 *            iso8583.xml path
+	 * @param interval
+	 *            poll interval in milliseconds
+	 * @return a watcher, not started
+	 */
+	public static IsoPredefineWatcher watchSet(final String name,
+			String path, long interval) {
+		return new IsoPredefineWatcher(path, interval, new Listener() {
+			@Override
+			public void reloaded(IsoPredefine predefine) {
+				IsoSchemaSets.register(name, predefine);
+			}
+		});
+	}
+
+	/**
+	 * Start polling on a daemon thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, "upos-predefine-watcher");
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+		log.info("Watching {} every {} ms", file, interval);
+	}
+
+	/**
+	 * Stop polling.
+	 */
+	public synchronized void stop() {
+		Thread t = thread;
+		thread = null;
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	/**
+	 * Is polling?
+	 *
+	 * @return true if started and not stopped
+	 */
+	public boolean isRunning() {
+		return thread != null;
+	}
+
+	/**
+	 * Check the file once, reload it if it changed since the last check.
+	 *
+	 * @return true if a new predefine was handed to the listener
+	 */
+	public synchronized boolean check() {
+		long modified = file.lastModified();
+		long length = file.length();
+		if (modified == lastModified && length == lastLength) {
+			return false;
+		}
+		// a broken file is not retried until it changes again
+		lastModified = modified;
+		lastLength = length;
+		if (modified == 0L) {
+			log.warn("{} does not exist,keep the active predefine", file);
+			return false;
+		}
+		try {
+			IsoPredefine predefine = IsoPreDefineParser.createFromPath(file
+					.getPath());
+			if (predefine == null) {
+				log.error("Reload {} failed,keep the active predefine", file);
+				return false;
+			}
+			IsoPreDefineParser.validate(predefine);
+			predefine.compile();
+			listener.reloaded(predefine);
+			log.info("Reloaded {}", file);
+			return true;
+		} catch (RuntimeException e) {
+			log.error("Reload {} failed,keep the active predefine: {}",
+					new Object[] { file, e.getMessage(), e });
+			return false;
+		}
+	}
+
+	private void poll() {
+		while (thread == Thread.currentThread()) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			check();
+		}
+	}
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+
+/**
+ * Compiled predefine of one message type
+ * <p>
+ * Header, parser fields, template fields and echo fields of a message type
+ * resolved once from {@link IsoPredefine}. The fields are refs into the
+ * {@link IsoFieldDictionary} shared by the schemas of a registry, indexed by
+ * field num. Instances are immutable and can be shared by threads.
+ * </p>
+ *
+ * @author RA
+ * @see IsoPredefine
+ * @since JDK1.6
+ */
+public final class IsoSchema {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * Max field num.
+	 */
+	public static final int MAX_FIELD = 128;
+
+	private final IsoPredefine predefine;
+
+	private final String type;
+
+	private final String header;
+
+	private final IsoFieldDictionary dictionary;
+
+	/**
+	 * Dictionary id + 1 by field num, 0 if not defined.
+	 */
+	private final char[] parserRefs = new char[MAX_FIELD + 1];
+
+	private final char[] templateRefs = new char[MAX_FIELD + 1];
+
+	private final IsoPredefine.IsoHeader isoHeader;
+
+	private final IsoPredefine.IsoParser parser;
+
+	private final IsoPredefine.IsoTemplate template;
+
+	private final String echoRequest;
+
+	private final int[] echoFields;
+
+	private final String layout;
+
+	private final IsoCodec codec;
+
+	// ~ Constructors ==================================================
+
+	IsoSchema(IsoPredefine predefine, IsoFieldDictionary dictionary,
+			String type, IsoPredefine.IsoHeader isoHeader,
+			IsoPredefine.IsoParser parser, IsoPredefine.IsoTemplate template) {
+		this.predefine = predefine;
+		this.dictionary = dictionary;
+		this.type = type;
+		this.isoHeader = isoHeader;
+		this.parser = parser;
+		this.template = template;
+
+		String value = isoHeader == null ? null : isoHeader.getValue();
+		header = value == null ? "" : value;
+
+		if (parser != null) {
+			index(parser.getFields(), parserRefs);
+			layout = layout();
+		} else {
+			layout = null;
+		}
+		if (template != null) {
+			index(template.getFields(), templateRefs);
+			echoRequest = template.getRequest();
+			echoFields = template.getEchoFields();
+		} else {
+			echoRequest = null;
+			echoFields = new int[0];
+		}
+		// every field above is set, the codec may read them
+		codec = IsoCodecs.find(this);
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Compile the predefine of type.
+	 *
+	 * @param predefine
+	 *            {@link IsoPredefine}
+	 * @param type
+	 *            iso8583 message type eg: 0200,0210...
+	 * @return {@link IsoSchema}
+	 */
+	public static IsoSchema compile(IsoPredefine predefine, String type) {
+		if (predefine == null) {
+			throw new IllegalArgumentException("IsoPredefine must not be null");
+		}
+		if (type == null) {
+			throw new IllegalArgumentException("Type must not be null");
+		}
+		IsoPredefine.IsoHeader isoHeader = null;
+		if (predefine.getHeaders() != null) {
+			for (IsoPredefine.IsoHeader h : predefine.getHeaders()) {
+				if (h != null && type.equals(h.getType())) {
+					isoHeader = h;
+					break;
+				}
+			}
+		}
+		IsoPredefine.IsoParser parser = null;
+		if (predefine.getParsers() != null) {
+			for (IsoPredefine.IsoParser p : predefine.getParsers()) {
+				if (p != null && type.equals(p.getType())) {
+					parser = p;
+					break;
+				}
+			}
+		}
+		IsoPredefine.IsoTemplate template = null;
+		if (predefine.getTemplates() != null) {
+			for (IsoPredefine.IsoTemplate t : predefine.getTemplates()) {
+				if (t != null && type.equals(t.getType())) {
+					template = t;
+					break;
+				}
+			}
+		}
+		return new IsoSchema(predefine, new IsoFieldDictionary(), type,
+				isoHeader, parser, template);
+	}
+
+	private void index(Set<IsoField> fields, char[] refs) {
+		if (fields == null) {
+			return;
+		}
+		for (IsoField f : fields) {
+			if (f != null && f.getNum() >= 0 && f.getNum() <= MAX_FIELD) {
+				refs[f.getNum()] = (char) (dictionary.intern(f) + 1);
+			}
+		}
+	}
+
+	private String layout() {
+		StringBuilder sb = new StringBuilder(256);
+		for (int num = 0; num <= MAX_FIELD; num++) {
+			IsoField f = getParserField(num);
+			if (f == null || f.getType() == null) {
+				continue;
+			}
+			sb.append(f.getNum()).append(':').append(f.getType().name());
+			if (f.getType().isNsLen()) {
+				sb.append(':').append(f.getLength());
+			}
+			sb.append(';');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the {@link IsoPredefine} this schema compiled from.
+	 *
+	 * @return {@link IsoPredefine}
+	 */
+	public IsoPredefine getPredefine() {
+		return predefine;
+	}
+
+	/**
+	 * Get iso8583 message type.
+	 *
+	 * @return iso8583 message type
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Get iso8583 message header.
+	 *
+	 * @return header, empty if not defined
+	 */
+	public String getHeader() {
+		return header;
+	}
+
+	/**
+	 * Is a parser defined for this type?
+	 *
+	 * @return true if defined
+	 */
+	public boolean hasParser() {
+		return parser != null;
+	}
+
+	/**
+	 * Get the {@link IsoPredefine.IsoHeader} of this type.
+	 *
+	 * @return {@link IsoPredefine.IsoHeader}, null if not defined
+	 */
+	public IsoPredefine.IsoHeader getIsoHeader() {
+		return isoHeader;
+	}
+
+	/**
+	 * Get the {@link IsoPredefine.IsoParser} of this type.
+	 *
+	 * @return {@link IsoPredefine.IsoParser}, null if not defined
+	 */
+	public IsoPredefine.IsoParser getIsoParser() {
+		return parser;
+	}
+
+	/**
+	 * Get the {@link IsoPredefine.IsoTemplate} of this type.
+	 *
+	 * @return {@link IsoPredefine.IsoTemplate}, null if not defined
+	 */
+	public IsoPredefine.IsoTemplate getIsoTemplate() {
+		return template;
+	}
+
+	/**
+	 * Get parser field by field num.
+	 *
+	 * @param num
+	 * @return {@link IsoField}, null if not defined
+	 */
+	public IsoField getParserField(int num) {
+		if (num < 0 || num > MAX_FIELD || parserRefs[num] == 0) {
+			return null;
+		}
+		return dictionary.get(parserRefs[num] - 1);
+	}
+
+	/**
+	 * Get template field by field num.
+	 *
+	 * @param num
+	 * @return {@link IsoField}, null if not defined
+	 */
+	public IsoField getTemplateField(int num) {
+		if (num < 0 || num > MAX_FIELD || templateRefs[num] == 0) {
+			return null;
+		}
+		return dictionary.get(templateRefs[num] - 1);
+	}
+
+	/**
+	 * Get the dictionary id of a parser field.
+	 *
+	 * @param num
+	 * @return id, -1 if not defined
+	 */
+	public int getParserFieldId(int num) {
+		if (num < 0 || num > MAX_FIELD) {
+			return -1;
+		}
+		return parserRefs[num] - 1;
+	}
+
+	/**
+	 * Get the dictionary id of a template field.
+	 *
+	 * @param num
+	 * @return id, -1 if not defined
+	 */
+	public int getTemplateFieldId(int num) {
+		if (num < 0 || num > MAX_FIELD) {
+			return -1;
+		}
+		return templateRefs[num] - 1;
+	}
+
+	/**
+	 * Get the {@link IsoFieldDictionary} the field ids refer to.
+	 *
+	 * @return {@link IsoFieldDictionary}
+	 */
+	public IsoFieldDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Get the request type of the echo fields.
+	 *
+	 * @return request type, null if not declared
+	 */
+	public String getEchoRequest() {
+		return echoRequest;
+	}
+
+	/**
+	 * Get the echo field nums in ascending order.
+	 *
+	 * @return a copy of the echo field nums
+	 */
+	public int[] getEchoFields() {
+		return echoFields.clone();
+	}
+
+	/**
+	 * Get the parser layout, the num, type and fixed length of every parser
+	 * field, eg: <code>2:LLVAR;3:NUMERIC:6;4:AMOUNT;</code>. Two schemas of
+	 * the same layout read messages the same way.
+	 *
+	 * @return layout, null if no parser is defined
+	 */
+	public String getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Get the specialized {@link IsoCodec} of this schema, resolved by
+	 * {@link IsoCodecs#find(IsoSchema)} when the schema is compiled.
+	 *
+	 * @return {@link IsoCodec}, null if messages are read by the interpreted
+	 *         path
+	 */
+	public IsoCodec getCodec() {
+		return codec;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoSchema[" + type + "] header={" + header + "} echo="
+				+ Arrays.toString(echoFields);
+	}
+
+}
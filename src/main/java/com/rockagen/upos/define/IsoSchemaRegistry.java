@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled {@link IsoSchema}s of an {@link IsoPredefine}, indexed by type
+ * <p>
+ * A 4-digit type is resolved by two array lookups (first two digits, last
+ * two digits), other types by an unmodifiable map. Identical field
+ * definitions of all types are kept once in an {@link IsoFieldDictionary}.
+ * Instances are immutable, every field is final, so a registry can be
+ * published to any thread without locks.
+ * </p>
+ *
+ * <pre>
+ * IsoSchemaRegistry registry = IsoPreDefineParser.createDefault().compile();
+ * IsoSchema schema = registry.schema(&quot;0210&quot;);
+ * </pre>
+ *
+ * @author RA
+ * @see IsoSchema
+ * @since JDK1.6
+ */
+public final class IsoSchemaRegistry {
+
+	// ~ Instance fields ==================================================
+
+	private final IsoPredefine predefine;
+
+	private final IsoFieldDictionary dictionary = new IsoFieldDictionary();
+
+	/**
+	 * [first two digits][last two digits].
+	 */
+	private final IsoSchema[][] table = new IsoSchema[100][];
+
+	/**
+	 * Types not of 4 digits.
+	 */
+	private final Map<String, IsoSchema> others;
+
+	private final int size;
+
+	// ~ Constructors ==================================================
+
+	private IsoSchemaRegistry(IsoPredefine predefine) {
+		this.predefine = predefine;
+
+		// first definition of a type wins, as IsoSchema.compile does
+		Map<String, IsoPredefine.IsoHeader> headers = new HashMap<String, IsoPredefine.IsoHeader>();
+		Map<String, IsoPredefine.IsoParser> parsers = new HashMap<String, IsoPredefine.IsoParser>();
+		Map<String, IsoPredefine.IsoTemplate> templates = new HashMap<String, IsoPredefine.IsoTemplate>();
+		Map<String, Boolean> types = new LinkedHashMap<String, Boolean>();
+		if (predefine.getHeaders() != null) {
+			for (IsoPredefine.IsoHeader h : predefine.getHeaders()) {
+				if (h != null && h.getType() != null
+						&& !headers.containsKey(h.getType())) {
+					headers.put(h.getType(), h);
+					types.put(h.getType(), Boolean.TRUE);
+				}
+			}
+		}
+		if (predefine.getParsers() != null) {
+			for (IsoPredefine.IsoParser p : predefine.getParsers()) {
+				if (p != null && p.getType() != null
+						&& !parsers.containsKey(p.getType())) {
+					parsers.put(p.getType(), p);
+					types.put(p.getType(), Boolean.TRUE);
+				}
+			}
+		}
+		if (predefine.getTemplates() != null) {
+			for (IsoPredefine.IsoTemplate t : predefine.getTemplates()) {
+				if (t != null && t.getType() != null
+						&& !templates.containsKey(t.getType())) {
+					templates.put(t.getType(), t);
+					types.put(t.getType(), Boolean.TRUE);
+				}
+			}
+		}
+
+		Map<String, IsoSchema> other = new HashMap<String, IsoSchema>();
+		for (String type : types.keySet()) {
+			IsoSchema schema = new IsoSchema(predefine, dictionary, type,
+					headers.get(type), parsers.get(type), templates.get(type));
+			int mti = mti(type);
+			if (mti < 0) {
+				other.put(type, schema);
+			} else {
+				IsoSchema[] row = table[mti / 100];
+				if (row == null) {
+					row = new IsoSchema[100];
+					table[mti / 100] = row;
+				}
+				row[mti % 100] = schema;
+			}
+		}
+		others = Collections.unmodifiableMap(other);
+		size = types.size();
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Compile all types of the predefine.
+	 * <p>
+	 * Note: prefer {@link IsoPredefine#compile()} which caches the result.
+	 * </p>
+	 *
+	 * @param predefine
+	 *            {@link IsoPredefine}
+	 * @return {@link IsoSchemaRegistry}
+	 */
+	public static IsoSchemaRegistry compile(IsoPredefine predefine) {
+		if (predefine == null) {
+			throw new IllegalArgumentException("IsoPredefine must not be null");
+		}
+		return new IsoSchemaRegistry(predefine);
+	}
+
+	/**
+	 * Get the schema of type.
+	 *
+	 * @param type
+	 *            iso8583 message type eg: 0200,0210...
+	 * @return {@link IsoSchema}, null if type is not defined
+	 */
+	public IsoSchema get(String type) {
+		if (type == null) {
+			return null;
+		}
+		int mti = mti(type);
+		if (mti < 0) {
+			return others.get(type);
+		}
+		IsoSchema[] row = table[mti / 100];
+		return row == null ? null : row[mti % 100];
+	}
+
+	/**
+	 * Get the schema of the 4 ASCII digits type at off of bytes, no String
+	 * is built.
+	 *
+	 * @param bytes
+	 *            message bytes
+	 * @param off
+	 *            type offset
+	 * @return {@link IsoSchema}, null if type is not defined or not 4 digits
+	 */
+	public IsoSchema get(byte[] bytes, int off) {
+		int mti = 0;
+		for (int i = 0; i < 4; i++) {
+			int d = bytes[off + i] - '0';
+			if (d < 0 || d > 9) {
+				return null;
+			}
+			mti = mti * 10 + d;
+		}
+		IsoSchema[] row = table[mti / 100];
+		return row == null ? null : row[mti % 100];
+	}
+
+	/**
+	 * Get the schema of type, an empty schema (no header, no fields) if type
+	 * is not defined.
+	 *
+	 * @param type
+	 *            iso8583 message type eg: 0200,0210...
+	 * @return {@link IsoSchema}
+	 */
+	public IsoSchema schema(String type) {
+		IsoSchema schema = get(type);
+		if (schema == null) {
+			if (type == null) {
+				throw new IllegalArgumentException("Type must not be null");
+			}
+			schema = new IsoSchema(predefine, dictionary, type, null, null,
+					null);
+		}
+		return schema;
+	}
+
+	/**
+	 * Get the {@link IsoPredefine} this registry compiled from.
+	 *
+	 * @return {@link IsoPredefine}
+	 */
+	public IsoPredefine getPredefine() {
+		return predefine;
+	}
+
+	/**
+	 * Get the field definitions shared by the schemas of this registry.
+	 *
+	 * @return {@link IsoFieldDictionary}
+	 */
+	public IsoFieldDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Count of defined types.
+	 *
+	 * @return count
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Numeric value of a 4-digit type.
+	 *
+	 * @return 0 to 9999, -1 if not 4 digits
+	 */
+	private static int mti(String type) {
+		if (type.length() != 4) {
+			return -1;
+		}
+		int mti = 0;
+		for (int i = 0; i < 4; i++) {
+			int d = type.charAt(i) - '0';
+			if (d < 0 || d > 9) {
+				return -1;
+			}
+			mti = mti * 10 + d;
+		}
+		return mti;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoSchemaRegistry[" + size + " types]";
+	}
+
+}
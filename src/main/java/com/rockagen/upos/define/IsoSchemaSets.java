@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named sets of compiled schemas
+ * <p>
+ * Networks whose headers and field layouts conflict for the same type each
+ * get a set, eg: <code>visa</code>, <code>cup</code>,
+ * <code>domestic</code>. A connection binds to its set once, the
+ * {@link IsoSchemaRegistry} it gets is immutable and resolves types without
+ * locks, so no schema is looked up by name per message.
+ * </p>
+ *
+ * <pre>
+ * IsoSchemaSets.load(&quot;cup&quot;, cupXmlUrl);
+ * // on connect
+ * IsoSchemaRegistry dialect = IsoSchemaSets.require(&quot;cup&quot;);
+ * // per message
+ * ReadIsoMessage rim = new ReadIsoMessage(dialect.schema(type), bytes, charset);
+ * </pre>
+ * <p>
+ * Registering a set again replaces it for the connections that bind from
+ * then on, bound connections keep the registry they got.
+ * </p>
+ *
+ * @author RA
+ * @see IsoSchemaRegistry
+ * @since JDK1.6
+ */
+public final class IsoSchemaSets {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoSchemaSets.class);
+
+	private static final ConcurrentMap<String, IsoSchemaRegistry> sets = new ConcurrentHashMap<String, IsoSchemaRegistry>();
+
+	// ~ Constructors ==================================================
+
+	private IsoSchemaSets() {
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Validate, compile and register a predefine under a name.
+	 *
+	 * @param name
+	 *            set name
+	 * @param predefine
+	 *            {@link IsoPredefine}
+	 * @return the compiled {@link IsoSchemaRegistry}
+	 * @throws IllegalArgumentException
+	 *             if the name is blank or the predefine is not valid
+	 */
+	public static IsoSchemaRegistry register(String name,
+			IsoPredefine predefine) {
+		if (name == null || name.trim().length() == 0) {
+			throw new IllegalArgumentException("Set name must not be blank");
+		}
+		IsoPreDefineParser.validate(predefine);
+		IsoSchemaRegistry registry = predefine.compile();
+		IsoSchemaRegistry old = sets.put(name, registry);
+		log.info("{} schema set [{}] with {} types",
+				new Object[] { old == null ? "Registered" : "Replaced", name,
+						registry.size() });
+		return registry;
+	}
+
+	/**
+	 * Load an iso8583.xml and register it under a name.
+	 *
+	 * @param name
+	 *            set name
+	 * @param url
+	 *            iso8583.xml url
+	 * @return the compiled {@link IsoSchemaRegistry}
+	 * @throws IllegalArgumentException
+	 *             if the xml can not be read or is not valid
+	 */
+	public static IsoSchemaRegistry load(String name, URL url) {
+		IsoPredefine predefine = IsoPreDefineParser.createFromUrl(url);
+		if (predefine == null) {
+			throw new IllegalArgumentException("Can not read " + url);
+		}
+		return register(name, predefine);
+	}
+
+	/**
+	 * Get a set.
+	 *
+	 * @param name
+	 *            set name
+	 * @return {@link IsoSchemaRegistry}, null if not registered
+	 */
+	public static IsoSchemaRegistry get(String name) {
+		return name == null ? null : sets.get(name);
+	}
+
+	/**
+	 * Get a set that must exist.
+	 *
+	 * @param name
+	 *            set name
+	 * @return {@link IsoSchemaRegistry}
+	 * @throws IllegalArgumentException
+	 *             if not registered
+	 */
+	public static IsoSchemaRegistry require(String name) {
+		IsoSchemaRegistry registry = get(name);
+		if (registry == null) {
+			throw new IllegalArgumentException("No schema set [" + name + "]");
+		}
+		return registry;
+	}
+
+	/**
+	 * Remove a set, bound connections keep it.
+	 *
+	 * @param name
+	 *            set name
+	 * @return true if removed
+	 */
+	public static boolean remove(String name) {
+		return name != null && sets.remove(name) != null;
+	}
+
+	/**
+	 * Names of the registered sets.
+	 *
+	 * @return sorted names, a snapshot
+	 */
+	public static Set<String> names() {
+		return Collections.unmodifiableSet(new TreeSet<String>(sets.keySet()));
+	}
+
+}
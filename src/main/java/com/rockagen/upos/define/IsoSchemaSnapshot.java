@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.define;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.define.IsoPredefine.IsoHeader;
+import com.rockagen.upos.define.IsoPredefine.IsoParser;
+import com.rockagen.upos.define.IsoPredefine.IsoTemplate;
+import com.rockagen.upos.enums.IsoType;
+
+/**
+ * Binary snapshot of a compiled iso8583.xml
+ * <p>
+ * The snapshot is written at build time and loaded at startup with one read
+ * and no XML parsing or reflection. It records the CRC32 and length of the
+ * xml it was compiled from, a snapshot whose source changed is stale and
+ * ignored.
+ * </p>
+ *
+ * <pre>
+ * +-------+---------+-----------+-------------+------------+-----------+---------+
+ * | magic | version | xml crc32 | xml length  | type codes | headers   | ...     |
+ * | UPOS  | short   | long      | long        | names      | templates | parsers |
+ * +-------+---------+-----------+-------------+------------+-----------+---------+
+ * </pre>
+ * <p>
+ * Build a snapshot with <code>gradle schemaSnapshot</code> or
+ * </p>
+ *
+ * <pre>
+ * java com.rockagen.upos.define.IsoSchemaSnapshot iso8583.xml iso8583.bin
+ * </pre>
+ *
+ * @author RA
+ * @see IsoPreDefineParser#createFromSnapshot(byte[], byte[])
+ * @since JDK1.6
+ */
+public final class IsoSchemaSnapshot {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * "UPOS".
+	 */
+	private static final int MAGIC = 0x55504F53;
+
+	private static final short VERSION = 1;
+
+	// ~ Constructors ==================================================
+
+	private IsoSchemaSnapshot() {
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Compile an iso8583.xml to a snapshot.
+	 *
+	 * @param xml
+	 *            iso8583.xml bytes
+	 * @param out
+	 *            snapshot destination, not closed
+	 * @throws IOException
+	 *             if out fails
+	 * @throws IllegalArgumentException
+	 *             if the xml is not a valid predefine
+	 */
+	public static void compile(byte[] xml, OutputStream out)
+			throws IOException {
+		IsoPredefine predefine = IsoPredefineReader
+				.read(new ByteArrayInputStream(xml));
+		IsoPreDefineParser.validate(predefine);
+		write(predefine, crc(xml), xml.length, out);
+	}
+
+	/**
+	 * Write a predefine as snapshot.
+	 *
+	 * @param predefine
+	 *            {@link IsoPredefine}
+	 * @param crc
+	 *            CRC32 of the source xml
+	 * @param length
+	 *            length of the source xml
+	 * @param out
+	 *            snapshot destination, not closed
+	 * @throws IOException
+	 *             if out fails
+	 */
+	public static void write(IsoPredefine predefine, long crc, long length,
+			OutputStream out) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		DataOutputStream dos = new DataOutputStream(bytes);
+		dos.writeInt(MAGIC);
+		dos.writeShort(VERSION);
+		dos.writeLong(crc);
+		dos.writeLong(length);
+
+		// type codes are the index of the name here
+		IsoType[] types = IsoType.values();
+		dos.writeByte(types.length);
+		for (IsoType t : types) {
+			dos.writeUTF(t.name());
+		}
+
+		Set<IsoHeader> headers = predefine.getHeaders();
+		dos.writeShort(headers == null ? 0 : headers.size());
+		if (headers != null) {
+			for (IsoHeader h : headers) {
+				writeString(dos, h.getType());
+				writeString(dos, h.getValue());
+			}
+		}
+		Set<IsoTemplate> templates = predefine.getTemplates();
+		dos.writeShort(templates == null ? 0 : templates.size());
+		if (templates != null) {
+			for (IsoTemplate t : templates) {
+				writeString(dos, t.getType());
+				writeString(dos, t.getRequest());
+				writeString(dos, t.getEcho());
+				writeFields(dos, t.getFields());
+			}
+		}
+		Set<IsoParser> parsers = predefine.getParsers();
+		dos.writeShort(parsers == null ? 0 : parsers.size());
+		if (parsers != null) {
+			for (IsoParser p : parsers) {
+				writeString(dos, p.getType());
+				writeFields(dos, p.getFields());
+			}
+		}
+		dos.flush();
+		bytes.writeTo(out);
+	}
+
+	/**
+	 * Read a snapshot.
+	 *
+	 * @param snapshot
+	 *            snapshot bytes
+	 * @param xml
+	 *            the current iso8583.xml bytes to check the snapshot against,
+	 *            null to skip the check
+	 * @return {@link IsoPredefine}, null if the snapshot is stale or of
+	 *         another version
+	 * @throws IllegalArgumentException
+	 *             if the bytes are not a snapshot or are corrupt
+	 */
+	public static IsoPredefine read(byte[] snapshot, byte[] xml) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					snapshot));
+			if (in.readInt() != MAGIC) {
+				throw new IllegalArgumentException("Not an iso8583 snapshot");
+			}
+			if (in.readShort() != VERSION) {
+				return null;
+			}
+			long crc = in.readLong();
+			long length = in.readLong();
+			if (xml != null && (xml.length != length || crc(xml) != crc)) {
+				return null;
+			}
+
+			IsoType[] types = new IsoType[in.readUnsignedByte()];
+			for (int i = 0; i < types.length; i++) {
+				try {
+					types[i] = IsoType.valueOf(in.readUTF());
+				} catch (IllegalArgumentException e) {
+					// written by a release with another type
+					return null;
+				}
+			}
+
+			int n = in.readUnsignedShort();
+			Set<IsoHeader> headers = new LinkedHashSet<IsoHeader>();
+			for (int i = 0; i < n; i++) {
+				headers.add(new IsoHeader(readString(in), readString(in)));
+			}
+			n = in.readUnsignedShort();
+			Set<IsoTemplate> templates = new LinkedHashSet<IsoTemplate>();
+			for (int i = 0; i < n; i++) {
+				String type = readString(in);
+				String request = readString(in);
+				String echo = readString(in);
+				IsoTemplate t = new IsoTemplate(type, readFields(in, types));
+				t.setRequest(request);
+				t.setEcho(echo);
+				templates.add(t);
+			}
+			n = in.readUnsignedShort();
+			Set<IsoParser> parsers = new LinkedHashSet<IsoParser>();
+			for (int i = 0; i < n; i++) {
+				String type = readString(in);
+				parsers.add(new IsoParser(type, readFields(in, types)));
+			}
+
+			IsoPredefine predefine = new IsoPredefine();
+			predefine.setHeaders(headers);
+			predefine.setTemplates(templates);
+			predefine.setParsers(parsers);
+			return predefine;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Truncated iso8583 snapshot", e);
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			// eg: a null type
+			throw new IllegalArgumentException("Corrupt iso8583 snapshot", e);
+		}
+	}
+
+	/**
+	 * CRC32 of bytes.
+	 *
+	 * @param bytes
+	 * @return CRC32
+	 */
+	public static long crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return crc.getValue();
+	}
+
+	private static void writeFields(DataOutputStream dos, Set<IsoField> fields)
+			throws IOException {
+		dos.writeShort(fields == null ? 0 : fields.size());
+		if (fields == null) {
+			return;
+		}
+		for (IsoField f : fields) {
+			dos.writeShort(f.getNum());
+			dos.writeByte(f.getType().ordinal());
+			dos.writeInt(f.getLength());
+			writeString(dos, f.getValue());
+		}
+	}
+
+	private static Set<IsoField> readFields(DataInputStream in,
+			IsoType[] types) throws IOException {
+		int n = in.readUnsignedShort();
+		Set<IsoField> fields = new LinkedHashSet<IsoField>();
+		for (int i = 0; i < n; i++) {
+			int num = in.readShort();
+			int type = in.readUnsignedByte();
+			int length = in.readInt();
+			if (num < 1 || num > IsoSchema.MAX_FIELD || type >= types.length
+					|| length < 0) {
+				throw new IllegalArgumentException("Corrupt iso8583 snapshot");
+			}
+			fields.add(new IsoField(num, types[type], length, readString(in)));
+		}
+		return fields;
+	}
+
+	private static void writeString(DataOutputStream dos, String value)
+			throws IOException {
+		dos.writeBoolean(value != null);
+		if (value != null) {
+			dos.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Read all bytes of a stream, the stream is not closed.
+	 *
+	 * @param in
+	 * @return bytes
+	 * @throws IOException
+	 */
+	static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compile an iso8583.xml to a snapshot file.
+	 *
+	 * @param args
+	 *            iso8583.xml path, snapshot path
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: IsoSchemaSnapshot <iso8583.xml> <snapshot>");
+			System.exit(2);
+		}
+		byte[] xml;
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			xml = readFully(in);
+		} finally {
+			in.close();
+		}
+		OutputStream out = new FileOutputStream(args[1]);
+		try {
+			compile(xml, out);
+		} finally {
+			out.close();
+		}
+		System.out.println("Compiled " + args[0] + " to " + args[1]);
+	}
+
+}
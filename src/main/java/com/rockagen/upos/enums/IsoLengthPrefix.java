@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.enums;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ISO8583 frame length prefix type
+ * <p>
+ * The length counts the bytes after the prefix.
+ * </p>
+ * 
+ * <pre>
+ * BINARY2: 0x01 0x2C   (300)
+ * ASCII4:  "0300"      (300)
+ * </pre>
+ * 
+ * @author RA
+ * @since JDK1.6
+ */
+public enum IsoLengthPrefix {
+
+	/**
+	 * No length prefix, the frame is delimited by the transport.
+	 */
+	NONE(0, Integer.MAX_VALUE),
+	/**
+	 * 2 bytes binary length, big-endian.
+	 */
+	BINARY2(2, 0xFFFF),
+	/**
+	 * 4 ASCII digits length.
+	 */
+	ASCII4(4, 9999);
+
+	/**
+	 * Prefix length.
+	 */
+	private final int len;
+
+	/**
+	 * Max length the prefix can express.
+	 */
+	private final int max;
+
+	IsoLengthPrefix(int len, int max) {
+		this.len = len;
+		this.max = max;
+	}
+
+	/**
+	 * Return prefix length.
+	 * 
+	 * @return prefix length
+	 */
+	public int getLen() {
+		return len;
+	}
+
+	/**
+	 * Return max length the prefix can express.
+	 * 
+	 * @return max length
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Write length at index of dst, the position of dst is not changed.
+	 * 
+	 * @param dst
+	 *            destination
+	 * @param index
+	 *            prefix index
+	 * @param length
+	 *            bytes after the prefix
+	 */
+	public void write(ByteBuffer dst, int index, int length) {
+		if (length < 0 || length > max) {
+			throw new IllegalArgumentException("Length [" + length
+					+ "] out of range of " + this);
+		}
+		if (this == BINARY2) {
+			dst.put(index, (byte) (length >>> 8));
+			dst.put(index + 1, (byte) length);
+		} else if (this == ASCII4) {
+			for (int i = 3; i >= 0; i--) {
+				dst.put(index + i, (byte) ('0' + length % 10));
+				length /= 10;
+			}
+		}
+	}
+
+	/**
+	 * Read length at index of src, the position of src is not changed.
+	 * 
+	 * @param src
+	 *            source
+	 * @param index
+	 *            prefix index
+	 * @return bytes after the prefix, -1 if NONE
+	 */
+	public int read(ByteBuffer src, int index) {
+		if (this == BINARY2) {
+			return ((src.get(index) & 0xFF) << 8) | (src.get(index + 1) & 0xFF);
+		} else if (this == ASCII4) {
+			int length = 0;
+			for (int i = 0; i < 4; i++) {
+				int d = src.get(index + i) - '0';
+				if (d < 0 || d > 9) {
+					throw new IllegalArgumentException(
+							"Illegal ASCII4 length prefix");
+				}
+				length = length * 10 + d;
+			}
+			return length;
+		}
+		return -1;
+	}
+
+}
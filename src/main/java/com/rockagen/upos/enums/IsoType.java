@@ -17,9 +17,13 @@ package com.rockagen.upos.enums;
 
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Date;
 
+import com.rockagen.upos.util.IsoFormatter;
+
 /**
  * ISO8583 possible values type
  * <p>
@@ -82,6 +86,13 @@ public enum IsoType implements Serializable {
 	 */
 	BINARY(true, 0);
 
+	/**
+	 * Long.MIN_VALUE has 20 chars.
+	 */
+	private static final int MAX_LONG_CHARS = 20;
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
 	/**
 	 * This type needs specified length.
 	 */
@@ -161,26 +172,15 @@ public enum IsoType implements Serializable {
 			} else if (value.length() == length) {
 				return value;
 			} else {
-				return String.format(String.format("%%-%ds", length), value);
+				char[] c = new char[length];
+				value.getChars(0, value.length(), c, 0);
+				Arrays.fill(c, value.length(), length, ' ');
+				return new String(c);
 			}
 		} else if (this == LLVAR) {
-			int orilen = length;
-			String orivalue = value;
-			if (orilen > 99) {
-				orilen = 99;
-				orivalue = orivalue.substring(0, 99);
-			}
-			return String.format("%02d", orilen) + orivalue;
-		}
-
-		else if (this == LLLVAR) {
-			int orilen = length;
-			String orivalue = value;
-			if (orilen > 999) {
-				orilen = 999;
-				orivalue = orivalue.substring(0, 999);
-			}
-			return String.format("%03d", orilen) + orivalue;
+			return formatVar(value, length, 2);
+		} else if (this == LLLVAR) {
+			return formatVar(value, length, 3);
 		} else if (this == NUMERIC) {
 			if (value.length() > length)
 				return value.substring(0, length);
@@ -193,8 +193,8 @@ public enum IsoType implements Serializable {
 			return new String(c);
 
 		} else if (this == AMOUNT) {
-			return String.format(String.format("%%0%dd", 12), new BigDecimal(
-					value).movePointRight(2).longValue());
+			byte[] b = new byte[MAX_LONG_CHARS];
+			return ascii(b, IsoFormatter.amount(amount(value), b, 0));
 		} else {
 			return value.substring(0, length);
 		}
@@ -209,15 +209,14 @@ public enum IsoType implements Serializable {
 	 */
 	public String format(long value, int length) {
 		if (this == NUMERIC) {
-			String x = String.format(String.format("%%0%dd", length), value);
-			if (x.length() > length) {
-				return x.substring(0, length);
-			}
-			return x;
+			checkLength(length);
+			byte[] b = new byte[length];
+			return ascii(b, IsoFormatter.numeric(value, length, b, 0));
 		} else if (this == ALPHA || this == LLVAR || this == LLLVAR) {
 			return format(Long.toString(value), length);
 		} else if (this == AMOUNT) {
-			return String.format("%010d00", value);
+			byte[] b = new byte[MAX_LONG_CHARS + 2];
+			return ascii(b, amountCents(value, b, 0));
 		} else {
 			// XXX
 			return String.valueOf(value).substring(0, length);
@@ -233,7 +232,8 @@ public enum IsoType implements Serializable {
 	 */
 	public String format(BigDecimal value, int length) {
 		if (this == AMOUNT) {
-			return String.format("%012d", value.movePointRight(2).longValue());
+			byte[] b = new byte[MAX_LONG_CHARS];
+			return ascii(b, IsoFormatter.amount(amount(value), b, 0));
 		} else if (this == NUMERIC) {
 			return format(value.longValue(), length);
 		} else if (this == ALPHA || this == LLVAR || this == LLLVAR) {
@@ -244,4 +244,235 @@ public enum IsoType implements Serializable {
 		}
 	}
 
+	/**
+	 * Writes the bytes of {@link #format(String, int)} into dst without
+	 * building intermediate strings.
+	 * <p>
+	 * Non-ASCII values are encoded with the default charset.
+	 * </p>
+	 * 
+	 * @param value
+	 * @param length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public int write(String value, int length, byte[] dst, int off) {
+		if (length < 0 || (value == null && this != ALPHA)
+				|| !IsoFormatter.isAscii(value)) {
+			return copy(format(value, length), dst, off);
+		}
+		if (this == ALPHA) {
+			return IsoFormatter.alpha(value, length, dst, off);
+		} else if (this == LLVAR) {
+			return writeVar(value, length, 2, dst, off);
+		} else if (this == LLLVAR) {
+			return writeVar(value, length, 3, dst, off);
+		} else if (this == NUMERIC) {
+			return IsoFormatter.numeric(value, length, dst, off);
+		} else if (this == AMOUNT) {
+			return IsoFormatter.amount(amount(value), dst, off);
+		} else {
+			if (length > value.length()) {
+				throw new StringIndexOutOfBoundsException(length);
+			}
+			return IsoFormatter.ascii(value, 0, length, dst, off);
+		}
+	}
+
+	/**
+	 * Writes the bytes of {@link #format(long, int)} into dst without building
+	 * intermediate strings.
+	 * 
+	 * @param value
+	 * @param length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public int write(long value, int length, byte[] dst, int off) {
+		if (this == NUMERIC) {
+			checkLength(length);
+			return IsoFormatter.numeric(value, length, dst, off);
+		} else if (this == AMOUNT) {
+			return amountCents(value, dst, off);
+		} else {
+			return write(Long.toString(value), length, dst, off);
+		}
+	}
+
+	/**
+	 * Writes the bytes of {@link #format(BigDecimal, int)} into dst without
+	 * building intermediate strings.
+	 * 
+	 * @param value
+	 * @param length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public int write(BigDecimal value, int length, byte[] dst, int off) {
+		if (this == AMOUNT) {
+			return IsoFormatter.amount(amount(value), dst, off);
+		} else if (this == ALPHA || this == LLVAR || this == LLLVAR) {
+			return write(value.toString(), length, dst, off);
+		} else {
+			return write(value.longValue(), length, dst, off);
+		}
+	}
+
+	/**
+	 * Writes the bytes of {@link #format(String, int)} at the position of dst.
+	 * <p>
+	 * Heap buffers with enough room are written in place.
+	 * </p>
+	 * 
+	 * @param value
+	 * @param length
+	 * @param dst
+	 *            destination
+	 * @return bytes written
+	 */
+	public int write(String value, int length, ByteBuffer dst) {
+		int bound = Math.max(length, 0)
+				+ (value == null ? 0 : value.length()) + MAX_LONG_CHARS;
+		if (dst.hasArray() && dst.remaining() >= bound) {
+			int n = write(value, length, dst.array(), dst.arrayOffset()
+					+ dst.position());
+			dst.position(dst.position() + n);
+			return n;
+		}
+		return put(format(value, length), dst);
+	}
+
+	/**
+	 * Writes the bytes of {@link #format(long, int)} at the position of dst.
+	 * <p>
+	 * Heap buffers with enough room are written in place.
+	 * </p>
+	 * 
+	 * @param value
+	 * @param length
+	 * @param dst
+	 *            destination
+	 * @return bytes written
+	 */
+	public int write(long value, int length, ByteBuffer dst) {
+		int bound = Math.max(length, 0) + 2 * MAX_LONG_CHARS;
+		if (dst.hasArray() && dst.remaining() >= bound) {
+			int n = write(value, length, dst.array(), dst.arrayOffset()
+					+ dst.position());
+			dst.position(dst.position() + n);
+			return n;
+		}
+		return put(format(value, length), dst);
+	}
+
+	/**
+	 * Writes the bytes of {@link #format(BigDecimal, int)} at the position of
+	 * dst.
+	 * 
+	 * @param value
+	 * @param length
+	 * @param dst
+	 *            destination
+	 * @return bytes written
+	 */
+	public int write(BigDecimal value, int length, ByteBuffer dst) {
+		if (this == ALPHA || this == LLVAR || this == LLLVAR) {
+			return write(value.toString(), length, dst);
+		} else if (this == AMOUNT) {
+			if (dst.hasArray() && dst.remaining() >= MAX_LONG_CHARS) {
+				int n = write(value, length, dst.array(), dst.arrayOffset()
+						+ dst.position());
+				dst.position(dst.position() + n);
+				return n;
+			}
+			return put(format(value, length), dst);
+		}
+		return write(value.longValue(), length, dst);
+	}
+
+	/**
+	 * LLVAR and LLLVAR,the length prefix is the length parameter.
+	 */
+	private static String formatVar(String value, int length, int digits) {
+		int max = digits == 2 ? 99 : 999;
+		if (length > max) {
+			length = max;
+			value = value.substring(0, max);
+		}
+		byte[] b = new byte[MAX_LONG_CHARS];
+		return ascii(b, IsoFormatter.padded(length, digits, b, 0)) + value;
+	}
+
+	private static int writeVar(String value, int length, int digits,
+			byte[] dst, int off) {
+		int max = digits == 2 ? 99 : 999;
+		int vlen = value.length();
+		if (length > max) {
+			if (vlen < max) {
+				throw new StringIndexOutOfBoundsException(max);
+			}
+			length = max;
+			vlen = max;
+		}
+		int n = IsoFormatter.padded(length, digits, dst, off);
+		return n + IsoFormatter.ascii(value, 0, vlen, dst, off + n);
+	}
+
+	/**
+	 * AMOUNT of long value,the value is not in minor units.
+	 */
+	private static int amountCents(long value, byte[] dst, int off) {
+		int n = IsoFormatter.padded(value, 10, dst, off);
+		dst[off + n] = '0';
+		dst[off + n + 1] = '0';
+		return n + 2;
+	}
+
+	private static long amount(String value) {
+		long minor = IsoFormatter.parseAmount(value);
+		if (minor == IsoFormatter.NOT_PARSED) {
+			minor = new BigDecimal(value).movePointRight(2).longValue();
+		}
+		return minor;
+	}
+
+	private static long amount(BigDecimal value) {
+		long minor = IsoFormatter.parseAmount(value);
+		if (minor == IsoFormatter.NOT_PARSED) {
+			minor = value.movePointRight(2).longValue();
+		}
+		return minor;
+	}
+
+	private static void checkLength(int length) {
+		if (length < 1) {
+			throw new IllegalArgumentException("NUMERIC length must be > 0");
+		}
+	}
+
+	private static String ascii(byte[] bytes, int len) {
+		return new String(bytes, 0, len, US_ASCII);
+	}
+
+	private static int copy(String formatted, byte[] dst, int off) {
+		byte[] b = formatted.getBytes(Charset.defaultCharset());
+		System.arraycopy(b, 0, dst, off, b.length);
+		return b.length;
+	}
+
+	private static int put(String formatted, ByteBuffer dst) {
+		byte[] b = formatted.getBytes(Charset.defaultCharset());
+		dst.put(b);
+		return b.length;
+	}
+
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.message;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of message buffers
+ * <p>
+ * Buffers have the same capacity, at most maxPooled of them are kept. A
+ * request bigger than the capacity gets a buffer that is not pooled. This
+ * class is thread-safe, acquire and release do not allocate once the pool is
+ * warm.
+ * </p>
+ *
+ * <pre>
+ * IsoBufferPool pool = new IsoBufferPool(2048, 64);
+ * ByteBuffer buf = wim.encode(pool);
+ * channel.write(buf);
+ * pool.release(buf);
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoBufferPool {
+
+	// ~ Instance fields ==================================================
+
+	private final int bufferSize;
+
+	private final boolean direct;
+
+	private final ArrayBlockingQueue<ByteBuffer> pool;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a pool of heap buffers.
+	 *
+	 * @param bufferSize
+	 *            capacity of each buffer
+	 * @param maxPooled
+	 *            max buffers kept
+	 */
+	public IsoBufferPool(int bufferSize, int maxPooled) {
+		this(bufferSize, maxPooled, false);
+	}
+
+	/**
+	 * Create a pool.
+	 *
+	 * @param bufferSize
+	 *            capacity of each buffer
+	 * @param maxPooled
+	 *            max buffers kept
+	 * @param direct
+	 *            allocate direct buffers
+	 */
+	public IsoBufferPool(int bufferSize, int maxPooled, boolean direct) {
+		if (bufferSize < 1 || maxPooled < 1) {
+			throw new IllegalArgumentException(
+					"bufferSize and maxPooled must be > 0");
+		}
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.pool = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Get a cleared buffer of at least minCapacity.
+	 *
+	 * @param minCapacity
+	 *            min capacity
+	 * @return buffer
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		if (minCapacity > bufferSize) {
+			return allocate(minCapacity);
+		}
+		ByteBuffer buf = pool.poll();
+		if (buf == null) {
+			return allocate(bufferSize);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Get a cleared buffer.
+	 *
+	 * @return buffer
+	 */
+	public ByteBuffer acquire() {
+		return acquire(bufferSize);
+	}
+
+	/**
+	 * Give a buffer back, it is dropped if it is not of this pool size or the
+	 * pool is full.
+	 *
+	 * @param buf
+	 *            buffer
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf != null && buf.capacity() == bufferSize
+				&& buf.isDirect() == direct && !buf.isReadOnly()) {
+			pool.offer(buf);
+		}
+	}
+
+	/**
+	 * Capacity of the pooled buffers.
+	 *
+	 * @return capacity
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Buffers kept by the pool now.
+	 *
+	 * @return count
+	 */
+	public int size() {
+		return pool.size();
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+				.allocate(capacity);
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+
+/**
+ * Link framing of ISO8583 messages
+ * <p>
+ * A frame is
+ * </p>
+ *
+ * <pre>
+ * +---------------+--------------+-----------------+------+--------+------+
+ * | length prefix | TPDU (5 BCD) | header (link)   | type | bitmap | data |
+ * +---------------+--------------+-----------------+------+--------+------+
+ * </pre>
+ * <p>
+ * The length prefix and the TPDU are optional, the length counts the bytes
+ * after the prefix. The TPDU is <code>id(1) destination(2) source(2)</code>,
+ * a response swaps destination and source of its request. Declare one
+ * instance per link, it is immutable and can be shared by threads.
+ * </p>
+ *
+ * <pre>
+ * IsoFraming framing = new IsoFraming(IsoLengthPrefix.BINARY2, true);
+ * ByteBuffer frame = framing.encode(wim, requestTpdu, pool);
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoFraming {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * TPDU length.
+	 */
+	public static final int TPDU_LEN = 5;
+
+	/**
+	 * No framing.
+	 */
+	public static final IsoFraming NONE = new IsoFraming(IsoLengthPrefix.NONE,
+			false);
+
+	private final IsoLengthPrefix prefix;
+
+	private final boolean tpdu;
+
+	private final byte[] defaultTpdu;
+
+	private final int headerLength;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a framing without link header.
+	 *
+	 * @param prefix
+	 *            {@link IsoLengthPrefix}
+	 * @param tpdu
+	 *            frames carry a TPDU
+	 */
+	public IsoFraming(IsoLengthPrefix prefix, boolean tpdu) {
+		this(prefix, tpdu ? new byte[] { 0x60, 0, 0, 0, 0 } : null, 0);
+	}
+
+	/**
+	 * Create a framing.
+	 *
+	 * @param prefix
+	 *            {@link IsoLengthPrefix}
+	 * @param defaultTpdu
+	 *            TPDU of frames that do not answer a request, null if frames
+	 *            carry no TPDU
+	 * @param headerLength
+	 *            length of the header between TPDU and type of received
+	 *            frames
+	 */
+	public IsoFraming(IsoLengthPrefix prefix, byte[] defaultTpdu,
+			int headerLength) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix must not be null");
+		}
+		if (defaultTpdu != null && defaultTpdu.length != TPDU_LEN) {
+			throw new IllegalArgumentException("TPDU must be " + TPDU_LEN
+					+ " bytes");
+		}
+		if (headerLength < 0) {
+			throw new IllegalArgumentException("headerLength must be >= 0");
+		}
+		this.prefix = prefix;
+		this.tpdu = defaultTpdu != null;
+		this.defaultTpdu = defaultTpdu == null ? null : defaultTpdu.clone();
+		this.headerLength = headerLength;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Bytes the framing adds to a message (length prefix and TPDU).
+	 *
+	 * @return overhead
+	 */
+	public int overhead() {
+		return prefix.getLen() + (tpdu ? TPDU_LEN : 0);
+	}
+
+	/**
+	 * Offset of the message type in a received frame.
+	 *
+	 * @return prefix + TPDU + header length
+	 */
+	public int typeOffset() {
+		return overhead() + headerLength;
+	}
+
+	/**
+	 * Write the framed message at the position of dst.
+	 * <p>
+	 * The length prefix is reserved, the TPDU and the message written after
+	 * it, then the length backfilled, so framing costs no extra copy.
+	 * </p>
+	 *
+	 * @param msg
+	 *            {@link WriteIsoMessage}
+	 * @param requestTpdu
+	 *            TPDU of the request this message answers, its destination
+	 *            and source are swapped; null to use the default TPDU
+	 * @param dst
+	 *            destination
+	 * @return bytes written
+	 */
+	public int encode(WriteIsoMessage msg, byte[] requestTpdu, ByteBuffer dst) {
+		int start = dst.position();
+		int plen = prefix.getLen();
+		dst.position(start + plen);
+		if (tpdu) {
+			if (requestTpdu != null) {
+				if (requestTpdu.length != TPDU_LEN) {
+					throw new IllegalArgumentException("TPDU must be "
+							+ TPDU_LEN + " bytes");
+				}
+				dst.put(requestTpdu[0]);
+				// source becomes destination
+				dst.put(requestTpdu, 3, 2);
+				dst.put(requestTpdu, 1, 2);
+			} else {
+				dst.put(defaultTpdu);
+			}
+		}
+		msg.encode(dst);
+		int length = dst.position() - start - plen;
+		prefix.write(dst, start, length);
+		return length + plen;
+	}
+
+	/**
+	 * Write the framed message into a buffer of the pool.
+	 * <p>
+	 * The returned buffer is flipped, give it back by
+	 * {@link IsoBufferPool#release(ByteBuffer)} when done.
+	 * </p>
+	 *
+	 * @param msg
+	 *            {@link WriteIsoMessage}
+	 * @param requestTpdu
+	 *            TPDU of the request this message answers, null to use the
+	 *            default TPDU
+	 * @param pool
+	 *            {@link IsoBufferPool}
+	 * @return the frame
+	 */
+	public ByteBuffer encode(WriteIsoMessage msg, byte[] requestTpdu,
+			IsoBufferPool pool) {
+		ByteBuffer buf = pool.acquire(msg.encodedLength() + overhead());
+		encode(msg, requestTpdu, buf);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Length of the next frame in src, starting at its position.
+	 *
+	 * @param src
+	 *            received bytes
+	 * @return frame length including the prefix, -1 if the prefix is not
+	 *         complete yet, or all remaining bytes if there is no prefix
+	 */
+	public int frameLength(ByteBuffer src) {
+		if (prefix == IsoLengthPrefix.NONE) {
+			return src.remaining();
+		}
+		if (src.remaining() < prefix.getLen()) {
+			return -1;
+		}
+		return prefix.getLen() + prefix.read(src, src.position());
+	}
+
+	/**
+	 * Decode a received frame.
+	 *
+	 * @param frame
+	 *            frame bytes, length prefix included
+	 * @param registry
+	 *            compiled schemas
+	 * @param charset
+	 *            charset
+	 * @return {@link ReadIsoMessage}, null if the type is not defined
+	 * @throws IllegalArgumentException
+	 *             if the frame is too short or malformed
+	 */
+	public ReadIsoMessage decode(byte[] frame, IsoSchemaRegistry registry,
+			Charset charset) {
+		int typeOff = typeOffset();
+		// type and a primary bitmap at least
+		if (frame.length < typeOff + 12) {
+			throw new IllegalArgumentException("Short frame of "
+					+ frame.length + " bytes");
+		}
+		IsoSchema schema = registry.get(frame, typeOff);
+		if (schema == null) {
+			return null;
+		}
+		try {
+			return new ReadIsoMessage(schema, Arrays.copyOfRange(frame,
+					typeOff + 4, frame.length), charset);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Malformed ["
+					+ schema.getType() + "]: " + e, e);
+		}
+	}
+
+	/**
+	 * Copy the TPDU of a received frame.
+	 *
+	 * @param frame
+	 *            frame bytes
+	 * @param off
+	 *            frame offset
+	 * @return TPDU, null if frames carry no TPDU
+	 */
+	public byte[] readTpdu(byte[] frame, int off) {
+		if (!tpdu) {
+			return null;
+		}
+		byte[] t = new byte[TPDU_LEN];
+		System.arraycopy(frame, off + prefix.getLen(), t, 0, TPDU_LEN);
+		return t;
+	}
+
+	/**
+	 * Return {@link IsoLengthPrefix}.
+	 *
+	 * @return {@link IsoLengthPrefix}
+	 */
+	public IsoLengthPrefix getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Do frames carry a TPDU?
+	 *
+	 * @return true if carry
+	 */
+	public boolean hasTpdu() {
+		return tpdu;
+	}
+
+	/**
+	 * Return length of the header between TPDU and type of received frames.
+	 *
+	 * @return header length
+	 */
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoFraming[prefix=" + prefix + ", tpdu=" + tpdu
+				+ ", headerLength=" + headerLength + "]";
+	}
+
+}
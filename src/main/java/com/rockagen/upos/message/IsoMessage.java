@@ -20,6 +20,8 @@ import org.slf4j.LoggerFactory;
 
 import com.rockagen.upos.define.IsoPreDefineParser;
 import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
 
 /**
  * ISO8583 Message
@@ -47,6 +49,11 @@ public abstract class IsoMessage {
 	 */
 	private final IsoPredefine predefine;
 
+	/**
+	 * Compiled predefine.
+	 */
+	private final IsoSchemaRegistry registry;
+
 	/**
 	 * Create a instance.
 	 * @param isopredefine
@@ -59,10 +66,42 @@ public abstract class IsoMessage {
 			log.debug("IsoPredefine not special,use dafeult");
 		}
 		predefine = ipf;
+		registry = ipf == null ? null : ipf.compile();
 		log.debug("PreDefine [ {} ]", predefine);
 
 	}
 
+	/**
+	 * Resolve the compiled {@link IsoSchema} of type.
+	 * 
+	 * @param type
+	 *            iso8583 message type
+	 * @param isopredefine
+	 *            iso8583 predefine, null as default
+	 * @return {@link IsoSchema}, empty if the predefine does not initialize
+	 */
+	protected static IsoSchema resolve(String type, IsoPredefine isopredefine) {
+		IsoPredefine ipf = isopredefine;
+		if (ipf == null) {
+			ipf = IsoPreDefineParser.createDefault();
+		}
+		if (ipf == null) {
+			log.error("predefina does not initialize.");
+			ipf = new IsoPredefine();
+		}
+		return ipf.compile().schema(type);
+	}
+
+	/**
+	 * Get the compiled predefine.
+	 * 
+	 * @return {@link IsoSchemaRegistry}, null if predefine does not
+	 *         initialize
+	 */
+	protected IsoSchemaRegistry getRegistry() {
+		return registry;
+	}
+
 	/**
 	 * Obtain the {@link IsoPredefine.IsoHeader} by type.
 	 * <p>
@@ -73,19 +112,12 @@ public abstract class IsoMessage {
 	 * @return {@link IsoPredefine.IsoHeader}
 	 */
 	public IsoPredefine.IsoHeader getIsoHeader(String type) {
-		if (predefine == null) {
-			log.error("predefina does not initialize.");
+		IsoSchema schema = schema(type);
+		if (schema == null || schema.getIsoHeader() == null) {
+			log.debug("IsoHeader [type={}] is null", type);
 			return null;
 		}
-		for (IsoPredefine.IsoHeader header : predefine.getHeaders()) {
-			if (header != null) {
-				if (header.getType().equals(type)) {
-					return header;
-				}
-			}
-		}
-		log.debug("IsoHeader [type={}] is null", type);
-		return null;
+		return schema.getIsoHeader();
 	}
 
 	/**
@@ -98,19 +130,12 @@ public abstract class IsoMessage {
 	 * @return {@link IsoPredefine.IsoTemplate}
 	 */
 	public IsoPredefine.IsoTemplate geIsoTemplate(String type) {
-		if (predefine == null) {
-			log.error("predefina does not initialize.");
+		IsoSchema schema = schema(type);
+		if (schema == null || schema.getIsoTemplate() == null) {
+			log.debug("IsoTemplate [type={}] is null", type);
 			return null;
 		}
-		for (IsoPredefine.IsoTemplate template : predefine.getTemplates()) {
-			if (template != null) {
-				if (template.getType().equals(type)) {
-					return template;
-				}
-			}
-		}
-		log.debug("IsoTemplate [type={}] is null", type);
-		return null;
+		return schema.getIsoTemplate();
 	}
 
 	/**
@@ -123,19 +148,20 @@ public abstract class IsoMessage {
 	 * @return {@link IsoPredefineIsoParser}
 	 */
 	public IsoPredefine.IsoParser geIsoParser(String type) {
-		if (predefine == null) {
-			log.error("predefina does not initialize.");
+		IsoSchema schema = schema(type);
+		if (schema == null || schema.getIsoParser() == null) {
+			log.debug("IsoParser [type={}] is null", type);
 			return null;
 		}
-		for (IsoPredefine.IsoParser parser : predefine.getParsers()) {
-			if (parser != null) {
-				if (parser.getType().equals(type)) {
-					return parser;
-				}
-			}
+		return schema.getIsoParser();
+	}
+
+	private IsoSchema schema(String type) {
+		if (registry == null) {
+			log.error("predefina does not initialize.");
+			return null;
 		}
-		log.warn("IsoParser [type={}] is null", type);
-		return null;
+		return registry.get(type);
 	}
 
 }
@@ -17,19 +17,25 @@ package com.rockagen.upos.message;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rockagen.commons.util.CommUtil;
+import com.rockagen.upos.define.IsoCodec;
 import com.rockagen.upos.define.IsoPredefine;
 import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.define.IsoSchema;
 import com.rockagen.upos.enums.IsoType;
 import com.rockagen.upos.util.BitUtil;
+import com.rockagen.upos.util.IsoFormatter;
 
 /**
  * Read the client request message,and parse that
@@ -41,8 +47,15 @@ public class ReadIsoMessage extends IsoMessage {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(ReadIsoMessage.class);
+
+	/**
+	 * Subclass -> overrides {@link #generateValeMap(ByteBuffer, BitSet, Charset)}?
+	 */
+	private static final ConcurrentMap<Class<?>, Boolean> hooked = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	private final IsoSchema schema;
 	private final String type;
-	private Map<Integer, IsoPredefine.IsoField> paserMap = new HashMap<Integer, IsoPredefine.IsoField>();
+	private final Charset charset;
 	private Map<Integer, byte[]> valueMap = new HashMap<Integer, byte[]>();
 
 	/**
@@ -66,6 +79,24 @@ public class ReadIsoMessage extends IsoMessage {
 	 */
 	private final ByteBuffer data;
 
+	/**
+	 * Raw value offsets in data (include LLVAR/LLLVAR length prefix), index is
+	 * field num.
+	 */
+	private final int[] rawOffsets = new int[129];
+
+	/**
+	 * Raw value lengths (include LLVAR/LLLVAR length prefix), index is field
+	 * num.
+	 */
+	private final int[] rawLengths = new int[129];
+
+	/**
+	 * Values copied on demand, not null if the fields were located by an
+	 * {@link IsoCodec}.
+	 */
+	private byte[][] values;
+
 	/**
 	 * Create a instance and initialize some object,you can call getXXX method
 	 * obtain some useful object.
@@ -94,11 +125,31 @@ public class ReadIsoMessage extends IsoMessage {
 	 *            iso8583 {@link IsoPredefine}
 	 */
 	public ReadIsoMessage(String type, byte[] bytes, Charset charset,IsoPredefine isopredefine) {
-		super(isopredefine);
-		this.type = type;
+		this(resolve(type, isopredefine), bytes, charset);
+	}
+
+	/**
+	 * Create a instance with a compiled {@link IsoSchema}, no predefine is
+	 * looked up.
+	 * 
+	 * @param schema
+	 *            {@link IsoSchema} of the message type
+	 * @param bytes
+	 *            iso8583 data
+	 * @param charset
+	 *            charset
+	 */
+	public ReadIsoMessage(IsoSchema schema, byte[] bytes, Charset charset) {
+		super(schema.getPredefine());
+		this.schema = schema;
+		this.type = schema.getType();
 		if (bytes == null) {
 			throw new IllegalArgumentException("Iso8583 data must not be null");
 		}
+		if (charset == null) {
+			charset = Charset.defaultCharset();
+		}
+		this.charset = charset;
 		int bytelen = bytes.length;
 		int bitlen = 8;
 		if (((bytes[0] & (1 << 7)) >>> 7) == 1) {
@@ -108,32 +159,85 @@ public class ReadIsoMessage extends IsoMessage {
 		byte[] bitm = new byte[bitlen];
 		System.arraycopy(bytes, 0, bitm, 0, bitlen);
 		bitMap = BitUtil.bitSet(bitm);
-		log.debug("BitMap value index {}", bitMap.toString());
+		log.debug("BitMap value index {}", bitMap);
 		int isobyteslen = bytelen - bitlen;
 		byte[] isobytes = new byte[isobyteslen];
 		System.arraycopy(bytes, bitlen, isobytes, 0, isobyteslen);
 		data = ByteBuffer.wrap(isobytes);
-		log.debug("Iso8583 data: {} bytes\n{}", isobyteslen,
-				CommUtil.prettyHexdump(isobytes));
+		if (log.isDebugEnabled()) {
+			log.debug("Iso8583 data: {} bytes\n{}", isobyteslen,
+					CommUtil.prettyHexdump(isobytes));
+		}
 
-		IsoPredefine.IsoParser parser = super.geIsoParser(this.type);
-		if (parser != null) {
-			for (IsoPredefine.IsoField pf : parser.getFields()) {
-				if (pf == null)
-					continue;
-				paserMap.put(pf.getNum(), pf);
-			}
-			// Read-only
-			paserMap = Collections.unmodifiableMap(paserMap);
+		IsoCodec codec = schema.getCodec();
+		if (codec != null && !overridesHook(getClass())
+				&& locate(codec, bytes, bitlen, isobytes)) {
+			values = new byte[rawLengths.length][];
+		} else if (schema.hasParser()) {
 			generateValeMap(getData(), getBitMap(),charset);
-			// Read-only
-			valueMap = Collections.unmodifiableMap(valueMap);
 		}
+		// Read-only
+		valueMap = Collections.unmodifiableMap(valueMap);
 
 	}
 
+	/**
+	 * A subclass that overrides
+	 * {@link #generateValeMap(ByteBuffer, BitSet, Charset)} is always read
+	 * by it, whether the schema has a codec or not.
+	 */
+	private static boolean overridesHook(Class<?> clazz) {
+		if (clazz == ReadIsoMessage.class) {
+			return false;
+		}
+		Boolean b = hooked.get(clazz);
+		if (b == null) {
+			b = Boolean.FALSE;
+			for (Class<?> c = clazz; c != ReadIsoMessage.class; c = c
+					.getSuperclass()) {
+				try {
+					c.getDeclaredMethod("generateValeMap", ByteBuffer.class,
+							BitSet.class, Charset.class);
+					b = Boolean.TRUE;
+					break;
+				} catch (NoSuchMethodException e) {
+					// not here
+				}
+			}
+			hooked.put(clazz, b);
+		}
+		return b;
+	}
+
+	private boolean locate(IsoCodec codec, byte[] bytes, int bitlen,
+			byte[] isobytes) {
+		long bm0 = word(bytes, 0);
+		long bm1 = bitlen == 16 ? word(bytes, 8) : 0L;
+		if (codec.locate(isobytes, 0, isobytes.length, bm0, bm1, rawOffsets,
+				rawLengths) >= 0) {
+			return true;
+		}
+		log.debug("IsoCodec of [{}] can not locate the fields,interpret them",
+				type);
+		Arrays.fill(rawOffsets, 0);
+		Arrays.fill(rawLengths, 0);
+		return false;
+	}
+
+	private static long word(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
 	/**
 	 * Generate value map,start index is 2.
+	 * <p>
+	 * Subclasses that override it are always read by it, the {@link IsoCodec}
+	 * of the schema is not used for them.
+	 * </p>
 	 * 
 	 * @param buf
 	 *            iso8583 data
@@ -150,6 +254,7 @@ public class ReadIsoMessage extends IsoMessage {
 							type, i + 1);
 					continue;
 				}
+				int start = buf.position();
 				int bytelen = 0;
 				// Fixed length: DATE10 DATE4_YM DATE4_MD TIME AMOUNT
 				switch (field.getType()) {
@@ -198,6 +303,8 @@ public class ReadIsoMessage extends IsoMessage {
 				buf.get(data);
 
 				valueMap.put((i + 1), data);
+				rawOffsets[i + 1] = start;
+				rawLengths[i + 1] = buf.position() - start;
 
 			}
 
@@ -256,7 +363,16 @@ public class ReadIsoMessage extends IsoMessage {
 	 * @return {@link IsoPredefine.IsoField}
 	 */
 	public IsoPredefine.IsoField getParserIsoField(int num) {
-		return paserMap.get(num);
+		return schema.getParserField(num);
+	}
+
+	/**
+	 * Get the compiled {@link IsoSchema} of this type.
+	 * 
+	 * @return {@link IsoSchema}
+	 */
+	public IsoSchema getSchema() {
+		return schema;
 	}
 
 	/**
@@ -270,6 +386,119 @@ public class ReadIsoMessage extends IsoMessage {
 	 * @return bytes
 	 */
 	public byte[] getIsoValue(int num) {
-		return valueMap.get(num);
+		if (values == null) {
+			return valueMap.get(num);
+		}
+		int len = getRawLength(num);
+		if (len == 0) {
+			return null;
+		}
+		byte[] v = values[num];
+		if (v == null) {
+			int skip = prefix(num);
+			v = new byte[len - skip];
+			System.arraycopy(data.array(), rawOffsets[num] + skip, v, 0,
+					v.length);
+			values[num] = v;
+		}
+		return v;
+	}
+
+	/**
+	 * Length prefix size of a parser field.
+	 */
+	private int prefix(int num) {
+		IsoField field = schema.getParserField(num);
+		if (field == null) {
+			return 0;
+		}
+		if (field.getType() == IsoType.LLVAR) {
+			return 2;
+		}
+		return field.getType() == IsoType.LLLVAR ? 3 : 0;
+	}
+
+	/**
+	 * Get the raw Iso8583 value by field num, as it is in the request.
+	 * <p>
+	 * note: LLVAR and LLLVAR values include the length prefix
+	 * </p>
+	 * 
+	 * @param num
+	 * @return bytes, null if not exist
+	 */
+	public byte[] getRawIsoValue(int num) {
+		int len = getRawLength(num);
+		if (len == 0) {
+			return null;
+		}
+		byte[] raw = new byte[len];
+		copyRawIsoValue(num, raw, 0);
+		return raw;
+	}
+
+	/**
+	 * Get the raw Iso8583 value length by field num.
+	 * 
+	 * @param num
+	 * @return raw length, 0 if not exist
+	 */
+	public int getRawLength(int num) {
+		if (num < 2 || num >= rawLengths.length) {
+			return 0;
+		}
+		return rawLengths[num];
+	}
+
+	/**
+	 * Copy the raw Iso8583 value of field num into dst.
+	 * 
+	 * @param num
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes copied, 0 if not exist
+	 */
+	public int copyRawIsoValue(int num, byte[] dst, int off) {
+		int len = getRawLength(num);
+		if (len > 0) {
+			System.arraycopy(data.array(), rawOffsets[num], dst, off, len);
+		}
+		return len;
+	}
+
+	/**
+	 * Parse the digits of field num, for typed getters of subclasses.
+	 * 
+	 * @param num
+	 * @param skip
+	 *            length prefix size
+	 * @return value, -1 if not exist or not digits
+	 */
+	protected final long digits(int num, int skip) {
+		int len = getRawLength(num);
+		if (len == 0) {
+			return -1;
+		}
+		return IsoFormatter.parseDigits(data.array(), rawOffsets[num] + skip,
+				len - skip);
+	}
+
+	/**
+	 * Decode field num, for typed getters of subclasses.
+	 * 
+	 * @param num
+	 * @param skip
+	 *            length prefix size
+	 * @return value, null if not exist
+	 */
+	protected final String string(int num, int skip) {
+		int len = getRawLength(num);
+		if (len == 0) {
+			return null;
+		}
+		return new String(data.array(), rawOffsets[num] + skip, len - skip,
+				charset);
 	}
 }
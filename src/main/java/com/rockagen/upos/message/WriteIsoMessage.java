@@ -15,20 +15,24 @@
  */
 package com.rockagen.upos.message;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Arrays;
-import java.util.BitSet;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rockagen.commons.util.CommUtil;
 import com.rockagen.upos.define.IsoPredefine;
-import com.rockagen.upos.util.BitUtil;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.enums.IsoType;
+import com.rockagen.upos.util.IsoFormatter;
 
 /**
  * Write the server response message 
@@ -39,12 +43,59 @@ public class WriteIsoMessage extends IsoMessage {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(WriteIsoMessage.class);
+	private final IsoSchema schema;
 	private final String type;
 	private final String header;
 	private final Charset charset;
-	private Map<Integer, IsoPredefine.IsoField> paserMap = new HashMap<Integer, IsoPredefine.IsoField>();
-	private Map<Integer, IsoPredefine.IsoField> templateMap = new HashMap<Integer, IsoPredefine.IsoField>();
-	private final Map<Integer, byte[]> valueMap = new HashMap<Integer, byte[]>();
+	private final byte[] headerBytes;
+	private final byte[] typeBytes;
+	private final Map<Integer, byte[]> valueMap = new ValueMapView();
+
+	/**
+	 * Max field num.
+	 */
+	private static final int MAX_FIELD = IsoSchema.MAX_FIELD;
+
+	/**
+	 * Present fields as the wire bitmap, field num n is bit (64 - n % 64) of
+	 * word (n - 1) / 64.
+	 */
+	private final long[] present = new long[2];
+
+	/**
+	 * Value offsets in slab, index is field num.
+	 */
+	private final int[] offsets = new int[MAX_FIELD + 1];
+
+	/**
+	 * Value lengths, index is field num.
+	 */
+	private final int[] lengths = new int[MAX_FIELD + 1];
+
+	/**
+	 * All values, back to back.
+	 */
+	private byte[] slab = new byte[256];
+
+	/**
+	 * Used bytes of slab.
+	 */
+	private int slabSize;
+
+	/**
+	 * Amount digits before they are copied to the slab.
+	 */
+	private byte[] scratch;
+
+	/**
+	 * The request type of the echo fields, null if any.
+	 */
+	private final String echoRequest;
+
+	/**
+	 * Fields copied from the request by {@link #respondTo(ReadIsoMessage)}.
+	 */
+	private final int[] echoFields;
 
 	// ~ Constructors ==================================================
 
@@ -85,47 +136,40 @@ public class WriteIsoMessage extends IsoMessage {
 	 *            iso8583 {@link IsoPredefine}
 	 */
 	public WriteIsoMessage(String type,Charset charset, IsoPredefine isopredefine) {
-		super(isopredefine);
+		this(resolve(type, isopredefine), charset);
+	}
+
+	/**
+	 * Create a reusable instance bound to a compiled {@link IsoSchema}.
+	 * <p>
+	 * Call {@link #reset()} and fill the fields for every message, then
+	 * {@link #encode(ByteBuffer)} or {@link #encode(IsoBufferPool)}, the
+	 * instance allocates nothing per message once its value store has grown
+	 * to the message size. This instance is not thread-safe, keep one per
+	 * worker thread.
+	 * </p>
+	 * 
+	 * @param schema
+	 *            {@link IsoSchema}
+	 * @param charset
+	 *            charset, null as default charset
+	 */
+	public WriteIsoMessage(IsoSchema schema, Charset charset) {
+		super(schema.getPredefine());
 		
 		// set charset
 		if(charset==null){
 			charset=Charset.defaultCharset();
 		}
+		this.schema = schema;
 		this.charset=charset;
-		this.type = type;
+		this.type = schema.getType();
 		// ISO8583 HEADER
-		IsoPredefine.IsoHeader isoheader = super.getIsoHeader(this.type);
-		if (isoheader == null) {
-			log.debug("type [ {} ] iso8583 header is empty", this.type);
-			header = "";
-		} else {
-			header = isoheader.getValue();
-		}
-
-		IsoPredefine.IsoParser parser = super.geIsoParser(this.type);
-		if (parser != null  && parser.getFields()!=null) {
-			for (IsoPredefine.IsoField pf : parser.getFields()) {
-				if (pf == null)
-					continue;
-				paserMap.put(pf.getNum(), pf);
-			}
-		}
-
-		IsoPredefine.IsoTemplate tepmlate = super.geIsoTemplate(this.type);
-		if (tepmlate != null && tepmlate.getFields()!=null) {
-			for (IsoPredefine.IsoField tf : tepmlate.getFields()) {
-				if (tf == null)
-					continue;
-				templateMap.put(tf.getNum(), tf);
-			}
-		}
-
-		// Read-only
-		paserMap = Collections.unmodifiableMap(paserMap);
-		// Read-only
-		templateMap = Collections.unmodifiableMap(templateMap);
-
-		valueMap.clear();
+		header = schema.getHeader();
+		headerBytes = header.getBytes(charset);
+		typeBytes = type.getBytes(charset);
+		echoRequest = schema.getEchoRequest();
+		echoFields = schema.getEchoFields();
 	}
 
 	/**
@@ -135,21 +179,17 @@ public class WriteIsoMessage extends IsoMessage {
 	 * </p>
 	 * <p>
 	 * You should based <a href="http://en.wikipedia.org/wiki/ISO_8583">wiki
-	 * SO_8583<a> set some value, this map key start index should be 2,in other
-	 * words,this map will doing action as follow:
+	 * SO_8583<a> set some value, this map key start index should be 2 and end
+	 * index is 128, if any key &gt; 64,the bitmap offset 0 digit is <b>1</b>
+	 * and construct a 128 digits bit map.
 	 * </p>
 	 * <p>
-	 * 
-	 * <pre>
-	 * 
-	 * Object[] keys = map.keySet().toArray();
-	 * Arrays.sort(keys);
-	 * int max = (Integer) keys[keys.length - 1];
-	 * 
-	 * </pre>
-	 * 
-	 * if max &gt; 64,the bitmap offset 0 digit is <b>1</b> and construct a 128
-	 * digits bit map
+	 * Note: this map is a view of the field values, it iterates in field num
+	 * order, put and the setValue of its entries copy the bytes into the
+	 * message, get returns a copy. Prefer
+	 * {@link #setIsoValue(int, byte[])} and {@link #getIsoValue(int)} which
+	 * do not box the field num.
+	 * </p>
 	 * 
 	 * <pre>
 	 *  Then:
@@ -158,8 +198,6 @@ public class WriteIsoMessage extends IsoMessage {
 	 *           finally, call {@link #generateIsoMessage} method return a iso8583 bytes.
 	 * </pre>
 	 * 
-	 * </p>
-	 * 
 	 * @return final valueMap instance
 	 */
 	public Map<Integer, byte[]> getValueMap() {
@@ -167,6 +205,177 @@ public class WriteIsoMessage extends IsoMessage {
 		return valueMap;
 	}
 
+	/**
+	 * Set Iso8583 value by field num.
+	 * <p>
+	 * The bytes are copied as they will be on the wire, that is LLVAR and
+	 * LLLVAR values must include the length prefix (see
+	 * {@link com.rockagen.upos.enums.IsoType#write(String, int, byte[], int)}
+	 * ).
+	 * </p>
+	 * 
+	 * @param num
+	 *            field num, 2 to 128
+	 * @param value
+	 *            bytes
+	 */
+	public void setIsoValue(int num, byte[] value) {
+		setIsoValue(num, value, 0, value.length);
+	}
+
+	/**
+	 * Set Iso8583 value by field num from a range of bytes.
+	 * 
+	 * @param num
+	 *            field num, 2 to 128
+	 * @param src
+	 *            source bytes
+	 * @param off
+	 *            source offset
+	 * @param len
+	 *            length
+	 */
+	public void setIsoValue(int num, byte[] src, int off, int len) {
+		int pos = allocate(num, len);
+		System.arraycopy(src, off, slab, pos, len);
+	}
+
+	/**
+	 * Set a NUMERIC value, for typed setters of subclasses.
+	 * 
+	 * @param num
+	 *            field num, 2 to 128
+	 * @param value
+	 *            value
+	 * @param length
+	 *            field length
+	 */
+	protected final void setNumeric(int num, long value, int length) {
+		int pos = allocate(num, length);
+		lengths[num] = IsoFormatter.numeric(value, length, slab, pos);
+	}
+
+	/**
+	 * Set an AMOUNT value, for typed setters of subclasses.
+	 * 
+	 * @param num
+	 *            field num, 2 to 128
+	 * @param minor
+	 *            amount in minor units, eg: cents
+	 */
+	protected final void setAmount(int num, long minor) {
+		if (scratch == null) {
+			scratch = new byte[24];
+		}
+		int n = IsoFormatter.amount(minor, scratch, 0);
+		setIsoValue(num, scratch, 0, n);
+	}
+
+	/**
+	 * Set a text value (ALPHA, NUMERIC, LLVAR, LLLVAR, date and time), for
+	 * typed setters of subclasses.
+	 * 
+	 * @param num
+	 *            field num, 2 to 128
+	 * @param type
+	 *            field type
+	 * @param value
+	 *            value
+	 * @param length
+	 *            field length, ignored by LLVAR and LLLVAR
+	 */
+	protected final void setText(int num, IsoType type, String value,
+			int length) {
+		if (value == null) {
+			throw new IllegalArgumentException("Value of field [" + num
+					+ "] must not be null");
+		}
+		int prefix = 0;
+		if (type == IsoType.LLVAR) {
+			prefix = 2;
+			length = value.length();
+		} else if (type == IsoType.LLLVAR) {
+			prefix = 3;
+			length = value.length();
+		} else if (!type.isNsLen()) {
+			length = type.getLen();
+		}
+		if (!IsoFormatter.isAscii(value)
+				|| (prefix > 0 && length > (prefix == 2 ? 99 : 999))) {
+			setIsoValue(num, type.format(value, length).getBytes(charset));
+			return;
+		}
+		int pos = allocate(num, prefix + length);
+		lengths[num] = type.write(value, length, slab, pos);
+	}
+
+	/**
+	 * Set a BINARY value, for typed setters of subclasses.
+	 * 
+	 * @param num
+	 *            field num, 2 to 128
+	 * @param value
+	 *            value
+	 * @param length
+	 *            field length
+	 */
+	protected final void setBinary(int num, byte[] value, int length) {
+		if (value == null || value.length != length) {
+			throw new IllegalArgumentException("Value of field [" + num
+					+ "] must be " + length + " bytes");
+		}
+		setIsoValue(num, value, 0, length);
+	}
+
+	/**
+	 * Get Iso8583 value by field num.
+	 * 
+	 * @param num
+	 * @return a copy of the bytes, null if not exist
+	 */
+	public byte[] getIsoValue(int num) {
+		if (!hasIsoValue(num)) {
+			return null;
+		}
+		byte[] value = new byte[lengths[num]];
+		System.arraycopy(slab, offsets[num], value, 0, value.length);
+		return value;
+	}
+
+	/**
+	 * Has Iso8583 value of field num?
+	 * 
+	 * @param num
+	 * @return true if exist
+	 */
+	public boolean hasIsoValue(int num) {
+		if (num < 2 || num > MAX_FIELD) {
+			return false;
+		}
+		return (present[(num - 1) >>> 6] & bit(num)) != 0;
+	}
+
+	/**
+	 * Remove Iso8583 value of field num.
+	 * 
+	 * @param num
+	 */
+	public void removeIsoValue(int num) {
+		if (hasIsoValue(num)) {
+			present[(num - 1) >>> 6] &= ~bit(num);
+			lengths[num] = 0;
+		}
+	}
+
+	/**
+	 * Remove all Iso8583 values.
+	 */
+	public void clearIsoValues() {
+		present[0] = 0;
+		present[1] = 0;
+		slabSize = 0;
+	}
+
 	/**
 	 * Generate iso message.
 	 * <p>
@@ -180,74 +389,188 @@ public class WriteIsoMessage extends IsoMessage {
 	 * @return bytes
 	 */
 	public byte[] generateIsoMessage() {
-		int headerlen = 0;
-		if (header != null) {
-			headerlen = header.getBytes(charset).length;
+		final byte[] finalIsodata = new byte[encodedLength()];
+		encode(ByteBuffer.wrap(finalIsodata));
+		if (log.isDebugEnabled()) {
+			int bitmapoff = headerBytes.length + typeBytes.length;
+			int bitmaplen = present[1] != 0 ? 16 : 8;
+			log.debug("response bitmap: {}", CommUtil.prettyHexdump(Arrays
+					.copyOfRange(finalIsodata, bitmapoff, bitmapoff
+							+ bitmaplen)));
+			log.debug("\n response data: {}", CommUtil.prettyHexdump(Arrays
+					.copyOfRange(finalIsodata, bitmapoff + bitmaplen,
+							finalIsodata.length)));
 		}
-		int typelen = type.getBytes(charset).length;
+		return finalIsodata;
 
-		int bitmaplen = 8;
-		Object[] keys = valueMap.keySet().toArray();
-		Arrays.sort(keys);
-		int max = (Integer) keys[keys.length - 1];
+	}
 
-		if (max > 64) {
-			bitmaplen = 16;
-		}
+	/**
+	 * Remove all Iso8583 values, ready to build the next message of this type.
+	 * 
+	 * @return this
+	 */
+	public WriteIsoMessage reset() {
+		clearIsoValues();
+		return this;
+	}
 
-		BitSet bitmap = new BitSet(bitmaplen * 8);
-		if (bitmaplen > 8) {
-			// 128 digits
-			bitmap.set(0);
+	/**
+	 * Length of the message {@link #encode(ByteBuffer)} writes.
+	 * 
+	 * @return header + type + bitmap + data length
+	 */
+	public int encodedLength() {
+		int datalen = 0;
+		for (int num = nextIsoField(0); num > 0; num = nextIsoField(num)) {
+			datalen += lengths[num];
 		}
+		return headerBytes.length + typeBytes.length
+				+ (present[1] != 0 ? 16 : 8) + datalen;
+	}
 
-		byte[] isodata = new byte[0];
-
-		Map<Integer, byte[]> treeMap = new TreeMap<Integer, byte[]>();
-		treeMap.putAll(valueMap);
-
-		for (Map.Entry<Integer, byte[]> entry : treeMap.entrySet()) {
-			int key = entry.getKey();
-			byte[] bytes = entry.getValue();
-			if (key > 1) {
-				bitmap.set(key - 1);
-				int dlen = bytes.length;
-				if (dlen > 0) {
-					byte[] newdata = new byte[isodata.length + dlen];
+	/**
+	 * Write the message (header(if exist),type,bitmap,data) at the position
+	 * of dst.
+	 * 
+	 * @param dst
+	 *            destination
+	 * @return bytes written
+	 * @throws java.nio.BufferOverflowException
+	 *             if dst has not enough room
+	 */
+	public int encode(ByteBuffer dst) {
+		int start = dst.position();
+		dst.put(headerBytes);
+		dst.put(typeBytes);
 
-					System.arraycopy(isodata, 0, newdata, 0, isodata.length);
-					System.arraycopy(bytes, 0, newdata, isodata.length, dlen);
+		long primary = present[0];
+		if (present[1] != 0) {
+			// 128 digits
+			primary |= Long.MIN_VALUE;
+		}
+		putLong(primary, dst);
+		if (present[1] != 0) {
+			putLong(present[1], dst);
+		}
 
-					isodata = Arrays.copyOf(newdata, newdata.length);
+		for (int num = nextIsoField(0); num > 0; num = nextIsoField(num)) {
+			dst.put(slab, offsets[num], lengths[num]);
+		}
+		return dst.position() - start;
+	}
 
-				}
+	/**
+	 * Write the message into a buffer of the pool.
+	 * <p>
+	 * The returned buffer is flipped, ready to be written to a channel, give
+	 * it back by {@link IsoBufferPool#release(ByteBuffer)} when done.
+	 * </p>
+	 * 
+	 * @param pool
+	 *            {@link IsoBufferPool}
+	 * @return the message
+	 */
+	public ByteBuffer encode(IsoBufferPool pool) {
+		ByteBuffer buf = pool.acquire(encodedLength());
+		encode(buf);
+		buf.flip();
+		return buf;
+	}
 
+	/**
+	 * Next present field num after num, in ascending order.
+	 * 
+	 * @param num
+	 *            0 for the first
+	 * @return field num, -1 if no more
+	 */
+	protected int nextIsoField(int num) {
+		for (int w = num >>> 6; w < present.length; w++) {
+			long bits = present[w];
+			if (w == num >>> 6 && (num & 63) != 0) {
+				// drop bits of fields <= num
+				bits &= -1L >>> (num & 63);
+			}
+			if (bits != 0) {
+				return (w << 6) + Long.numberOfLeadingZeros(bits) + 1;
 			}
 		}
+		return -1;
+	}
 
-		// header + type + bitmap + isodata
-		final byte[] finalIsodata = new byte[headerlen + typelen + bitmaplen
-				+ isodata.length];
-
-		if (headerlen > 0) {
-			// add header
-			System.arraycopy(header.getBytes(charset), 0, finalIsodata, 0, headerlen);
+	/**
+	 * Reserve len bytes for field num,mark it present.
+	 * 
+	 * @return offset in slab
+	 */
+	private int allocate(int num, int len) {
+		if (num < 2 || num > MAX_FIELD) {
+			throw new IllegalArgumentException("Field num [" + num
+					+ "] must be between 2 and " + MAX_FIELD);
+		}
+		if (hasIsoValue(num) && len <= lengths[num]) {
+			// overwrite in place
+			lengths[num] = len;
+			return offsets[num];
 		}
-		// add type
-		System.arraycopy(type.getBytes(charset), 0, finalIsodata, headerlen, typelen);
+		if (slabSize + len > slab.length) {
+			slab = Arrays.copyOf(slab,
+					Math.max(slab.length << 1, slabSize + len));
+		}
+		int pos = slabSize;
+		slabSize += len;
+		offsets[num] = pos;
+		lengths[num] = len;
+		present[(num - 1) >>> 6] |= bit(num);
+		return pos;
+	}
 
-		// add bitmap
-		byte[] bitArray = BitUtil.bitValue(bitmap);
-		System.arraycopy(bitArray, 0, finalIsodata, headerlen + typelen,
-				bitmaplen);
+	private static long bit(int num) {
+		return Long.MIN_VALUE >>> ((num - 1) & 63);
+	}
 
-		// add data
-		System.arraycopy(isodata, 0, finalIsodata, headerlen + typelen
-				+ bitmaplen, isodata.length);
-		log.debug("response bitmap: {}", CommUtil.prettyHexdump(bitArray));
-		log.debug("\n response data: {}", CommUtil.prettyHexdump(isodata));
-		return finalIsodata;
+	private static void putLong(long v, ByteBuffer dst) {
+		for (int i = 56; i >= 0; i -= 8) {
+			dst.put((byte) (v >>> i));
+		}
+	}
 
+	/**
+	 * Copy the echo fields of the request into this response.
+	 * <p>
+	 * The echo fields are declared by the template of this type, eg:
+	 * </p>
+	 * 
+	 * <pre>
+	 * &lt;template type="0110" request="0100" echo="3,7,11,12,13,32,37,41,42,49"/&gt;
+	 * </pre>
+	 * <p>
+	 * Raw bytes are copied as they are in the request (LLVAR and LLLVAR
+	 * values include the length prefix), fields absent in the request are
+	 * skipped.
+	 * </p>
+	 * 
+	 * @param request
+	 *            the request
+	 * @return this
+	 */
+	public WriteIsoMessage respondTo(ReadIsoMessage request) {
+		if (request == null) {
+			throw new IllegalArgumentException("Request must not be null");
+		}
+		if (echoRequest != null && !echoRequest.equals(request.getType())) {
+			throw new IllegalArgumentException("Type [" + type
+					+ "] responds to [" + echoRequest + "],not ["
+					+ request.getType() + "]");
+		}
+		for (int num : echoFields) {
+			int len = request.getRawLength(num);
+			if (len > 0) {
+				request.copyRawIsoValue(num, slab, allocate(num, len));
+			}
+		}
+		return this;
 	}
 
 	/**
@@ -268,6 +591,15 @@ public class WriteIsoMessage extends IsoMessage {
 		return header;
 	}
 
+	/**
+	 * Get length of the encoded iso8583 message header.
+	 * 
+	 * @return header bytes, 0 if no header
+	 */
+	public int getHeaderLength() {
+		return headerBytes.length;
+	}
+
 	/**
 	 * Get Predefine {@link IsoPredefine.IsoParser} Field by field num.
 	 * 
@@ -275,7 +607,7 @@ public class WriteIsoMessage extends IsoMessage {
 	 * @return {@link IsoPredefine.IsoField}
 	 */
 	public IsoPredefine.IsoField getParserIsoField(int num) {
-		return paserMap.get(num);
+		return schema.getParserField(num);
 	}
 
 	/**
@@ -285,6 +617,157 @@ public class WriteIsoMessage extends IsoMessage {
 	 * @return {@link IsoPredefine.IsoField}
 	 */
 	public IsoPredefine.IsoField getTemplateIsoField(int num) {
-		return templateMap.get(num);
+		return schema.getTemplateField(num);
+	}
+
+	/**
+	 * Get the compiled {@link IsoSchema} of this type.
+	 * 
+	 * @return {@link IsoSchema}
+	 */
+	public IsoSchema getSchema() {
+		return schema;
+	}
+	/**
+	 * Map view of the field values.
+	 * 
+	 * @author RA
+	 */
+	private class ValueMapView extends AbstractMap<Integer, byte[]> {
+
+		@Override
+		public int size() {
+			return Long.bitCount(present[0]) + Long.bitCount(present[1]);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Integer && hasIsoValue((Integer) key);
+		}
+
+		@Override
+		public byte[] get(Object key) {
+			return key instanceof Integer ? getIsoValue((Integer) key) : null;
+		}
+
+		@Override
+		public byte[] put(Integer key, byte[] value) {
+			byte[] old = getIsoValue(key);
+			if (value == null) {
+				removeIsoValue(key);
+			} else {
+				setIsoValue(key, value);
+			}
+			return old;
+		}
+
+		@Override
+		public byte[] remove(Object key) {
+			byte[] old = get(key);
+			if (old != null) {
+				removeIsoValue((Integer) key);
+			}
+			return old;
+		}
+
+		@Override
+		public void clear() {
+			clearIsoValues();
+		}
+
+		@Override
+		public Set<Map.Entry<Integer, byte[]>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, byte[]>>() {
+
+				@Override
+				public int size() {
+					return ValueMapView.this.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<Integer, byte[]>> iterator() {
+					return new Iterator<Map.Entry<Integer, byte[]>>() {
+
+						private int next = nextIsoField(0);
+
+						private int last = -1;
+
+						@Override
+						public boolean hasNext() {
+							return next > 0;
+						}
+
+						@Override
+						public Map.Entry<Integer, byte[]> next() {
+							if (next < 0) {
+								throw new NoSuchElementException();
+							}
+							last = next;
+							next = nextIsoField(next);
+							return new ValueEntry(last);
+						}
+
+						@Override
+						public void remove() {
+							if (last < 0) {
+								throw new IllegalStateException();
+							}
+							removeIsoValue(last);
+							last = -1;
+						}
+					};
+				}
+			};
+		}
+	}
+
+	/**
+	 * Entry of {@link ValueMapView}, writes through to the message.
+	 * 
+	 * @author RA
+	 */
+	private class ValueEntry implements Map.Entry<Integer, byte[]> {
+
+		private final int num;
+
+		ValueEntry(int num) {
+			this.num = num;
+		}
+
+		@Override
+		public Integer getKey() {
+			return num;
+		}
+
+		@Override
+		public byte[] getValue() {
+			return getIsoValue(num);
+		}
+
+		@Override
+		public byte[] setValue(byte[] value) {
+			return valueMap.put(num, value);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) obj;
+			return Integer.valueOf(num).equals(e.getKey())
+					&& e.getValue() instanceof byte[]
+					&& Arrays.equals(getValue(), (byte[]) e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return num ^ Arrays.hashCode(getValue());
+		}
+
+		@Override
+		public String toString() {
+			return num + "=" + (hasIsoValue(num) ? new String(getValue()) : null);
+		}
 	}
 }
@@ -0,0 +1,577 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+import com.rockagen.upos.message.IsoBufferPool;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.store.IsoJournal;
+
+/**
+ * Thread-per-connection ISO8583 server for blocking handlers
+ * <p>
+ * Handlers that call databases or HSMs synchronously do not fit an event
+ * loop. Here every connection is read by a thread of its own and, on a
+ * runtime with virtual threads (JDK 21+), every request is handled on a new
+ * virtual thread too, so simple blocking handler code scales to a very
+ * large number of terminals.
+ * </p>
+ * <p>
+ * Virtual threads are looked up by reflection, the core keeps its JDK1.6
+ * baseline. On an older runtime connections run on a cached platform thread
+ * pool and each request is handled by the thread that read it. Any executor
+ * can be set by {@link #setExecutor(ExecutorService, boolean)}, eg: a fixed
+ * platform pool to compare.
+ * </p>
+ * <p>
+ * A server created without a registry follows the default iso8583.xml: a
+ * reload by {@link com.rockagen.upos.define.IsoPredefineWatcher} or
+ * {@link IsoPreDefineParser#replaceDefault(IsoPredefine)} applies from the
+ * next frame. A registry given, eg: a set of
+ * {@link com.rockagen.upos.define.IsoSchemaSets}, is pinned for the life of
+ * the server; a replaced set needs a new server.
+ * </p>
+ *
+ * <pre>
+ * IsoBlockingServer server = new IsoBlockingServer(new InetSocketAddress(5000),
+ * 		framing, registry, handler);
+ * server.start();
+ * </pre>
+ *
+ * @author RA
+ * @see IsoServer
+ * @since JDK1.6
+ */
+public class IsoBlockingServer {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoBlockingServer.class);
+
+	private final InetSocketAddress address;
+
+	private final IsoFraming framing;
+
+	/**
+	 * Null to follow the default.
+	 */
+	private final IsoSchemaRegistry registry;
+
+	private final IsoHandler handler;
+
+	private final Set<IsoBlockingSession> sessions = Collections
+			.newSetFromMap(new ConcurrentHashMap<IsoBlockingSession, Boolean>());
+
+	private Charset charset = Charset.defaultCharset();
+
+	private int backlog = 1024;
+
+	private int maxFrameLength = 8192;
+
+	private IsoBufferPool bufferPool = new IsoBufferPool(2048, 4096);
+
+	private ExecutorService executor;
+
+	private boolean forkTransactions;
+
+	private boolean ownExecutor;
+
+	private IsoFrameHandler frameHandler;
+
+	private IsoJournal journal;
+
+	private ServerSocket serverSocket;
+
+	private Thread acceptor;
+
+	private volatile boolean running;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a server.
+	 *
+	 * @param address
+	 *            listen address, port 0 for any free port
+	 * @param framing
+	 *            {@link IsoFraming} of the link, it must have a length prefix
+	 * @param registry
+	 *            compiled schemas, pinned; null to follow the default
+	 *            iso8583.xml
+	 * @param handler
+	 *            {@link IsoHandler}, it may block; null if a frame handler
+	 *            is set
+	 */
+	public IsoBlockingServer(InetSocketAddress address, IsoFraming framing,
+			IsoSchemaRegistry registry, IsoHandler handler) {
+		if (address == null || framing == null) {
+			throw new IllegalArgumentException(
+					"Address and framing must not be null");
+		}
+		if (framing.getPrefix() == IsoLengthPrefix.NONE) {
+			throw new IllegalArgumentException(
+					"A stream needs a length prefix");
+		}
+		if (registry == null && IsoPreDefineParser.createDefault() == null) {
+			throw new IllegalArgumentException("No default iso8583.xml");
+		}
+		this.address = address;
+		this.framing = framing;
+		this.registry = registry;
+		this.handler = handler;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Create an executor that starts a virtual thread per task.
+	 *
+	 * @return executor, null if the runtime has no virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			// eg: preview feature not enabled
+			log.debug("Virtual threads unavailable: {}", e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Create a cached pool of daemon platform threads.
+	 *
+	 * @return executor
+	 */
+	public static ExecutorService newPlatformThreadExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "upos-conn-"
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Bind and start accepting.
+	 *
+	 * @throws IOException
+	 *             if bind failed
+	 */
+	public synchronized void start() throws IOException {
+		if (serverSocket != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		if (executor == null) {
+			executor = newVirtualThreadExecutor();
+			forkTransactions = executor != null;
+			if (executor == null) {
+				executor = newPlatformThreadExecutor();
+			}
+			ownExecutor = true;
+		}
+		if (frameHandler == null) {
+			if (handler == null) {
+				throw new IllegalStateException(
+						"Neither a handler nor a frame handler");
+			}
+			frameHandler = new IsoDispatcher(framing, registry, charset,
+					handler);
+		}
+		boolean bound = false;
+		try {
+			serverSocket = new ServerSocket();
+			serverSocket.setReuseAddress(true);
+			serverSocket.bind(address, backlog);
+			bound = true;
+		} finally {
+			if (!bound) {
+				release();
+			}
+		}
+		running = true;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "upos-blocking-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("IsoBlockingServer listening on {}, {} transactions",
+				getLocalAddress(), forkTransactions ? "forked"
+						: "inline");
+	}
+
+	/**
+	 * Undo a failed start, so it can be retried.
+	 */
+	private void release() {
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				log.debug("Close listener failed: {}", e.getMessage());
+			}
+			serverSocket = null;
+		}
+		if (ownExecutor) {
+			executor.shutdownNow();
+			executor = null;
+			ownExecutor = false;
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketException e) {
+				// closed
+				break;
+			} catch (IOException e) {
+				// eg: too many open files, do not spin
+				log.error("Accept failed: {}", e.getMessage());
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				continue;
+			}
+			try {
+				socket.setTcpNoDelay(true);
+				IsoBlockingSession session = new IsoBlockingSession(this,
+						socket);
+				sessions.add(session);
+				executor.execute(session);
+			} catch (IOException e) {
+				close(socket);
+			} catch (RejectedExecutionException e) {
+				log.warn("Reject {}: {}", socket.getRemoteSocketAddress(),
+						e.getMessage());
+				close(socket);
+			}
+		}
+	}
+
+	/**
+	 * Handle a frame, on a new thread if transactions are forked.
+	 *
+	 * @param session
+	 *            {@link IsoBlockingSession}
+	 * @param frame
+	 *            frame bytes, length prefix included
+	 */
+	void transaction(final IsoBlockingSession session, final byte[] frame) {
+		if (!forkTransactions) {
+			frameHandler.frame(session, frame);
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					frameHandler.frame(session, frame);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("Drop frame from {}: {}", session.getRemoteAddress(),
+					e.getMessage());
+		}
+	}
+
+	void closed(IsoBlockingSession session) {
+		sessions.remove(session);
+	}
+
+	/**
+	 * Close the listener and every connection.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.debug("Close listener failed: {}", e.getMessage());
+		}
+		for (IsoBlockingSession session : new ArrayList<IsoBlockingSession>(
+				sessions)) {
+			session.close();
+		}
+		if (ownExecutor) {
+			executor.shutdownNow();
+		}
+		try {
+			acceptor.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("IsoBlockingServer on {} stopped", address);
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ignore) {
+			// closing
+		}
+	}
+
+	/**
+	 * Bound address, null if not started.
+	 *
+	 * @return address
+	 */
+	public InetSocketAddress getLocalAddress() {
+		ServerSocket ss = serverSocket;
+		return ss == null ? null : (InetSocketAddress) ss
+				.getLocalSocketAddress();
+	}
+
+	/**
+	 * Open connections.
+	 *
+	 * @return count
+	 */
+	public int getConnections() {
+		return sessions.size();
+	}
+
+	/**
+	 * Is the server running?
+	 *
+	 * @return true if running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Is every request handled on a thread of its own?
+	 *
+	 * @return true if forked, false if handled by the reading thread
+	 */
+	public boolean isForkTransactions() {
+		return forkTransactions;
+	}
+
+	/**
+	 * Set the executor of connections (and of requests if forked), it is not
+	 * shut down by {@link #stop()}. Default a virtual thread per task, else
+	 * cached platform threads.
+	 *
+	 * @param executor
+	 *            executor, a thread per connection is held while open
+	 * @param forkTransactions
+	 *            handle every request on a task of its own
+	 */
+	public void setExecutor(ExecutorService executor, boolean forkTransactions) {
+		checkNotStarted();
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor must not be null");
+		}
+		this.executor = executor;
+		this.forkTransactions = forkTransactions;
+		this.ownExecutor = false;
+	}
+
+	/**
+	 * Return {@link IsoFraming}.
+	 *
+	 * @return {@link IsoFraming}
+	 */
+	public IsoFraming getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Return the compiled schemas.
+	 *
+	 * @return {@link IsoSchemaRegistry} given, else the current default
+	 */
+	public IsoSchemaRegistry getRegistry() {
+		return registry != null ? registry : IsoPreDefineParser
+				.createDefault().compile();
+	}
+
+	/**
+	 * Set charset of the messages, default the platform charset.
+	 *
+	 * @param charset
+	 *            charset
+	 */
+	public void setCharset(Charset charset) {
+		checkNotStarted();
+		if (charset == null) {
+			throw new IllegalArgumentException("Charset must not be null");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * Set accept backlog, default 1024.
+	 *
+	 * @param backlog
+	 *            backlog
+	 */
+	public void setBacklog(int backlog) {
+		checkNotStarted();
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Return max frame length.
+	 *
+	 * @return max frame length, length prefix included
+	 */
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * Set max frame length, a connection sending a longer frame is closed,
+	 * default 8192.
+	 *
+	 * @param maxFrameLength
+	 *            max frame length, length prefix included
+	 */
+	public void setMaxFrameLength(int maxFrameLength) {
+		checkNotStarted();
+		if (maxFrameLength < 1) {
+			throw new IllegalArgumentException("maxFrameLength must be > 0");
+		}
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Return pool of write buffers.
+	 *
+	 * @return {@link IsoBufferPool}
+	 */
+	public IsoBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set pool of write buffers, default 4096 buffers of 2048 bytes.
+	 *
+	 * @param bufferPool
+	 *            {@link IsoBufferPool}
+	 */
+	public void setBufferPool(IsoBufferPool bufferPool) {
+		checkNotStarted();
+		if (bufferPool == null) {
+			throw new IllegalArgumentException("Pool must not be null");
+		}
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Return the receiver of the frames.
+	 *
+	 * @return {@link IsoFrameHandler}, null before {@link #start()} unless
+	 *         set
+	 */
+	public IsoFrameHandler getFrameHandler() {
+		return frameHandler;
+	}
+
+	/**
+	 * Set the receiver of the frames, default decode and call the
+	 * {@link IsoHandler} on the thread that read the frame.
+	 *
+	 * @param frameHandler
+	 *            {@link IsoFrameHandler}
+	 */
+	public void setFrameHandler(IsoFrameHandler frameHandler) {
+		checkNotStarted();
+		if (frameHandler == null) {
+			throw new IllegalArgumentException(
+					"Frame handler must not be null");
+		}
+		this.frameHandler = frameHandler;
+	}
+
+	/**
+	 * Return the journal of the frames.
+	 *
+	 * @return {@link IsoJournal}, null if not journaled
+	 */
+	public IsoJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Journal every frame received and sent.
+	 *
+	 * @param journal
+	 *            open {@link IsoJournal}, null for none
+	 */
+	public void setJournal(IsoJournal journal) {
+		checkNotStarted();
+		this.journal = journal;
+	}
+
+	private void checkNotStarted() {
+		if (serverSocket != null) {
+			throw new IllegalStateException("Server already started");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IsoBlockingServer[" + address + ", " + framing + "]";
+	}
+
+}
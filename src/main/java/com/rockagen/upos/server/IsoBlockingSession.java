@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection of an {@link IsoBlockingServer}
+ * <p>
+ * One thread reads the frames, each request is handled on a thread of its
+ * own (or by the reader if the server does not fork transactions). Writes
+ * are serialized by a {@link ReentrantLock}, which does not pin a virtual
+ * thread to its carrier as <code>synchronized</code> does.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoBlockingSession extends IsoSession implements Runnable {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoBlockingSession.class);
+
+	private final IsoBlockingServer server;
+
+	private final Socket socket;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private final AtomicBoolean open = new AtomicBoolean(true);
+
+	// ~ Constructors ==================================================
+
+	IsoBlockingSession(IsoBlockingServer server, Socket socket) {
+		super(socket.getRemoteSocketAddress(), server.getFraming(), server
+				.getBufferPool(), server.getJournal());
+		this.server = server;
+		this.socket = socket;
+	}
+
+	// ~ Methods ==================================================
+
+	@Override
+	public void run() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream(), 2048));
+			int plen = getFraming().getPrefix().getLen();
+			byte[] prefix = new byte[plen];
+			int max = server.getMaxFrameLength();
+			while (open.get()) {
+				try {
+					in.readFully(prefix);
+				} catch (EOFException e) {
+					break;
+				}
+				int len = getFraming().frameLength(ByteBuffer.wrap(prefix));
+				if (len > max) {
+					log.warn("Close {}: frame of {} bytes exceeds {}",
+							new Object[] { getRemoteAddress(), len, max });
+					break;
+				}
+				byte[] frame = new byte[len];
+				System.arraycopy(prefix, 0, frame, 0, plen);
+				in.readFully(frame, plen, len - plen);
+				received(frame);
+				server.transaction(this, frame);
+			}
+		} catch (IOException e) {
+			if (open.get()) {
+				log.debug("Read {} failed: {}", getRemoteAddress(),
+						e.getMessage());
+			}
+		} catch (IllegalArgumentException e) {
+			log.warn("Close {}: {}", getRemoteAddress(), e.getMessage());
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame) {
+		try {
+			if (!open.get()) {
+				return false;
+			}
+			sending(frame);
+			byte[] bytes;
+			int off;
+			if (frame.hasArray()) {
+				bytes = frame.array();
+				off = frame.arrayOffset() + frame.position();
+			} else {
+				bytes = new byte[frame.remaining()];
+				frame.duplicate().get(bytes);
+				off = 0;
+			}
+			writeLock.lock();
+			try {
+				OutputStream out = socket.getOutputStream();
+				out.write(bytes, off, frame.remaining());
+			} finally {
+				writeLock.unlock();
+			}
+			return true;
+		} catch (IOException e) {
+			log.debug("Write {} failed: {}", getRemoteAddress(),
+					e.getMessage());
+			close();
+			return false;
+		} finally {
+			getPool().release(frame);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open.get();
+	}
+
+	@Override
+	public void close() {
+		if (!open.compareAndSet(true, false)) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.debug("Close {} failed: {}", getRemoteAddress(),
+					e.getMessage());
+		}
+		server.closed(this);
+	}
+
+}
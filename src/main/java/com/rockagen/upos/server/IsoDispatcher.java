@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Decode a frame, call the {@link IsoHandler} and send its response
+ * <p>
+ * Shared by the servers, it holds no state per message and runs on the
+ * thread that received the frame.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoDispatcher implements IsoFrameHandler {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoDispatcher.class);
+
+	private final IsoFraming framing;
+
+	/**
+	 * Null to follow the default.
+	 */
+	private final IsoSchemaRegistry registry;
+
+	private final Charset charset;
+
+	private final IsoHandler handler;
+
+	// ~ Constructors ==================================================
+
+	IsoDispatcher(IsoFraming framing, IsoSchemaRegistry registry,
+			Charset charset, IsoHandler handler) {
+		this.framing = framing;
+		this.registry = registry;
+		this.charset = charset;
+		this.handler = handler;
+	}
+
+	// ~ Methods ==================================================
+
+	@Override
+	public void frame(IsoSession session, byte[] frame) {
+		ReadIsoMessage request = decode(session, frame);
+		if (request == null) {
+			return;
+		}
+		byte[] tpdu = framing.readTpdu(frame, 0);
+		IsoSession.setRequestTpdu(tpdu);
+		try {
+			WriteIsoMessage response = handler.handle(session, request);
+			if (response != null) {
+				session.send(response, tpdu);
+			}
+		} catch (Exception e) {
+			log.error("Handle [" + request.getType() + "] from "
+					+ session.getRemoteAddress() + " failed", e);
+		} finally {
+			IsoSession.setRequestTpdu(null);
+		}
+	}
+
+	/**
+	 * Decode a frame.
+	 *
+	 * @param session
+	 *            {@link IsoSession} the frame came from
+	 * @param frame
+	 *            frame bytes, length prefix included
+	 * @return the request, null if dropped
+	 */
+	ReadIsoMessage decode(IsoSession session, byte[] frame) {
+		try {
+			ReadIsoMessage request = framing.decode(frame,
+					registry != null ? registry : IsoPreDefineParser
+							.createDefault().compile(), charset);
+			if (request == null) {
+				log.warn("Drop frame of unknown type [{}] from {}",
+						new String(frame, framing.typeOffset(), 4, charset),
+						session.getRemoteAddress());
+			}
+			return request;
+		} catch (IllegalArgumentException e) {
+			log.warn("Drop frame from {}: {}", session.getRemoteAddress(),
+					e.getMessage());
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selector thread of an {@link IsoServer}
+ * <p>
+ * Owns the connections registered to it: reads, decodes, dispatches and
+ * writes them on its thread. Other threads only queue work (new
+ * connections, flushes, closes) and wake the selector.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoEventLoop implements Runnable {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoEventLoop.class);
+
+	private final IsoServer server;
+
+	private final Selector selector;
+
+	private final Thread thread;
+
+	private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+
+	private final Queue<IsoNioSession> flushes = new ConcurrentLinkedQueue<IsoNioSession>();
+
+	private final Queue<IsoNioSession> closes = new ConcurrentLinkedQueue<IsoNioSession>();
+
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	private volatile boolean running = true;
+
+	// ~ Constructors ==================================================
+
+	IsoEventLoop(IsoServer server, int index) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.thread = new Thread(this, "upos-loop-" + index);
+		this.thread.setDaemon(true);
+	}
+
+	// ~ Methods ==================================================
+
+	void start() {
+		thread.start();
+	}
+
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Release a loop that was never started.
+	 */
+	void dispose() {
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.debug("Close selector failed: {}", e.getMessage());
+		}
+	}
+
+	void join(long millis) throws InterruptedException {
+		thread.join(millis);
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	int getSessions() {
+		return sessions.get();
+	}
+
+	void register(SocketChannel channel) {
+		accepted.offer(channel);
+		selector.wakeup();
+	}
+
+	void flushLater(IsoNioSession session) {
+		flushes.offer(session);
+		selector.wakeup();
+	}
+
+	void closeLater(IsoNioSession session) {
+		closes.offer(session);
+		selector.wakeup();
+	}
+
+	void closed(IsoNioSession session) {
+		sessions.decrementAndGet();
+		server.closed(session);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				runQueued();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					IsoNioSession session = (IsoNioSession) key.attachment();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isWritable()) {
+						session.flush();
+					}
+					if (key.isValid() && key.isReadable()) {
+						session.read();
+					}
+				}
+			} catch (IOException e) {
+				log.error("Select failed: {}", e.getMessage());
+			} catch (RuntimeException e) {
+				log.error("Event loop error", e);
+			}
+		}
+		closeAll();
+	}
+
+	private void runQueued() {
+		SocketChannel channel;
+		while ((channel = accepted.poll()) != null) {
+			IsoNioSession session = new IsoNioSession(server, this, channel);
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				session.register(channel.register(selector,
+						SelectionKey.OP_READ, session));
+				sessions.incrementAndGet();
+				server.opened(session);
+			} catch (IOException e) {
+				log.warn("Register {} failed: {}", session.getRemoteAddress(),
+						e.getMessage());
+				try {
+					channel.close();
+				} catch (IOException ignore) {
+					// closing
+				}
+			}
+		}
+		IsoNioSession session;
+		while ((session = flushes.poll()) != null) {
+			session.flush();
+		}
+		while ((session = closes.poll()) != null) {
+			session.closeNow();
+		}
+	}
+
+	private void closeAll() {
+		runQueued();
+		for (SelectionKey key : selector.keys()) {
+			Object att = key.attachment();
+			if (att instanceof IsoNioSession) {
+				((IsoNioSession) att).closeNow();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.debug("Close selector failed: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return thread.getName();
+	}
+
+}
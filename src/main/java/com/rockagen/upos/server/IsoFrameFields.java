@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.nio.charset.Charset;
+
+import com.rockagen.upos.define.IsoCodec;
+import com.rockagen.upos.define.IsoPlanCodec;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.util.IsoFormatter;
+
+/**
+ * Fields of an undecoded frame
+ * <p>
+ * Reads the bitmap and finds fixed-length fields in place: leading fixed
+ * fields by the bitmap layout, others by the schema's {@link IsoCodec},
+ * located once per frame on first use. Only a schema read by the
+ * interpreted path is decoded. One instance per thread, see
+ * {@link #get()}; {@link #clear()} when the frame is done.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoFrameFields {
+
+	// ~ Instance fields ==================================================
+
+	private static final ThreadLocal<IsoFrameFields> FIELDS = new ThreadLocal<IsoFrameFields>() {
+		@Override
+		protected IsoFrameFields initialValue() {
+			return new IsoFrameFields();
+		}
+	};
+
+	private final int[] offsets = new int[IsoSchema.MAX_FIELD + 1];
+
+	private final int[] lengths = new int[IsoSchema.MAX_FIELD + 1];
+
+	private byte[] frame;
+
+	private int data;
+
+	private long bm0;
+
+	private long bm1;
+
+	private IsoSchema schema;
+
+	private IsoSchemaRegistry registry;
+
+	private Charset charset;
+
+	private IsoFraming framing;
+
+	/**
+	 * 0 not located yet, 1 located, -1 can not be located.
+	 */
+	private int located;
+
+	/**
+	 * Decoded frame of an interpreted schema.
+	 */
+	private ReadIsoMessage decoded;
+
+	// ~ Constructors ==================================================
+
+	private IsoFrameFields() {
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Fields of the current thread.
+	 *
+	 * @return {@link IsoFrameFields}
+	 */
+	static IsoFrameFields get() {
+		return FIELDS.get();
+	}
+
+	/**
+	 * Read the bitmap of a frame.
+	 *
+	 * @param frame
+	 *            frame bytes, length prefix included
+	 * @param framing
+	 *            {@link IsoFraming} of the frame
+	 * @param registry
+	 *            compiled schemas
+	 * @param charset
+	 *            charset to decode an interpreted schema
+	 * @return false if the type is not defined or the frame is too short
+	 */
+	boolean bind(byte[] frame, IsoFraming framing,
+			IsoSchemaRegistry registry, Charset charset) {
+		int p = framing.typeOffset();
+		// type and a primary bitmap at least
+		if (frame.length < p + 12) {
+			return false;
+		}
+		schema = registry.get(frame, p);
+		if (schema == null) {
+			return false;
+		}
+		p += 4;
+		bm0 = word(frame, p);
+		bm1 = 0L;
+		p += 8;
+		if (bm0 < 0) {
+			if (frame.length < p + 8) {
+				schema = null;
+				return false;
+			}
+			bm1 = word(frame, p);
+			p += 8;
+		}
+		this.frame = frame;
+		this.data = p;
+		this.framing = framing;
+		this.registry = registry;
+		this.charset = charset;
+		return true;
+	}
+
+	/**
+	 * Forget the frame.
+	 */
+	void clear() {
+		frame = null;
+		schema = null;
+		registry = null;
+		decoded = null;
+		located = 0;
+	}
+
+	/**
+	 * Is a field present?
+	 *
+	 * @param num
+	 *            field num
+	 * @return true if its bit is set
+	 */
+	boolean has(int num) {
+		if (schema == null || num < 2 || num > IsoSchema.MAX_FIELD) {
+			return false;
+		}
+		long bit = Long.MIN_VALUE >>> ((num - 1) & 63);
+		return ((num <= 64 ? bm0 : bm1) & bit) != 0;
+	}
+
+	/**
+	 * Copy a fixed-length field.
+	 *
+	 * @param num
+	 *            field num
+	 * @param len
+	 *            its length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return false if absent or of another length
+	 */
+	boolean copy(int num, int len, byte[] dst, int off) {
+		int p = offset(num, len);
+		if (p >= 0) {
+			System.arraycopy(frame, p, dst, off, len);
+			return true;
+		}
+		byte[] v = interpreted(num);
+		if (v == null || v.length != len) {
+			return false;
+		}
+		System.arraycopy(v, 0, dst, off, len);
+		return true;
+	}
+
+	/**
+	 * Value of a fixed-length numeric field.
+	 *
+	 * @param num
+	 *            field num
+	 * @param len
+	 *            its length, at most 9
+	 * @return value, -1 if absent, of another length or not digits
+	 */
+	int numeric(int num, int len) {
+		int p = offset(num, len);
+		if (p >= 0) {
+			return (int) IsoFormatter.parseDigits(frame, p, len);
+		}
+		byte[] v = interpreted(num);
+		if (v == null || v.length != len) {
+			return -1;
+		}
+		return (int) IsoFormatter.parseDigits(v, 0, len);
+	}
+
+	/**
+	 * Offset of a field in the frame.
+	 *
+	 * @return offset, -1 if absent, of another length or to be read by the
+	 *         interpreted path
+	 */
+	private int offset(int num, int len) {
+		if (!has(num)) {
+			return -1;
+		}
+		IsoCodec codec = schema.getCodec();
+		if (codec == null) {
+			return -1;
+		}
+		int off = -1;
+		if (codec instanceof IsoPlanCodec) {
+			off = ((IsoPlanCodec) codec).fixedOffset(bm0, bm1, num);
+			if (off >= 0) {
+				off += data;
+			}
+		}
+		if (off < 0) {
+			if (located == 0) {
+				located = codec.locate(frame, data, frame.length, bm0, bm1,
+						offsets, lengths) < 0 ? -1 : 1;
+			}
+			if (located < 0 || lengths[num] != len) {
+				return -1;
+			}
+			off = offsets[num];
+		}
+		return off + len <= frame.length ? off : -1;
+	}
+
+	/**
+	 * Value of a present field of an interpreted schema, decoded once.
+	 */
+	private byte[] interpreted(int num) {
+		if (schema == null || schema.getCodec() != null || !has(num)) {
+			return null;
+		}
+		if (decoded == null) {
+			try {
+				decoded = framing.decode(frame, registry, charset);
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+			if (decoded == null) {
+				return null;
+			}
+		}
+		return decoded.getIsoValue(num);
+	}
+
+	private static long word(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+}
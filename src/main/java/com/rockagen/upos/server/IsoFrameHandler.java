@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+/**
+ * Receiver of the raw frames of a server
+ * <p>
+ * The default decodes the frame and calls the {@link IsoHandler} on the
+ * thread that read it. Set another by
+ * {@link IsoServer#setFrameHandler(IsoFrameHandler)} to route, short-cut or
+ * hand frames to other threads before any decode.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public interface IsoFrameHandler {
+
+	/**
+	 * A frame arrived.
+	 *
+	 * @param session
+	 *            {@link IsoSession} the frame came from
+	 * @param frame
+	 *            frame bytes, length prefix included; owned by the callee
+	 */
+	void frame(IsoSession session, byte[] frame);
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Business handler of an {@link IsoServer}
+ * <p>
+ * Called on the event loop of the connection, one request at a time per
+ * connection. A handler that blocks holds every connection of its loop,
+ * hand such work to another thread and answer by
+ * {@link IsoSession#send(WriteIsoMessage, byte[])}.
+ * </p>
+ *
+ * <pre>
+ * public WriteIsoMessage handle(IsoSession session, ReadIsoMessage request) {
+ * 	WriteIsoMessage response = new WriteIsoMessage(&quot;0110&quot;).respondTo(request);
+ * 	response.setIsoValue(39, APPROVED);
+ * 	return response;
+ * }
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public interface IsoHandler {
+
+	/**
+	 * Handle a request.
+	 *
+	 * @param session
+	 *            {@link IsoSession} the request came from
+	 * @param request
+	 *            decoded request
+	 * @return response, sent with the TPDU of the request; null to send
+	 *         nothing
+	 * @throws Exception
+	 *             logged, nothing is sent
+	 */
+	WriteIsoMessage handle(IsoSession session, ReadIsoMessage request)
+			throws Exception;
+
+}
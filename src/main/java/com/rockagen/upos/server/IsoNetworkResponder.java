@@ -0,0 +1,422 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoType;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Answer network management requests without decoding them
+ * <p>
+ * Echo tests and sign-on/sign-off (0800 with field 70 <code>301</code>,
+ * <code>001</code>, <code>002</code>) arrive every few seconds on every
+ * link. The 0810 is encoded once as a template; per request it is copied,
+ * the TPDU swapped, and fields 7, 11 and 70 copied from the request frame
+ * into their fixed places, field 39 is part of the template. The request is
+ * recognised by its type bytes and no message object is built, so keep-alive
+ * traffic never reaches the handlers.
+ * </p>
+ * <p>
+ * Other frames, and requests with another field 70 or without one of the
+ * echoed fields, go to the next frame handler.
+ * </p>
+ *
+ * <pre>
+ * IsoRouter router = new IsoRouter(framing, registry);
+ * router.route(&quot;0200&quot;, null, null, financial);
+ * router.route(&quot;0800&quot;, null, null, keyExchange);
+ * server.setFrameHandler(new IsoNetworkResponder(framing, registry, router));
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoNetworkResponder implements IsoFrameHandler {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoNetworkResponder.class);
+
+	/**
+	 * Fields copied from the request.
+	 */
+	private static final int[] ECHOED = { 7, 11, 70 };
+
+	private static final String[] DEFAULT_CODES = { "001", "002", "301" };
+
+	/**
+	 * Scratch of the responding thread.
+	 */
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>();
+
+	private final IsoFraming framing;
+
+	private final IsoSchemaRegistry registry;
+
+	private final IsoFrameHandler next;
+
+	private final Map<Integer, byte[]> constants = new TreeMap<Integer, byte[]>();
+
+	private final AtomicLong answered = new AtomicLong();
+
+	private final AtomicLong forwarded = new AtomicLong();
+
+	private Charset charset = Charset.defaultCharset();
+
+	private String requestType = "0800";
+
+	private String responseType = "0810";
+
+	private String responseCode = "00";
+
+	private String[] codes = DEFAULT_CODES;
+
+	private volatile Template template;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a responder.
+	 *
+	 * @param framing
+	 *            {@link IsoFraming} of the link
+	 * @param registry
+	 *            compiled schemas, they must define the request and the
+	 *            response
+	 * @param next
+	 *            {@link IsoFrameHandler} of the other frames, null to drop
+	 *            them
+	 */
+	public IsoNetworkResponder(IsoFraming framing, IsoSchemaRegistry registry,
+			IsoFrameHandler next) {
+		if (framing == null || registry == null) {
+			throw new IllegalArgumentException(
+					"Framing and registry must not be null");
+		}
+		this.framing = framing;
+		this.registry = registry;
+		this.next = next;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Encode the response template, nothing can be set afterwards. Called
+	 * by the first frame if not before.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the schemas do not define the echoed fields with the
+	 *             same fixed length
+	 */
+	public synchronized void compile() {
+		if (template != null) {
+			return;
+		}
+		IsoSchema request = registry.get(requestType);
+		IsoSchema response = registry.get(responseType);
+		if (request == null || response == null) {
+			throw new IllegalArgumentException("No schema of [" + requestType
+					+ "] or [" + responseType + "]");
+		}
+		WriteIsoMessage wim = new WriteIsoMessage(response, charset);
+		for (Map.Entry<Integer, byte[]> e : constants.entrySet()) {
+			wim.setIsoValue(e.getKey(), e.getValue());
+		}
+		int[] lens = new int[ECHOED.length];
+		for (int i = 0; i < ECHOED.length; i++) {
+			int num = ECHOED[i];
+			lens[i] = fixedLength(request, num);
+			if (fixedLength(response, num) != lens[i]) {
+				throw new IllegalArgumentException("Field[" + num + "] of ["
+						+ requestType + "] and [" + responseType
+						+ "] differ");
+			}
+			// placeholder, patched per request
+			wim.setIsoValue(num, new byte[lens[i]]);
+		}
+		wim.setIsoValue(39, responseCode.getBytes(charset));
+		ByteBuffer buf = ByteBuffer.allocate(framing.overhead()
+				+ wim.encodedLength());
+		framing.encode(wim, null, buf);
+
+		// fields are written last, in num order
+		int p = buf.capacity();
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			if (wim.hasIsoValue(num)) {
+				p -= wim.getIsoValue(num).length;
+			}
+		}
+		int[] offsets = new int[ECHOED.length];
+		for (int num = 2, i = 0; num <= IsoSchema.MAX_FIELD; num++) {
+			if (!wim.hasIsoValue(num)) {
+				continue;
+			}
+			if (i < ECHOED.length && ECHOED[i] == num) {
+				offsets[i++] = p;
+			}
+			p += wim.getIsoValue(num).length;
+		}
+		template = new Template(buf.array(), offsets, lens);
+		log.info("Answer [{}] by a {} bytes [{}] template",
+				new Object[] { requestType, buf.capacity(), responseType });
+	}
+
+	private static int fixedLength(IsoSchema schema, int num) {
+		IsoField f = schema.getParserField(num);
+		if (f == null || f.getType() == IsoType.LLVAR
+				|| f.getType() == IsoType.LLLVAR) {
+			throw new IllegalArgumentException("Field[" + num + "] of ["
+					+ schema.getType() + "] must be fixed-length");
+		}
+		return f.getType().isNsLen() ? f.getLength() : f.getType().getLen();
+	}
+
+	@Override
+	public void frame(IsoSession session, byte[] frame) {
+		Template t = template;
+		if (t == null) {
+			compile();
+			t = template;
+		}
+		if (!isRequest(frame) || !answer(t, session, frame)) {
+			forward(session, frame);
+		}
+	}
+
+	private boolean isRequest(byte[] frame) {
+		int p = framing.typeOffset();
+		if (frame.length < p + 12) {
+			return false;
+		}
+		for (int i = 0; i < 4; i++) {
+			if (frame[p + i] != requestType.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean answer(Template t, IsoSession session, byte[] frame) {
+		byte[] out = SCRATCH.get();
+		if (out == null || out.length < t.frame.length) {
+			out = new byte[t.frame.length];
+			SCRATCH.set(out);
+		}
+		System.arraycopy(t.frame, 0, out, 0, t.frame.length);
+		IsoFrameFields fields = IsoFrameFields.get();
+		try {
+			if (!fields.bind(frame, framing, registry, charset)) {
+				return false;
+			}
+			for (int i = 0; i < ECHOED.length; i++) {
+				if (!fields.copy(ECHOED[i], t.lens[i], out, t.offsets[i])) {
+					return false;
+				}
+			}
+			if (!isCode(out, t.offsets[ECHOED.length - 1])) {
+				return false;
+			}
+		} finally {
+			fields.clear();
+		}
+		if (framing.hasTpdu()) {
+			int p = framing.getPrefix().getLen();
+			// source becomes destination
+			out[p] = frame[p];
+			out[p + 1] = frame[p + 3];
+			out[p + 2] = frame[p + 4];
+			out[p + 3] = frame[p + 1];
+			out[p + 4] = frame[p + 2];
+		}
+		ByteBuffer buf = session.getPool().acquire(t.frame.length);
+		buf.put(out, 0, t.frame.length);
+		buf.flip();
+		session.sendFrame(buf);
+		answered.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Is field 70 at off one of the answered codes?
+	 */
+	private boolean isCode(byte[] out, int off) {
+		for (String code : codes) {
+			if (out[off] == code.charAt(0) && out[off + 1] == code.charAt(1)
+					&& out[off + 2] == code.charAt(2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void forward(IsoSession session, byte[] frame) {
+		forwarded.incrementAndGet();
+		if (next != null) {
+			next.frame(session, frame);
+		} else {
+			log.warn("No handler of frame from {}", session.getRemoteAddress());
+		}
+	}
+
+	/**
+	 * Set the request and response types, default 0800 and 0810.
+	 *
+	 * @param requestType
+	 *            request type
+	 * @param responseType
+	 *            response type
+	 */
+	public synchronized void setTypes(String requestType, String responseType) {
+		checkNotCompiled();
+		if (requestType == null || requestType.length() != 4
+				|| responseType == null || responseType.length() != 4) {
+			throw new IllegalArgumentException("Types must be 4 characters");
+		}
+		this.requestType = requestType;
+		this.responseType = responseType;
+	}
+
+	/**
+	 * Set field 70 codes to answer, default 001 (sign-on), 002 (sign-off)
+	 * and 301 (echo test).
+	 *
+	 * @param codes
+	 *            network management information codes, 3 digits each
+	 */
+	public synchronized void setNetworkCodes(String... codes) {
+		checkNotCompiled();
+		for (String code : codes) {
+			if (code == null || code.length() != 3) {
+				throw new IllegalArgumentException(
+						"Network code must be 3 digits: " + code);
+			}
+		}
+		this.codes = codes.clone();
+	}
+
+	/**
+	 * Set field 39 of the response, default 00.
+	 *
+	 * @param responseCode
+	 *            2 characters
+	 */
+	public synchronized void setResponseCode(String responseCode) {
+		checkNotCompiled();
+		if (responseCode == null || responseCode.length() != 2) {
+			throw new IllegalArgumentException(
+					"Response code must be 2 characters");
+		}
+		this.responseCode = responseCode;
+	}
+
+	/**
+	 * Set a constant field of the response, eg: field 33.
+	 *
+	 * @param num
+	 *            field num, not an echoed field nor 39
+	 * @param raw
+	 *            raw value, LLVAR/LLLVAR length prefix included
+	 */
+	public synchronized void setField(int num, byte[] raw) {
+		checkNotCompiled();
+		if (num == 39 || num < 2 || num > IsoSchema.MAX_FIELD || raw == null) {
+			throw new IllegalArgumentException("Can not set field[" + num
+					+ "]");
+		}
+		for (int echoed : ECHOED) {
+			if (num == echoed) {
+				throw new IllegalArgumentException("Field[" + num
+						+ "] is echoed");
+			}
+		}
+		constants.put(num, raw.clone());
+	}
+
+	/**
+	 * Set charset of the messages, default the platform charset.
+	 *
+	 * @param charset
+	 *            charset
+	 */
+	public synchronized void setCharset(Charset charset) {
+		checkNotCompiled();
+		if (charset == null) {
+			throw new IllegalArgumentException("Charset must not be null");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * Requests answered by the template.
+	 *
+	 * @return count
+	 */
+	public long getAnswered() {
+		return answered.get();
+	}
+
+	/**
+	 * Frames passed to the next handler.
+	 *
+	 * @return count
+	 */
+	public long getForwarded() {
+		return forwarded.get();
+	}
+
+	private void checkNotCompiled() {
+		if (template != null) {
+			throw new IllegalStateException("Responder already compiled");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IsoNetworkResponder[" + requestType + "->" + responseType
+				+ "]";
+	}
+
+	/**
+	 * Encoded response and the places of the echoed fields.
+	 */
+	private static final class Template {
+
+		private final byte[] frame;
+		private final int[] offsets;
+		private final int[] lens;
+
+		Template(byte[] frame, int[] offsets, int[] lens) {
+			this.frame = frame;
+			this.offsets = offsets;
+			this.lens = lens;
+		}
+	}
+
+}
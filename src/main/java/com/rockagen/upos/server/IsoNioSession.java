@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.message.IsoBufferPool;
+
+/**
+ * A connection of an {@link IsoServer}
+ * <p>
+ * Reads and writes run on the event loop that owns the connection, frames
+ * sent by other threads are queued and written by the loop. While more
+ * than {@link IsoServer#getMaxWriteQueue()} bytes wait to be written the
+ * connection is not read, until half of them are.
+ * </p>
+ * <p>
+ * An idle connection holds no buffer: the read buffer is taken from the
+ * pool when bytes arrive and given back once no partial frame is left, so
+ * tens of thousands of mostly idle terminals cost little memory.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoNioSession extends IsoSession {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoNioSession.class);
+
+	private final IsoServer server;
+
+	private final IsoEventLoop loop;
+
+	private final SocketChannel channel;
+
+	private final IsoBufferPool pool;
+
+	private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	/**
+	 * Bytes in out not written yet.
+	 */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/**
+	 * Not read until the queue drains, on the loop.
+	 */
+	private boolean paused;
+
+	private SelectionKey key;
+
+	/**
+	 * Received bytes in read mode between reads, null while idle.
+	 */
+	private ByteBuffer in;
+
+	private volatile boolean open = true;
+
+	// ~ Constructors ==================================================
+
+	IsoNioSession(IsoServer server, IsoEventLoop loop, SocketChannel channel) {
+		super(channel.socket().getRemoteSocketAddress(), server.getFraming(),
+				server.getBufferPool(), server.getJournal());
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		this.pool = server.getBufferPool();
+	}
+
+	// ~ Methods ==================================================
+
+	void register(SelectionKey key) {
+		this.key = key;
+	}
+
+	@Override
+	public boolean sendFrame(ByteBuffer frame) {
+		if (!open) {
+			pool.release(frame);
+			return false;
+		}
+		sending(frame);
+		queued.addAndGet(frame.remaining());
+		out.offer(frame);
+		if (loop.inLoop()) {
+			flush();
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			loop.flushLater(this);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		if (loop.inLoop()) {
+			closeNow();
+		} else if (open) {
+			loop.closeLater(this);
+		}
+	}
+
+	/**
+	 * Read and dispatch the received frames, on the loop.
+	 */
+	void read() {
+		if (paused) {
+			// selected before the pause
+			return;
+		}
+		try {
+			if (in == null) {
+				in = pool.acquire();
+			} else {
+				in.compact();
+			}
+			int n = channel.read(in);
+			in.flip();
+			if (n < 0) {
+				closeNow();
+				return;
+			}
+			int need = decode();
+			if (!open) {
+				return;
+			}
+			if (!in.hasRemaining()) {
+				pool.release(in);
+				in = null;
+			} else if (need > in.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(need);
+				bigger.put(in);
+				bigger.flip();
+				pool.release(in);
+				in = bigger;
+			}
+		} catch (IOException e) {
+			log.debug("Read {} failed: {}", getRemoteAddress(), e.getMessage());
+			closeNow();
+		}
+	}
+
+	/**
+	 * Dispatch the complete frames of in.
+	 *
+	 * @return length of the partial frame left, 0 if unknown
+	 */
+	private int decode() {
+		int max = server.getMaxFrameLength();
+		while (in.hasRemaining()) {
+			int len;
+			try {
+				len = getFraming().frameLength(in);
+			} catch (IllegalArgumentException e) {
+				log.warn("Close {}: {}", getRemoteAddress(), e.getMessage());
+				closeNow();
+				return 0;
+			}
+			if (len < 0) {
+				return 0;
+			}
+			if (len > max) {
+				log.warn("Close {}: frame of {} bytes exceeds {}",
+						new Object[] { getRemoteAddress(), len, max });
+				closeNow();
+				return 0;
+			}
+			if (in.remaining() < len) {
+				return len;
+			}
+			byte[] frame = new byte[len];
+			in.get(frame);
+			received(frame);
+			server.getFrameHandler().frame(this, frame);
+			if (!open) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Write the queued frames, on the loop.
+	 */
+	void flush() {
+		flushScheduled.set(false);
+		if (!open) {
+			return;
+		}
+		try {
+			ByteBuffer buf;
+			while ((buf = out.peek()) != null) {
+				queued.addAndGet(-channel.write(buf));
+				if (buf.hasRemaining()) {
+					interest(SelectionKey.OP_WRITE);
+					return;
+				}
+				out.poll();
+				pool.release(buf);
+			}
+			interest(0);
+		} catch (IOException e) {
+			log.debug("Write {} failed: {}", getRemoteAddress(), e.getMessage());
+			closeNow();
+		}
+	}
+
+	/**
+	 * Set the interest ops, OP_READ unless the write queue is over the limit
+	 * or not back under half of it yet.
+	 */
+	private void interest(int ops) {
+		int max = server.getMaxWriteQueue();
+		int q = queued.get();
+		if (!paused && q > max) {
+			paused = true;
+			log.debug("Pause reading {}: {} bytes to write",
+					getRemoteAddress(), q);
+		} else if (paused && q <= max / 2) {
+			paused = false;
+		}
+		key.interestOps(paused ? ops : ops | SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Close the connection, on the loop.
+	 */
+	void closeNow() {
+		if (!open) {
+			return;
+		}
+		open = false;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Close {} failed: {}", getRemoteAddress(), e.getMessage());
+		}
+		if (in != null) {
+			pool.release(in);
+			in = null;
+		}
+		ByteBuffer buf;
+		while ((buf = out.poll()) != null) {
+			pool.release(buf);
+		}
+		loop.closed(this);
+	}
+
+}
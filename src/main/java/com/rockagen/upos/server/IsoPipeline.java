@@ -0,0 +1,522 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Staged frame pipeline: decode, then handle and encode
+ * <p>
+ * Frames of the I/O threads are published into a preallocated ring of
+ * slots. Dedicated decode threads turn them into {@link ReadIsoMessage}s,
+ * handler threads take them out of the ring, call the {@link IsoHandler},
+ * frame the response and hand it to its session. Each handler thread
+ * encodes its own responses, so a response never waits for another
+ * handler.
+ * </p>
+ * <p>
+ * No lock is taken and nothing is queued per message: each stage has its
+ * workers, worker i of n owns the sequences s with s % n == i, and records
+ * its progress in a sequence of its own that only it writes. A worker
+ * drains the consecutive slots the previous stage has finished, up to a
+ * batch. Producers claim sequences with a compare and set.
+ * </p>
+ * <p>
+ * A producer never waits: if the slot it would claim is still held, the
+ * ring is full and the frame is dropped (see {@link #getRejected()}), the
+ * terminal times out as it would on a lost frame. A slow handler delays
+ * the frames its thread owns, the other handler threads and the event
+ * loops go on; once enough of its frames wait, the ring fills and new
+ * frames are dropped until it catches up. Size the ring for the frames
+ * that may wait on the slowest handler.
+ * </p>
+ * <p>
+ * An idle worker spins, yields, then parks until the stage before it
+ * publishes one of its sequences and unparks it. A wake-up lost to the
+ * race between the two costs at most a millisecond.
+ * </p>
+ *
+ * <pre>
+ * IsoPipeline pipeline = new IsoPipeline(framing, registry, handler);
+ * pipeline.setWorkers(1, 8);
+ * pipeline.start();
+ * server.setFrameHandler(pipeline);
+ * server.start();
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoPipeline implements IsoFrameHandler {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoPipeline.class);
+
+	private static final int DECODE = 0;
+
+	private static final int HANDLE = 1;
+
+	private static final String[] STAGE_NAMES = { "decode", "handle" };
+
+	/**
+	 * Longest park of an idle worker.
+	 */
+	private static final long MAX_PARK_NANOS = 1000000L;
+
+	private final IsoFraming framing;
+
+	private final IsoSchemaRegistry registry;
+
+	private final IsoHandler handler;
+
+	private final IsoSequence cursor = new IsoSequence(0);
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private Charset charset = Charset.defaultCharset();
+
+	private int capacity = 4096;
+
+	private int batch = 64;
+
+	private int[] workers = { 1, Runtime.getRuntime().availableProcessors() };
+
+	private Slot[] slots;
+
+	private int mask;
+
+	private int shift;
+
+	/**
+	 * Round (sequence >>> shift) published to each slot.
+	 */
+	private AtomicIntegerArray published;
+
+	/**
+	 * Progress by stage and worker: last sequence done, for the handle
+	 * stage the last sequence taken out of the ring.
+	 */
+	private IsoSequence[][] progress;
+
+	private Thread[] threads;
+
+	/**
+	 * Workers by stage and index.
+	 */
+	private Worker[][] stages;
+
+	private volatile boolean running;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a pipeline.
+	 *
+	 * @param framing
+	 *            {@link IsoFraming} of the link
+	 * @param registry
+	 *            compiled schemas
+	 * @param handler
+	 *            {@link IsoHandler}, called by the handler threads
+	 */
+	public IsoPipeline(IsoFraming framing, IsoSchemaRegistry registry,
+			IsoHandler handler) {
+		if (framing == null || registry == null || handler == null) {
+			throw new IllegalArgumentException(
+					"Framing, registry and handler must not be null");
+		}
+		this.framing = framing;
+		this.registry = registry;
+		this.handler = handler;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Allocate the ring and start the stage threads.
+	 */
+	public synchronized void start() {
+		if (running || threads != null) {
+			throw new IllegalStateException("Pipeline already started");
+		}
+		slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Slot();
+		}
+		mask = capacity - 1;
+		shift = Integer.numberOfTrailingZeros(capacity);
+		published = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+		progress = new IsoSequence[2][];
+		int count = 0;
+		for (int stage = 0; stage < 2; stage++) {
+			progress[stage] = new IsoSequence[workers[stage]];
+			for (int i = 0; i < workers[stage]; i++) {
+				progress[stage][i] = new IsoSequence(-1);
+			}
+			count += workers[stage];
+		}
+		threads = new Thread[count];
+		stages = new Worker[2][];
+		int t = 0;
+		for (int stage = 0; stage < 2; stage++) {
+			stages[stage] = new Worker[workers[stage]];
+			for (int i = 0; i < workers[stage]; i++) {
+				Worker worker = new Worker(stage, i);
+				Thread thread = new Thread(worker, "upos-"
+						+ STAGE_NAMES[stage] + "-" + i);
+				thread.setDaemon(true);
+				worker.thread = thread;
+				stages[stage][i] = worker;
+				threads[t++] = thread;
+			}
+		}
+		running = true;
+		for (Thread thread : threads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop the stage threads, frames still in the ring are dropped.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		for (Thread t : threads) {
+			LockSupport.unpark(t);
+		}
+		try {
+			for (Thread t : threads) {
+				t.join(1000);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Publish a frame, drop it if the ring is full.
+	 */
+	@Override
+	public void frame(IsoSession session, byte[] frame) {
+		if (!running) {
+			log.warn("Pipeline stopped, drop frame from {}",
+					session.getRemoteAddress());
+			return;
+		}
+		IsoSequence[] taken = progress[HANDLE];
+		long seq;
+		do {
+			seq = cursor.get();
+			long wrap = seq - capacity;
+			if (wrap >= 0 && taken[(int) (wrap % taken.length)].get() < wrap) {
+				rejected.incrementAndGet();
+				log.warn("Pipeline full, drop frame from {}",
+						session.getRemoteAddress());
+				return;
+			}
+		} while (!cursor.compareAndSet(seq, seq + 1));
+		int index = (int) (seq & mask);
+		Slot slot = slots[index];
+		slot.session = session;
+		slot.frame = frame;
+		published.lazySet(index, (int) (seq >>> shift));
+		wake(DECODE, seq);
+	}
+
+	/**
+	 * Unpark the worker of stage that owns seq if it sleeps.
+	 */
+	private void wake(int stage, long seq) {
+		Worker[] owners = stages[stage];
+		Worker owner = owners[(int) (seq % owners.length)];
+		if (owner.sleeping) {
+			LockSupport.unpark(owner.thread);
+		}
+	}
+
+	/**
+	 * Has the stage before this one finished seq?
+	 */
+	private boolean ready(int stage, long seq) {
+		if (stage == DECODE) {
+			return published.get((int) (seq & mask)) == (int) (seq >>> shift);
+		}
+		IsoSequence[] prev = progress[stage - 1];
+		return prev[(int) (seq % prev.length)].get() >= seq;
+	}
+
+	private void decode(Slot slot) {
+		byte[] frame = slot.frame;
+		slot.frame = null;
+		try {
+			slot.request = framing.decode(frame, registry, charset);
+			if (slot.request == null) {
+				log.warn("Drop frame of unknown type [{}] from {}",
+						new String(frame, framing.typeOffset(), 4, charset),
+						slot.session.getRemoteAddress());
+				return;
+			}
+			slot.tpdu = framing.readTpdu(frame, 0);
+		} catch (IllegalArgumentException e) {
+			log.warn("Drop frame from {}: {}", slot.session.getRemoteAddress(),
+					e.getMessage());
+		} catch (Throwable e) {
+			slot.request = null;
+			log.error("Decode frame from " + slot.session.getRemoteAddress()
+					+ " failed", e);
+		}
+	}
+
+	private void handle(IsoSession session, ReadIsoMessage request,
+			byte[] tpdu) {
+		if (request == null || !session.isOpen()) {
+			return;
+		}
+		WriteIsoMessage response = null;
+		IsoSession.setRequestTpdu(tpdu);
+		try {
+			response = handler.handle(session, request);
+		} catch (Throwable e) {
+			// an Error too: the worker would die and stall its sequences
+			log.error("Handle [" + request.getType() + "] from "
+					+ session.getRemoteAddress() + " failed", e);
+		} finally {
+			IsoSession.setRequestTpdu(null);
+		}
+		try {
+			if (response != null && session.isOpen()) {
+				session.sendFrame(framing.encode(response, tpdu,
+						session.getPool()));
+			}
+		} catch (Throwable e) {
+			log.error("Encode [" + response.getType() + "] to "
+					+ session.getRemoteAddress() + " failed", e);
+		}
+	}
+
+	/**
+	 * Set slots of the ring, rounded up to a power of two, default 4096.
+	 *
+	 * @param capacity
+	 *            slots
+	 */
+	public void setCapacity(int capacity) {
+		checkNotStarted();
+		if (capacity < 1 || capacity > 1 << 24) {
+			throw new IllegalArgumentException("capacity out of 1.."
+					+ (1 << 24));
+		}
+		int c = Integer.highestOneBit(capacity);
+		this.capacity = c < capacity ? c << 1 : c;
+	}
+
+	/**
+	 * Set threads of each stage, default 1 decode, available processors
+	 * handle.
+	 *
+	 * @param decoders
+	 *            decode threads
+	 * @param handlers
+	 *            handler threads, they encode the responses too
+	 */
+	public void setWorkers(int decoders, int handlers) {
+		checkNotStarted();
+		if (decoders < 1 || handlers < 1) {
+			throw new IllegalArgumentException("Each stage needs a thread");
+		}
+		this.workers = new int[] { decoders, handlers };
+	}
+
+	/**
+	 * Set max slots a worker takes per pass over the ring, default 64.
+	 *
+	 * @param batch
+	 *            slots
+	 */
+	public void setBatch(int batch) {
+		checkNotStarted();
+		if (batch < 1) {
+			throw new IllegalArgumentException("batch must be > 0");
+		}
+		this.batch = batch;
+	}
+
+	/**
+	 * Set charset of the messages, default the platform charset.
+	 *
+	 * @param charset
+	 *            charset
+	 */
+	public void setCharset(Charset charset) {
+		checkNotStarted();
+		if (charset == null) {
+			throw new IllegalArgumentException("Charset must not be null");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * Return slots of the ring.
+	 *
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Frames published so far.
+	 *
+	 * @return count
+	 */
+	public long getPublished() {
+		return cursor.get();
+	}
+
+	/**
+	 * Frames dropped because the ring was full.
+	 *
+	 * @return count
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private void checkNotStarted() {
+		if (threads != null) {
+			throw new IllegalStateException("Pipeline already started");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IsoPipeline[capacity=" + capacity + ", workers="
+				+ workers[DECODE] + "/" + workers[HANDLE] + "]";
+	}
+
+	/**
+	 * A ring slot, each field is written by one stage and read by the next.
+	 */
+	private static final class Slot {
+
+		private IsoSession session;
+
+		private byte[] frame;
+
+		private byte[] tpdu;
+
+		private ReadIsoMessage request;
+	}
+
+	/**
+	 * A stage thread.
+	 */
+	private final class Worker implements Runnable {
+
+		private final int stage;
+
+		private final int index;
+
+		private Thread thread;
+
+		/**
+		 * Parked, or about to, waiting for the stage before.
+		 */
+		private volatile boolean sleeping;
+
+		Worker(int stage, int index) {
+			this.stage = stage;
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			int n = workers[stage];
+			IsoSequence done = progress[stage][index];
+			long next = index;
+			int spins = 0;
+			while (running) {
+				if (!ready(stage, next)) {
+					spins = idle(spins, next);
+					continue;
+				}
+				spins = 0;
+				long hi = next;
+				for (int count = 1; count < batch && ready(stage, hi + n); count++) {
+					hi += n;
+				}
+				for (long seq = next; seq <= hi; seq += n) {
+					Slot slot = slots[(int) (seq & mask)];
+					if (stage == DECODE) {
+						decode(slot);
+						done.lazySet(seq);
+						wake(HANDLE, seq);
+						continue;
+					}
+					// free the slot before the handler runs
+					IsoSession session = slot.session;
+					ReadIsoMessage request = slot.request;
+					byte[] tpdu = slot.tpdu;
+					slot.session = null;
+					slot.request = null;
+					slot.tpdu = null;
+					done.lazySet(seq);
+					handle(session, request, tpdu);
+				}
+				next = hi + n;
+			}
+		}
+
+		/**
+		 * Spin, then yield, then park until woken.
+		 */
+		private int idle(int spins, long next) {
+			if (spins < 100) {
+				return spins + 1;
+			}
+			if (spins < 200) {
+				Thread.yield();
+				return spins + 1;
+			}
+			sleeping = true;
+			if (running && !ready(stage, next)) {
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+			}
+			sleeping = false;
+			return spins;
+		}
+	}
+
+}
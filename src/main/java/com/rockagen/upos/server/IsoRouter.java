@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoCodec;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.util.IsoFormatter;
+
+/**
+ * Route frames by message type, processing code (field 3) and POS condition
+ * code (field 25)
+ * <p>
+ * Routes are registered up front and compiled into a table: a slot per
+ * message type, under it a decimal trie of processing code prefixes, each
+ * node with a route for any field 25 and routes by field 25 value. The
+ * longest matching prefix wins, at a node a route of the frame's field 25
+ * wins over a route for any.
+ * </p>
+ * <p>
+ * The keys are read from the undecoded frame: the type digits, the bitmap,
+ * then fields 3 and 25 by the offsets of the schema's {@link IsoCodec}
+ * (leading fixed fields straight from the bitmap). No message is decoded and
+ * no String is built to pick a target, the target decodes if it needs to.
+ * Only schemas read by the interpreted path are decoded to route.
+ * </p>
+ *
+ * <pre>
+ * IsoRouter router = new IsoRouter(framing, registry);
+ * router.route(&quot;0200&quot;, &quot;00&quot;, null, purchase);
+ * router.route(&quot;0200&quot;, &quot;00&quot;, &quot;08&quot;, motoPurchase);
+ * router.route(&quot;0200&quot;, &quot;31&quot;, null, balance);
+ * router.route(&quot;0800&quot;, null, null, network);
+ * router.setFallback(unrouted);
+ * server.setFrameHandler(router);
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoRouter implements IsoFrameHandler {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory.getLogger(IsoRouter.class);
+
+	private static final int PC_DIGITS = 6;
+
+	private static final int[] POW10 = { 100000, 10000, 1000, 100, 10, 1 };
+
+	private final IsoFraming framing;
+
+	private final IsoSchemaRegistry registry;
+
+	private final List<Route> routes = new ArrayList<Route>();
+
+	private Charset charset = Charset.defaultCharset();
+
+	private IsoFrameHandler fallback;
+
+	/**
+	 * Trie roots by message type, null until compiled.
+	 */
+	private volatile Node[] table;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a router.
+	 *
+	 * @param framing
+	 *            {@link IsoFraming} of the link
+	 * @param registry
+	 *            compiled schemas
+	 */
+	public IsoRouter(IsoFraming framing, IsoSchemaRegistry registry) {
+		if (framing == null || registry == null) {
+			throw new IllegalArgumentException(
+					"Framing and registry must not be null");
+		}
+		this.framing = framing;
+		this.registry = registry;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Route frames to a frame handler.
+	 *
+	 * @param type
+	 *            message type eg: 0200
+	 * @param processingCode
+	 *            up to 6 leading digits of field 3, null or empty for any
+	 * @param posCondition
+	 *            2 digits of field 25, null for any
+	 * @param target
+	 *            {@link IsoFrameHandler}
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if a key is malformed or already routed
+	 */
+	public synchronized IsoRouter route(String type, String processingCode,
+			String posCondition, IsoFrameHandler target) {
+		if (target == null) {
+			throw new IllegalArgumentException("Target must not be null");
+		}
+		add(new Route(type, processingCode, posCondition, target, null));
+		return this;
+	}
+
+	/**
+	 * Route frames to a handler, called on the routing thread.
+	 *
+	 * @param type
+	 *            message type eg: 0200
+	 * @param processingCode
+	 *            up to 6 leading digits of field 3, null or empty for any
+	 * @param posCondition
+	 *            2 digits of field 25, null for any
+	 * @param handler
+	 *            {@link IsoHandler}
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if a key is malformed or already routed
+	 */
+	public synchronized IsoRouter route(String type, String processingCode,
+			String posCondition, IsoHandler handler) {
+		if (handler == null) {
+			throw new IllegalArgumentException("Handler must not be null");
+		}
+		add(new Route(type, processingCode, posCondition, null, handler));
+		return this;
+	}
+
+	private void add(Route route) {
+		checkNotCompiled();
+		for (Route r : routes) {
+			if (r.mti == route.mti && r.pc.equals(route.pc)
+					&& r.f25 == route.f25) {
+				throw new IllegalArgumentException("Already routed: " + route);
+			}
+		}
+		routes.add(route);
+	}
+
+	/**
+	 * Build the table, no route can be added afterwards. Called by the first
+	 * frame if not before.
+	 */
+	public synchronized void compile() {
+		if (table != null) {
+			return;
+		}
+		Node[] t = new Node[10000];
+		for (Route r : routes) {
+			IsoFrameHandler target = r.target != null ? r.target
+					: new IsoDispatcher(framing, registry, charset, r.handler);
+			Node node = t[r.mti];
+			if (node == null) {
+				node = new Node();
+				t[r.mti] = node;
+			}
+			for (int i = 0; i < r.pc.length(); i++) {
+				if (node.children == null) {
+					node.children = new Node[10];
+				}
+				int d = r.pc.charAt(i) - '0';
+				if (node.children[d] == null) {
+					node.children[d] = new Node();
+				}
+				node = node.children[d];
+			}
+			if (r.f25 < 0) {
+				node.any = target;
+			} else {
+				if (node.byCondition == null) {
+					node.byCondition = new IsoFrameHandler[100];
+				}
+				node.byCondition[r.f25] = target;
+			}
+		}
+		table = t;
+		log.info("Compiled {} routes", routes.size());
+	}
+
+	@Override
+	public void frame(IsoSession session, byte[] frame) {
+		Node[] t = table;
+		if (t == null) {
+			compile();
+			t = table;
+		}
+		IsoFrameHandler target = select(t, frame);
+		if (target != null) {
+			target.frame(session, frame);
+		} else if (fallback != null) {
+			fallback.frame(session, frame);
+		} else {
+			log.warn("No route of frame from {}", session.getRemoteAddress());
+		}
+	}
+
+	/**
+	 * Pick the target of a frame.
+	 *
+	 * @param frame
+	 *            frame bytes, length prefix included
+	 * @return {@link IsoFrameHandler}, null if no route matches
+	 */
+	public IsoFrameHandler select(byte[] frame) {
+		Node[] t = table;
+		if (t == null) {
+			compile();
+			t = table;
+		}
+		return select(t, frame);
+	}
+
+	private IsoFrameHandler select(Node[] t, byte[] frame) {
+		int typeOff = framing.typeOffset();
+		// type and a primary bitmap at least
+		if (frame.length < typeOff + 12) {
+			return null;
+		}
+		int mti = (int) IsoFormatter.parseDigits(frame, typeOff, 4);
+		if (mti < 0 || t[mti] == null) {
+			return null;
+		}
+		Node node = t[mti];
+		if (node.children == null && node.byCondition == null) {
+			return node.any;
+		}
+		IsoFrameFields fields = IsoFrameFields.get();
+		try {
+			if (!fields.bind(frame, framing, registry, charset)) {
+				return node.any;
+			}
+			IsoFrameHandler best = node.match(fields);
+			int pc = fields.numeric(3, PC_DIGITS);
+			if (pc < 0) {
+				return best;
+			}
+			for (int i = 0; i < PC_DIGITS && node.children != null; i++) {
+				node = node.children[pc / POW10[i] % 10];
+				if (node == null) {
+					break;
+				}
+				IsoFrameHandler h = node.match(fields);
+				if (h != null) {
+					best = h;
+				}
+			}
+			return best;
+		} finally {
+			fields.clear();
+		}
+	}
+
+	/**
+	 * Set the target of frames no route matches, by default they are logged
+	 * and dropped.
+	 *
+	 * @param fallback
+	 *            {@link IsoFrameHandler}
+	 */
+	public void setFallback(IsoFrameHandler fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Set charset of the handler routes and of interpreted schemas, default
+	 * the platform charset.
+	 *
+	 * @param charset
+	 *            charset
+	 */
+	public synchronized void setCharset(Charset charset) {
+		checkNotCompiled();
+		if (charset == null) {
+			throw new IllegalArgumentException("Charset must not be null");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * Count of routes.
+	 *
+	 * @return count
+	 */
+	public synchronized int size() {
+		return routes.size();
+	}
+
+	private void checkNotCompiled() {
+		if (table != null) {
+			throw new IllegalStateException("Router already compiled");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IsoRouter[" + size() + " routes]";
+	}
+
+	/**
+	 * A registered route.
+	 */
+	private static final class Route {
+
+		private final int mti;
+		private final String pc;
+		private final int f25;
+		private final IsoFrameHandler target;
+		private final IsoHandler handler;
+
+		Route(String type, String pc, String f25, IsoFrameHandler target,
+				IsoHandler handler) {
+			if (type == null || type.length() != 4 || !digits(type)) {
+				throw new IllegalArgumentException("Type must be 4 digits: "
+						+ type);
+			}
+			if (pc == null) {
+				pc = "";
+			}
+			if (pc.length() > PC_DIGITS || !digits(pc)) {
+				throw new IllegalArgumentException(
+						"Processing code must be up to 6 digits: " + pc);
+			}
+			if (f25 != null && (f25.length() != 2 || !digits(f25))) {
+				throw new IllegalArgumentException(
+						"POS condition code must be 2 digits: " + f25);
+			}
+			this.mti = Integer.parseInt(type);
+			this.pc = pc;
+			this.f25 = f25 == null ? -1 : Integer.parseInt(f25);
+			this.target = target;
+			this.handler = handler;
+		}
+
+		private static boolean digits(String s) {
+			for (int i = 0; i < s.length(); i++) {
+				if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return mti + "/" + pc + "/" + (f25 < 0 ? "*" : f25);
+		}
+	}
+
+	/**
+	 * Trie node of processing code digits.
+	 */
+	private static final class Node {
+
+		private Node[] children;
+		private IsoFrameHandler any;
+		private IsoFrameHandler[] byCondition;
+
+		IsoFrameHandler match(IsoFrameFields fields) {
+			if (byCondition != null) {
+				int f25 = fields.numeric(25, 2);
+				if (f25 >= 0 && byCondition[f25] != null) {
+					return byCondition[f25];
+				}
+			}
+			return any;
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Fields before the value.
+ */
+abstract class IsoSequenceLhs {
+
+	long p1, p2, p3, p4, p5, p6, p7;
+}
+
+/**
+ * The value.
+ */
+abstract class IsoSequenceValue extends IsoSequenceLhs {
+
+	static final AtomicLongFieldUpdater<IsoSequenceValue> VALUE = AtomicLongFieldUpdater
+			.newUpdater(IsoSequenceValue.class, "value");
+
+	volatile long value;
+}
+
+/**
+ * Fields after the value.
+ */
+abstract class IsoSequenceRhs extends IsoSequenceValue {
+
+	long p9, p10, p11, p12, p13, p14, p15;
+}
+
+/**
+ * Progress counter of a pipeline worker or producer
+ * <p>
+ * The value is padded on both sides by a class hierarchy (the JVM lays the
+ * fields of a superclass out first), so that counters of different threads
+ * do not share a cache line with each other or with their neighbours.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoSequence extends IsoSequenceRhs {
+
+	// ~ Constructors ==================================================
+
+	IsoSequence(long initial) {
+		value = initial;
+	}
+
+	// ~ Methods ==================================================
+
+	long get() {
+		return value;
+	}
+
+	/**
+	 * Ordered write, seen by others after the writes before it.
+	 */
+	void lazySet(long v) {
+		VALUE.lazySet(this, v);
+	}
+
+	boolean compareAndSet(long expect, long update) {
+		return VALUE.compareAndSet(this, expect, update);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(value);
+	}
+
+}
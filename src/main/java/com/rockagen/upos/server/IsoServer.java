@@ -0,0 +1,507 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+import com.rockagen.upos.message.IsoBufferPool;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.store.IsoJournal;
+
+/**
+ * Multi-reactor ISO8583 server
+ * <p>
+ * An acceptor thread hands accepted connections round-robin to N event
+ * loops (default: available processors). Each loop is one selector thread
+ * that reads its connections, splits the frames by the {@link IsoFraming},
+ * decodes them with the compiled {@link IsoSchemaRegistry} and calls the
+ * {@link IsoHandler}; the returned response is encoded into a pooled buffer
+ * and written back by the same loop. No lock is taken per message.
+ * </p>
+ * <p>
+ * A server created without a registry follows the default iso8583.xml: a
+ * reload by {@link com.rockagen.upos.define.IsoPredefineWatcher} or
+ * {@link IsoPreDefineParser#replaceDefault(IsoPredefine)} applies from the
+ * next frame. A registry given, eg: a set of
+ * {@link com.rockagen.upos.define.IsoSchemaSets}, is pinned for the life of
+ * the server; a replaced set needs a new server.
+ * </p>
+ *
+ * <pre>
+ * IsoServer server = new IsoServer(new InetSocketAddress(5000), new IsoFraming(
+ * 		IsoLengthPrefix.BINARY2, true), registry, handler);
+ * server.setLoops(4);
+ * server.start();
+ * ...
+ * server.stop();
+ * </pre>
+ * <p>
+ * Configure before {@link #start()}, a server is started once.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoServer {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory.getLogger(IsoServer.class);
+
+	private final InetSocketAddress address;
+
+	private final IsoFraming framing;
+
+	/**
+	 * Null to follow the default.
+	 */
+	private final IsoSchemaRegistry registry;
+
+	private final IsoHandler handler;
+
+	private Charset charset = Charset.defaultCharset();
+
+	private int loops = Runtime.getRuntime().availableProcessors();
+
+	private int backlog = 1024;
+
+	private int maxFrameLength = 8192;
+
+	private int maxWriteQueue = 1 << 20;
+
+	private IsoBufferPool bufferPool = new IsoBufferPool(2048, 4096);
+
+	private IsoFrameHandler frameHandler;
+
+	private IsoJournal journal;
+
+	private IsoEventLoop[] eventLoops;
+
+	private ServerSocketChannel serverChannel;
+
+	private Thread acceptor;
+
+	private volatile boolean running;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a server.
+	 *
+	 * @param address
+	 *            listen address, port 0 for any free port
+	 * @param framing
+	 *            {@link IsoFraming} of the link, it must have a length prefix
+	 * @param registry
+	 *            compiled schemas, pinned; null to follow the default
+	 *            iso8583.xml
+	 * @param handler
+	 *            {@link IsoHandler}, null if a frame handler is set
+	 */
+	public IsoServer(InetSocketAddress address, IsoFraming framing,
+			IsoSchemaRegistry registry, IsoHandler handler) {
+		if (address == null || framing == null) {
+			throw new IllegalArgumentException(
+					"Address and framing must not be null");
+		}
+		if (framing.getPrefix() == IsoLengthPrefix.NONE) {
+			throw new IllegalArgumentException(
+					"A stream needs a length prefix");
+		}
+		if (registry == null && IsoPreDefineParser.createDefault() == null) {
+			throw new IllegalArgumentException("No default iso8583.xml");
+		}
+		this.address = address;
+		this.framing = framing;
+		this.registry = registry;
+		this.handler = handler;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Bind and start the acceptor and the event loops.
+	 *
+	 * @throws IOException
+	 *             if bind failed
+	 */
+	public synchronized void start() throws IOException {
+		if (serverChannel != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		if (frameHandler == null) {
+			if (handler == null) {
+				throw new IllegalStateException(
+						"Neither a handler nor a frame handler");
+			}
+			frameHandler = new IsoDispatcher(framing, registry, charset,
+					handler);
+		}
+		boolean bound = false;
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(address, backlog);
+			eventLoops = new IsoEventLoop[loops];
+			for (int i = 0; i < loops; i++) {
+				eventLoops[i] = new IsoEventLoop(this, i);
+			}
+			bound = true;
+		} finally {
+			if (!bound) {
+				release();
+			}
+		}
+		running = true;
+		for (IsoEventLoop loop : eventLoops) {
+			loop.start();
+		}
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "upos-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("IsoServer listening on {} with {} loops",
+				getLocalAddress(), loops);
+	}
+
+	/**
+	 * Undo a failed start, so it can be retried.
+	 */
+	private void release() {
+		if (eventLoops != null) {
+			for (IsoEventLoop loop : eventLoops) {
+				if (loop != null) {
+					loop.dispose();
+				}
+			}
+			eventLoops = null;
+		}
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				log.debug("Close listener failed: {}", e.getMessage());
+			}
+			serverChannel = null;
+		}
+	}
+
+	private void accept() {
+		int next = 0;
+		while (running) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				eventLoops[next].register(channel);
+				next = next + 1 == eventLoops.length ? 0 : next + 1;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				// eg: too many open files, do not spin
+				log.error("Accept failed: {}", e.getMessage());
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the listener and every connection.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			log.debug("Close listener failed: {}", e.getMessage());
+		}
+		for (IsoEventLoop loop : eventLoops) {
+			loop.stop();
+		}
+		try {
+			acceptor.join(1000);
+			for (IsoEventLoop loop : eventLoops) {
+				loop.join(1000);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("IsoServer on {} stopped", address);
+	}
+
+	void opened(IsoNioSession session) {
+		log.debug("Connected {}", session.getRemoteAddress());
+	}
+
+	void closed(IsoNioSession session) {
+		log.debug("Disconnected {}", session.getRemoteAddress());
+	}
+
+	/**
+	 * Bound address, null if not started.
+	 *
+	 * @return address
+	 */
+	public InetSocketAddress getLocalAddress() {
+		ServerSocketChannel ch = serverChannel;
+		return ch == null ? null : (InetSocketAddress) ch.socket()
+				.getLocalSocketAddress();
+	}
+
+	/**
+	 * Open connections.
+	 *
+	 * @return count
+	 */
+	public int getConnections() {
+		IsoEventLoop[] els = eventLoops;
+		int n = 0;
+		if (els != null) {
+			for (IsoEventLoop loop : els) {
+				n += loop.getSessions();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Is the server running?
+	 *
+	 * @return true if running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Return {@link IsoFraming}.
+	 *
+	 * @return {@link IsoFraming}
+	 */
+	public IsoFraming getFraming() {
+		return framing;
+	}
+
+	/**
+	 * Return the compiled schemas.
+	 *
+	 * @return {@link IsoSchemaRegistry} given, else the current default
+	 */
+	public IsoSchemaRegistry getRegistry() {
+		return registry != null ? registry : IsoPreDefineParser
+				.createDefault().compile();
+	}
+
+	/**
+	 * Return charset of the messages.
+	 *
+	 * @return charset
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Set charset of the messages, default the platform charset.
+	 *
+	 * @param charset
+	 *            charset
+	 */
+	public void setCharset(Charset charset) {
+		checkNotStarted();
+		if (charset == null) {
+			throw new IllegalArgumentException("Charset must not be null");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * Set count of event loops, default available processors.
+	 *
+	 * @param loops
+	 *            count
+	 */
+	public void setLoops(int loops) {
+		checkNotStarted();
+		if (loops < 1) {
+			throw new IllegalArgumentException("loops must be > 0");
+		}
+		this.loops = loops;
+	}
+
+	/**
+	 * Set accept backlog, default 1024.
+	 *
+	 * @param backlog
+	 *            backlog
+	 */
+	public void setBacklog(int backlog) {
+		checkNotStarted();
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Return max frame length.
+	 *
+	 * @return max frame length, length prefix included
+	 */
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * Set max frame length, a connection sending a longer frame is closed,
+	 * default 8192.
+	 *
+	 * @param maxFrameLength
+	 *            max frame length, length prefix included
+	 */
+	public void setMaxFrameLength(int maxFrameLength) {
+		checkNotStarted();
+		if (maxFrameLength < 1) {
+			throw new IllegalArgumentException("maxFrameLength must be > 0");
+		}
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Return max bytes queued for writing to a connection.
+	 *
+	 * @return bytes
+	 */
+	public int getMaxWriteQueue() {
+		return maxWriteQueue;
+	}
+
+	/**
+	 * Set max bytes queued for writing to a connection, default 1MB. Above
+	 * it the connection is no longer read until half of them are written,
+	 * so a peer sending without reading can not fill the memory.
+	 *
+	 * @param maxWriteQueue
+	 *            bytes
+	 */
+	public void setMaxWriteQueue(int maxWriteQueue) {
+		checkNotStarted();
+		if (maxWriteQueue < 1) {
+			throw new IllegalArgumentException("maxWriteQueue must be > 0");
+		}
+		this.maxWriteQueue = maxWriteQueue;
+	}
+
+	/**
+	 * Return pool of read and write buffers.
+	 *
+	 * @return {@link IsoBufferPool}
+	 */
+	public IsoBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set pool of read and write buffers, default 4096 buffers of 2048
+	 * bytes.
+	 *
+	 * @param bufferPool
+	 *            {@link IsoBufferPool}
+	 */
+	public void setBufferPool(IsoBufferPool bufferPool) {
+		checkNotStarted();
+		if (bufferPool == null) {
+			throw new IllegalArgumentException("Pool must not be null");
+		}
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Return the receiver of the frames.
+	 *
+	 * @return {@link IsoFrameHandler}, null before {@link #start()} unless
+	 *         set
+	 */
+	public IsoFrameHandler getFrameHandler() {
+		return frameHandler;
+	}
+
+	/**
+	 * Set the receiver of the frames, default decode and call the
+	 * {@link IsoHandler} on the thread that read the frame.
+	 *
+	 * @param frameHandler
+	 *            {@link IsoFrameHandler}
+	 */
+	public void setFrameHandler(IsoFrameHandler frameHandler) {
+		checkNotStarted();
+		if (frameHandler == null) {
+			throw new IllegalArgumentException(
+					"Frame handler must not be null");
+		}
+		this.frameHandler = frameHandler;
+	}
+
+	/**
+	 * Return the journal of the frames.
+	 *
+	 * @return {@link IsoJournal}, null if not journaled
+	 */
+	public IsoJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Journal every frame received and sent.
+	 *
+	 * @param journal
+	 *            open {@link IsoJournal}, null for none
+	 */
+	public void setJournal(IsoJournal journal) {
+		checkNotStarted();
+		this.journal = journal;
+	}
+
+	private void checkNotStarted() {
+		if (serverChannel != null) {
+			throw new IllegalStateException("Server already started");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IsoServer[" + address + ", " + framing + "]";
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.server;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.message.IsoBufferPool;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.store.IsoJournal;
+
+/**
+ * A terminal connection of a server
+ * <p>
+ * {@link #send(WriteIsoMessage, byte[])} can be called by any thread, the
+ * frame is encoded by the caller into a pooled buffer.
+ * </p>
+ * <p>
+ * If the server has an {@link IsoJournal}, every frame received and sent is
+ * appended to it under the id of the connection.
+ * </p>
+ *
+ * @author RA
+ * @see IsoServer
+ * @see IsoBlockingServer
+ * @since JDK1.6
+ */
+public abstract class IsoSession {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory.getLogger(IsoSession.class);
+
+	/**
+	 * Connection ids of the servers without a journal.
+	 */
+	private static final AtomicLong IDS = new AtomicLong();
+
+	/**
+	 * TPDU of the request handled by the current thread.
+	 */
+	private static final ThreadLocal<byte[]> TPDU = new ThreadLocal<byte[]>();
+
+	private final SocketAddress remoteAddress;
+
+	private final IsoFraming framing;
+
+	private final IsoBufferPool pool;
+
+	private final IsoJournal journal;
+
+	private final long connectionId;
+
+	private volatile Object attachment;
+
+	// ~ Constructors ==================================================
+
+	IsoSession(SocketAddress remoteAddress, IsoFraming framing,
+			IsoBufferPool pool, IsoJournal journal) {
+		this.remoteAddress = remoteAddress;
+		this.framing = framing;
+		this.pool = pool;
+		this.journal = journal;
+		this.connectionId = journal != null ? journal.nextConnectionId()
+				: IDS.incrementAndGet();
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Send a message.
+	 *
+	 * @param msg
+	 *            {@link WriteIsoMessage}
+	 * @param requestTpdu
+	 *            TPDU of the request msg answers, null to use the default
+	 *            TPDU of the framing
+	 * @return false if the connection is closed
+	 */
+	public boolean send(WriteIsoMessage msg, byte[] requestTpdu) {
+		if (!isOpen()) {
+			return false;
+		}
+		return sendFrame(framing.encode(msg, requestTpdu, pool));
+	}
+
+	/**
+	 * Send an encoded frame (length prefix included), it is given back to
+	 * the pool once written.
+	 *
+	 * @param frame
+	 *            flipped frame
+	 * @return false if the connection is closed
+	 */
+	public abstract boolean sendFrame(ByteBuffer frame);
+
+	/**
+	 * Journal a received frame.
+	 */
+	void received(byte[] frame) {
+		if (journal != null) {
+			try {
+				journal.append(IsoJournal.Direction.IN, connectionId, frame,
+						0, frame.length);
+			} catch (RuntimeException e) {
+				log.error("Journal frame of " + remoteAddress + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Journal a frame about to be sent.
+	 */
+	void sending(ByteBuffer frame) {
+		if (journal != null) {
+			try {
+				journal.append(IsoJournal.Direction.OUT, connectionId, frame);
+			} catch (RuntimeException e) {
+				log.error("Journal frame to " + remoteAddress + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * TPDU of the request being handled, valid only in
+	 * {@link IsoHandler#handle(IsoSession, ReadIsoMessage)}.
+	 *
+	 * @return TPDU, null if frames carry no TPDU
+	 */
+	public byte[] getRequestTpdu() {
+		return TPDU.get();
+	}
+
+	/**
+	 * Set the TPDU of the request the current thread handles.
+	 *
+	 * @param tpdu
+	 *            TPDU, null when done
+	 */
+	static void setRequestTpdu(byte[] tpdu) {
+		if (tpdu == null) {
+			TPDU.remove();
+		} else {
+			TPDU.set(tpdu);
+		}
+	}
+
+	/**
+	 * Is the connection open?
+	 *
+	 * @return true if open
+	 */
+	public abstract boolean isOpen();
+
+	/**
+	 * Close the connection, queued frames are dropped.
+	 */
+	public abstract void close();
+
+	/**
+	 * Id of the connection, the one of its journal records.
+	 *
+	 * @return id
+	 */
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	/**
+	 * Remote address.
+	 *
+	 * @return address
+	 */
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Get the object attached by the handler.
+	 *
+	 * @return attachment, null if none
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	/**
+	 * Attach an object, eg: the terminal state.
+	 *
+	 * @param attachment
+	 *            attachment
+	 */
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * Return {@link IsoFraming} of the link.
+	 *
+	 * @return {@link IsoFraming}
+	 */
+	public IsoFraming getFraming() {
+		return framing;
+	}
+
+	IsoBufferPool getPool() {
+		return pool;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + remoteAddress + "]";
+	}
+
+}
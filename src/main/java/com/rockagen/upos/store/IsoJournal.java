@@ -0,0 +1,1085 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+
+/**
+ * Append-only journal of the raw frames of the links
+ * <p>
+ * Every frame received or sent is appended with its direction, a timestamp
+ * and the id of its connection to memory-mapped segment files. Appending
+ * takes no lock: a writer claims the bytes of its record by one atomic add
+ * on the segment, copies the frame and commits by setting the length of
+ * the record last. The writer whose claim crosses the end of the segment
+ * seals it and maps the next one, the others wait for it.
+ * </p>
+ * <p>
+ * A record is
+ * </p>
+ *
+ * <pre>
+ * length(4) crc32(4) timestamp(8) connection(8) direction(1) pad(3) frame(length)
+ * </pre>
+ * <p>
+ * The CRC covers the frame, the timestamp, the connection and the
+ * direction. Writes to the mapping are plain, another thread may see the
+ * length before the rest: a record is read or indexed only once its CRC
+ * matches.
+ * </p>
+ * <p>
+ * A flusher thread indexes the committed records and forces the segments
+ * every sync interval, one fsync for all the frames appended meanwhile, so
+ * appending costs a copy and never waits for the disk. The index maps field
+ * 37 (RRN) and fields 41 and 11 (terminal and STAN) to the records, in an
+ * index file next to each segment and in memory for the recent segments
+ * only, see {@link #setIndexedSegments(int)}: the index of an older segment
+ * is read from its file on lookup. Lookups first index what the flusher has
+ * not indexed yet, then check the records found.
+ * </p>
+ *
+ * <pre>
+ * IsoJournal journal = new IsoJournal(new File(&quot;/var/upos/journal&quot;), framing,
+ * 		registry, charset);
+ * journal.open();
+ * server.setJournal(journal);
+ * // a dispute
+ * List&lt;IsoJournal.Record&gt; records = journal.findByRrn(&quot;232351126902&quot;);
+ * </pre>
+ * <p>
+ * Records are never removed, archive the segments of past days as a whole.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoJournal {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory.getLogger(IsoJournal.class);
+
+	/**
+	 * Record header length.
+	 */
+	static final int HEADER = 28;
+
+	/**
+	 * Length of a sealed segment end.
+	 */
+	private static final int SEALED = Integer.MIN_VALUE;
+
+	/**
+	 * Direction of a record a crash left incomplete.
+	 */
+	private static final byte TORN = 'X';
+
+	private static final String SUFFIX = ".jnl";
+
+	private static final String INDEX_SUFFIX = ".jix";
+
+	/**
+	 * Index file entry: id, RRN hash, terminal and STAN hash.
+	 */
+	private static final int ENTRY = 24;
+
+	private static final long RRN = 0xcbf29ce484222325L;
+
+	private static final long TERMINAL = 0x84222325cbf29ce4L;
+
+	private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {
+		@Override
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+	};
+
+	/**
+	 * Direction of a frame.
+	 */
+	public enum Direction {
+
+		/**
+		 * Received.
+		 */
+		IN((byte) 'I'),
+
+		/**
+		 * Sent.
+		 */
+		OUT((byte) 'O');
+
+		private final byte code;
+
+		private Direction(byte code) {
+			this.code = code;
+		}
+
+		static Direction of(byte code) {
+			return code == IN.code ? IN : code == OUT.code ? OUT : null;
+		}
+	}
+
+	private final File dir;
+
+	private final IsoFraming framing;
+
+	private final IsoSchemaRegistry registry;
+
+	private final Charset charset;
+
+	/**
+	 * Header lengths to look for the type at, the framing's first.
+	 */
+	private final int[] headerLengths;
+
+	private final ConcurrentSkipListMap<Long, IsoSegment> segments = new ConcurrentSkipListMap<Long, IsoSegment>();
+
+	private final AtomicLong appended = new AtomicLong();
+
+	private final AtomicLong connections = new AtomicLong();
+
+	private final Object indexLock = new Object();
+
+	private final Object syncLock = new Object();
+
+	private int segmentSize = 64 << 20;
+
+	private long syncInterval = 10;
+
+	private int indexedSegments = 4;
+
+	private volatile IsoSegment head;
+
+	private volatile IOException failure;
+
+	private volatile boolean open;
+
+	private Thread flusher;
+
+	// index state, guarded by indexLock
+
+	/**
+	 * Index of the segment being indexed.
+	 */
+	private IsoJournalIndex index;
+
+	/**
+	 * Indexes of the recent segments, by segment number.
+	 */
+	private final TreeMap<Long, IsoJournalIndex> indexes = new TreeMap<Long, IsoJournalIndex>();
+
+	private long indexSegment;
+
+	private int indexOffset;
+
+	private RandomAccessFile indexFile;
+
+	private final ByteBuffer indexBuffer = ByteBuffer.allocate(ENTRY * 1024);
+
+	// guarded by syncLock
+
+	private long forcedSegment;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a journal.
+	 *
+	 * @param dir
+	 *            directory of the segments, created if missing
+	 * @param framing
+	 *            {@link IsoFraming} of the frames
+	 * @param registry
+	 *            compiled schemas, to read the indexed fields
+	 * @param charset
+	 *            charset of the messages
+	 */
+	public IsoJournal(File dir, IsoFraming framing,
+			IsoSchemaRegistry registry, Charset charset) {
+		if (dir == null || framing == null || registry == null
+				|| charset == null) {
+			throw new IllegalArgumentException(
+					"Directory, framing, registry and charset must not be null");
+		}
+		this.dir = dir;
+		this.framing = framing;
+		this.registry = registry;
+		this.charset = charset;
+		// sent frames carry the header of their type, received ones the
+		// header of the framing
+		TreeSet<Integer> lengths = new TreeSet<Integer>();
+		lengths.add(0);
+		if (registry.getPredefine() != null
+				&& registry.getPredefine().getHeaders() != null) {
+			for (IsoPredefine.IsoHeader h : registry.getPredefine()
+					.getHeaders()) {
+				if (h.getValue() != null) {
+					lengths.add(h.getValue().getBytes(charset).length);
+				}
+			}
+		}
+		lengths.remove(framing.getHeaderLength());
+		headerLengths = new int[lengths.size() + 1];
+		headerLengths[0] = framing.getHeaderLength();
+		int i = 1;
+		for (int len : lengths) {
+			headerLengths[i++] = len;
+		}
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Map the segments, recover them, load the index and start the flusher.
+	 *
+	 * @throws IOException
+	 *             if a segment or an index file can not be read
+	 */
+	public void open() throws IOException {
+		synchronized (indexLock) {
+			if (open) {
+				throw new IllegalStateException("Already open");
+			}
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can not create " + dir);
+			}
+			long[] numbers = IsoSegment.list(dir, SUFFIX);
+			indexes.clear();
+			for (int i = 0; i < numbers.length; i++) {
+				IsoSegment s = IsoSegment.open(dir, numbers[i], SUFFIX,
+						segmentSize);
+				recover(s, i == numbers.length - 1);
+				segments.put(s.number(), s);
+				loadIndex(s);
+				index(s);
+				if (i < numbers.length - 1) {
+					closeIndex();
+				}
+			}
+			if (segments.isEmpty()) {
+				IsoSegment s = IsoSegment.open(dir, 0, SUFFIX, segmentSize);
+				segments.put(s.number(), s);
+				loadIndex(s);
+			}
+			head = segments.lastEntry().getValue();
+			forcedSegment = segments.firstKey();
+			// unique across restarts
+			connections.set(System.currentTimeMillis() * 1000);
+			failure = null;
+			open = true;
+		}
+		if (syncInterval > 0) {
+			flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, "upos-journal-sync-" + dir.getName());
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+		log.info("Opened {} with {} segments, {} in memory", new Object[] {
+				dir, segments.size(), indexes.size() });
+	}
+
+	/**
+	 * Find the end of a segment, mark its incomplete records.
+	 */
+	private void recover(IsoSegment s, boolean last) {
+		MappedByteBuffer map = s.map();
+		int cap = s.capacity();
+		int p = 0;
+		while (p + HEADER <= cap) {
+			int len = map.getInt(p);
+			if (len == 0 || len == SEALED) {
+				break;
+			}
+			int size = len < 0 ? -len : align(HEADER + len);
+			if (size < HEADER || size > cap - p) {
+				break;
+			}
+			if (len < 0 || frame(s, p, len) == null) {
+				// claimed, never committed
+				map.putInt(p, -size);
+				map.put(p + 24, TORN);
+			}
+			p += size;
+		}
+		if (last && p + 4 <= cap && map.getInt(p) != 0 && map.getInt(p) != SEALED) {
+			log.warn("Garbage at {} of {}, cleared", p, s);
+			s.clear(p);
+		}
+		s.claimed.set(p);
+		s.force();
+	}
+
+	private static int checksum(byte[] frame, int off, int len,
+			long timestamp, long connectionId, byte direction) {
+		CRC32 crc = CRC.get();
+		crc.reset();
+		crc.update(frame, off, len);
+		for (int i = 56; i >= 0; i -= 8) {
+			crc.update((int) (timestamp >>> i));
+		}
+		for (int i = 56; i >= 0; i -= 8) {
+			crc.update((int) (connectionId >>> i));
+		}
+		crc.update(direction);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Copy the frame of a record whose CRC matches.
+	 *
+	 * @return frame, null if the record is not complete or not all visible
+	 */
+	private static byte[] frame(IsoSegment s, int p, int len) {
+		MappedByteBuffer map = s.map();
+		byte[] frame = new byte[len];
+		s.get(p + HEADER, frame, 0, len);
+		if (checksum(frame, 0, len, map.getLong(p + 8), map.getLong(p + 16),
+				map.get(p + 24)) != map.getInt(p + 4)) {
+			return null;
+		}
+		return frame;
+	}
+
+	private static int align(int size) {
+		return (size + 3) & ~3;
+	}
+
+	private static long id(long segment, int offset) {
+		return segment << 32 | offset;
+	}
+
+	/**
+	 * Append a frame.
+	 *
+	 * @param direction
+	 *            {@link Direction}
+	 * @param connectionId
+	 *            id of the connection, eg: {@link #nextConnectionId()}
+	 * @param frame
+	 *            frame bytes
+	 * @param off
+	 *            offset
+	 * @param len
+	 *            length
+	 * @return id of the record
+	 * @throws IllegalStateException
+	 *             if the journal is closed or a segment can not be mapped
+	 */
+	public long append(Direction direction, long connectionId, byte[] frame,
+			int off, int len) {
+		int size = align(HEADER + len);
+		if (len <= 0 || size > segmentSize) {
+			throw new IllegalArgumentException("Frame of " + len
+					+ " bytes does not fit a segment");
+		}
+		long timestamp = System.currentTimeMillis();
+		int checksum = checksum(frame, off, len, timestamp, connectionId,
+				direction.code);
+		for (;;) {
+			IsoSegment s = head;
+			if (!open) {
+				throw new IllegalStateException("Journal " + dir
+						+ " is not open");
+			}
+			int cap = s.capacity();
+			int p = s.claimed.getAndAdd(size);
+			if (p <= cap - size) {
+				MappedByteBuffer map = s.map();
+				map.putInt(p, -size);
+				s.put(p + HEADER, frame, off, len);
+				map.putInt(p + 4, checksum);
+				map.putLong(p + 8, timestamp);
+				map.putLong(p + 16, connectionId);
+				map.put(p + 24, direction.code);
+				map.putInt(p, len);
+				appended.incrementAndGet();
+				if (syncInterval == 0) {
+					s.force();
+				}
+				return id(s.number(), p);
+			}
+			if (p <= cap) {
+				// the first claim past the end seals the segment
+				if (p <= cap - 4) {
+					s.map().putInt(p, SEALED);
+				}
+				roll(s);
+			} else {
+				while (head == s && open) {
+					if (failure != null) {
+						throw new IllegalStateException("Journal " + dir
+								+ " failed", failure);
+					}
+					Thread.yield();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append a frame.
+	 *
+	 * @param direction
+	 *            {@link Direction}
+	 * @param connectionId
+	 *            id of the connection
+	 * @param frame
+	 *            flipped frame, its position is not changed
+	 * @return id of the record
+	 */
+	public long append(Direction direction, long connectionId, ByteBuffer frame) {
+		if (frame.hasArray()) {
+			return append(direction, connectionId, frame.array(),
+					frame.arrayOffset() + frame.position(), frame.remaining());
+		}
+		byte[] bytes = new byte[frame.remaining()];
+		frame.duplicate().get(bytes);
+		return append(direction, connectionId, bytes, 0, bytes.length);
+	}
+
+	private synchronized void roll(IsoSegment s) {
+		if (head != s) {
+			return;
+		}
+		try {
+			IsoSegment next = IsoSegment.open(dir, s.number() + 1, SUFFIX,
+					segmentSize);
+			segments.put(next.number(), next);
+			head = next;
+		} catch (IOException e) {
+			failure = e;
+			throw new IllegalStateException("Journal " + dir + " failed", e);
+		}
+	}
+
+	/**
+	 * A new connection id, unique across restarts.
+	 *
+	 * @return id
+	 */
+	public long nextConnectionId() {
+		return connections.incrementAndGet();
+	}
+
+	/**
+	 * Read a record.
+	 *
+	 * @param id
+	 *            id returned by append
+	 * @return {@link Record}, null if not found or not committed
+	 */
+	public Record read(long id) {
+		IsoSegment s = segments.get(id >>> 32);
+		int p = (int) id;
+		if (s == null || p < 0 || p > s.capacity() - HEADER) {
+			return null;
+		}
+		MappedByteBuffer map = s.map();
+		int len = map.getInt(p);
+		if (len <= 0 || len > s.capacity() - p - HEADER) {
+			return null;
+		}
+		byte[] frame = frame(s, p, len);
+		if (frame == null) {
+			return null;
+		}
+		return new Record(id, map.getLong(p + 8), map.getLong(p + 16),
+				Direction.of(map.get(p + 24)), frame);
+	}
+
+	/**
+	 * Records carrying an RRN (field 37), in append order.
+	 *
+	 * @param rrn
+	 *            retrieval reference number
+	 * @return {@link Record}s, empty if none
+	 */
+	public List<Record> findByRrn(String rrn) {
+		byte[] v = rrn.getBytes(charset);
+		List<Record> found = new ArrayList<Record>(2);
+		for (long id : find(IsoJournalIndex.hash(RRN, v))) {
+			Record r = read(id);
+			ReadIsoMessage msg = r == null ? null : message(r.getFrame());
+			if (msg != null && Arrays.equals(v, msg.getIsoValue(37))) {
+				found.add(r);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Records of a terminal (field 41) and STAN (field 11), in append order.
+	 *
+	 * @param terminalId
+	 *            terminal id
+	 * @param stan
+	 *            STAN
+	 * @return {@link Record}s, empty if none
+	 */
+	public List<Record> findByTerminal(String terminalId, String stan) {
+		byte[] t = terminalId.getBytes(charset);
+		byte[] n = stan.getBytes(charset);
+		List<Record> found = new ArrayList<Record>(2);
+		for (long id : find(terminalHash(t, n))) {
+			Record r = read(id);
+			ReadIsoMessage msg = r == null ? null : message(r.getFrame());
+			if (msg != null && Arrays.equals(t, msg.getIsoValue(41))
+					&& Arrays.equals(n, msg.getIsoValue(11))) {
+				found.add(r);
+			}
+		}
+		return found;
+	}
+
+	private static long terminalHash(byte[] terminalId, byte[] stan) {
+		return IsoJournalIndex.hash(IsoJournalIndex.hash(TERMINAL, terminalId),
+				stan);
+	}
+
+	private long[] find(long hash) {
+		synchronized (indexLock) {
+			if (!open) {
+				throw new IllegalStateException("Journal " + dir
+						+ " is not open");
+			}
+			catchUp();
+			long[] found = new long[0];
+			for (long number : segments.keySet()) {
+				IsoJournalIndex idx = indexes.get(number);
+				long[] ids;
+				if (idx != null) {
+					ids = idx.find(hash);
+				} else {
+					try {
+						ids = findInFile(number, hash);
+					} catch (IOException e) {
+						log.error("Read index of segment " + number
+								+ " failed", e);
+						continue;
+					}
+				}
+				if (ids.length > 0) {
+					int n = found.length;
+					found = Arrays.copyOf(found, n + ids.length);
+					System.arraycopy(ids, 0, found, n, ids.length);
+				}
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Ids of a key hash in the index file of a segment no longer in
+	 * memory, in id order.
+	 */
+	private long[] findInFile(long number, long hash) throws IOException {
+		File file = new File(dir, IsoSegment.name(number, INDEX_SUFFIX));
+		if (!file.exists()) {
+			return new long[0];
+		}
+		long[] found = new long[4];
+		int n = 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(ENTRY * 1024);
+			long pos = 0;
+			long length = channel.size() / ENTRY * ENTRY;
+			while (pos < length) {
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), length - pos));
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, pos + buf.position()) < 0) {
+						throw new IOException(file + " truncated");
+					}
+				}
+				buf.flip();
+				pos += buf.limit();
+				while (buf.hasRemaining()) {
+					long id = buf.getLong();
+					long rrn = buf.getLong();
+					long terminal = buf.getLong();
+					if (rrn == hash || terminal == hash) {
+						if (n == found.length) {
+							found = Arrays.copyOf(found, n << 1);
+						}
+						found[n++] = id;
+					}
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	/**
+	 * Read the message of a frame, the type is looked for after the header
+	 * of the framing, then after the headers of the schemas.
+	 *
+	 * @return {@link ReadIsoMessage}, null if not readable
+	 */
+	private ReadIsoMessage message(byte[] frame) {
+		int overhead = framing.overhead();
+		for (int h : headerLengths) {
+			int off = overhead + h;
+			if (frame.length < off + 12) {
+				continue;
+			}
+			IsoSchema schema = registry.get(frame, off);
+			if (schema == null || !schema.hasParser()
+					|| (h != headerLengths[0] && schema.getHeader()
+							.getBytes(charset).length != h)) {
+				continue;
+			}
+			try {
+				return new ReadIsoMessage(schema, Arrays.copyOfRange(frame,
+						off + 4, frame.length), charset);
+			} catch (RuntimeException e) {
+				// not at this offset
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Index the committed records not indexed yet, under indexLock.
+	 */
+	private void catchUp() {
+		for (;;) {
+			IsoSegment s = segments.get(indexSegment);
+			if (!index(s)) {
+				return;
+			}
+			Long next = segments.higherKey(indexSegment);
+			if (next == null) {
+				return;
+			}
+			closeIndex();
+			try {
+				loadIndex(segments.get(next));
+			} catch (IOException e) {
+				log.error("Open index of segment " + next + " failed", e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Index the committed records of a segment from indexOffset.
+	 *
+	 * @return true if the segment is complete
+	 */
+	private boolean index(IsoSegment s) {
+		MappedByteBuffer map = s.map();
+		int cap = s.capacity();
+		int p = indexOffset;
+		boolean complete = false;
+		while (true) {
+			if (p > cap - HEADER) {
+				complete = true;
+				break;
+			}
+			int len = map.getInt(p);
+			if (len == 0) {
+				break;
+			}
+			if (len == SEALED) {
+				complete = true;
+				break;
+			}
+			if (len < 0) {
+				if (map.get(p + 24) != TORN) {
+					// being written
+					break;
+				}
+				p += -len;
+				continue;
+			}
+			byte[] frame = frame(s, p, len);
+			if (frame == null) {
+				// committed, its bytes not all visible yet
+				break;
+			}
+			long id = id(s.number(), p);
+			long rrn = 0;
+			long terminal = 0;
+			ReadIsoMessage msg = message(frame);
+			if (msg != null) {
+				byte[] v37 = msg.getIsoValue(37);
+				if (v37 != null) {
+					rrn = IsoJournalIndex.hash(RRN, v37);
+					index.add(rrn, id);
+				}
+				byte[] v41 = msg.getIsoValue(41);
+				byte[] v11 = msg.getIsoValue(11);
+				if (v41 != null && v11 != null) {
+					terminal = terminalHash(v41, v11);
+					index.add(terminal, id);
+				}
+			}
+			if (indexBuffer.remaining() < ENTRY) {
+				writeIndex();
+			}
+			indexBuffer.putLong(id).putLong(rrn).putLong(terminal);
+			p += align(HEADER + len);
+		}
+		indexOffset = p;
+		return complete;
+	}
+
+	/**
+	 * Open the index file of a segment, load its entries and index the
+	 * segment from the record after the last entry.
+	 * <p>
+	 * The entries from the first one leading to no committed record, eg: past
+	 * the end recovered after a crash, are dropped and the segment is indexed
+	 * again from there.
+	 * </p>
+	 */
+	private void loadIndex(IsoSegment s) throws IOException {
+		File file = new File(dir, IsoSegment.name(s.number(), INDEX_SUFFIX));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long length = raf.length() / ENTRY * ENTRY;
+		raf.setLength(length);
+		byte[] bytes = new byte[(int) length];
+		raf.readFully(bytes);
+		ByteBuffer entries = ByteBuffer.wrap(bytes);
+		index = new IsoJournalIndex(Math.max(1 << 10, bytes.length / ENTRY * 2));
+		indexes.put(s.number(), index);
+		while (indexes.size() > indexedSegments) {
+			// its file is complete, read on lookup
+			indexes.remove(indexes.firstKey());
+		}
+		int end = s.claimed.get();
+		int resume = 0;
+		while (entries.hasRemaining()) {
+			long id = entries.getLong();
+			long rrn = entries.getLong();
+			long terminal = entries.getLong();
+			int p = (int) id;
+			int len = id >>> 32 != s.number() || p < resume || p >= end ? 0
+					: s.map().getInt(p);
+			if (len <= 0) {
+				log.warn("Index of {} leads past its records at {}, truncated",
+						s, p);
+				raf.setLength(entries.position() - ENTRY);
+				break;
+			}
+			if (rrn != 0) {
+				index.add(rrn, id);
+			}
+			if (terminal != 0) {
+				index.add(terminal, id);
+			}
+			resume = p + align(HEADER + len);
+		}
+		indexFile = raf;
+		indexSegment = s.number();
+		indexOffset = resume;
+	}
+
+	private void writeIndex() {
+		indexBuffer.flip();
+		try {
+			indexFile.getChannel().write(indexBuffer, indexFile.length());
+		} catch (IOException e) {
+			// the entries are rebuilt from the segment on open
+			log.error("Write index of segment " + indexSegment + " failed", e);
+		}
+		indexBuffer.clear();
+	}
+
+	private void closeIndex() {
+		writeIndex();
+		try {
+			indexFile.getChannel().force(false);
+			indexFile.close();
+		} catch (IOException e) {
+			log.error("Close index of segment " + indexSegment + " failed", e);
+		}
+		indexFile = null;
+	}
+
+	/**
+	 * Index the committed records and force them to the disk now.
+	 */
+	public void sync() {
+		synchronized (syncLock) {
+			long indexed;
+			synchronized (indexLock) {
+				if (!open) {
+					return;
+				}
+				catchUp();
+				indexed = indexSegment;
+			}
+			// the records before their index entries; records of a segment
+			// the index has passed are all committed, the segment needs no
+			// more force after this one
+			for (Map.Entry<Long, IsoSegment> e : segments.tailMap(
+					forcedSegment, true).entrySet()) {
+				e.getValue().force();
+			}
+			forcedSegment = indexed;
+			synchronized (indexLock) {
+				if (!open) {
+					return;
+				}
+				writeIndex();
+				try {
+					indexFile.getChannel().force(false);
+				} catch (IOException e) {
+					log.error("Force index of " + dir + " failed", e);
+				}
+			}
+		}
+	}
+
+	private void flush() {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(syncInterval);
+		while (open) {
+			LockSupport.parkNanos(this, nanos);
+			try {
+				sync();
+			} catch (RuntimeException e) {
+				log.error("Sync " + dir + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Sync and unmap the segments.
+	 */
+	public void close() {
+		synchronized (indexLock) {
+			if (!open) {
+				return;
+			}
+		}
+		sync();
+		synchronized (indexLock) {
+			open = false;
+		}
+		if (flusher != null) {
+			LockSupport.unpark(flusher);
+			try {
+				flusher.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
+		synchronized (indexLock) {
+			closeIndex();
+			for (IsoSegment s : segments.values()) {
+				s.close();
+			}
+			segments.clear();
+			head = null;
+		}
+		log.info("Closed {}", dir);
+	}
+
+	/**
+	 * Frames appended since open.
+	 *
+	 * @return count
+	 */
+	public long getAppended() {
+		return appended.get();
+	}
+
+	/**
+	 * Segment files.
+	 *
+	 * @return count
+	 */
+	public int getSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Return the directory of the segments.
+	 *
+	 * @return directory
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Set size of new segments, default 64MB, set before {@link #open()}.
+	 *
+	 * @param segmentSize
+	 *            bytes, 4KB to 1GB
+	 */
+	public void setSegmentSize(int segmentSize) {
+		if (segmentSize < 4096 || segmentSize > 1 << 30) {
+			throw new IllegalArgumentException(
+					"segmentSize must be in 4KB..1GB");
+		}
+		if (open) {
+			throw new IllegalStateException("Already open");
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Set the count of recent segments whose index stays in memory, default
+	 * 4, set before {@link #open()}. Lookups in older segments read their
+	 * index files, so the heap does not grow with the retention.
+	 *
+	 * @param indexedSegments
+	 *            segments, at least 1
+	 */
+	public void setIndexedSegments(int indexedSegments) {
+		if (indexedSegments < 1) {
+			throw new IllegalArgumentException("indexedSegments must be > 0");
+		}
+		if (open) {
+			throw new IllegalStateException("Already open");
+		}
+		this.indexedSegments = indexedSegments;
+	}
+
+	/**
+	 * Set the interval the flusher indexes and forces at, default 10ms, set
+	 * before {@link #open()}.
+	 *
+	 * @param syncInterval
+	 *            millis, 0 for no flusher: every append forces its segment,
+	 *            the records are indexed on lookup and by {@link #sync()}
+	 */
+	public void setSyncInterval(long syncInterval) {
+		if (syncInterval < 0) {
+			throw new IllegalArgumentException("syncInterval must be >= 0");
+		}
+		if (open) {
+			throw new IllegalStateException("Already open");
+		}
+		this.syncInterval = syncInterval;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoJournal[" + dir + ", appended=" + appended.get() + "]";
+	}
+
+	/**
+	 * A journaled frame.
+	 */
+	public static final class Record {
+
+		private final long id;
+		private final long timestamp;
+		private final long connectionId;
+		private final Direction direction;
+		private final byte[] frame;
+
+		Record(long id, long timestamp, long connectionId,
+				Direction direction, byte[] frame) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.connectionId = connectionId;
+			this.direction = direction;
+			this.frame = frame;
+		}
+
+		/**
+		 * Id of the record.
+		 *
+		 * @return id
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * When the frame was appended.
+		 *
+		 * @return millis
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Id of the connection of the frame.
+		 *
+		 * @return id
+		 */
+		public long getConnectionId() {
+			return connectionId;
+		}
+
+		/**
+		 * Direction of the frame.
+		 *
+		 * @return {@link Direction}
+		 */
+		public Direction getDirection() {
+			return direction;
+		}
+
+		/**
+		 * The frame, length prefix included.
+		 *
+		 * @return bytes
+		 */
+		public byte[] getFrame() {
+			return frame;
+		}
+
+		@Override
+		public String toString() {
+			return "Record[" + Long.toHexString(id) + ", " + direction
+					+ ", connection " + connectionId + "]";
+		}
+	}
+
+}
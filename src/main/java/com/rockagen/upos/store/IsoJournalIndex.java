@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.store;
+
+import java.util.Arrays;
+
+/**
+ * Multimap of 64-bit key hashes to record ids
+ * <p>
+ * Open addressing with linear probing over two long arrays, a key may map
+ * to many ids (eg: a request and its response share the RRN). A hash says
+ * nothing for sure, the caller checks the records found.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoJournalIndex {
+
+	// ~ Instance fields ==================================================
+
+	private long[] hashes;
+
+	private long[] ids;
+
+	private int size;
+
+	// ~ Constructors ==================================================
+
+	IsoJournalIndex(int capacity) {
+		int n = Integer.highestOneBit(Math.max(16, capacity));
+		hashes = new long[n << 1];
+		ids = new long[n << 1];
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * FNV-1a of bytes, never 0.
+	 *
+	 * @param seed
+	 *            seed of the key kind
+	 * @param bytes
+	 *            bytes
+	 * @return hash
+	 */
+	static long hash(long seed, byte[] bytes) {
+		long h = seed;
+		for (byte b : bytes) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Add an id.
+	 *
+	 * @param hash
+	 *            key hash, not 0
+	 * @param id
+	 *            record id
+	 */
+	void add(long hash, long id) {
+		if (size >= hashes.length >> 1) {
+			grow();
+		}
+		int mask = hashes.length - 1;
+		int i = slot(hash, mask);
+		while (hashes[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		hashes[i] = hash;
+		ids[i] = id;
+		size++;
+	}
+
+	/**
+	 * Ids of a key hash, in id order.
+	 *
+	 * @param hash
+	 *            key hash
+	 * @return ids, empty if none
+	 */
+	long[] find(long hash) {
+		int mask = hashes.length - 1;
+		long[] found = new long[4];
+		int n = 0;
+		for (int i = slot(hash, mask); hashes[i] != 0; i = (i + 1) & mask) {
+			if (hashes[i] == hash) {
+				if (n == found.length) {
+					found = Arrays.copyOf(found, n << 1);
+				}
+				found[n++] = ids[i];
+			}
+		}
+		found = Arrays.copyOf(found, n);
+		Arrays.sort(found);
+		return found;
+	}
+
+	private void grow() {
+		long[] oldHashes = hashes;
+		long[] oldIds = ids;
+		hashes = new long[oldHashes.length << 1];
+		ids = new long[oldIds.length << 1];
+		size = 0;
+		for (int i = 0; i < oldHashes.length; i++) {
+			if (oldHashes[i] != 0) {
+				add(oldHashes[i], oldIds[i]);
+			}
+		}
+	}
+
+	private static int slot(long hash, int mask) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Count of ids.
+	 *
+	 * @return count
+	 */
+	int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A segment file mapped in memory
+ * <p>
+ * The file is sized once when created, writes go to the mapping and reach
+ * the disk by {@link #force()}. Segments are numbered, the file name is the
+ * zero-padded number and a suffix, so the files sort in write order.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final class IsoSegment {
+
+	// ~ Instance fields ==================================================
+
+	private final File file;
+
+	private final long number;
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer map;
+
+	/**
+	 * Write position, guarded by the owner.
+	 */
+	int position;
+
+	/**
+	 * Bytes claimed by concurrent writers, for owners without a lock.
+	 */
+	final AtomicInteger claimed = new AtomicInteger();
+
+	/**
+	 * Written since the last force, guarded by the owner.
+	 */
+	boolean dirty;
+
+	/**
+	 * Records not acknowledged, guarded by the owner.
+	 */
+	int live;
+
+	// ~ Constructors ==================================================
+
+	private IsoSegment(File file, long number, RandomAccessFile raf,
+			MappedByteBuffer map) {
+		this.file = file;
+		this.number = number;
+		this.raf = raf;
+		this.map = map;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Map a segment, create it if it does not exist.
+	 *
+	 * @param dir
+	 *            directory
+	 * @param number
+	 *            segment number
+	 * @param suffix
+	 *            file suffix, eg: .seg
+	 * @param size
+	 *            size of a new segment
+	 * @return {@link IsoSegment}
+	 * @throws IOException
+	 *             if the file can not be mapped
+	 */
+	static IsoSegment open(File dir, long number, String suffix, int size)
+			throws IOException {
+		File file = new File(dir, name(number, suffix));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			if (length == 0) {
+				raf.setLength(size);
+				length = size;
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException(file + " is larger than 2GB");
+			}
+			MappedByteBuffer map = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, length);
+			return new IsoSegment(file, number, raf, map);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * File name of a segment.
+	 */
+	static String name(long number, String suffix) {
+		return String.format("%020d%s", number, suffix);
+	}
+
+	/**
+	 * Numbers of the segments in dir, in order.
+	 *
+	 * @param dir
+	 *            directory
+	 * @param suffix
+	 *            file suffix
+	 * @return numbers, sorted
+	 */
+	static long[] list(File dir, final String suffix) {
+		String[] names = dir.list();
+		if (names == null) {
+			return new long[0];
+		}
+		long[] numbers = new long[names.length];
+		int n = 0;
+		for (String name : names) {
+			if (name.length() == 20 + suffix.length() && name.endsWith(suffix)) {
+				try {
+					numbers[n++] = Long.parseLong(name.substring(0, 20));
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+			}
+		}
+		numbers = Arrays.copyOf(numbers, n);
+		Arrays.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * The mapping, shared: use absolute gets and puts only.
+	 *
+	 * @return {@link MappedByteBuffer}
+	 */
+	MappedByteBuffer map() {
+		return map;
+	}
+
+	/**
+	 * Segment size.
+	 *
+	 * @return bytes
+	 */
+	int capacity() {
+		return map.capacity();
+	}
+
+	/**
+	 * Segment number.
+	 *
+	 * @return number
+	 */
+	long number() {
+		return number;
+	}
+
+	/**
+	 * Copy bytes of the mapping.
+	 *
+	 * @param off
+	 *            offset
+	 * @param dst
+	 *            destination
+	 * @param dstOff
+	 *            destination offset
+	 * @param len
+	 *            length
+	 */
+	void get(int off, byte[] dst, int dstOff, int len) {
+		ByteBuffer dup = map.duplicate();
+		dup.position(off);
+		dup.get(dst, dstOff, len);
+	}
+
+	/**
+	 * Write bytes to the mapping.
+	 *
+	 * @param off
+	 *            offset
+	 * @param src
+	 *            source
+	 * @param srcOff
+	 *            source offset
+	 * @param len
+	 *            length
+	 */
+	void put(int off, byte[] src, int srcOff, int len) {
+		ByteBuffer dup = map.duplicate();
+		dup.position(off);
+		dup.put(src, srcOff, len);
+	}
+
+	/**
+	 * Zero the bytes from off to the end, eg: a torn tail.
+	 *
+	 * @param off
+	 *            offset
+	 */
+	void clear(int off) {
+		for (int i = off; i < map.capacity(); i++) {
+			map.put(i, (byte) 0);
+		}
+	}
+
+	/**
+	 * Write the mapping to the disk.
+	 */
+	void force() {
+		map.force();
+	}
+
+	/**
+	 * Force and close the file, the mapping stays valid until collected.
+	 */
+	void close() {
+		force();
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Close and delete the file.
+	 *
+	 * @return true if deleted
+	 */
+	boolean delete() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+		return file.delete();
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+}
@@ -0,0 +1,595 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Store-and-forward queue on memory-mapped segment files
+ * <p>
+ * Messages that must reach the host, eg: reversals (0400/0420) and advices
+ * (0120/0220), are appended encoded as they are sent (header, type, bitmap,
+ * data) and stay until acknowledged. After a restart
+ * {@link #replay(Visitor)} returns the messages not acknowledged, in the
+ * order they were appended.
+ * </p>
+ * <p>
+ * A record is
+ * </p>
+ *
+ * <pre>
+ * length(4) crc32(4) timestamp(8) state(1) headerLength(1) message(length)
+ * </pre>
+ * <p>
+ * An append copies the record into the mapped segment and returns its id,
+ * the segment number and offset of the record, so acknowledging needs no
+ * lookup: it flips the state byte in place. That byte and a count of live
+ * records per segment are the whole ack index; a segment whose records are
+ * all acknowledged is deleted. Writes reach the disk by a flusher thread
+ * every sync interval, one force covering every append and ack since the
+ * last one; {@link #sync()} forces at once. A record torn by a crash fails
+ * its CRC, recovery stops there.
+ * </p>
+ *
+ * <pre>
+ * IsoStoreQueue store = new IsoStoreQueue(new File(&quot;/var/upos/saf&quot;));
+ * store.open();
+ * long id = store.append(reversal);
+ * // answered
+ * store.ack(id);
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoStoreQueue {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoStoreQueue.class);
+
+	/**
+	 * Record header length.
+	 */
+	static final int HEADER = 18;
+
+	private static final byte PENDING = 1;
+
+	private static final byte ACKED = 2;
+
+	private static final String SUFFIX = ".saf";
+
+	/**
+	 * Visitor of the messages not acknowledged.
+	 */
+	public interface Visitor {
+
+		/**
+		 * A message not acknowledged.
+		 *
+		 * @param entry
+		 *            {@link Entry}
+		 */
+		void visit(Entry entry);
+	}
+
+	private final File dir;
+
+	private final TreeMap<Long, IsoSegment> segments = new TreeMap<Long, IsoSegment>();
+
+	private final CRC32 crc = new CRC32();
+
+	private byte[] scratch = new byte[1024];
+
+	private int segmentSize = 64 << 20;
+
+	private long syncInterval = 10;
+
+	private IsoSegment head;
+
+	private int pending;
+
+	private long appended;
+
+	private Thread flusher;
+
+	private volatile boolean open;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a queue.
+	 *
+	 * @param dir
+	 *            directory of the segments, created if missing
+	 */
+	public IsoStoreQueue(File dir) {
+		if (dir == null) {
+			throw new IllegalArgumentException("Directory must not be null");
+		}
+		this.dir = dir;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Map the segments, recover the records and start the flusher.
+	 *
+	 * @throws IOException
+	 *             if a segment can not be mapped
+	 */
+	public synchronized void open() throws IOException {
+		if (open) {
+			throw new IllegalStateException("Already open");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can not create " + dir);
+		}
+		long[] numbers = IsoSegment.list(dir, SUFFIX);
+		for (int i = 0; i < numbers.length; i++) {
+			IsoSegment s = IsoSegment.open(dir, numbers[i], SUFFIX,
+					segmentSize);
+			recover(s);
+			if (s.live == 0 && i < numbers.length - 1) {
+				s.delete();
+				continue;
+			}
+			segments.put(s.number(), s);
+			pending += s.live;
+		}
+		if (segments.isEmpty()) {
+			head = IsoSegment.open(dir, numbers.length == 0 ? 0
+					: numbers[numbers.length - 1] + 1, SUFFIX, segmentSize);
+			segments.put(head.number(), head);
+		} else {
+			head = segments.lastEntry().getValue();
+		}
+		open = true;
+		if (syncInterval > 0) {
+			flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, "upos-store-sync-" + dir.getName());
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+		log.info("Opened {} with {} messages pending in {} segments",
+				new Object[] { dir, pending, segments.size() });
+	}
+
+	/**
+	 * Scan the records of a segment, find its end and live records.
+	 */
+	private void recover(IsoSegment s) {
+		MappedByteBuffer map = s.map();
+		int cap = s.capacity();
+		int p = 0;
+		while (p + HEADER <= cap) {
+			int len = map.getInt(p);
+			if (len <= 0 || len > cap - p - HEADER) {
+				break;
+			}
+			byte state = map.get(p + 16);
+			if ((state != PENDING && state != ACKED)
+					|| checksum(s, p, len) != map.getInt(p + 4)) {
+				break;
+			}
+			if (state == PENDING) {
+				s.live++;
+			}
+			p += HEADER + len;
+		}
+		if (p + 4 <= cap && map.getInt(p) != 0) {
+			log.warn("Torn record at {} of {}, cleared", p, s);
+			s.clear(p);
+			s.force();
+		}
+		s.position = p;
+	}
+
+	private int checksum(IsoSegment s, int p, int len) {
+		ensure(len);
+		s.get(p + HEADER, scratch, 0, len);
+		crc.reset();
+		crc.update(s.map().get(p + 17));
+		crc.update(scratch, 0, len);
+		return (int) crc.getValue();
+	}
+
+	private void ensure(int len) {
+		if (scratch.length < len) {
+			scratch = new byte[Math.max(len, scratch.length << 1)];
+		}
+	}
+
+	/**
+	 * Append a message.
+	 *
+	 * @param message
+	 *            {@link WriteIsoMessage}
+	 * @return id of the record
+	 * @throws IOException
+	 *             if a new segment can not be mapped
+	 */
+	public synchronized long append(WriteIsoMessage message)
+			throws IOException {
+		checkOpen();
+		int len = message.encodedLength();
+		if (len > segmentSize - HEADER) {
+			throw new IllegalArgumentException("Message of " + len
+					+ " bytes exceeds the segment size");
+		}
+		ensure(len);
+		message.encode(ByteBuffer.wrap(scratch, 0, len));
+		int headerLength = message.getHeaderLength();
+		crc.reset();
+		crc.update(headerLength);
+		crc.update(scratch, 0, len);
+		if (head.position + HEADER + len > head.capacity()) {
+			roll();
+		}
+		IsoSegment s = head;
+		int p = s.position;
+		MappedByteBuffer map = s.map();
+		s.put(p + HEADER, scratch, 0, len);
+		map.putInt(p + 4, (int) crc.getValue());
+		map.putLong(p + 8, System.currentTimeMillis());
+		map.put(p + 16, PENDING);
+		map.put(p + 17, (byte) headerLength);
+		// the length last: a record is complete once it is set
+		map.putInt(p, len);
+		s.position = p + HEADER + len;
+		s.live++;
+		s.dirty = true;
+		pending++;
+		appended++;
+		if (syncInterval == 0) {
+			s.force();
+			s.dirty = false;
+		}
+		return id(s.number(), p);
+	}
+
+	private void roll() throws IOException {
+		IsoSegment old = head;
+		head = IsoSegment.open(dir, old.number() + 1, SUFFIX, segmentSize);
+		segments.put(head.number(), head);
+		if (old.live == 0) {
+			segments.remove(old.number());
+			old.delete();
+		}
+	}
+
+	/**
+	 * Acknowledge a message.
+	 *
+	 * @param id
+	 *            id returned by {@link #append(WriteIsoMessage)}
+	 * @return false if not found or already acknowledged
+	 */
+	public synchronized boolean ack(long id) {
+		checkOpen();
+		IsoSegment s = segments.get(id >>> 32);
+		int p = (int) id;
+		if (s == null || p < 0 || p + HEADER > s.position) {
+			return false;
+		}
+		MappedByteBuffer map = s.map();
+		if (map.get(p + 16) != PENDING || map.getInt(p) <= 0) {
+			return false;
+		}
+		map.put(p + 16, ACKED);
+		s.dirty = true;
+		pending--;
+		if (--s.live == 0 && s != head) {
+			segments.remove(s.number());
+			s.delete();
+		} else if (syncInterval == 0) {
+			s.force();
+			s.dirty = false;
+		}
+		return true;
+	}
+
+	/**
+	 * Visit the messages not acknowledged, in append order.
+	 *
+	 * @param visitor
+	 *            {@link Visitor}
+	 * @return messages visited
+	 */
+	public synchronized int replay(Visitor visitor) {
+		checkOpen();
+		int n = 0;
+		for (IsoSegment s : segments.values()) {
+			MappedByteBuffer map = s.map();
+			for (int p = 0; p < s.position; p += HEADER + map.getInt(p)) {
+				if (map.get(p + 16) != PENDING) {
+					continue;
+				}
+				byte[] message = new byte[map.getInt(p)];
+				s.get(p + HEADER, message, 0, message.length);
+				visitor.visit(new Entry(id(s.number(), p), map.getLong(p + 8),
+						message, map.get(p + 17) & 0xff));
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Write the appends and acks to the disk now.
+	 */
+	public void sync() {
+		List<IsoSegment> dirty = new ArrayList<IsoSegment>(2);
+		synchronized (this) {
+			for (IsoSegment s : segments.values()) {
+				if (s.dirty) {
+					s.dirty = false;
+					dirty.add(s);
+				}
+			}
+		}
+		// appends go on while forcing, the next sync covers them
+		for (IsoSegment s : dirty) {
+			s.force();
+		}
+	}
+
+	private void flush() {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(syncInterval);
+		while (open) {
+			LockSupport.parkNanos(this, nanos);
+			try {
+				sync();
+			} catch (RuntimeException e) {
+				log.error("Sync " + dir + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Sync and unmap the segments.
+	 */
+	public void close() {
+		Thread f;
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			open = false;
+			f = flusher;
+		}
+		if (f != null) {
+			LockSupport.unpark(f);
+			try {
+				f.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			Iterator<Map.Entry<Long, IsoSegment>> it = segments.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				it.next().getValue().close();
+				it.remove();
+			}
+			head = null;
+			pending = 0;
+		}
+		log.info("Closed {}", dir);
+	}
+
+	private void checkOpen() {
+		if (!open) {
+			throw new IllegalStateException("Store " + dir + " is not open");
+		}
+	}
+
+	private static long id(long segment, int offset) {
+		return segment << 32 | offset;
+	}
+
+	/**
+	 * Messages not acknowledged.
+	 *
+	 * @return count
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Messages appended since open.
+	 *
+	 * @return count
+	 */
+	public synchronized long getAppended() {
+		return appended;
+	}
+
+	/**
+	 * Segment files in use.
+	 *
+	 * @return count
+	 */
+	public synchronized int getSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Return the directory of the segments.
+	 *
+	 * @return directory
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Set size of new segments, default 64MB.
+	 *
+	 * @param segmentSize
+	 *            bytes, 4KB to 1GB
+	 */
+	public synchronized void setSegmentSize(int segmentSize) {
+		if (segmentSize < 4096 || segmentSize > 1 << 30) {
+			throw new IllegalArgumentException(
+					"segmentSize must be in 4KB..1GB");
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Set the interval the flusher forces the writes at, default 10ms, set
+	 * before {@link #open()}.
+	 *
+	 * @param syncInterval
+	 *            millis, 0 to force on every append and ack
+	 */
+	public synchronized void setSyncInterval(long syncInterval) {
+		if (syncInterval < 0) {
+			throw new IllegalArgumentException("syncInterval must be >= 0");
+		}
+		if (open) {
+			throw new IllegalStateException("Already open");
+		}
+		this.syncInterval = syncInterval;
+	}
+
+	@Override
+	public String toString() {
+		return "IsoStoreQueue[" + dir + ", pending=" + getPending() + "]";
+	}
+
+	/**
+	 * A stored message.
+	 */
+	public static final class Entry {
+
+		private final long id;
+		private final long timestamp;
+		private final byte[] message;
+		private final int headerLength;
+
+		Entry(long id, long timestamp, byte[] message, int headerLength) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.message = message;
+			this.headerLength = headerLength;
+		}
+
+		/**
+		 * Id to acknowledge the message by.
+		 *
+		 * @return id
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * When the message was appended.
+		 *
+		 * @return millis
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * The message as it was appended: header, type, bitmap, data.
+		 *
+		 * @return bytes
+		 */
+		public byte[] getMessage() {
+			return message;
+		}
+
+		/**
+		 * Message type.
+		 *
+		 * @param charset
+		 *            charset of the message
+		 * @return type
+		 */
+		public String getType(Charset charset) {
+			return new String(message, headerLength, 4, charset);
+		}
+
+		/**
+		 * Rebuild the message to send it again.
+		 *
+		 * @param registry
+		 *            compiled schemas, the type must have a parser
+		 * @param charset
+		 *            charset of the message
+		 * @return {@link WriteIsoMessage}
+		 * @throws IllegalArgumentException
+		 *             if the type has no parser
+		 */
+		public WriteIsoMessage toMessage(IsoSchemaRegistry registry,
+				Charset charset) {
+			String type = getType(charset);
+			IsoSchema schema = registry.get(type);
+			if (schema == null || !schema.hasParser()) {
+				throw new IllegalArgumentException("No parser of type ["
+						+ type + "]");
+			}
+			int off = headerLength + 4;
+			ReadIsoMessage read = new ReadIsoMessage(schema,
+					Arrays.copyOfRange(message, off, message.length), charset);
+			WriteIsoMessage write = new WriteIsoMessage(schema, charset);
+			for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+				if (read.getRawLength(num) > 0) {
+					write.setIsoValue(num, read.getRawIsoValue(num));
+				}
+			}
+			return write;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry[" + Long.toHexString(id) + "]";
+		}
+	}
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.tool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.server.IsoHandler;
+import com.rockagen.upos.server.IsoServer;
+import com.rockagen.upos.server.IsoSession;
+
+/**
+ * Stand-in host
+ * <p>
+ * Answers every request type whose response type (third digit plus one, eg:
+ * 0100 -> 0110, 0200 -> 0210, 0800 -> 0810) is defined: the fields echoed by
+ * the response <code>&lt;template&gt;</code>, or the usual echoed fields if
+ * it has none, and field 39 drawn from the weighted response codes (network
+ * management is always answered 00). A response is sent after a random
+ * latency without holding the event loop.
+ * </p>
+ *
+ * <pre>
+ * IsoHostSimulator host = new IsoHostSimulator(
+ * 		new InetSocketAddress(&quot;127.0.0.1&quot;, 9000), framing, registry);
+ * host.setLatency(2, 20, TimeUnit.MILLISECONDS);
+ * host.addResponseCode(&quot;00&quot;, 95);
+ * host.addResponseCode(&quot;51&quot;, 5);
+ * host.start();
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoHostSimulator {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoHostSimulator.class);
+
+	/**
+	 * Echoed when the response type has no template.
+	 */
+	private static final int[] DEFAULT_ECHO = { 2, 3, 4, 7, 11, 12, 13, 32,
+			33, 37, 41, 42, 49, 70 };
+
+	private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	private final InetSocketAddress address;
+
+	private final IsoFraming framing;
+
+	private final IsoSchemaRegistry registry;
+
+	private final List<String> codes = new ArrayList<String>();
+
+	private final List<Integer> weights = new ArrayList<Integer>();
+
+	private final AtomicLong answered = new AtomicLong();
+
+	private Charset charset = Charset.defaultCharset();
+
+	private int loops = Runtime.getRuntime().availableProcessors();
+
+	private long minLatency;
+
+	private long maxLatency;
+
+	private int totalWeight;
+
+	private IsoServer server;
+
+	private ScheduledExecutorService delayer;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a host.
+	 *
+	 * @param address
+	 *            listen address, port 0 for any free port
+	 * @param framing
+	 *            {@link IsoFraming} of the links
+	 * @param registry
+	 *            compiled schemas, null as the default iso8583.xml
+	 */
+	public IsoHostSimulator(InetSocketAddress address, IsoFraming framing,
+			IsoSchemaRegistry registry) {
+		this.address = address;
+		this.framing = framing;
+		this.registry = registry;
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Bind and answer.
+	 *
+	 * @throws IOException
+	 *             if bind failed
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Host already started");
+		}
+		if (codes.isEmpty()) {
+			addResponseCode("00", 1);
+		}
+		IsoServer s = new IsoServer(address, framing, registry, new Host());
+		s.setCharset(charset);
+		s.setLoops(loops);
+		if (maxLatency > 0) {
+			delayer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "upos-host-delay");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		s.start();
+		server = s;
+		log.info("Host simulator on {}, latency {}..{}us, codes {} {}",
+				new Object[] { s.getLocalAddress(), minLatency / 1000,
+						maxLatency / 1000, codes, weights });
+	}
+
+	/**
+	 * Close the links and stop.
+	 */
+	public synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		server.stop();
+		if (delayer != null) {
+			delayer.shutdownNow();
+			delayer = null;
+		}
+		server = null;
+	}
+
+	/**
+	 * Response type of a request type.
+	 *
+	 * @param type
+	 *            request type
+	 * @return response type, null if type is not a request
+	 */
+	static String responseType(String type) {
+		if (type.length() != 4) {
+			return null;
+		}
+		char c = type.charAt(2);
+		if (c < '0' || c > '8' || (c - '0') % 2 != 0) {
+			return null;
+		}
+		return type.substring(0, 2) + (char) (c + 1) + type.charAt(3);
+	}
+
+	private String drawCode(Random random) {
+		int r = random.nextInt(totalWeight);
+		for (int i = 0; i < codes.size(); i++) {
+			r -= weights.get(i);
+			if (r < 0) {
+				return codes.get(i);
+			}
+		}
+		return codes.get(codes.size() - 1);
+	}
+
+	/**
+	 * Set the latency of the responses, drawn uniformly, default none.
+	 *
+	 * @param min
+	 *            min latency
+	 * @param max
+	 *            max latency
+	 * @param unit
+	 *            {@link TimeUnit}
+	 */
+	public synchronized void setLatency(long min, long max, TimeUnit unit) {
+		checkNotStarted();
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException(
+					"Latency must be 0 <= min <= max");
+		}
+		this.minLatency = unit.toNanos(min);
+		this.maxLatency = unit.toNanos(max);
+	}
+
+	/**
+	 * Add a response code, drawn in proportion to its weight. Only 00 is
+	 * answered if none is added.
+	 *
+	 * @param code
+	 *            field 39, 2 characters
+	 * @param weight
+	 *            weight
+	 */
+	public synchronized void addResponseCode(String code, int weight) {
+		checkNotStarted();
+		if (code == null || code.length() != 2 || weight < 1) {
+			throw new IllegalArgumentException(
+					"Code must be 2 characters and weight > 0");
+		}
+		codes.add(code);
+		weights.add(weight);
+		totalWeight += weight;
+	}
+
+	/**
+	 * Set charset of the messages, default the platform charset.
+	 *
+	 * @param charset
+	 *            charset
+	 */
+	public synchronized void setCharset(Charset charset) {
+		checkNotStarted();
+		if (charset == null) {
+			throw new IllegalArgumentException("Charset must not be null");
+		}
+		this.charset = charset;
+	}
+
+	/**
+	 * Set count of event loops, default available processors.
+	 *
+	 * @param loops
+	 *            loops
+	 */
+	public synchronized void setLoops(int loops) {
+		checkNotStarted();
+		if (loops < 1) {
+			throw new IllegalArgumentException("loops must be > 0");
+		}
+		this.loops = loops;
+	}
+
+	/**
+	 * Bound address.
+	 *
+	 * @return address, null if not started
+	 */
+	public synchronized InetSocketAddress getLocalAddress() {
+		return server == null ? null : server.getLocalAddress();
+	}
+
+	/**
+	 * Responses sent.
+	 *
+	 * @return count
+	 */
+	public long getAnswered() {
+		return answered.get();
+	}
+
+	private void checkNotStarted() {
+		if (server != null) {
+			throw new IllegalStateException("Host already started");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IsoHostSimulator[" + address + "]";
+	}
+
+	/**
+	 * Builds the responses.
+	 */
+	private final class Host implements IsoHandler {
+
+		@Override
+		public WriteIsoMessage handle(final IsoSession session,
+				ReadIsoMessage request) {
+			String type = responseType(request.getType());
+			// the default followed across reloads
+			IsoSchemaRegistry r = registry != null ? registry
+					: IsoPreDefineParser.createDefault().compile();
+			IsoSchema schema = type == null ? null : r.get(type);
+			if (schema == null) {
+				log.debug("No response to [{}]", request.getType());
+				return null;
+			}
+			final WriteIsoMessage response = new WriteIsoMessage(schema,
+					charset);
+			if (request.getType().equals(schema.getEchoRequest())) {
+				response.respondTo(request);
+			} else {
+				for (int num : DEFAULT_ECHO) {
+					byte[] raw = request.getRawIsoValue(num);
+					if (raw != null && schema.getParserField(num) != null) {
+						response.setIsoValue(num, raw);
+					}
+				}
+			}
+			Random random = RANDOM.get();
+			String code = type.charAt(1) == '8' ? "00" : drawCode(random);
+			response.setIsoValue(39, code.getBytes(charset));
+			long delay = minLatency;
+			if (maxLatency > minLatency) {
+				delay += (long) (random.nextDouble() * (maxLatency - minLatency));
+			}
+			if (delay <= 0) {
+				answered.incrementAndGet();
+				return response;
+			}
+			final byte[] tpdu = session.getRequestTpdu();
+			delayer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (session.send(response, tpdu)) {
+						answered.incrementAndGet();
+					}
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.tool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram
+ * <p>
+ * Values (nanoseconds) below 64 have a bucket each, above each power of two
+ * is split into 32 buckets, so any value is kept within about 3% of its
+ * bucket bounds in a fixed 15KB whatever the range. Recording is a few
+ * shifts and one atomic add, it can be called by any thread.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoLatencyHistogram {
+
+	// ~ Instance fields ==================================================
+
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB = 1 << SUB_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB + 2 * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Record a value.
+	 *
+	 * @param nanos
+	 *            latency, negative counts as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos)) {
+			m = max.get();
+		}
+	}
+
+	static int index(long v) {
+		if (v < 2 * SUB) {
+			return (int) v;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return (shift << SUB_BITS) + (int) (v >>> shift);
+	}
+
+	/**
+	 * Highest value of a bucket.
+	 */
+	static long highest(int index) {
+		if (index < 2 * SUB) {
+			return index;
+		}
+		int shift = (index >>> SUB_BITS) - 1;
+		long low = (long) ((index & (SUB - 1)) + SUB) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	/**
+	 * Value at a percentile, the highest value of its bucket.
+	 *
+	 * @param percentile
+	 *            0..100
+	 * @return nanoseconds, 0 if empty
+	 */
+	public long percentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile out of 0..100");
+		}
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Count of values.
+	 *
+	 * @return count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Mean value.
+	 *
+	 * @return nanoseconds, 0 if empty
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * Highest value.
+	 *
+	 * @return nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Forget every value.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms "
+						+ "p99.9=%.3fms max=%.3fms", getCount(),
+				getMean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+				percentile(99) / 1e6, percentile(99.9) / 1e6, getMax() / 1e6);
+	}
+
+}
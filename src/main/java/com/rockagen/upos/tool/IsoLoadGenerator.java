@@ -0,0 +1,391 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rockagen.upos.client.IsoClient;
+import com.rockagen.upos.client.IsoFuture;
+import com.rockagen.upos.message.ReadIsoMessage;
+
+/**
+ * Open-loop load generator
+ * <p>
+ * Each link has a sender thread with a fixed schedule: request k of a link
+ * is due at start + k * period whatever the responses, a late sender sends
+ * at once and does not skip. Latency is measured from the due time, not
+ * from the actual send, so a stalled host or link shows in the histogram
+ * instead of silently lowering the rate (no coordinated omission).
+ * </p>
+ *
+ * <pre>
+ * IsoLoadGenerator load = new IsoLoadGenerator(links);
+ * load.addSampler(new IsoRequestSampler(registry.get(&quot;0200&quot;), charset), 9);
+ * load.addSampler(new IsoRequestSampler(registry.get(&quot;0100&quot;), charset), 1);
+ * load.setRate(5000);
+ * load.setDuration(60, TimeUnit.SECONDS);
+ * load.run();
+ * System.out.println(load.report());
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoLoadGenerator {
+
+	// ~ Instance fields ==================================================
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IsoLoadGenerator.class);
+
+	private final List<IsoClient> clients;
+
+	private final List<IsoRequestSampler> samplers = new ArrayList<IsoRequestSampler>();
+
+	private final List<Integer> weights = new ArrayList<Integer>();
+
+	private final IsoLatencyHistogram latency = new IsoLatencyHistogram();
+
+	private final ConcurrentMap<String, AtomicLong> responseCodes = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicLong sent = new AtomicLong();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong timedOut = new AtomicLong();
+
+	private final AtomicLong pending = new AtomicLong();
+
+	private double rate = 100;
+
+	private long duration = TimeUnit.SECONDS.toNanos(10);
+
+	private long warmup;
+
+	private int totalWeight;
+
+	private long elapsed;
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a generator.
+	 *
+	 * @param clients
+	 *            connected links, a sender thread each
+	 */
+	public IsoLoadGenerator(List<IsoClient> clients) {
+		if (clients == null || clients.isEmpty()) {
+			throw new IllegalArgumentException("No link");
+		}
+		this.clients = new ArrayList<IsoClient>(clients);
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Run the load, wait for the responses in flight at the end.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted
+	 */
+	public void run() throws InterruptedException {
+		if (samplers.isEmpty()) {
+			throw new IllegalStateException("No sampler");
+		}
+		int n = clients.size();
+		final long period = (long) (1e9 * n / rate);
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		final long end = start + warmup + duration;
+		final long measureFrom = start + warmup;
+		Thread[] senders = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			final IsoClient client = clients.get(i);
+			// links start staggered over one period
+			final long first = start + period * i / n;
+			senders[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					send(client, first, period, end, measureFrom);
+				}
+			}, "upos-load-" + i);
+			senders[i].start();
+		}
+		for (Thread t : senders) {
+			t.join();
+		}
+		long drain = 1000;
+		for (IsoClient c : clients) {
+			drain = Math.max(drain, c.getResponseTimeout() + 1000);
+		}
+		long deadline = System.currentTimeMillis() + drain;
+		while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		elapsed = duration;
+		log.info("Load done: {}", report());
+	}
+
+	private void send(IsoClient client, long first, long period, long end,
+			long measureFrom) {
+		Random random = new Random();
+		for (long due = first; due < end; due += period) {
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			IsoRequestSampler sampler = pick(random);
+			pending.incrementAndGet();
+			sent.incrementAndGet();
+			IsoFuture f = client.send(sampler.next(random));
+			f.addListener(new Recorder(due, due >= measureFrom));
+		}
+	}
+
+	private IsoRequestSampler pick(Random random) {
+		if (samplers.size() == 1) {
+			return samplers.get(0);
+		}
+		int r = random.nextInt(totalWeight);
+		for (int i = 0; i < samplers.size(); i++) {
+			r -= weights.get(i);
+			if (r < 0) {
+				return samplers.get(i);
+			}
+		}
+		return samplers.get(samplers.size() - 1);
+	}
+
+	/**
+	 * Add a request type, drawn in proportion to its weight.
+	 *
+	 * @param sampler
+	 *            {@link IsoRequestSampler}
+	 * @param weight
+	 *            weight
+	 * @return this
+	 */
+	public IsoLoadGenerator addSampler(IsoRequestSampler sampler, int weight) {
+		if (sampler == null || weight < 1) {
+			throw new IllegalArgumentException(
+					"Sampler must not be null and weight > 0");
+		}
+		samplers.add(sampler);
+		weights.add(weight);
+		totalWeight += weight;
+		return this;
+	}
+
+	/**
+	 * Set requests per second over all links, default 100.
+	 *
+	 * @param rate
+	 *            requests per second
+	 * @return this
+	 */
+	public IsoLoadGenerator setRate(double rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("rate must be > 0");
+		}
+		this.rate = rate;
+		return this;
+	}
+
+	/**
+	 * Set measured duration, default 10 seconds.
+	 *
+	 * @param duration
+	 *            duration
+	 * @param unit
+	 *            {@link TimeUnit}
+	 * @return this
+	 */
+	public IsoLoadGenerator setDuration(long duration, TimeUnit unit) {
+		if (duration <= 0) {
+			throw new IllegalArgumentException("duration must be > 0");
+		}
+		this.duration = unit.toNanos(duration);
+		return this;
+	}
+
+	/**
+	 * Set a warmup before the measured duration, sent at the same rate but
+	 * not counted in the latency, default none.
+	 *
+	 * @param warmup
+	 *            warmup
+	 * @param unit
+	 *            {@link TimeUnit}
+	 * @return this
+	 */
+	public IsoLoadGenerator setWarmup(long warmup, TimeUnit unit) {
+		if (warmup < 0) {
+			throw new IllegalArgumentException("warmup must be >= 0");
+		}
+		this.warmup = unit.toNanos(warmup);
+		return this;
+	}
+
+	/**
+	 * Latency from the due time to the response, measured requests only.
+	 *
+	 * @return {@link IsoLatencyHistogram}
+	 */
+	public IsoLatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Requests sent, warmup included.
+	 *
+	 * @return count
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * Responses received, warmup included.
+	 *
+	 * @return count
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Requests failed other than by timeout, eg: link closed.
+	 *
+	 * @return count
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Requests without a response in the response timeout.
+	 *
+	 * @return count
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	/**
+	 * Responses by field 39.
+	 *
+	 * @return sorted counts, a snapshot
+	 */
+	public Map<String, Long> getResponseCodes() {
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> e : responseCodes.entrySet()) {
+			m.put(e.getKey(), e.getValue().get());
+		}
+		return m;
+	}
+
+	/**
+	 * Measured responses per second of the last run.
+	 *
+	 * @return throughput
+	 */
+	public double getThroughput() {
+		return elapsed == 0 ? 0 : latency.getCount() * 1e9 / elapsed;
+	}
+
+	/**
+	 * Summary of the last run.
+	 *
+	 * @return text
+	 */
+	public String report() {
+		return String.format(
+				"rate=%.0f/s links=%d sent=%d completed=%d failed=%d "
+						+ "timedOut=%d throughput=%.1f/s codes=%s%nlatency %s",
+				rate, clients.size(), getSent(), getCompleted(), getFailed(),
+				getTimedOut(), getThroughput(), getResponseCodes(), latency);
+	}
+
+	@Override
+	public String toString() {
+		return "IsoLoadGenerator[" + rate + "/s, " + clients.size()
+				+ " links]";
+	}
+
+	/**
+	 * Records the outcome of a request.
+	 */
+	private final class Recorder implements IsoFuture.Listener {
+
+		private final long due;
+		private final boolean measured;
+
+		Recorder(long due, boolean measured) {
+			this.due = due;
+			this.measured = measured;
+		}
+
+		@Override
+		public void completed(ReadIsoMessage response) {
+			long now = System.nanoTime();
+			if (measured) {
+				latency.record(now - due);
+			}
+			byte[] rc = response.getIsoValue(39);
+			String code = rc == null ? "--" : new String(rc);
+			AtomicLong c = responseCodes.get(code);
+			if (c == null) {
+				AtomicLong created = new AtomicLong();
+				c = responseCodes.putIfAbsent(code, created);
+				if (c == null) {
+					c = created;
+				}
+			}
+			c.incrementAndGet();
+			completed.incrementAndGet();
+			pending.decrementAndGet();
+		}
+
+		@Override
+		public void failed(Throwable cause) {
+			if (cause instanceof TimeoutException) {
+				timedOut.incrementAndGet();
+			} else {
+				failed.incrementAndGet();
+			}
+			pending.decrementAndGet();
+		}
+	}
+
+}
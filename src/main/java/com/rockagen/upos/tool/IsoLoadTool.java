@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.tool;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.rockagen.upos.client.IsoClient;
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+import com.rockagen.upos.message.IsoFraming;
+
+/**
+ * Command line of the load generator and the stand-in host
+ *
+ * <pre>
+ * # a host on 9000 answering 95% 00, 5% 51 after 2..20ms
+ * IsoLoadTool host port=9000 latency=2-20 codes=00:95,51:5
+ * # 4 links at 2000 requests per second for 60s, 9 0200 for 1 0800
+ * IsoLoadTool load host=10.0.0.5 port=9000 links=4 tps=2000 seconds=60 types=0200:9,0800:1
+ * # both over loopback
+ * IsoLoadTool loopback links=4 tps=2000 seconds=10 latency=1-5
+ * </pre>
+ * <p>
+ * Other options: <code>xml</code> (iso8583.xml path, default the one on the
+ * classpath), <code>prefix</code> (BINARY2, ASCII4), <code>tpdu</code>
+ * (true/false), <code>charset</code>, <code>warmup</code> (seconds),
+ * <code>timeout</code> (response timeout ms), <code>loops</code> (host event
+ * loops).
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public final class IsoLoadTool {
+
+	// ~ Constructors ==================================================
+
+	private IsoLoadTool() {
+	}
+
+	// ~ Methods ==================================================
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: IsoLoadTool host|load|loopback"
+					+ " [key=value...]");
+			System.exit(2);
+		}
+		String mode = args[0];
+		Map<String, String> opts = new HashMap<String, String>();
+		for (int i = 1; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 1) {
+				throw new IllegalArgumentException("Not key=value: " + args[i]);
+			}
+			opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		IsoPredefine predefine = opts.containsKey("xml") ? IsoPreDefineParser
+				.createFromPath(opts.get("xml")) : IsoPreDefineParser
+				.createDefault();
+		if (predefine == null) {
+			throw new IllegalArgumentException("No iso8583.xml");
+		}
+		IsoSchemaRegistry registry = predefine.compile();
+		IsoFraming framing = new IsoFraming(IsoLengthPrefix.valueOf(get(opts,
+				"prefix", "BINARY2")), Boolean.parseBoolean(get(opts, "tpdu",
+				"true")));
+		Charset charset = Charset.forName(get(opts, "charset", "US-ASCII"));
+		int port = Integer.parseInt(get(opts, "port", "9000"));
+
+		if ("host".equals(mode)) {
+			IsoHostSimulator host = host(opts, new InetSocketAddress(port),
+					framing, registry, charset);
+			System.out.println("Host on " + host.getLocalAddress());
+			Thread.sleep(Long.MAX_VALUE);
+		} else if ("load".equals(mode)) {
+			load(opts, new InetSocketAddress(get(opts, "host", "127.0.0.1"),
+					port), framing, registry, charset);
+		} else if ("loopback".equals(mode)) {
+			IsoHostSimulator host = host(opts, new InetSocketAddress(
+					"127.0.0.1", 0), framing, registry, charset);
+			try {
+				load(opts, host.getLocalAddress(), framing, registry, charset);
+			} finally {
+				host.stop();
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+	}
+
+	/**
+	 * Start a host of the options.
+	 */
+	static IsoHostSimulator host(Map<String, String> opts,
+			InetSocketAddress address, IsoFraming framing,
+			IsoSchemaRegistry registry, Charset charset) throws Exception {
+		IsoHostSimulator host = new IsoHostSimulator(address, framing,
+				registry);
+		host.setCharset(charset);
+		if (opts.containsKey("loops")) {
+			host.setLoops(Integer.parseInt(opts.get("loops")));
+		}
+		String[] latency = get(opts, "latency", "0-0").split("-");
+		host.setLatency(Long.parseLong(latency[0]),
+				Long.parseLong(latency[latency.length - 1]),
+				TimeUnit.MILLISECONDS);
+		for (String[] cw : weighted(get(opts, "codes", "00:1"))) {
+			host.addResponseCode(cw[0], Integer.parseInt(cw[1]));
+		}
+		host.start();
+		return host;
+	}
+
+	/**
+	 * Run a load of the options and print the report.
+	 */
+	static IsoLoadGenerator load(Map<String, String> opts,
+			InetSocketAddress address, IsoFraming framing,
+			IsoSchemaRegistry registry, Charset charset) throws Exception {
+		int links = Integer.parseInt(get(opts, "links", "1"));
+		List<IsoClient> clients = new ArrayList<IsoClient>();
+		try {
+			for (int i = 0; i < links; i++) {
+				IsoClient c = new IsoClient(address, framing, registry);
+				c.setCharset(charset);
+				c.setResponseTimeout(Long.parseLong(get(opts, "timeout",
+						"5000")));
+				c.connect();
+				clients.add(c);
+			}
+			IsoLoadGenerator load = new IsoLoadGenerator(clients);
+			for (String[] tw : weighted(get(opts, "types", "0200:1"))) {
+				load.addSampler(
+						new IsoRequestSampler(registry.get(tw[0]), charset),
+						Integer.parseInt(tw[1]));
+			}
+			load.setRate(Double.parseDouble(get(opts, "tps", "100")));
+			load.setDuration(Long.parseLong(get(opts, "seconds", "10")),
+					TimeUnit.SECONDS);
+			load.setWarmup(Long.parseLong(get(opts, "warmup", "0")),
+					TimeUnit.SECONDS);
+			load.run();
+			System.out.println(load.report());
+			return load;
+		} finally {
+			for (IsoClient c : clients) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Parse <code>a:1,b:2</code>, a weight defaults to 1.
+	 */
+	private static List<String[]> weighted(String spec) {
+		List<String[]> list = new ArrayList<String[]>();
+		for (String item : spec.split(",")) {
+			String[] kv = item.trim().split(":");
+			list.add(new String[] { kv[0], kv.length > 1 ? kv[1] : "1" });
+		}
+		return list;
+	}
+
+	private static String get(Map<String, String> opts, String key,
+			String dflt) {
+		String v = opts.get(key);
+		return v == null ? dflt : v;
+	}
+
+}
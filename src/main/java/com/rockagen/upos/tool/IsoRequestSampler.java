@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.tool;
+
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Random;
+
+import com.rockagen.upos.define.IsoPredefine.IsoField;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.enums.IsoType;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.util.IsoFormatter;
+
+/**
+ * Random requests of a type
+ * <p>
+ * Fields are those of the type's parser (11 is left to the link, 39 is not
+ * sent), values of the type's <code>&lt;template&gt;</code> and
+ * {@link #setValue(int, String)} are kept as they are, the others are drawn
+ * per request by field type: digits, letters, amounts, the current date and
+ * time, random bytes. LLVAR and LLLVAR values have the length of their
+ * definition, 16 and 32 if it has none.
+ * </p>
+ *
+ * <pre>
+ * IsoRequestSampler sampler = new IsoRequestSampler(registry.get(&quot;0200&quot;),
+ * 		charset);
+ * sampler.setValue(3, &quot;000000&quot;);
+ * WriteIsoMessage wim = sampler.next(random);
+ * </pre>
+ * <p>
+ * The sampler is not changed by {@link #next(Random)}, threads can share it
+ * with a {@link Random} each.
+ * </p>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+public class IsoRequestSampler {
+
+	// ~ Instance fields ==================================================
+
+	private static final byte[] ALNUM = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789"
+			.getBytes();
+
+	private final IsoSchema schema;
+
+	private final Charset charset;
+
+	/**
+	 * Fixed raw values by field num, null to draw.
+	 */
+	private final byte[][] fixed = new byte[IsoSchema.MAX_FIELD + 1][];
+
+	private final boolean[] present = new boolean[IsoSchema.MAX_FIELD + 1];
+
+	// ~ Constructors ==================================================
+
+	/**
+	 * Create a sampler.
+	 *
+	 * @param schema
+	 *            {@link IsoSchema} of the request type, it must have a
+	 *            parser
+	 * @param charset
+	 *            charset, null as the platform charset
+	 */
+	public IsoRequestSampler(IsoSchema schema, Charset charset) {
+		if (schema == null || !schema.hasParser()) {
+			throw new IllegalArgumentException("Schema must have a parser");
+		}
+		this.schema = schema;
+		this.charset = charset == null ? Charset.defaultCharset() : charset;
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			present[num] = num != 11 && num != 39
+					&& schema.getParserField(num) != null;
+			IsoField t = schema.getTemplateField(num);
+			if (present[num] && t != null && t.getValue() != null) {
+				fixed[num] = raw(schema.getParserField(num), t.getValue());
+			}
+		}
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Send only these fields.
+	 *
+	 * @param nums
+	 *            field nums of the parser
+	 * @return this
+	 */
+	public IsoRequestSampler setFields(int... nums) {
+		boolean[] p = new boolean[IsoSchema.MAX_FIELD + 1];
+		for (int num : nums) {
+			parserField(num);
+			p[num] = true;
+		}
+		System.arraycopy(p, 0, present, 0, p.length);
+		return this;
+	}
+
+	/**
+	 * Send a field with a fixed value.
+	 *
+	 * @param num
+	 *            field num of the parser
+	 * @param value
+	 *            value, formatted by the field type
+	 * @return this
+	 */
+	public IsoRequestSampler setValue(int num, String value) {
+		IsoField f = parserField(num);
+		if (value == null) {
+			throw new IllegalArgumentException("Value must not be null");
+		}
+		fixed[num] = raw(f, value);
+		present[num] = true;
+		return this;
+	}
+
+	private IsoField parserField(int num) {
+		IsoField f = schema.getParserField(num);
+		if (f == null) {
+			throw new IllegalArgumentException("No field[" + num + "] in ["
+					+ schema.getType() + "]");
+		}
+		return f;
+	}
+
+	private byte[] raw(IsoField f, String value) {
+		IsoType t = f.getType();
+		if (t == IsoType.LLVAR || t == IsoType.LLLVAR) {
+			byte[] v = value.getBytes(charset);
+			int digits = t == IsoType.LLVAR ? 2 : 3;
+			byte[] raw = new byte[digits + v.length];
+			IsoFormatter.var(v, 0, v.length, digits, raw, 0);
+			return raw;
+		}
+		if (t == IsoType.BINARY) {
+			return value.getBytes(charset);
+		}
+		return t.format(value, t.isNsLen() ? f.getLength() : t.getLen())
+				.getBytes(charset);
+	}
+
+	/**
+	 * Draw a request.
+	 *
+	 * @param random
+	 *            {@link Random} of the calling thread
+	 * @return {@link WriteIsoMessage}
+	 */
+	public WriteIsoMessage next(Random random) {
+		WriteIsoMessage wim = new WriteIsoMessage(schema, charset);
+		Date now = null;
+		for (int num = 2; num <= IsoSchema.MAX_FIELD; num++) {
+			if (!present[num]) {
+				continue;
+			}
+			if (fixed[num] != null) {
+				wim.setIsoValue(num, fixed[num]);
+				continue;
+			}
+			IsoField f = schema.getParserField(num);
+			IsoType t = f.getType();
+			switch (t) {
+			case DATE10:
+			case DATE4_YM:
+			case DATE4_MD:
+			case TIME:
+				if (now == null) {
+					now = new Date();
+				}
+				wim.setIsoValue(num, t.format(now).getBytes(charset));
+				break;
+			case AMOUNT:
+				byte[] amount = new byte[12];
+				IsoFormatter.amount(100 + random.nextInt(1000000), amount, 0);
+				wim.setIsoValue(num, amount);
+				break;
+			case NUMERIC:
+				wim.setIsoValue(num, digits(random, f.getLength()));
+				break;
+			case ALPHA:
+				wim.setIsoValue(num, alnum(random, f.getLength()));
+				break;
+			case BINARY:
+				byte[] b = new byte[f.getLength()];
+				random.nextBytes(b);
+				wim.setIsoValue(num, b);
+				break;
+			default:
+				boolean ll = t == IsoType.LLVAR;
+				int len = f.getLength() > 0 ? f.getLength() : ll ? 16 : 32;
+				byte[] v = ll ? digits(random, len) : alnum(random, len);
+				byte[] raw = new byte[(ll ? 2 : 3) + len];
+				IsoFormatter.var(v, 0, len, ll ? 2 : 3, raw, 0);
+				wim.setIsoValue(num, raw);
+			}
+		}
+		return wim;
+	}
+
+	private static byte[] digits(Random random, int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = (byte) ('0' + random.nextInt(10));
+		}
+		return b;
+	}
+
+	private static byte[] alnum(Random random, int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = ALNUM[random.nextInt(ALNUM.length)];
+		}
+		return b;
+	}
+
+	/**
+	 * Return the request type.
+	 *
+	 * @return type
+	 */
+	public String getType() {
+		return schema.getType();
+	}
+
+	@Override
+	public String toString() {
+		return "IsoRequestSampler[" + schema.getType() + "]";
+	}
+
+}
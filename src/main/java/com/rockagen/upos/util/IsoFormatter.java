@@ -0,0 +1,446 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Allocation-free ISO8583 value formatter
+ * <p>
+ * Writes zero-padded numerics, space-padded alphas, LL/LLL prefixed
+ * variables and amounts straight into a byte array with plain integer
+ * arithmetic. Every method returns the number of bytes written.
+ * </p>
+ *
+ * <pre>
+ * byte[] buf = new byte[32];
+ * int n = IsoFormatter.numeric(256, 6, buf, 0); // "000256"
+ * n += IsoFormatter.alpha("f12", 4, buf, n); // "f12 "
+ * n += IsoFormatter.amount(1250, buf, n); // "000000001250"
+ * </pre>
+ *
+ * @author RA
+ * @since JDK1.6
+ */
+final public class IsoFormatter {
+
+	// ~ Instance fields ==================================================
+
+	/**
+	 * Returned by the amount parsers when the value can not be converted with
+	 * integer arithmetic.
+	 */
+	public static final long NOT_PARSED = Long.MIN_VALUE;
+
+	private static final byte ZERO = '0';
+
+	private static final byte SPACE = ' ';
+
+	private static final byte MINUS = '-';
+
+	/**
+	 * Powers of ten that fit in a long.
+	 */
+	private static final long[] POW10 = new long[19];
+
+	private static final BigInteger LONG_MIN = BigInteger
+			.valueOf(Long.MIN_VALUE);
+
+	private static final BigInteger LONG_MAX = BigInteger
+			.valueOf(Long.MAX_VALUE);
+
+	static {
+		long p = 1;
+		for (int i = 0; i < POW10.length; i++) {
+			POW10[i] = p;
+			p *= 10;
+		}
+	}
+
+	// ~ Constructors ==================================================
+
+	private IsoFormatter() {
+	}
+
+	// ~ Methods ==================================================
+
+	/**
+	 * Write value as <code>String.format("%0{width}d", value)</code> does.
+	 *
+	 * @param value
+	 *            value
+	 * @param width
+	 *            minimum width, zero-filled to the left
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int padded(long value, int width, byte[] dst, int off) {
+		return padded(value, width, Integer.MAX_VALUE, dst, off);
+	}
+
+	/**
+	 * Write value as NUMERIC, that is zero-filled to the left and cut to
+	 * length on the right if it is too long.
+	 *
+	 * @param value
+	 *            value
+	 * @param length
+	 *            field length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int numeric(long value, int length, byte[] dst, int off) {
+		return padded(value, length, length, dst, off);
+	}
+
+	/**
+	 * Write an ASCII string as NUMERIC, that is zero-filled to the left and cut
+	 * to length on the right if it is too long.
+	 *
+	 * @param value
+	 *            ASCII value
+	 * @param length
+	 *            field length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int numeric(String value, int length, byte[] dst, int off) {
+		int vlen = value.length();
+		if (vlen >= length) {
+			ascii(value, 0, length, dst, off);
+			return length;
+		}
+		int pad = length - vlen;
+		fill(dst, off, pad, ZERO);
+		ascii(value, 0, vlen, dst, off + pad);
+		return length;
+	}
+
+	/**
+	 * Write an ASCII string as ALPHA, that is filled with spaces to the right
+	 * and cut to length if it is too long.
+	 *
+	 * @param value
+	 *            ASCII value, null as empty
+	 * @param length
+	 *            field length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int alpha(String value, int length, byte[] dst, int off) {
+		int vlen = value == null ? 0 : value.length();
+		if (vlen >= length) {
+			ascii(value, 0, length, dst, off);
+			return length;
+		}
+		ascii(value, 0, vlen, dst, off);
+		fill(dst, off + vlen, length - vlen, SPACE);
+		return length;
+	}
+
+	/**
+	 * Write bytes as ALPHA, that is filled with spaces to the right and cut to
+	 * length if it is too long.
+	 *
+	 * @param value
+	 *            value, null as empty
+	 * @param length
+	 *            field length
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int alpha(byte[] value, int length, byte[] dst, int off) {
+		int vlen = value == null ? 0 : value.length;
+		if (vlen >= length) {
+			System.arraycopy(value, 0, dst, off, length);
+			return length;
+		}
+		if (vlen > 0) {
+			System.arraycopy(value, 0, dst, off, vlen);
+		}
+		fill(dst, off + vlen, length - vlen, SPACE);
+		return length;
+	}
+
+	/**
+	 * Write a variable length value with its length prefix (LLVAR is 2
+	 * digits, LLLVAR is 3 digits). Values longer than the prefix can express
+	 * are cut.
+	 *
+	 * @param value
+	 *            value
+	 * @param voff
+	 *            value offset
+	 * @param vlen
+	 *            value length
+	 * @param digits
+	 *            length prefix digits
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int var(byte[] value, int voff, int vlen, int digits,
+			byte[] dst, int off) {
+		int max = (int) POW10[digits] - 1;
+		if (vlen > max) {
+			vlen = max;
+		}
+		padded(vlen, digits, digits, dst, off);
+		System.arraycopy(value, voff, dst, off + digits, vlen);
+		return digits + vlen;
+	}
+
+	/**
+	 * Write an amount in minor units as a 12 digits AMOUNT, the same as
+	 * <code>String.format("%012d", minor)</code>.
+	 *
+	 * @param minor
+	 *            amount in minor units (cents)
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int amount(long minor, byte[] dst, int off) {
+		return padded(minor, 12, dst, off);
+	}
+
+	/**
+	 * Convert a plain decimal string (eg: "12.50") to minor units, the same
+	 * as <code>new BigDecimal(value).movePointRight(2).longValue()</code>.
+	 *
+	 * @param value
+	 *            decimal string
+	 * @return minor units, or {@link #NOT_PARSED} if the value is not a plain
+	 *         decimal of at most 16 integer digits
+	 */
+	public static long parseAmount(String value) {
+		if (value == null) {
+			return NOT_PARSED;
+		}
+		int len = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (len > 0) {
+			char c = value.charAt(0);
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				i++;
+			}
+		}
+		long units = 0;
+		int digits = 0;
+		int significant = 0;
+		for (; i < len; i++) {
+			char c = value.charAt(i);
+			if (c == '.') {
+				break;
+			}
+			if (c < '0' || c > '9') {
+				return NOT_PARSED;
+			}
+			units = units * 10 + (c - '0');
+			digits++;
+			if (units != 0 && ++significant > 16) {
+				return NOT_PARSED;
+			}
+		}
+		long fraction = 0;
+		int scale = 0;
+		if (i < len) {
+			// skip '.'
+			i++;
+			for (; i < len; i++) {
+				char c = value.charAt(i);
+				if (c < '0' || c > '9') {
+					return NOT_PARSED;
+				}
+				if (scale < 2) {
+					fraction = fraction * 10 + (c - '0');
+					scale++;
+				}
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return NOT_PARSED;
+		}
+		for (; scale < 2; scale++) {
+			fraction *= 10;
+		}
+		long minor = units * 100 + fraction;
+		return negative ? -minor : minor;
+	}
+
+	/**
+	 * Convert a BigDecimal to minor units, the same as
+	 * <code>value.movePointRight(2).longValue()</code>.
+	 *
+	 * @param value
+	 *            amount
+	 * @return minor units, or {@link #NOT_PARSED} if the value can not be
+	 *         converted with long arithmetic
+	 */
+	public static long parseAmount(BigDecimal value) {
+		BigInteger unscaled = value.unscaledValue();
+		if (unscaled.compareTo(LONG_MIN) <= 0
+				|| unscaled.compareTo(LONG_MAX) > 0) {
+			return NOT_PARSED;
+		}
+		long u = unscaled.longValue();
+		int shift = value.scale() - 2;
+		if (shift <= 0) {
+			if (-shift >= POW10.length) {
+				return NOT_PARSED;
+			}
+			// wraps like BigInteger.longValue()
+			return u * POW10[-shift];
+		}
+		if (shift >= POW10.length) {
+			return 0;
+		}
+		return u / POW10[shift];
+	}
+
+	/**
+	 * Is every char of value ASCII?
+	 *
+	 * @param value
+	 *            value
+	 * @return true if ASCII or null
+	 */
+	public static boolean isAscii(String value) {
+		if (value == null) {
+			return true;
+		}
+		for (int i = value.length() - 1; i >= 0; i--) {
+			if (value.charAt(i) > 0x7F) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse ASCII digits.
+	 *
+	 * @param src
+	 *            source
+	 * @param off
+	 *            source offset
+	 * @param len
+	 *            count of digits, at most 18
+	 * @return value, -1 if a byte is not a digit or len is out of 1..18
+	 */
+	public static long parseDigits(byte[] src, int off, int len) {
+		if (len < 1 || len > 18) {
+			return -1;
+		}
+		long v = 0;
+		for (int i = off, end = off + len; i < end; i++) {
+			int d = src[i] - ZERO;
+			if (d < 0 || d > 9) {
+				return -1;
+			}
+			v = v * 10 + d;
+		}
+		return v;
+	}
+
+	/**
+	 * Write ASCII chars.
+	 *
+	 * @param value
+	 *            ASCII value
+	 * @param begin
+	 *            begin index
+	 * @param end
+	 *            end index, exclusive
+	 * @param dst
+	 *            destination
+	 * @param off
+	 *            destination offset
+	 * @return bytes written
+	 */
+	public static int ascii(String value, int begin, int end, byte[] dst,
+			int off) {
+		for (int i = begin; i < end; i++) {
+			dst[off++] = (byte) value.charAt(i);
+		}
+		return end - begin;
+	}
+
+	/**
+	 * Write <code>String.format("%0{width}d", value)</code> but at most limit
+	 * bytes.
+	 */
+	private static int padded(long value, int width, int limit, byte[] dst,
+			int off) {
+		// work on the negative magnitude, Long.MIN_VALUE has no positive one
+		long q = value < 0 ? value : -value;
+		int sign = value < 0 ? 1 : 0;
+		int size = 1;
+		for (long t = q / 10; t != 0; t /= 10) {
+			size++;
+		}
+		int total = Math.max(width, size + sign);
+		int count = Math.min(total, limit);
+		int pos = 0;
+		if (sign > 0 && pos < count) {
+			dst[off + pos] = MINUS;
+		}
+		pos += sign;
+		int zeros = total - size - sign;
+		if (pos < count) {
+			fill(dst, off + pos, Math.min(zeros, count - pos), ZERO);
+		}
+		pos += zeros;
+		// digits from the right
+		for (int i = total - 1; i >= pos; i--) {
+			if (i < count) {
+				dst[off + i] = (byte) (ZERO - (q % 10));
+			}
+			q /= 10;
+		}
+		return count;
+	}
+
+	private static void fill(byte[] dst, int off, int len, byte b) {
+		for (int i = 0; i < len; i++) {
+			dst[off + i] = b;
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.server.IsoBlockingServer;
+import com.rockagen.upos.server.IsoHandler;
+import com.rockagen.upos.server.IsoSession;
+
+/**
+ * Loopback benchmark of {@link IsoBlockingServer}: virtual threads against a
+ * platform thread pool, with a handler that blocks.
+ *
+ * <pre>
+ * java com.rockagen.upos.BenchServers [connections] [requests] [latencyMs] [poolSize]
+ * </pre>
+ *
+ * @author RA
+ */
+public class BenchServers {
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final int latency = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int poolSize = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+		IsoHandler blocking = new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) throws Exception {
+				// eg: a database call
+				Thread.sleep(latency);
+				return TestServer.APPROVE.handle(session, request);
+			}
+		};
+
+		ExecutorService virtual = IsoBlockingServer.newVirtualThreadExecutor();
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		// warm up the codecs and the JIT, not reported
+		run(null, blocking, pool, false, 100, 50);
+		if (virtual == null) {
+			System.out.println("virtual: not supported by this runtime");
+		} else {
+			run(null, blocking, virtual, true, 100, 50);
+			run("virtual", blocking, virtual, true, connections, requests);
+			virtual.shutdownNow();
+		}
+		run("platform[" + poolSize + "]", blocking, pool, false, connections,
+				requests);
+		pool.shutdownNow();
+	}
+
+	private static void run(String name, IsoHandler handler,
+			ExecutorService executor, boolean fork, int connections,
+			final int requests) throws Exception {
+		IsoBlockingServer server = new IsoBlockingServer(new InetSocketAddress(
+				"127.0.0.1", 0), TestServer.FRAMING, TestServer.REGISTRY,
+				handler);
+		server.setExecutor(executor, fork);
+		server.setCharset(TestServer.ASCII);
+		server.start();
+		final InetSocketAddress address = server.getLocalAddress();
+		final byte[] frame = TestServer.request0100();
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(connections);
+		ExecutorService clients = IsoBlockingServer.newVirtualThreadExecutor();
+		if (clients == null) {
+			clients = IsoBlockingServer.newPlatformThreadExecutor();
+		}
+		long start = System.nanoTime();
+		for (int c = 0; c < connections; c++) {
+			clients.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Socket s = new Socket();
+						s.connect(address, 10000);
+						s.setSoTimeout(60000);
+						try {
+							for (int i = 0; i < requests; i++) {
+								s.getOutputStream().write(frame);
+								TestServer.readFrame(s.getInputStream());
+							}
+						} finally {
+							s.close();
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await(10, TimeUnit.MINUTES);
+		long nanos = System.nanoTime() - start;
+		clients.shutdownNow();
+		server.stop();
+		if (name == null) {
+			return;
+		}
+		long total = (long) connections * requests;
+		System.out.printf("%-14s %6d conns %8d tx %8.0f tps %6.2f s errors %d%n",
+				name, connections, total, total * 1e9 / nanos, nanos / 1e9,
+				errors.get());
+	}
+
+}
@@ -15,11 +15,21 @@
  */
 package com.rockagen.upos;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -31,13 +41,20 @@ import com.rockagen.commons.util.XmlUtil.XAlias;
 import com.rockagen.commons.util.XmlUtil.XAliasAttribute;
 import com.rockagen.commons.util.XmlUtil.XConverter;
 import com.rockagen.commons.util.XmlUtil.XImplicitCollection;
+import com.rockagen.upos.define.IsoFieldDictionary;
 import com.rockagen.upos.define.IsoPreDefineParser;
 import com.rockagen.upos.define.IsoPredefine;
 import com.rockagen.upos.define.IsoPredefine.IsoField;
 import com.rockagen.upos.define.IsoPredefine.IsoHeader;
 import com.rockagen.upos.define.IsoPredefine.IsoParser;
 import com.rockagen.upos.define.IsoPredefine.IsoTemplate;
+import com.rockagen.upos.define.IsoPredefineWatcher;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.define.IsoSchemaSets;
+import com.rockagen.upos.define.IsoSchemaSnapshot;
 import com.rockagen.upos.enums.IsoType;
+import com.rockagen.upos.util.IsoFormatter;
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
@@ -70,6 +87,309 @@ public class TestAll {
 		Assert.assertEquals("000000001200", IsoType.AMOUNT.format(12, 0));
 	}
 
+	@Test
+	public void testIsoFormatter() {
+		long[] longs = { 0, 7, 12, -12, 99, 100, 123456, -123456,
+				9999999999L, 123456789012345L, Long.MAX_VALUE, Long.MIN_VALUE };
+		String[] amounts = { "0", "12", "12.5", "12.345", "-1.00", "-0.001",
+				"+7.1", "12.", ".5", "0001.01", "99999999999.99",
+				"1234567890123456.78", "12345678901234567.8", "1E+3" };
+		byte[] buf = new byte[64];
+		for (int len = 1; len <= 20; len++) {
+			for (long v : longs) {
+				assertFormat(String.format(String.format("%%0%dd", len), v),
+						len, IsoType.NUMERIC.format(v, len));
+				int n = IsoType.NUMERIC.write(v, len, buf, 3);
+				Assert.assertEquals(IsoType.NUMERIC.format(v, len),
+						new String(buf, 3, n));
+			}
+			Assert.assertEquals(
+					String.format(String.format("%%-%ds", len), "ab"),
+					len < 2 ? "ab" : IsoType.ALPHA.format("ab", len));
+		}
+		for (long v : longs) {
+			Assert.assertEquals(String.format("%010d00", v),
+					IsoType.AMOUNT.format(v, 0));
+			Assert.assertEquals(
+					String.format("%012d", new BigDecimal(v).movePointRight(2)
+							.longValue()),
+					IsoType.AMOUNT.format(new BigDecimal(v), 0));
+		}
+		for (String a : amounts) {
+			String expected = String.format("%012d", new BigDecimal(a)
+					.movePointRight(2).longValue());
+			Assert.assertEquals(expected, IsoType.AMOUNT.format(a, 0));
+			Assert.assertEquals(expected,
+					IsoType.AMOUNT.format(new BigDecimal(a), 0));
+			int n = IsoType.AMOUNT.write(a, 0, buf, 0);
+			Assert.assertEquals(expected, new String(buf, 0, n));
+			ByteBuffer bb = ByteBuffer.allocate(64);
+			IsoType.AMOUNT.write(new BigDecimal(a), 0, bb);
+			Assert.assertEquals(expected, new String(bb.array(), 0,
+					bb.position()));
+		}
+		Assert.assertEquals("05abc", IsoType.LLVAR.format("abc", 5));
+		Assert.assertEquals("005abc", IsoType.LLLVAR.format("abc", 5));
+		int n = IsoType.LLVAR.write("abc", 3, buf, 0);
+		Assert.assertEquals("03abc", new String(buf, 0, n));
+		n = IsoFormatter.var("abcdef".getBytes(), 1, 3, 3, buf, 0);
+		Assert.assertEquals("003bcd", new String(buf, 0, n));
+		n = IsoFormatter.alpha("ab".getBytes(), 4, buf, 0);
+		Assert.assertEquals("ab  ", new String(buf, 0, n));
+		ByteBuffer direct = ByteBuffer.allocateDirect(8);
+		Assert.assertEquals(6, IsoType.NUMERIC.write(256, 6, direct));
+		Assert.assertEquals(6, direct.position());
+	}
+
+	private void assertFormat(String legacy, int len, String actual) {
+		if (legacy.length() > len) {
+			legacy = legacy.substring(0, len);
+		}
+		Assert.assertEquals(legacy, actual);
+	}
+
+	@Test
+	public void testSchemaRegistry() {
+		IsoPredefine ipd = IsoPreDefineParser.createDefault();
+		IsoSchemaRegistry registry = ipd.compile();
+		Assert.assertSame(registry, ipd.compile());
+		Assert.assertSame(registry, IsoPreDefineParser.createDefault()
+				.compile());
+
+		IsoSchema s0210 = registry.get("0210");
+		Assert.assertEquals("0210", s0210.getType());
+		Assert.assertEquals("abc", s0210.getHeader());
+		Assert.assertEquals(IsoType.AMOUNT, s0210.getParserField(4).getType());
+		Assert.assertSame(s0210, registry.get("xx0210".getBytes(), 2));
+		Assert.assertEquals("0200", s0210.getEchoRequest());
+
+		// template only
+		Assert.assertEquals(IsoType.LLVAR, registry.get("0820")
+				.getTemplateField(33).getType());
+		Assert.assertNull(registry.get("0820").getParserField(2));
+		// not defined
+		Assert.assertNull(registry.get("0999"));
+		Assert.assertNull(registry.get("09a9".getBytes(), 0));
+		Assert.assertFalse(registry.schema("0999").hasParser());
+		Assert.assertEquals("", registry.schema("0999").getHeader());
+
+		// setters drop the compiled registry
+		IsoPredefine custom = new IsoPredefine();
+		Set<IsoHeader> hs = new HashSet<IsoHeader>();
+		hs.add(new IsoHeader("A1", "H"));
+		custom.setHeaders(hs);
+		IsoSchemaRegistry first = custom.compile();
+		Assert.assertEquals("H", first.get("A1").getHeader());
+		custom.setHeaders(new HashSet<IsoHeader>());
+		Assert.assertNotSame(first, custom.compile());
+		Assert.assertNull(custom.compile().get("A1"));
+	}
+
+	@Test
+	public void testSchemaSets() {
+		URL url = getClass().getClassLoader().getResource("iso8583.xml");
+		IsoSchemaRegistry cup = IsoSchemaSets.load("cup", url);
+		IsoPredefine visa = IsoPreDefineParser.createFromUrl(url);
+		for (IsoHeader h : visa.getHeaders()) {
+			if ("0210".equals(h.getType())) {
+				h.setValue("VISA");
+			}
+		}
+		IsoSchemaSets.register("visa", visa);
+
+		Assert.assertSame(cup, IsoSchemaSets.require("cup"));
+		Assert.assertEquals("abc", IsoSchemaSets.require("cup").schema("0210")
+				.getHeader());
+		Assert.assertEquals("VISA", IsoSchemaSets.require("visa")
+				.schema("0210").getHeader());
+		Assert.assertTrue(IsoSchemaSets.names().containsAll(
+				Arrays.asList("cup", "visa")));
+
+		// bound registries survive replace and remove
+		IsoSchemaSets.load("cup", url);
+		Assert.assertNotSame(cup, IsoSchemaSets.get("cup"));
+		Assert.assertTrue(IsoSchemaSets.remove("visa"));
+		Assert.assertNull(IsoSchemaSets.get("visa"));
+		try {
+			IsoSchemaSets.require("visa");
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		IsoSchemaSets.remove("cup");
+	}
+
+	@Test
+	public void testFieldDictionary() {
+		IsoSchemaRegistry registry = IsoPreDefineParser.createDefault()
+				.compile();
+		int defined = 0;
+		for (IsoParser p : IsoPreDefineParser.createDefault().getParsers()) {
+			defined += p.getFields().size();
+		}
+		IsoFieldDictionary dictionary = registry.getDictionary();
+		Assert.assertTrue(dictionary.size() < defined / 2);
+
+		// same definition, same instance
+		IsoSchema s0100 = registry.get("0100");
+		IsoSchema s0110 = registry.get("0110");
+		Assert.assertSame(s0100.getParserField(11), s0110.getParserField(11));
+		Assert.assertEquals(s0100.getParserFieldId(11),
+				s0110.getParserFieldId(11));
+		Assert.assertSame(dictionary.get(s0100.getParserFieldId(11)),
+				s0100.getParserField(11));
+		// 49 is NUMERIC in 0200, ALPHA in 0210
+		Assert.assertNotSame(registry.get("0200").getParserField(49), registry
+				.get("0210").getParserField(49));
+		Assert.assertEquals(-1, s0100.getParserFieldId(2));
+		Assert.assertNull(s0100.getParserField(2));
+	}
+
+	@Test
+	public void testPredefineWatcher() throws IOException {
+		File file = File.createTempFile("iso8583", ".xml");
+		file.deleteOnExit();
+		final IsoPredefine[] reloaded = new IsoPredefine[1];
+		IsoPredefineWatcher watcher = new IsoPredefineWatcher(file.getPath(),
+				1000, new IsoPredefineWatcher.Listener() {
+					@Override
+					public void reloaded(IsoPredefine predefine) {
+						reloaded[0] = predefine;
+					}
+				});
+		Assert.assertFalse(watcher.check());
+
+		byte[] xml = readResource("iso8583.xml");
+		write(file, xml);
+		Assert.assertTrue(watcher.check());
+		Assert.assertEquals("abc", reloaded[0].compile().get("0210")
+				.getHeader());
+		IsoPredefine good = reloaded[0];
+		// unchanged
+		Assert.assertFalse(watcher.check());
+
+		// broken xml keeps the active predefine
+		write(file, "<iso8583><parser".getBytes());
+		Assert.assertFalse(watcher.check());
+		Assert.assertSame(good, reloaded[0]);
+
+		// invalid echo list keeps the active predefine
+		write(file, new String(xml).replace("echo=\"2,", "echo=\"1,")
+				.getBytes());
+		Assert.assertFalse(watcher.check());
+		Assert.assertSame(good, reloaded[0]);
+	}
+
+	@Test
+	public void testPredefineFromJar() throws IOException {
+		File jar = File.createTempFile("iso8583", ".jar");
+		jar.deleteOnExit();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			out.putNextEntry(new ZipEntry("conf/iso8583.xml"));
+			out.write(readResource("iso8583.xml"));
+			out.closeEntry();
+		} finally {
+			out.close();
+		}
+		URL url = new URL("jar:" + jar.toURI().toURL() + "!/conf/iso8583.xml");
+		IsoPredefine ipd = IsoPreDefineParser.createFromUrl(url);
+		IsoSchemaRegistry expected = IsoPreDefineParser.createDefault()
+				.compile();
+		IsoSchemaRegistry registry = ipd.compile();
+		Assert.assertEquals(expected.size(), registry.size());
+		Assert.assertEquals("abc", registry.get("0210").getHeader());
+		Assert.assertEquals("", registry.get("0110").getHeader());
+		Assert.assertEquals(IsoType.LLLVAR, registry.get("0200")
+				.getParserField(48).getType());
+		Assert.assertEquals(6, registry.get("0200").getParserField(3)
+				.getLength());
+		Assert.assertEquals("ABC123456", registry.get("0820")
+				.getTemplateField(33).getValue());
+		Assert.assertEquals("0100", registry.get("0110").getEchoRequest());
+
+		try {
+			IsoPreDefineParser
+					.createFromXml("<define><parsers><parser type=\"0200\">"
+							+ "<field num=\"x\" type=\"ALPHA\"/></parser></parsers></define>");
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains("line 1"));
+		}
+	}
+
+	@Test
+	public void testSchemaSnapshot() throws IOException {
+		byte[] xml = readResource("iso8583.xml");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IsoSchemaSnapshot.compile(xml, out);
+		byte[] snapshot = out.toByteArray();
+
+		IsoPredefine ipd = IsoPreDefineParser.createFromSnapshot(snapshot, xml);
+		IsoSchemaRegistry expected = IsoPreDefineParser.createDefault()
+				.compile();
+		IsoSchemaRegistry registry = ipd.compile();
+		Assert.assertEquals(expected.size(), registry.size());
+		for (String type : new String[] { "0100", "0110", "0200", "0210",
+				"0820" }) {
+			IsoSchema e = expected.get(type);
+			IsoSchema a = registry.get(type);
+			Assert.assertEquals(e.getHeader(), a.getHeader());
+			Assert.assertEquals(e.getEchoRequest(), a.getEchoRequest());
+			for (int i = 0; i <= IsoSchema.MAX_FIELD; i++) {
+				Assert.assertEquals(String.valueOf(e.getParserField(i)),
+						String.valueOf(a.getParserField(i)));
+				Assert.assertEquals(String.valueOf(e.getTemplateField(i)),
+						String.valueOf(a.getTemplateField(i)));
+			}
+		}
+
+		// stale snapshot falls back to the xml
+		byte[] changed = new String(xml).replace(">abc<", ">xyz<").getBytes();
+		Assert.assertNull(IsoSchemaSnapshot.read(snapshot, changed));
+		Assert.assertEquals("xyz", IsoPreDefineParser
+				.createFromSnapshot(snapshot, changed).compile().get("0210")
+				.getHeader());
+
+		// a corrupt body is refused as not a snapshot, whatever the byte
+		for (int i = 22; i < snapshot.length; i++) {
+			byte[] corrupt = snapshot.clone();
+			corrupt[i] ^= 0xFF;
+			try {
+				IsoSchemaSnapshot.read(corrupt, xml);
+			} catch (IllegalArgumentException e) {
+				// expected for most bytes
+			}
+		}
+	}
+
+	private static byte[] readResource(String name) throws IOException {
+		InputStream in = TestAll.class.getClassLoader().getResourceAsStream(
+				name);
+		try {
+			byte[] buf = new byte[in.available()];
+			int n = 0;
+			while (n < buf.length) {
+				n += in.read(buf, n, buf.length - n);
+			}
+			return buf;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		long modified = file.lastModified();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		// coarse file systems keep the same mtime within a second
+		file.setLastModified(modified + 2000);
+	}
+
 	@Test
 	@Ignore
 	public void testConf(){
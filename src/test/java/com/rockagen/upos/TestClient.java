@@ -0,0 +1,748 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rockagen.upos.client.IsoClient;
+import com.rockagen.upos.client.IsoClientPool;
+import com.rockagen.upos.client.IsoFuture;
+import com.rockagen.upos.client.IsoRetryQueue;
+import com.rockagen.upos.client.IsoReversalBuilder;
+import com.rockagen.upos.client.IsoSender;
+import com.rockagen.upos.client.IsoTimeoutWheel;
+import com.rockagen.upos.client.IsoTraceKey;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.server.IsoHandler;
+import com.rockagen.upos.server.IsoServer;
+import com.rockagen.upos.server.IsoSession;
+
+/**
+ * Outbound links against a loopback host
+ *
+ * @author RA
+ */
+public class TestClient {
+
+	/**
+	 * 0100 requests carry the "abc" header of iso8583.xml.
+	 */
+	static final IsoFraming HOST_FRAMING = new IsoFraming(
+			IsoLengthPrefix.BINARY2, new byte[] { 0x60, 0, 0, 0, 0 }, 3);
+
+	private final ScheduledExecutorService delays = Executors
+			.newScheduledThreadPool(2);
+
+	private final Random random = new Random(42);
+
+	private IsoServer host;
+
+	private IsoClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		host = new IsoServer(new InetSocketAddress("127.0.0.1", 0),
+				HOST_FRAMING, TestServer.REGISTRY, new IsoHandler() {
+					@Override
+					public WriteIsoMessage handle(final IsoSession session,
+							final ReadIsoMessage request) throws Exception {
+						String pc = new String(request.getIsoValue(3),
+								TestServer.ASCII);
+						if ("999999".equals(pc)) {
+							// never answered
+							return null;
+						}
+						final WriteIsoMessage response = TestServer.APPROVE
+								.handle(session, request);
+						final byte[] tpdu = session.getRequestTpdu();
+						if ("888888".equals(pc)) {
+							// answered twice
+							session.send(response, tpdu);
+							return response;
+						}
+						// out of order
+						delays.schedule(new Runnable() {
+							@Override
+							public void run() {
+								session.send(response, tpdu);
+							}
+						}, random.nextInt(20), TimeUnit.MILLISECONDS);
+						return null;
+					}
+				});
+		host.setLoops(1);
+		host.setCharset(TestServer.ASCII);
+		host.start();
+		client = new IsoClient(host.getLocalAddress(), TestServer.FRAMING,
+				TestServer.REGISTRY);
+		client.setCharset(TestServer.ASCII);
+		client.setResponseTimeout(200);
+		client.connect();
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		host.stop();
+		delays.shutdownNow();
+	}
+
+	static WriteIsoMessage request(String processingCode) {
+		WriteIsoMessage wim = new WriteIsoMessage(
+				TestServer.REGISTRY.schema("0100"), TestServer.ASCII);
+		wim.setIsoValue(3, processingCode.getBytes(TestServer.ASCII));
+		wim.setIsoValue(7, "0217232351".getBytes(TestServer.ASCII));
+		wim.setIsoValue(41, "TERN0A10".getBytes(TestServer.ASCII));
+		return wim;
+	}
+
+	@Test
+	public void testCorrelation() throws Exception {
+		// 2000 in flight on a loaded machine
+		client.setResponseTimeout(10000);
+		final List<IsoFuture> futures = new ArrayList<IsoFuture>();
+		final List<String> stans = new ArrayList<String>();
+		Thread[] senders = new Thread[4];
+		for (int t = 0; t < senders.length; t++) {
+			senders[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 500; i++) {
+						WriteIsoMessage wim = request("310000");
+						IsoFuture f = client.send(wim);
+						synchronized (futures) {
+							futures.add(f);
+							stans.add(new String(wim.getIsoValue(11),
+									TestServer.ASCII));
+						}
+					}
+				}
+			};
+			senders[t].start();
+		}
+		for (Thread t : senders) {
+			t.join();
+		}
+		final AtomicInteger called = new AtomicInteger();
+		for (int i = 0; i < futures.size(); i++) {
+			ReadIsoMessage rim = futures.get(i).get(5, TimeUnit.SECONDS);
+			Assert.assertEquals(stans.get(i), new String(rim.getIsoValue(11),
+					TestServer.ASCII));
+			Assert.assertEquals("0110", rim.getType());
+			futures.get(i).addListener(new IsoFuture.Listener() {
+				@Override
+				public void completed(ReadIsoMessage response) {
+					called.incrementAndGet();
+				}
+
+				@Override
+				public void failed(Throwable cause) {
+				}
+			});
+		}
+		Assert.assertEquals(2000, called.get());
+		Assert.assertEquals(0, client.getInFlight());
+	}
+
+	@Test
+	public void testTimeoutAndUnmatched() throws Exception {
+		final List<ReadIsoMessage> unmatched = new ArrayList<ReadIsoMessage>();
+		client.setListener(new IsoClient.Listener() {
+			@Override
+			public void unmatched(IsoClient c, ReadIsoMessage message) {
+				synchronized (unmatched) {
+					unmatched.add(message);
+				}
+			}
+
+			@Override
+			public void disconnected(IsoClient c, Throwable cause) {
+			}
+		});
+		IsoFuture lost = client.send(request("999999"));
+		try {
+			lost.get(5, TimeUnit.SECONDS);
+			Assert.fail("expected a timeout");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertEquals(0, client.getInFlight());
+
+		client.send(request("888888")).get(5, TimeUnit.SECONDS);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			synchronized (unmatched) {
+				if (!unmatched.isEmpty()) {
+					break;
+				}
+			}
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, unmatched.size());
+
+		// a caller STAN already in flight is refused
+		WriteIsoMessage a = request("999999");
+		a.setIsoValue(11, "000777".getBytes(TestServer.ASCII));
+		IsoFuture first = client.send(a);
+		IsoFuture dup = client.send(a);
+		Assert.assertTrue(dup.isDone());
+		Assert.assertTrue(first.cancel(false));
+		Assert.assertTrue(first.isCancelled());
+		Assert.assertEquals(0, client.getInFlight());
+	}
+
+	@Test
+	public void testLinkLost() throws Exception {
+		final AtomicInteger disconnected = new AtomicInteger();
+		client.setListener(new IsoClient.Listener() {
+			@Override
+			public void unmatched(IsoClient c, ReadIsoMessage message) {
+			}
+
+			@Override
+			public void disconnected(IsoClient c, Throwable cause) {
+				disconnected.incrementAndGet();
+			}
+		});
+		client.setResponseTimeout(60000);
+		IsoFuture pending = client.send(request("999999"));
+		host.stop();
+		try {
+			pending.get(5, TimeUnit.SECONDS);
+			Assert.fail("expected a failure");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		Assert.assertFalse(client.isConnected());
+		// notified after the requests in flight failed
+		long deadline = System.currentTimeMillis() + 5000;
+		while (disconnected.get() == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, disconnected.get());
+		Assert.assertTrue(client.send(request("310000")).isDone());
+	}
+
+	@Test
+	public void testReconnect() throws Exception {
+		final AtomicInteger disconnected = new AtomicInteger();
+		client.setListener(new IsoClient.Listener() {
+			@Override
+			public void unmatched(IsoClient c, ReadIsoMessage message) {
+			}
+
+			@Override
+			public void disconnected(IsoClient c, Throwable cause) {
+				disconnected.incrementAndGet();
+			}
+		});
+		for (int i = 0; i < 20; i++) {
+			client.close();
+			client.connect();
+			IsoFuture pending = client.send(request("999999"));
+			// the reader of the closed socket leaves the new link alone
+			client.send(request("310000")).get(5, TimeUnit.SECONDS);
+			Assert.assertTrue(client.isConnected());
+			Assert.assertFalse(pending.isDone());
+			Assert.assertTrue(pending.cancel(false));
+		}
+		Thread.sleep(100);
+		Assert.assertTrue(client.isConnected());
+		Assert.assertEquals(20, disconnected.get());
+	}
+
+	@Test
+	public void testTimeoutWheel() throws Exception {
+		// 1ms ticks on 8 buckets: most timeouts wait several rounds
+		final long[] now = new long[1];
+		IsoTimeoutWheel wheel = new IsoTimeoutWheel(1, TimeUnit.MILLISECONDS,
+				8) {
+			@Override
+			protected long elapsed() {
+				return now[0];
+			}
+		};
+		Assert.assertEquals(0, wheel.advance());
+		final List<Integer> fired = new ArrayList<Integer>();
+		IsoTimeoutWheel.Task task = new IsoTimeoutWheel.Task() {
+			@Override
+			public void expired(IsoTimeoutWheel.Timeout timeout) {
+				fired.add((Integer) timeout.getAttachment());
+			}
+		};
+		List<IsoTimeoutWheel.Timeout> timeouts = new ArrayList<IsoTimeoutWheel.Timeout>();
+		for (int i = 0; i < 60; i++) {
+			int delay = 20 + (i * 37) % 60;
+			timeouts.add(wheel.schedule(task, delay, delay,
+					TimeUnit.MILLISECONDS));
+		}
+		// cancelled well before they are due
+		for (int i = 0; i < 60; i += 3) {
+			Assert.assertTrue(timeouts.get(i).cancel());
+			Assert.assertFalse(timeouts.get(i).cancel());
+		}
+		Assert.assertEquals(40, wheel.getPending());
+		long step = TimeUnit.MILLISECONDS.toNanos(1);
+		for (int ms = 1; ms <= 80; ms++) {
+			now[0] = ms * step;
+			Assert.assertEquals(1, wheel.advance());
+			// every timeout due fired on its tick, in deadline order
+			int due = 0;
+			for (int i = 0; i < 60; i++) {
+				int delay = 20 + (i * 37) % 60;
+				if (i % 3 != 0 && delay <= ms) {
+					due++;
+				}
+				Assert.assertEquals(i % 3 != 0 && delay <= ms,
+						timeouts.get(i).isExpired());
+			}
+			Assert.assertEquals(due, fired.size());
+			Assert.assertEquals(40 - due, wheel.getPending());
+		}
+		for (int i = 1; i < fired.size(); i++) {
+			Assert.assertTrue(fired.toString(), fired.get(i - 1) <= fired.get(i));
+		}
+		for (int i = 0; i < 60; i += 3) {
+			Assert.assertTrue(timeouts.get(i).isCancelled());
+		}
+
+		// a late caller runs the ticks missed, a zero delay fires on the next
+		wheel.schedule(task, 0, 0, TimeUnit.MILLISECONDS);
+		now[0] += 3 * step + step / 2;
+		Assert.assertEquals(3, wheel.advance());
+		Assert.assertEquals(41, fired.size());
+		Assert.assertEquals(Integer.valueOf(0), fired.get(40));
+		Assert.assertEquals(0, wheel.getPending());
+		try {
+			wheel.start();
+			Assert.fail("expected a manual wheel");
+		} catch (IllegalStateException e) {
+			// driven by advance()
+		}
+	}
+
+	@Test
+	public void testReversal() throws Exception {
+		final List<WriteIsoMessage> sent = new ArrayList<WriteIsoMessage>();
+		IsoSender hostDown = new IsoSender() {
+			@Override
+			public IsoFuture send(WriteIsoMessage request) {
+				IsoFuture f = new IsoFuture(IsoTraceKey.of(request));
+				synchronized (sent) {
+					sent.add(request);
+					if (sent.size() < 3) {
+						f.fail(new IOException("host down"));
+					} else {
+						f.complete(approve(request));
+					}
+				}
+				return f;
+			}
+		};
+		IsoRetryQueue queue = new IsoRetryQueue(hostDown, null);
+		queue.setRetryInterval(10);
+		final List<WriteIsoMessage> acked = new ArrayList<WriteIsoMessage>();
+		queue.setListener(new IsoRetryQueue.Listener() {
+			@Override
+			public void acknowledged(WriteIsoMessage message,
+					ReadIsoMessage response) {
+				synchronized (acked) {
+					acked.add(message);
+				}
+			}
+
+			@Override
+			public void exhausted(WriteIsoMessage message, Throwable cause) {
+			}
+		});
+		client.setReversals(new IsoReversalBuilder(TestServer.REGISTRY,
+				TestServer.ASCII), queue);
+
+		// answered, nothing to reverse
+		client.send(request("310000")).get(5, TimeUnit.SECONDS);
+		WriteIsoMessage lost = request("999999");
+		lost.setIsoValue(32, "0811000011".getBytes(TestServer.ASCII));
+		IsoFuture f = client.send(lost);
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			Assert.fail("expected a timeout");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (queue.getAcknowledged() == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, queue.getAcknowledged());
+		Assert.assertEquals(0, queue.getPending());
+		Assert.assertEquals(3, sent.size());
+		Assert.assertEquals(1, acked.size());
+		WriteIsoMessage reversal = acked.get(0);
+		Assert.assertSame(sent.get(0), reversal);
+		Assert.assertEquals("0400", reversal.getType());
+		String stan = new String(lost.getIsoValue(11), TestServer.ASCII);
+		Assert.assertEquals("0100" + stan + "0217232351" + "00011000011"
+				+ "00000000000", new String(reversal.getIsoValue(90),
+				TestServer.ASCII));
+		Assert.assertEquals(stan, new String(reversal.getIsoValue(11),
+				TestServer.ASCII));
+		Assert.assertEquals("999999", new String(reversal.getIsoValue(3),
+				TestServer.ASCII));
+		Assert.assertEquals("0811000011", new String(
+				reversal.getIsoValue(32), TestServer.ASCII));
+		Assert.assertEquals("TERN0A10", new String(reversal.getIsoValue(41),
+				TestServer.ASCII));
+		queue.close();
+	}
+
+	@Test
+	public void testReversalOnLinkLost() throws Exception {
+		final List<WriteIsoMessage> sent = new ArrayList<WriteIsoMessage>();
+		IsoSender other = new IsoSender() {
+			@Override
+			public IsoFuture send(WriteIsoMessage request) {
+				synchronized (sent) {
+					sent.add(request);
+				}
+				IsoFuture f = new IsoFuture(IsoTraceKey.of(request));
+				f.complete(approve(request));
+				return f;
+			}
+		};
+		IsoRetryQueue queue = new IsoRetryQueue(other, null);
+		client.setReversals(new IsoReversalBuilder(TestServer.REGISTRY,
+				TestServer.ASCII), queue);
+		client.setResponseTimeout(300);
+		WriteIsoMessage lost = request("999999");
+		IsoFuture f = client.send(lost);
+		// written, the host drops the link before answering
+		host.stop();
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			Assert.fail("expected a failure");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (queue.getAcknowledged() == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// past the response timeout: reversed once
+		Thread.sleep(400);
+		Assert.assertEquals(1, queue.getAcknowledged());
+		Assert.assertEquals(1, sent.size());
+		WriteIsoMessage reversal = sent.get(0);
+		Assert.assertEquals("0400", reversal.getType());
+		Assert.assertArrayEquals(lost.getIsoValue(11), reversal.getIsoValue(11));
+		Assert.assertEquals(0, client.getInFlight());
+		queue.close();
+	}
+
+	@Test
+	public void testLateResponseAfterReversal() throws Exception {
+		final Object[] late = new Object[2];
+		IsoServer lateHost = new IsoServer(new InetSocketAddress("127.0.0.1",
+				0), HOST_FRAMING, TestServer.REGISTRY, new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) throws Exception {
+				if ("0100".equals(request.getType())) {
+					// held past the response timeout
+					synchronized (late) {
+						late[0] = TestServer.APPROVE.handle(session, request);
+						late[1] = session.getRequestTpdu();
+					}
+					return null;
+				}
+				// the late 0110 under the same trace precedes the 0410
+				synchronized (late) {
+					session.send((WriteIsoMessage) late[0], (byte[]) late[1]);
+				}
+				WriteIsoMessage response = new WriteIsoMessage(
+						TestServer.REGISTRY.schema("0410"), TestServer.ASCII)
+						.respondTo(request);
+				response.setIsoValue(39, "00".getBytes(TestServer.ASCII));
+				return response;
+			}
+		});
+		lateHost.setLoops(1);
+		lateHost.setCharset(TestServer.ASCII);
+		lateHost.start();
+		IsoClient c = new IsoClient(lateHost.getLocalAddress(),
+				TestServer.FRAMING, TestServer.REGISTRY);
+		c.setCharset(TestServer.ASCII);
+		c.setResponseTimeout(100);
+		final List<ReadIsoMessage> unmatched = new ArrayList<ReadIsoMessage>();
+		c.setListener(new IsoClient.Listener() {
+			@Override
+			public void unmatched(IsoClient client, ReadIsoMessage message) {
+				synchronized (unmatched) {
+					unmatched.add(message);
+				}
+			}
+
+			@Override
+			public void disconnected(IsoClient client, Throwable cause) {
+			}
+		});
+		IsoRetryQueue queue = new IsoRetryQueue(c, null);
+		final List<ReadIsoMessage> acked = new ArrayList<ReadIsoMessage>();
+		queue.setListener(new IsoRetryQueue.Listener() {
+			@Override
+			public void acknowledged(WriteIsoMessage message,
+					ReadIsoMessage response) {
+				synchronized (acked) {
+					acked.add(response);
+				}
+			}
+
+			@Override
+			public void exhausted(WriteIsoMessage message, Throwable cause) {
+			}
+		});
+		c.setReversals(new IsoReversalBuilder(TestServer.REGISTRY,
+				TestServer.ASCII), queue);
+		try {
+			c.connect();
+			IsoFuture f = c.send(request("310000"));
+			try {
+				f.get(5, TimeUnit.SECONDS);
+				Assert.fail("expected a timeout");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof TimeoutException);
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((queue.getPending() > 0 || unmatched.isEmpty())
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(0, queue.getPending());
+			Assert.assertEquals(1, queue.getAcknowledged());
+			Assert.assertEquals(1, acked.size());
+			Assert.assertEquals("0410", acked.get(0).getType());
+			Assert.assertEquals(1, unmatched.size());
+			Assert.assertEquals("0110", unmatched.get(0).getType());
+			Assert.assertEquals(0, c.getInFlight());
+		} finally {
+			queue.close();
+			c.close();
+			lateHost.stop();
+		}
+	}
+
+	/**
+	 * The 0410 approving a reversal, as the host returns it.
+	 */
+	static ReadIsoMessage approve(WriteIsoMessage reversal) {
+		byte[] bytes = reversal.generateIsoMessage();
+		// after the "abc" header and the type
+		ReadIsoMessage request = new ReadIsoMessage(reversal.getSchema(),
+				Arrays.copyOfRange(bytes, 7, bytes.length), TestServer.ASCII);
+		WriteIsoMessage response = new WriteIsoMessage(
+				TestServer.REGISTRY.schema("0410"), TestServer.ASCII)
+				.respondTo(request);
+		response.setIsoValue(39, "00".getBytes(TestServer.ASCII));
+		bytes = response.generateIsoMessage();
+		return new ReadIsoMessage(response.getSchema(), Arrays.copyOfRange(
+				bytes, 4, bytes.length), TestServer.ASCII);
+	}
+
+	/**
+	 * A host answering 0820 at once and the 0800 echo after echoDelay.
+	 */
+	private IsoServer networkHost(final long echoDelay) throws IOException {
+		IsoServer server = new IsoServer(new InetSocketAddress("127.0.0.1",
+				0), TestServer.FRAMING, TestServer.REGISTRY, new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(final IsoSession session,
+					ReadIsoMessage request) {
+				String type = "0800".equals(request.getType()) ? "0810"
+						: "0830";
+				final WriteIsoMessage response = new WriteIsoMessage(
+						TestServer.REGISTRY.schema(type), TestServer.ASCII);
+				for (int num : new int[] { 7, 11, 70 }) {
+					if (request.getIsoValue(num) != null) {
+						response.setIsoValue(num, request.getIsoValue(num));
+					}
+				}
+				response.setIsoValue(39, "00".getBytes(TestServer.ASCII));
+				if ("0810".equals(type) && echoDelay > 0) {
+					final byte[] tpdu = session.getRequestTpdu();
+					delays.schedule(new Runnable() {
+						@Override
+						public void run() {
+							session.send(response, tpdu);
+						}
+					}, echoDelay, TimeUnit.MILLISECONDS);
+					return null;
+				}
+				return response;
+			}
+		});
+		server.setLoops(1);
+		server.setCharset(TestServer.ASCII);
+		server.start();
+		return server;
+	}
+
+	private static IsoClient link(InetSocketAddress address) {
+		IsoClient c = new IsoClient(address, TestServer.FRAMING,
+				TestServer.REGISTRY);
+		c.setCharset(TestServer.ASCII);
+		c.setConnectTimeout(500);
+		return c;
+	}
+
+	@Test
+	public void testPool() throws Exception {
+		IsoServer fast = networkHost(0);
+		IsoServer slow = networkHost(500);
+		// connects, never answers
+		ServerSocket silent = new ServerSocket(0, 8,
+				InetAddress.getByName("127.0.0.1"));
+		// a port nobody listens on
+		ServerSocket closed = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"));
+		InetSocketAddress dead = (InetSocketAddress) closed
+				.getLocalSocketAddress();
+		closed.close();
+		IsoClientPool pool = new IsoClientPool(Arrays.asList(
+				link(fast.getLocalAddress()), link(fast.getLocalAddress()),
+				link(slow.getLocalAddress()),
+				link((InetSocketAddress) silent.getLocalSocketAddress()),
+				link(dead)));
+		pool.setEchoInterval(50);
+		// only the latency limit can take the silent link down
+		pool.setEchoTimeout(60000);
+		pool.setMaxEchoLatency(200);
+		try {
+			pool.start();
+			// the slow and silent links leave at the latency limit, the slow
+			// one stays out once its echo is answered
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((pool.getHealthyLinks() != 2 || pool.getEchoLatency(2) < 0)
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(2, pool.getHealthyLinks());
+			Assert.assertTrue(pool.getEchoLatency(0) >= 0);
+			Assert.assertTrue(pool.getEchoLatency(2) >= 200);
+			Assert.assertEquals(-1, pool.getEchoLatency(3));
+			Assert.assertEquals(-1, pool.getEchoLatency(4));
+
+			List<IsoFuture> futures = new ArrayList<IsoFuture>();
+			for (int i = 0; i < 200; i++) {
+				WriteIsoMessage wim = new WriteIsoMessage(
+						TestServer.REGISTRY.schema("0820"), TestServer.ASCII);
+				wim.setIsoValue(7, "0217232351".getBytes(TestServer.ASCII));
+				futures.add(pool.send(wim));
+			}
+			for (IsoFuture f : futures) {
+				Assert.assertEquals("0830", f.get(5, TimeUnit.SECONDS)
+						.getType());
+			}
+			Assert.assertFalse(pool.isCircuitOpen());
+
+			// every fast link lost, the slow one is still out: fail fast
+			fast.stop();
+			deadline = System.currentTimeMillis() + 5000;
+			while (!pool.isCircuitOpen()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertTrue(pool.isCircuitOpen());
+			WriteIsoMessage wim = new WriteIsoMessage(
+					TestServer.REGISTRY.schema("0820"), TestServer.ASCII);
+			IsoFuture f = pool.send(wim);
+			Assert.assertTrue(f.isDone());
+			try {
+				f.get();
+				Assert.fail("expected a fast failure");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+			Assert.assertEquals(1, pool.getRejected());
+		} finally {
+			pool.close();
+			fast.stop();
+			slow.stop();
+			silent.close();
+		}
+	}
+
+	@Test
+	public void testPoolRejoin() throws Exception {
+		IsoServer host = networkHost(300);
+		IsoClient client = link(host.getLocalAddress());
+		IsoClientPool pool = new IsoClientPool(Arrays.asList(client));
+		pool.setEchoInterval(50);
+		pool.setMaxEchoLatency(2000);
+		try {
+			pool.start();
+			Assert.assertEquals(1, pool.getHealthyLinks());
+			client.close();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!client.isConnected()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			Assert.assertTrue(client.isConnected());
+			// reconnected, out until its echo is answered
+			Assert.assertEquals(0, pool.getHealthyLinks());
+			deadline = System.currentTimeMillis() + 5000;
+			while (pool.getHealthyLinks() != 1
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, pool.getHealthyLinks());
+			Assert.assertTrue(pool.getEchoLatency(0) >= 300);
+		} finally {
+			pool.close();
+			host.stop();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPoolEchoTimeout() {
+		new IsoClientPool(Arrays.asList(link(new InetSocketAddress(
+				"127.0.0.1", 1)))).setEchoTimeout(0);
+	}
+
+}
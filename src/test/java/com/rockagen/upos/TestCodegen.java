@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.rockagen.commons.util.CommUtil;
+import com.rockagen.upos.codegen.IsoCodecGenerator;
+import com.rockagen.upos.define.IsoCodec;
+import com.rockagen.upos.define.IsoCodecs;
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoPlanCodec;
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+
+/**
+ * Specialized codecs
+ *
+ * @author RA
+ */
+public class TestCodegen {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * 0100 request data of {@link TestDemo}, without the type.
+	 */
+	static byte[] request0100() {
+		byte[] bytes = CommUtil.hexdecode(TestDemo.hex);
+		byte[] isodata = new byte[bytes.length - 4];
+		System.arraycopy(bytes, 4, isodata, 0, isodata.length);
+		return isodata;
+	}
+
+	static IsoPredefine predefine() {
+		return IsoPreDefineParser.createFromUrl(TestCodegen.class
+				.getClassLoader().getResource("iso8583.xml"));
+	}
+
+	@Test
+	public void testGeneratedCodec() throws Exception {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null) {
+			// running on a JRE
+			return;
+		}
+		File root = tempDir();
+		File src = new File(root, "src");
+		File classes = new File(root, "classes");
+		Assert.assertTrue(classes.mkdirs());
+		IsoCodecGenerator generator = new IsoCodecGenerator(predefine(),
+				"upos.gen");
+		generator.writeTo(src, classes);
+		Assert.assertTrue(generator.codecNames().contains(
+				"upos.gen.Iso0100Reader$Codec"));
+
+		List<String> args = new ArrayList<String>();
+		args.add("-nowarn");
+		args.add("-d");
+		args.add(classes.getPath());
+		args.add("-cp");
+		args.add(System.getProperty("java.class.path"));
+		for (File f : new File(src, "upos/gen").listFiles()) {
+			args.add(f.getPath());
+		}
+		Assert.assertEquals(0,
+				javac.run(null, null, null, args.toArray(new String[0])));
+
+		ClassLoader loader = new URLClassLoader(new URL[] { classes.toURI()
+				.toURL() }, getClass().getClassLoader());
+		IsoCodec codec = (IsoCodec) loader
+				.loadClass("upos.gen.Iso0100Reader$Codec").newInstance();
+		IsoCodecs.register(codec);
+
+		// a schema compiled after registration picks the codec
+		IsoPredefine ipd = predefine();
+		IsoSchema schema = ipd.compile().get("0100");
+		Assert.assertSame(codec, schema.getCodec());
+
+		byte[] isodata = request0100();
+		ReadIsoMessage interpreted = new ReadIsoMessage("0100", isodata);
+		ReadIsoMessage generated = (ReadIsoMessage) loader
+				.loadClass("upos.gen.Iso0100Reader")
+				.getConstructor(IsoSchema.class, byte[].class, Charset.class)
+				.newInstance(schema, isodata, ASCII);
+		for (int i = 2; i <= IsoSchema.MAX_FIELD; i++) {
+			Assert.assertArrayEquals("field " + i,
+					interpreted.getIsoValue(i), generated.getIsoValue(i));
+			Assert.assertEquals(interpreted.getRawLength(i),
+					generated.getRawLength(i));
+		}
+		Assert.assertEquals(126902L, call(generated, "getStan"));
+		Assert.assertEquals("310000", call(generated, "getProcessingCode"));
+		Assert.assertEquals("11000011", call(generated, "getAcquirerId"));
+		Assert.assertEquals("TERN0A10", call(generated, "getTerminalId"));
+		Assert.assertEquals("6011", call(generated, "getMerchantType"));
+		Assert.assertNull(call(generated, "getAdditionalAmounts"));
+
+		// typed setters write the same bytes as the formatter
+		IsoSchema s0110 = ipd.compile().get("0110");
+		WriteIsoMessage wim = (WriteIsoMessage) loader
+				.loadClass("upos.gen.Iso0110Writer")
+				.getConstructor(IsoSchema.class, Charset.class)
+				.newInstance(s0110, ASCII);
+		wim.getClass().getMethod("setStan", long.class).invoke(wim, 126902L);
+		wim.getClass().getMethod("setResponseCode", String.class)
+				.invoke(wim, "00");
+		wim.getClass().getMethod("setAcquirerId", String.class)
+				.invoke(wim, "11000011");
+		Assert.assertEquals("126902", new String(wim.getIsoValue(11)));
+		Assert.assertEquals("00", new String(wim.getIsoValue(39)));
+		Assert.assertEquals("0811000011", new String(wim.getIsoValue(32)));
+
+		// another layout of the same type does not use the generated codec
+		IsoPredefine changed = predefine();
+		for (IsoPredefine.IsoParser p : changed.getParsers()) {
+			if ("0100".equals(p.getType())) {
+				for (IsoPredefine.IsoField f : p.getFields()) {
+					if (f.getNum() == 22) {
+						f.setLength(4);
+					}
+				}
+			}
+		}
+		IsoCodec other = changed.compile().get("0100").getCodec();
+		Assert.assertNotSame(codec, other);
+		Assert.assertTrue(other instanceof IsoPlanCodec);
+	}
+
+	@Test
+	public void testPlanCodec() {
+		byte[] isodata = request0100();
+		IsoSchema planned = predefine().compile().get("0110");
+		IsoSchema interpreted;
+		IsoCodecs.setPlanEnabled(false);
+		try {
+			interpreted = predefine().compile().get("0110");
+		} finally {
+			IsoCodecs.setPlanEnabled(true);
+		}
+		Assert.assertTrue(planned.getCodec() instanceof IsoPlanCodec);
+		Assert.assertNull(interpreted.getCodec());
+
+		// a 0110 with LLVAR fields and the secondary bitmap
+		WriteIsoMessage wim = new WriteIsoMessage("0110").respondTo(new ReadIsoMessage(
+				"0100", isodata));
+		wim.setIsoValue(39, "00".getBytes());
+		wim.setIsoValue(103, "1132100000001".getBytes());
+		byte[] response = wim.generateIsoMessage();
+		byte[] resdata = new byte[response.length - 4];
+		System.arraycopy(response, 4, resdata, 0, resdata.length);
+
+		ReadIsoMessage a = new ReadIsoMessage(interpreted, resdata, ASCII);
+		ReadIsoMessage b = new ReadIsoMessage(planned, resdata, ASCII);
+		for (int i = 2; i <= IsoSchema.MAX_FIELD; i++) {
+			Assert.assertArrayEquals("field " + i, a.getIsoValue(i),
+					b.getIsoValue(i));
+			Assert.assertArrayEquals("field " + i, a.getRawIsoValue(i),
+					b.getRawIsoValue(i));
+		}
+		Assert.assertEquals("32100000001", new String(b.getIsoValue(103)));
+
+		// a subclass overriding the hook is read by it, codec or not
+		final int[] hooked = new int[1];
+		ReadIsoMessage c = new ReadIsoMessage(planned, resdata, ASCII) {
+			@Override
+			protected void generateValeMap(ByteBuffer buf, BitSet bm,
+					Charset charset) {
+				hooked[0]++;
+				super.generateValeMap(buf, bm, charset);
+			}
+		};
+		Assert.assertEquals(1, hooked[0]);
+		Assert.assertArrayEquals(a.getIsoValue(103), c.getIsoValue(103));
+
+		// a field the parser does not define falls back to the interpreted
+		// path
+		int[] offsets = new int[IsoSchema.MAX_FIELD + 1];
+		int[] lengths = new int[IsoSchema.MAX_FIELD + 1];
+		Assert.assertEquals(-1, planned.getCodec().locate(resdata, 0,
+				resdata.length, 1L << 40, 0L, offsets, lengths));
+		// truncated data
+		Assert.assertEquals(-1, planned.getCodec().locate(new byte[] { '1' },
+				0, 1, 1L << 63 >>> 31, 0L, offsets, lengths));
+	}
+
+	@Test
+	public void testBitmapLayouts() {
+		byte[] isodata = request0100();
+		IsoSchema schema = predefine().compile().get("0100");
+		long bm0 = 0L;
+		long bm1 = 0L;
+		for (int i = 0; i < 8; i++) {
+			bm0 = (bm0 << 8) | (isodata[i] & 0xff);
+			bm1 = (bm1 << 8) | (isodata[i + 8] & 0xff);
+		}
+		IsoPlanCodec uncached = IsoPlanCodec.compile(schema, 0);
+		// one slot: the two bitmaps evict each other
+		IsoPlanCodec evicting = IsoPlanCodec.compile(schema, 1);
+		IsoPlanCodec cached = IsoPlanCodec.compile(schema);
+		for (int round = 0; round < 4; round++) {
+			// without the MAC
+			long b1 = round % 2 == 0 ? bm1 : bm1 & ~1L;
+			int[] o1 = new int[IsoSchema.MAX_FIELD + 1];
+			int[] l1 = new int[IsoSchema.MAX_FIELD + 1];
+			int end = uncached.locate(isodata, 16, isodata.length, bm0, b1,
+					o1, l1);
+			Assert.assertTrue(end > 0);
+			for (IsoPlanCodec codec : new IsoPlanCodec[] { evicting, cached }) {
+				int[] o2 = new int[IsoSchema.MAX_FIELD + 1];
+				int[] l2 = new int[IsoSchema.MAX_FIELD + 1];
+				Assert.assertEquals(end, codec.locate(isodata, 16,
+						isodata.length, bm0, b1, o2, l2));
+				Assert.assertArrayEquals(o1, o2);
+				Assert.assertArrayEquals(l1, l2);
+			}
+		}
+
+		// 3, 7 and 11 lead the bitmap, all fixed
+		Assert.assertEquals(0, cached.fixedOffset(bm0, bm1, 3));
+		Assert.assertEquals(6, cached.fixedOffset(bm0, bm1, 7));
+		Assert.assertEquals(16, uncached.fixedOffset(bm0, bm1, 11));
+		Assert.assertEquals(-1, cached.fixedOffset(bm0, bm1, 2));
+		// 128 follows LLVAR fields
+		Assert.assertEquals(-1, cached.fixedOffset(bm0, bm1, 128));
+		ReadIsoMessage rim = new ReadIsoMessage(schema, isodata, ASCII);
+		Assert.assertEquals("126902", new String(isodata, 16 + 16, 6));
+		Assert.assertEquals("126902", new String(rim.getIsoValue(11)));
+	}
+
+	private static Object call(Object target, String method) throws Exception {
+		return target.getClass().getMethod(method).invoke(target);
+	}
+
+	private static File tempDir() throws IOException {
+		File dir = File.createTempFile("upos", "gen");
+		Assert.assertTrue(dir.delete() && dir.mkdirs());
+		dir.deleteOnExit();
+		return dir;
+	}
+
+}
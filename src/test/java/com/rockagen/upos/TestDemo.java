@@ -15,11 +15,19 @@
  */
 package com.rockagen.upos;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Map;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.rockagen.commons.util.CommUtil;
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+import com.rockagen.upos.message.IsoBufferPool;
+import com.rockagen.upos.message.IsoFraming;
 import com.rockagen.upos.message.ReadIsoMessage;
 import com.rockagen.upos.message.WriteIsoMessage;
 
@@ -94,8 +102,9 @@ public class TestDemo {
 
 		// response
 		WriteIsoMessage wim = new WriteIsoMessage("0110");
+		// copy the echo fields declared by the 0110 template
+		wim.respondTo(rim);
 		Map<Integer, byte[]> map = wim.getValueMap();
-		initializeMap(wim, map, rim);
 		// here handle your logic
 		// return code (00)
 		map.put(39, "00".getBytes());
@@ -107,14 +116,165 @@ public class TestDemo {
 
 	}
 
-	private void initializeMap(WriteIsoMessage wim, Map<Integer, byte[]> map,
-			ReadIsoMessage rim) {
+	@Test
+	public void testRespondTo() {
+		byte[] bytes = CommUtil.hexdecode(hex);
+		byte[] isodata = new byte[bytes.length - 4];
+		System.arraycopy(bytes, 4, isodata, 0, isodata.length);
+		ReadIsoMessage rim = new ReadIsoMessage("0100", isodata);
 
-		for (int i = 2; i <= 128; i++) {
-			if (hasBytes(rim.getIsoValue(i))) {
-				map.put(i, rim.getIsoValue(i));
+		WriteIsoMessage wim = new WriteIsoMessage("0110").respondTo(rim);
+		wim.getValueMap().put(39, "00".getBytes());
+		byte[] response = wim.generateIsoMessage();
+
+		// 0110 has an empty header
+		Assert.assertEquals("0110", new String(response, 0, 4));
+		byte[] resdata = new byte[response.length - 4];
+		System.arraycopy(response, 4, resdata, 0, resdata.length);
+		ReadIsoMessage res = new ReadIsoMessage("0110", resdata);
+		int[] echo = { 3, 7, 11, 12, 13, 32, 37, 41, 42, 49 };
+		for (int num : echo) {
+			Assert.assertArrayEquals(rim.getIsoValue(num),
+					res.getIsoValue(num));
+			Assert.assertArrayEquals(rim.getRawIsoValue(num),
+					res.getRawIsoValue(num));
+		}
+		Assert.assertEquals("0811000011",
+				new String(rim.getRawIsoValue(32)));
+		Assert.assertEquals("00", new String(res.getIsoValue(39)));
+		// not echoed
+		Assert.assertNull(res.getIsoValue(33));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRespondToWrongType() {
+		byte[] bytes = CommUtil.hexdecode(hex);
+		byte[] isodata = new byte[bytes.length - 4];
+		System.arraycopy(bytes, 4, isodata, 0, isodata.length);
+		ReadIsoMessage rim = new ReadIsoMessage("0100", isodata);
+		new WriteIsoMessage("0210").respondTo(rim);
+	}
+
+	@Test
+	public void testValueStore() {
+		WriteIsoMessage wim = new WriteIsoMessage("0820");
+		Map<Integer, byte[]> map = wim.getValueMap();
+		map.put(70, "301".getBytes());
+		wim.setIsoValue(11, "000001".getBytes());
+		map.put(7, "1105100400".getBytes());
+		wim.setIsoValue(39, "xx".getBytes());
+		// overwrite
+		wim.setIsoValue(39, "00".getBytes());
+		Assert.assertEquals(4, map.size());
+		Assert.assertEquals("[7, 11, 39, 70]", map.keySet().toString());
+		Assert.assertEquals("00", new String(map.get(39)));
+
+		byte[] msg = wim.generateIsoMessage();
+		Assert.assertEquals(
+				"0820"
+						+ "\u0082\u0020\u0000\u0000\u0002\u0000\u0000\u0000"
+						+ "\u0004\u0000\u0000\u0000\u0000\u0000\u0000\u0000"
+						+ "1105100400" + "000001" + "00" + "301",
+				new String(msg, Charset.forName("ISO-8859-1")));
+
+		map.remove(70);
+		Assert.assertFalse(wim.hasIsoValue(70));
+		msg = wim.generateIsoMessage();
+		// 8 bytes bitmap
+		Assert.assertEquals(4 + 8 + 10 + 6 + 2, msg.length);
+		Assert.assertEquals(0x02, msg[4]);
+
+		// entries write through
+		for (Map.Entry<Integer, byte[]> e : map.entrySet()) {
+			if (e.getKey() == 39) {
+				Assert.assertEquals("00", new String(e.setValue("05".getBytes())));
+				Assert.assertEquals("05", new String(e.getValue()));
 			}
 		}
+		Assert.assertEquals("05", new String(wim.getIsoValue(39)));
+
+		map.clear();
+		Assert.assertTrue(map.isEmpty());
+		Assert.assertNull(wim.getIsoValue(7));
+	}
+
+	@Test
+	public void testReusableBuilder() {
+		byte[] bytes = CommUtil.hexdecode(hex);
+		byte[] isodata = new byte[bytes.length - 4];
+		System.arraycopy(bytes, 4, isodata, 0, isodata.length);
+		ReadIsoMessage rim = new ReadIsoMessage("0100", isodata);
+
+		byte[] expected = new WriteIsoMessage("0110").respondTo(rim)
+				.generateIsoMessage();
+
+		IsoSchema schema = IsoSchema.compile(
+				IsoPreDefineParser.createDefault(), "0110");
+		WriteIsoMessage builder = new WriteIsoMessage(schema, null);
+		IsoBufferPool pool = new IsoBufferPool(512, 2);
+		ByteBuffer first = null;
+		for (int i = 0; i < 3; i++) {
+			builder.reset();
+			builder.setIsoValue(39, "xx".getBytes());
+			builder.reset().respondTo(rim);
+			ByteBuffer buf = builder.encode(pool);
+			Assert.assertEquals(expected.length, buf.remaining());
+			byte[] out = new byte[buf.remaining()];
+			buf.get(out);
+			Assert.assertArrayEquals(expected, out);
+			if (first == null) {
+				first = buf;
+			} else {
+				// pooled buffer is reused
+				Assert.assertSame(first, buf);
+			}
+			pool.release(buf);
+		}
+		Assert.assertEquals(1, pool.size());
+		// too big for the pool
+		ByteBuffer big = pool.acquire(4096);
+		Assert.assertEquals(4096, big.capacity());
+		pool.release(big);
+		Assert.assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void testFraming() {
+		WriteIsoMessage wim = new WriteIsoMessage("0820");
+		wim.setIsoValue(11, "000001".getBytes());
+		byte[] msg = wim.generateIsoMessage();
+		IsoBufferPool pool = new IsoBufferPool(256, 1);
+
+		IsoFraming binary = new IsoFraming(IsoLengthPrefix.BINARY2, true);
+		byte[] requestTpdu = { 0x60, 0x00, 0x03, 0x00, 0x07 };
+		ByteBuffer frame = binary.encode(wim, requestTpdu, pool);
+		Assert.assertEquals(2 + 5 + msg.length, frame.remaining());
+		Assert.assertEquals(frame.remaining(), binary.frameLength(frame));
+		Assert.assertEquals(0, frame.get(0));
+		Assert.assertEquals(5 + msg.length, frame.get(1));
+		// destination and source swapped
+		byte[] tpdu = binary.readTpdu(frame.array(), 0);
+		Assert.assertArrayEquals(new byte[] { 0x60, 0x00, 0x07, 0x00, 0x03 },
+				tpdu);
+		byte[] body = new byte[msg.length];
+		frame.position(binary.typeOffset());
+		frame.get(body);
+		Assert.assertArrayEquals(msg, body);
+		pool.release(frame);
+
+		IsoFraming ascii = new IsoFraming(IsoLengthPrefix.ASCII4, null, 0);
+		frame = ascii.encode(wim, null, pool);
+		Assert.assertEquals(String.format("%04d", msg.length), new String(
+				frame.array(), 0, 4));
+		// incomplete prefix
+		Assert.assertEquals(-1,
+				ascii.frameLength(ByteBuffer.wrap("00".getBytes())));
+		Assert.assertEquals(4 + msg.length, ascii.frameLength(frame));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValueStoreRange() {
+		new WriteIsoMessage("0820").setIsoValue(129, new byte[1]);
 	}
 
 	private boolean hasBytes(byte[] bytes) {
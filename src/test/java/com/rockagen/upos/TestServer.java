@@ -0,0 +1,860 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rockagen.upos.define.IsoCodecs;
+import com.rockagen.upos.define.IsoPreDefineParser;
+import com.rockagen.upos.define.IsoPredefine;
+import com.rockagen.upos.define.IsoSchema;
+import com.rockagen.upos.define.IsoSchemaRegistry;
+import com.rockagen.upos.enums.IsoLengthPrefix;
+import com.rockagen.upos.message.IsoFraming;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.server.IsoBlockingServer;
+import com.rockagen.upos.server.IsoFrameHandler;
+import com.rockagen.upos.server.IsoHandler;
+import com.rockagen.upos.server.IsoNetworkResponder;
+import com.rockagen.upos.server.IsoPipeline;
+import com.rockagen.upos.server.IsoRouter;
+import com.rockagen.upos.server.IsoServer;
+import com.rockagen.upos.server.IsoSession;
+
+/**
+ * Servers over loopback
+ *
+ * @author RA
+ */
+public class TestServer {
+
+	static final Charset ASCII = Charset.forName("US-ASCII");
+
+	static final IsoFraming FRAMING = new IsoFraming(IsoLengthPrefix.BINARY2,
+			true);
+
+	static final byte[] TPDU = { 0x60, 0x00, 0x01, 0x00, 0x02 };
+
+	static final IsoHandler APPROVE = new IsoHandler() {
+		@Override
+		public WriteIsoMessage handle(IsoSession session,
+				ReadIsoMessage request) {
+			WriteIsoMessage response = new WriteIsoMessage(REGISTRY
+					.schema("0110"), ASCII).respondTo(request);
+			response.setIsoValue(39, "00".getBytes(ASCII));
+			return response;
+		}
+	};
+
+	static final IsoSchemaRegistry REGISTRY = TestCodegen.predefine()
+			.compile();
+
+	private IsoServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new IsoServer(new InetSocketAddress("127.0.0.1", 0), FRAMING,
+				REGISTRY, APPROVE);
+		server.setLoops(2);
+		server.setCharset(ASCII);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	/**
+	 * BINARY2 + TPDU + 0100 request of {@link TestDemo}.
+	 */
+	static byte[] request0100() {
+		byte[] msg = com.rockagen.commons.util.CommUtil.hexdecode(TestDemo.hex);
+		byte[] frame = new byte[2 + TPDU.length + msg.length];
+		frame[0] = (byte) ((frame.length - 2) >>> 8);
+		frame[1] = (byte) (frame.length - 2);
+		System.arraycopy(TPDU, 0, frame, 2, TPDU.length);
+		System.arraycopy(msg, 0, frame, 2 + TPDU.length, msg.length);
+		return frame;
+	}
+
+	/**
+	 * Read a BINARY2 frame, the prefix excluded.
+	 */
+	static byte[] readFrame(InputStream in) throws IOException {
+		DataInputStream din = new DataInputStream(in);
+		byte[] body = new byte[din.readUnsignedShort()];
+		din.readFully(body);
+		return body;
+	}
+
+	/**
+	 * Check a 0110 answer of {@link #request0100()}.
+	 */
+	static ReadIsoMessage assertApproved(byte[] body) {
+		// destination and source swapped
+		Assert.assertArrayEquals(new byte[] { 0x60, 0x00, 0x02, 0x00, 0x01 },
+				Arrays.copyOfRange(body, 0, 5));
+		Assert.assertEquals("0110", new String(body, 5, 4, ASCII));
+		ReadIsoMessage rim = new ReadIsoMessage(REGISTRY.get("0110"),
+				Arrays.copyOfRange(body, 9, body.length), ASCII);
+		Assert.assertEquals("126902", new String(rim.getIsoValue(11), ASCII));
+		Assert.assertEquals("00", new String(rim.getIsoValue(39), ASCII));
+		return rim;
+	}
+
+	static Socket connect(IsoServer server) throws IOException {
+		return connect(server.getLocalAddress());
+	}
+
+	static Socket connect(InetSocketAddress address) throws IOException {
+		Socket socket = new Socket();
+		socket.connect(address, 2000);
+		socket.setSoTimeout(5000);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	@Test
+	public void testManyConnections() throws Exception {
+		byte[] frame = request0100();
+		byte[] pipelined = new byte[frame.length * 5];
+		for (int i = 0; i < 5; i++) {
+			System.arraycopy(frame, 0, pipelined, i * frame.length,
+					frame.length);
+		}
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 200; i++) {
+				Socket s = connect(server);
+				sockets.add(s);
+				s.getOutputStream().write(pipelined);
+			}
+			for (Socket s : sockets) {
+				for (int i = 0; i < 5; i++) {
+					assertApproved(readFrame(s.getInputStream()));
+				}
+			}
+			Assert.assertEquals(200, server.getConnections());
+		} finally {
+			for (Socket s : sockets) {
+				s.close();
+			}
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getConnections() > 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, server.getConnections());
+	}
+
+	@Test
+	public void testFailedStart() throws Exception {
+		// the port of the setUp server is taken
+		IsoServer clash = new IsoServer(server.getLocalAddress(), FRAMING,
+				REGISTRY, APPROVE);
+		for (int i = 0; i < 2; i++) {
+			try {
+				clash.start();
+				Assert.fail("bound twice");
+			} catch (IOException e) {
+				// in use, retried below
+			}
+			Assert.assertNull(clash.getLocalAddress());
+		}
+		IsoBlockingServer blocking = new IsoBlockingServer(
+				server.getLocalAddress(), FRAMING, REGISTRY, APPROVE);
+		for (int i = 0; i < 2; i++) {
+			try {
+				blocking.start();
+				Assert.fail("bound twice");
+			} catch (IOException e) {
+				// in use
+			}
+			Assert.assertNull(blocking.getLocalAddress());
+		}
+		server.stop();
+		clash.start();
+		try {
+			Socket s = connect(clash);
+			try {
+				s.getOutputStream().write(request0100());
+				assertApproved(readFrame(s.getInputStream()));
+			} finally {
+				s.close();
+			}
+		} finally {
+			clash.stop();
+		}
+	}
+
+	@Test
+	public void testDefaultReload() throws Exception {
+		final List<IsoSchema> seen = new ArrayList<IsoSchema>();
+		IsoHandler recording = new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) throws Exception {
+				synchronized (seen) {
+					seen.add(request.getSchema());
+				}
+				return APPROVE.handle(session, request);
+			}
+		};
+		IsoPredefine original = IsoPreDefineParser.createDefault();
+		IsoServer live = new IsoServer(new InetSocketAddress("127.0.0.1", 0),
+				FRAMING, null, recording);
+		live.setCharset(ASCII);
+		live.start();
+		try {
+			Socket s = connect(live);
+			try {
+				s.getOutputStream().write(request0100());
+				assertApproved(readFrame(s.getInputStream()));
+				IsoPredefine reloaded = TestCodegen.predefine();
+				IsoPreDefineParser.replaceDefault(reloaded);
+				Assert.assertSame(reloaded.compile(), live.getRegistry());
+				// the next frame of the same connection sees the reload
+				s.getOutputStream().write(request0100());
+				assertApproved(readFrame(s.getInputStream()));
+				synchronized (seen) {
+					Assert.assertSame(original.compile().get("0100"),
+							seen.get(0));
+					Assert.assertSame(reloaded.compile().get("0100"),
+							seen.get(1));
+				}
+			} finally {
+				s.close();
+			}
+		} finally {
+			IsoPreDefineParser.replaceDefault(original);
+			live.stop();
+		}
+	}
+
+	@Test
+	public void testSplitFrames() throws Exception {
+		byte[] frame = request0100();
+		Socket s = connect(server);
+		try {
+			OutputStream out = s.getOutputStream();
+			for (byte b : frame) {
+				out.write(b);
+				out.flush();
+			}
+			assertApproved(readFrame(s.getInputStream()));
+			// an unknown type is dropped, the connection stays
+			byte[] unknown = frame.clone();
+			unknown[2 + 5] = '9';
+			out.write(unknown);
+			out.write(frame);
+			assertApproved(readFrame(s.getInputStream()));
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testOversizedFrame() throws Exception {
+		Socket s = connect(server);
+		try {
+			s.getOutputStream().write(new byte[] { (byte) 0xFF, (byte) 0xFF });
+			Assert.assertEquals(-1, s.getInputStream().read());
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testPeerNotReading() throws Exception {
+		server.stop();
+		final AtomicInteger handled = new AtomicInteger();
+		server = new IsoServer(new InetSocketAddress("127.0.0.1", 0), FRAMING,
+				REGISTRY, new IsoHandler() {
+					@Override
+					public WriteIsoMessage handle(IsoSession session,
+							ReadIsoMessage request) throws Exception {
+						handled.incrementAndGet();
+						return APPROVE.handle(session, request);
+					}
+				});
+		server.setLoops(1);
+		server.setMaxWriteQueue(4096);
+		server.start();
+		final int count = 100000;
+		final Socket s = new Socket();
+		s.setReceiveBufferSize(16 * 1024);
+		s.connect(server.getLocalAddress(), 2000);
+		s.setSoTimeout(5000);
+		byte[] frame = request0100();
+		final byte[] batch = new byte[frame.length * 100];
+		for (int i = 0; i < 100; i++) {
+			System.arraycopy(frame, 0, batch, i * frame.length, frame.length);
+		}
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out = s.getOutputStream();
+					for (int i = 0; i < count / 100; i++) {
+						out.write(batch);
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		writer.start();
+		try {
+			// the server stops reading once the responses back up
+			int last = -1;
+			long deadline = System.currentTimeMillis() + 10000;
+			while (handled.get() != last
+					&& System.currentTimeMillis() < deadline) {
+				last = handled.get();
+				Thread.sleep(300);
+			}
+			Assert.assertTrue(writer.isAlive());
+			Assert.assertTrue(String.valueOf(last), last < count);
+
+			// and goes on as they are read
+			InputStream in = s.getInputStream();
+			for (int i = 0; i < count; i++) {
+				readFrame(in);
+			}
+			writer.join(5000);
+			Assert.assertEquals(count, handled.get());
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testSendFromOtherThread() throws Exception {
+		server.stop();
+		server = new IsoServer(new InetSocketAddress("127.0.0.1", 0), FRAMING,
+				REGISTRY, new IsoHandler() {
+					@Override
+					public WriteIsoMessage handle(final IsoSession session,
+							final ReadIsoMessage request) throws Exception {
+						final byte[] tpdu = session.getRequestTpdu();
+						new Thread() {
+							@Override
+							public void run() {
+								try {
+									session.send(APPROVE.handle(session,
+											request), tpdu);
+								} catch (Exception e) {
+									session.close();
+								}
+							}
+						}.start();
+						return null;
+					}
+				});
+		server.setLoops(1);
+		server.start();
+		Socket s = connect(server);
+		try {
+			s.getOutputStream().write(request0100());
+			assertApproved(readFrame(s.getInputStream()));
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testPipeline() throws Exception {
+		final List<String> threads = java.util.Collections
+				.synchronizedList(new ArrayList<String>());
+		IsoHandler handler = new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) throws Exception {
+				Assert.assertNotNull(session.getRequestTpdu());
+				threads.add(Thread.currentThread().getName());
+				return APPROVE.handle(session, request);
+			}
+		};
+		IsoPipeline pipeline = new IsoPipeline(FRAMING, REGISTRY, handler);
+		// a small ring that wraps many times
+		pipeline.setCapacity(50);
+		pipeline.setWorkers(1, 3);
+		pipeline.setBatch(8);
+		pipeline.setCharset(ASCII);
+		Assert.assertEquals(64, pipeline.getCapacity());
+		pipeline.start();
+		IsoServer staged = staged(pipeline);
+		byte[] frame = request0100();
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 50; i++) {
+				sockets.add(connect(staged));
+			}
+			// at most 50 in flight, the ring never fills
+			for (int round = 0; round < 10; round++) {
+				for (Socket s : sockets) {
+					s.getOutputStream().write(frame);
+				}
+				for (Socket s : sockets) {
+					assertApproved(readFrame(s.getInputStream()));
+				}
+			}
+		} finally {
+			for (Socket s : sockets) {
+				s.close();
+			}
+			staged.stop();
+			pipeline.stop();
+		}
+		Assert.assertEquals(500, pipeline.getPublished());
+		Assert.assertEquals(0, pipeline.getRejected());
+		Assert.assertEquals(500, threads.size());
+		for (String name : threads) {
+			Assert.assertTrue(name, name.startsWith("upos-handle-"));
+		}
+	}
+
+	@Test
+	public void testPipelineSlowHandler() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean first = new AtomicBoolean(true);
+		IsoHandler handler = new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) throws Exception {
+				if (first.compareAndSet(true, false)) {
+					entered.countDown();
+					release.await(10, TimeUnit.SECONDS);
+				}
+				return APPROVE.handle(session, request);
+			}
+		};
+		IsoPipeline pipeline = new IsoPipeline(FRAMING, REGISTRY, handler);
+		pipeline.setCapacity(8);
+		pipeline.setWorkers(1, 2);
+		pipeline.setCharset(ASCII);
+		pipeline.start();
+		IsoServer staged = staged(pipeline);
+		byte[] frame = request0100();
+		Socket a = connect(staged);
+		Socket b = connect(staged);
+		try {
+			// sequence 0 holds handler 0
+			a.getOutputStream().write(frame);
+			Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+			// handler 1 answers the odd sequences meanwhile, the even ones
+			// wait for handler 0
+			for (int seq = 1; seq < 10; seq++) {
+				b.getOutputStream().write(frame);
+				if (seq % 2 == 1) {
+					assertApproved(readFrame(b.getInputStream()));
+				} else {
+					await(pipeline, seq + 1, 0);
+				}
+			}
+			// 10 needs the slot of 2, still held: dropped, the event loop
+			// is not held
+			b.getOutputStream().write(frame);
+			b.getOutputStream().write(frame);
+			await(pipeline, 10, 2);
+			release.countDown();
+			assertApproved(readFrame(a.getInputStream()));
+			// then 2, 4, 6 and 8
+			for (int i = 0; i < 4; i++) {
+				assertApproved(readFrame(b.getInputStream()));
+			}
+		} finally {
+			release.countDown();
+			a.close();
+			b.close();
+			staged.stop();
+			pipeline.stop();
+		}
+	}
+
+	@Test
+	public void testPipelineIdle() throws Exception {
+		final AtomicBoolean first = new AtomicBoolean(true);
+		IsoHandler handler = new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) throws Exception {
+				if (first.compareAndSet(true, false)) {
+					throw new AssertionError("handler bug");
+				}
+				return APPROVE.handle(session, request);
+			}
+		};
+		IsoPipeline pipeline = new IsoPipeline(FRAMING, REGISTRY, handler);
+		pipeline.setWorkers(1, 1);
+		pipeline.setCharset(ASCII);
+		pipeline.start();
+		IsoServer staged = staged(pipeline);
+		Socket s = connect(staged);
+		try {
+			// idle workers park instead of polling
+			Thread.sleep(100);
+			ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+			long cpu = -pipelineCpu(mx);
+			Thread.sleep(500);
+			cpu += pipelineCpu(mx);
+			Assert.assertTrue(cpu + "ns", cpu < 50000000L);
+
+			// the Error is logged, the single handler thread goes on
+			s.getOutputStream().write(request0100());
+			await(pipeline, 1, 0);
+			s.getOutputStream().write(request0100());
+			assertApproved(readFrame(s.getInputStream()));
+		} finally {
+			s.close();
+			staged.stop();
+			pipeline.stop();
+		}
+	}
+
+	/**
+	 * Cpu time of the pipeline threads.
+	 */
+	private static long pipelineCpu(ThreadMXBean mx) {
+		long cpu = 0;
+		for (ThreadInfo info : mx.getThreadInfo(mx.getAllThreadIds())) {
+			String name = info == null ? "" : info.getThreadName();
+			if (name.startsWith("upos-decode-")
+					|| name.startsWith("upos-handle-")) {
+				cpu += Math.max(0, mx.getThreadCpuTime(info.getThreadId()));
+			}
+		}
+		return cpu;
+	}
+
+	private static void await(IsoPipeline pipeline, long published,
+			long rejected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((pipeline.getPublished() != published || pipeline
+				.getRejected() != rejected)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(published, pipeline.getPublished());
+		Assert.assertEquals(rejected, pipeline.getRejected());
+	}
+
+	private static IsoServer staged(IsoPipeline pipeline) throws IOException {
+		IsoServer staged = new IsoServer(new InetSocketAddress("127.0.0.1", 0),
+				FRAMING, REGISTRY, null);
+		staged.setLoops(2);
+		staged.setCharset(ASCII);
+		staged.setFrameHandler(pipeline);
+		staged.start();
+		return staged;
+	}
+
+	@Test
+	public void testRouter() throws Exception {
+		IsoFrameHandler a = new Recorder();
+		IsoFrameHandler b = new Recorder();
+		IsoFrameHandler c = new Recorder();
+		IsoFrameHandler d = new Recorder();
+		IsoRouter router = new IsoRouter(FRAMING, REGISTRY);
+		router.route("0100", null, null, a);
+		router.route("0100", "31", null, b);
+		router.route("0100", "31", "92", c);
+		// 3, 7, 11... lead the bitmap: field 3 at a fixed offset
+		byte[] auth = request0100();
+		Assert.assertSame(c, router.select(auth));
+		byte[] purchase = auth.clone();
+		// field 3 after the type and both bitmaps
+		int pc = FRAMING.typeOffset() + 4 + 16;
+		Assert.assertEquals("310000", new String(purchase, pc, 6, ASCII));
+		purchase[pc] = '0';
+		purchase[pc + 1] = '0';
+		Assert.assertSame(a, router.select(purchase));
+		try {
+			router.route("0100", "3100", null, d);
+			Assert.fail("compiled");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		router = new IsoRouter(FRAMING, REGISTRY);
+		router.route("0100", "31", "92", c);
+		// the longest processing code prefix wins
+		router.route("0100", "3100", null, d);
+		Assert.assertSame(d, router.select(auth));
+		Assert.assertNull(router.select(purchase));
+		Assert.assertNull(router.select(frame0200("0200", "310000", "92")));
+
+		// field 2 is a LLVAR before field 3, by the schema plan or decoded
+		IsoSchemaRegistry interpreted;
+		IsoCodecs.setPlanEnabled(false);
+		try {
+			interpreted = TestCodegen.predefine().compile();
+		} finally {
+			IsoCodecs.setPlanEnabled(true);
+		}
+		for (IsoSchemaRegistry registry : new IsoSchemaRegistry[] { REGISTRY,
+				interpreted }) {
+			Recorder unrouted = new Recorder();
+			router = new IsoRouter(FRAMING, registry);
+			router.route("0200", "00", null, a);
+			router.route("0200", "00", "08", b);
+			router.route("0200", "31", null, c);
+			router.setFallback(unrouted);
+			Assert.assertSame(a, router.select(frame0200("0200", "001000", "00")));
+			Assert.assertSame(b, router.select(frame0200("0200", "000000", "08")));
+			Assert.assertSame(a, router.select(frame0200("0200", "000000", null)));
+			Assert.assertSame(c, router.select(frame0200("0200", "310000", "08")));
+			Assert.assertNull(router.select(frame0200("0200", "200000", "00")));
+			Assert.assertNull(router.select(frame0200("0200", null, "00")));
+			byte[] other = frame0200("0200", "400000", "00");
+			router.frame(null, other);
+			Assert.assertSame(other, unrouted.frame);
+		}
+
+		try {
+			new IsoRouter(FRAMING, REGISTRY).route("020", null, null, a);
+			Assert.fail("type");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new IsoRouter(FRAMING, REGISTRY).route("0200", "00", null, a)
+					.route("0200", "00", null, b);
+			Assert.fail("duplicate");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A framed 0200, or another type without header of the same fields.
+	 */
+	static byte[] frame0200(String type, String processingCode,
+			String posCondition) {
+		WriteIsoMessage wim = new WriteIsoMessage(REGISTRY.schema(type), ASCII);
+		wim.setIsoValue(2, "166222020000000001".getBytes(ASCII));
+		if (processingCode != null) {
+			wim.setIsoValue(3, processingCode.getBytes(ASCII));
+		}
+		wim.setIsoValue(11, "000001".getBytes(ASCII));
+		if (posCondition != null) {
+			wim.setIsoValue(25, posCondition.getBytes(ASCII));
+		}
+		wim.setIsoValue(32, "0811000011".getBytes(ASCII));
+		wim.setIsoValue(41, "TERM0001".getBytes(ASCII));
+		ByteBuffer buf = ByteBuffer.allocate(512);
+		FRAMING.encode(wim, TPDU, buf);
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+
+	/**
+	 * Keeps the last frame.
+	 */
+	static final class Recorder implements IsoFrameHandler {
+
+		volatile byte[] frame;
+
+		@Override
+		public void frame(IsoSession session, byte[] frame) {
+			this.frame = frame;
+		}
+	}
+
+	@Test
+	public void testNetworkResponder() throws Exception {
+		// key exchange and the like reach a handler
+		IsoHandler network = new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) {
+				WriteIsoMessage response = new WriteIsoMessage(REGISTRY
+						.schema("0810"), ASCII);
+				response.setIsoValue(11, request.getIsoValue(11));
+				response.setIsoValue(39, "96".getBytes(ASCII));
+				return response;
+			}
+		};
+		IsoRouter router = new IsoRouter(FRAMING, REGISTRY);
+		router.setCharset(ASCII);
+		router.route("0100", null, null, APPROVE);
+		router.route("0800", null, null, network);
+		IsoNetworkResponder responder = new IsoNetworkResponder(FRAMING,
+				REGISTRY, router);
+		responder.setCharset(ASCII);
+		responder.setField(33, "0811000011".getBytes(ASCII));
+		try {
+			responder.setField(11, "000001".getBytes(ASCII));
+			Assert.fail("echoed");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		IsoServer network0800 = new IsoServer(new InetSocketAddress(
+				"127.0.0.1", 0), FRAMING, REGISTRY, null);
+		network0800.setCharset(ASCII);
+		network0800.setFrameHandler(responder);
+		network0800.start();
+		Socket s = connect(network0800);
+		try {
+			OutputStream out = s.getOutputStream();
+			byte[] echo = frame0800("000123", "301");
+			out.write(echo);
+			out.write(frame0800("000124", "101"));
+			out.write(request0100());
+			out.write(frame0800("000125", "001"));
+
+			// the bytes the decode and encode path would send
+			WriteIsoMessage expected = new WriteIsoMessage(REGISTRY
+					.schema("0810"), ASCII);
+			expected.setIsoValue(7, "1019123456".getBytes(ASCII));
+			expected.setIsoValue(11, "000123".getBytes(ASCII));
+			expected.setIsoValue(33, "0811000011".getBytes(ASCII));
+			expected.setIsoValue(39, "00".getBytes(ASCII));
+			expected.setIsoValue(70, "301".getBytes(ASCII));
+			ByteBuffer buf = ByteBuffer.allocate(512);
+			FRAMING.encode(expected, FRAMING.readTpdu(echo, 0), buf);
+			Assert.assertArrayEquals(
+					Arrays.copyOfRange(buf.array(), 2, buf.position()),
+					readFrame(s.getInputStream()));
+
+			byte[] body = readFrame(s.getInputStream());
+			ReadIsoMessage keys = new ReadIsoMessage(REGISTRY.get("0810"),
+					Arrays.copyOfRange(body, 9, body.length), ASCII);
+			Assert.assertEquals("000124", new String(keys.getIsoValue(11),
+					ASCII));
+			Assert.assertEquals("96", new String(keys.getIsoValue(39), ASCII));
+			assertApproved(readFrame(s.getInputStream()));
+			body = readFrame(s.getInputStream());
+			ReadIsoMessage signOn = new ReadIsoMessage(REGISTRY.get("0810"),
+					Arrays.copyOfRange(body, 9, body.length), ASCII);
+			Assert.assertEquals("000125", new String(signOn.getIsoValue(11),
+					ASCII));
+			Assert.assertEquals("001", new String(signOn.getIsoValue(70),
+					ASCII));
+			Assert.assertEquals("00", new String(signOn.getIsoValue(39),
+					ASCII));
+		} finally {
+			s.close();
+			network0800.stop();
+		}
+		Assert.assertEquals(2, responder.getAnswered());
+		Assert.assertEquals(2, responder.getForwarded());
+	}
+
+	/**
+	 * A framed 0800.
+	 */
+	static byte[] frame0800(String stan, String networkCode) {
+		WriteIsoMessage wim = new WriteIsoMessage(REGISTRY.schema("0800"),
+				ASCII);
+		wim.setIsoValue(7, "1019123456".getBytes(ASCII));
+		wim.setIsoValue(11, stan.getBytes(ASCII));
+		wim.setIsoValue(33, "0811000011".getBytes(ASCII));
+		wim.setIsoValue(70, networkCode.getBytes(ASCII));
+		ByteBuffer buf = ByteBuffer.allocate(512);
+		FRAMING.encode(wim, TPDU, buf);
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+
+	@Test
+	public void testBlockingServer() throws Exception {
+		// a handler that blocks, eg: on a database
+		IsoHandler slow = new IsoHandler() {
+			@Override
+			public WriteIsoMessage handle(IsoSession session,
+					ReadIsoMessage request) throws Exception {
+				Thread.sleep(20);
+				Assert.assertNotNull(session.getRequestTpdu());
+				return APPROVE.handle(session, request);
+			}
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			IsoBlockingServer platform = new IsoBlockingServer(
+					new InetSocketAddress("127.0.0.1", 0), FRAMING, REGISTRY,
+					slow);
+			platform.setExecutor(pool, false);
+			platform.setCharset(ASCII);
+			assertBlocking(platform);
+		} finally {
+			pool.shutdownNow();
+		}
+		// virtual threads if the runtime has them
+		IsoBlockingServer dflt = new IsoBlockingServer(new InetSocketAddress(
+				"127.0.0.1", 0), FRAMING, REGISTRY, slow);
+		dflt.setCharset(ASCII);
+		assertBlocking(dflt);
+		Assert.assertEquals(IsoBlockingServer.newVirtualThreadExecutor() != null,
+				dflt.isForkTransactions());
+	}
+
+	private static void assertBlocking(IsoBlockingServer server)
+			throws Exception {
+		server.start();
+		try {
+			byte[] frame = request0100();
+			List<Socket> sockets = new ArrayList<Socket>();
+			try {
+				for (int i = 0; i < 4; i++) {
+					Socket s = connect(server.getLocalAddress());
+					sockets.add(s);
+					s.getOutputStream().write(frame);
+					s.getOutputStream().write(frame);
+				}
+				for (Socket s : sockets) {
+					assertApproved(readFrame(s.getInputStream()));
+					assertApproved(readFrame(s.getInputStream()));
+				}
+				Assert.assertEquals(4, server.getConnections());
+			} finally {
+				for (Socket s : sockets) {
+					s.close();
+				}
+			}
+		} finally {
+			server.stop();
+		}
+		Assert.assertEquals(0, server.getConnections());
+	}
+
+}
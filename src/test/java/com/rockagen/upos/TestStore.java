@@ -0,0 +1,483 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rockagen.upos.client.IsoClient;
+import com.rockagen.upos.client.IsoFuture;
+import com.rockagen.upos.client.IsoRetryQueue;
+import com.rockagen.upos.client.IsoSender;
+import com.rockagen.upos.client.IsoTraceKey;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.server.IsoServer;
+import com.rockagen.upos.store.IsoJournal;
+import com.rockagen.upos.store.IsoStoreQueue;
+
+/**
+ * Stores on memory-mapped segments
+ *
+ * @author RA
+ */
+public class TestStore {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("upos", "store");
+		Assert.assertTrue(dir.delete() && dir.mkdirs());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	static WriteIsoMessage reversal(int stan) {
+		WriteIsoMessage wim = new WriteIsoMessage(
+				TestServer.REGISTRY.schema("0400"), TestServer.ASCII);
+		wim.setIsoValue(3, "310000".getBytes(TestServer.ASCII));
+		wim.setIsoValue(11, String.format("%06d", stan).getBytes(
+				TestServer.ASCII));
+		wim.setIsoValue(32, "0811000011".getBytes(TestServer.ASCII));
+		wim.setIsoValue(41, "TERN0A10".getBytes(TestServer.ASCII));
+		wim.setIsoValue(90, String.format("0100%06d%032d", stan, 0)
+				.getBytes(TestServer.ASCII));
+		return wim;
+	}
+
+	private IsoStoreQueue open() throws IOException {
+		IsoStoreQueue store = new IsoStoreQueue(dir);
+		store.setSegmentSize(4096);
+		store.open();
+		return store;
+	}
+
+	private static List<IsoStoreQueue.Entry> entries(IsoStoreQueue store) {
+		final List<IsoStoreQueue.Entry> entries = new ArrayList<IsoStoreQueue.Entry>();
+		store.replay(new IsoStoreQueue.Visitor() {
+			@Override
+			public void visit(IsoStoreQueue.Entry entry) {
+				entries.add(entry);
+			}
+		});
+		return entries;
+	}
+
+	@Test
+	public void testQueueReplay() throws IOException {
+		IsoStoreQueue store = open();
+		long[] ids = new long[200];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = store.append(reversal(i));
+		}
+		// about 40 records a segment
+		Assert.assertTrue(store.getSegments() > 3);
+		int segments = store.getSegments();
+		for (int i = 0; i < ids.length; i++) {
+			if (i % 2 == 0 || i < 100) {
+				Assert.assertTrue(store.ack(ids[i]));
+			}
+		}
+		Assert.assertFalse(store.ack(ids[0]));
+		Assert.assertFalse(store.ack(ids[199] + 1));
+		Assert.assertEquals(50, store.getPending());
+		// segments of acknowledged records are gone
+		Assert.assertTrue(store.getSegments() < segments);
+		store.close();
+
+		store = open();
+		Assert.assertEquals(50, store.getPending());
+		List<IsoStoreQueue.Entry> entries = entries(store);
+		Assert.assertEquals(50, entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			IsoStoreQueue.Entry e = entries.get(i);
+			Assert.assertEquals(ids[101 + 2 * i], e.getId());
+			Assert.assertEquals("0400", e.getType(TestServer.ASCII));
+			WriteIsoMessage expected = reversal(101 + 2 * i);
+			WriteIsoMessage actual = e.toMessage(TestServer.REGISTRY,
+					TestServer.ASCII);
+			Assert.assertArrayEquals(expected.generateIsoMessage(),
+					actual.generateIsoMessage());
+			Assert.assertArrayEquals(expected.generateIsoMessage(),
+					e.getMessage());
+		}
+		// appends go on after the recovered records
+		long id = store.append(reversal(500));
+		Assert.assertTrue(id > ids[199]);
+		for (IsoStoreQueue.Entry e : entries) {
+			Assert.assertTrue(store.ack(e.getId()));
+		}
+		Assert.assertTrue(store.ack(id));
+		Assert.assertEquals(0, store.getPending());
+		Assert.assertEquals(1, store.getSegments());
+		store.close();
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		IsoStoreQueue store = open();
+		store.append(reversal(1));
+		long torn = store.append(reversal(2));
+		store.close();
+
+		// a crash in the middle of the second record
+		File segment = dir.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			raf.seek((int) torn + 30);
+			raf.write(new byte[] { 'x', 'x', 'x' });
+		} finally {
+			raf.close();
+		}
+		store = open();
+		Assert.assertEquals(1, store.getPending());
+		Assert.assertEquals(1, entries(store).size());
+		// the torn record is overwritten
+		Assert.assertEquals(torn, store.append(reversal(3)));
+		List<IsoStoreQueue.Entry> entries = entries(store);
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals("000003", new String(entries.get(1)
+				.toMessage(TestServer.REGISTRY, TestServer.ASCII)
+				.getIsoValue(11), TestServer.ASCII));
+		store.close();
+	}
+
+	@Test
+	public void testRetryFromStore() throws Exception {
+		final AtomicInteger attempts = new AtomicInteger();
+		IsoSender hostDown = new IsoSender() {
+			@Override
+			public IsoFuture send(WriteIsoMessage request) {
+				attempts.incrementAndGet();
+				IsoFuture f = new IsoFuture(IsoTraceKey.of(request));
+				f.fail(new IOException("host down"));
+				return f;
+			}
+		};
+		IsoStoreQueue store = open();
+		IsoRetryQueue queue = new IsoRetryQueue(hostDown, null);
+		queue.setStore(store);
+		queue.setMaxAttempts(2);
+		queue.setRetryInterval(0);
+		for (int i = 0; i < 10; i++) {
+			queue.offer(reversal(i));
+		}
+		waitFor(queue);
+		Assert.assertEquals(10, queue.getExhausted());
+		Assert.assertEquals(20, attempts.get());
+		queue.close();
+		store.close();
+
+		// restarted, the host is back
+		final List<String> stans = new ArrayList<String>();
+		IsoSender hostUp = new IsoSender() {
+			@Override
+			public IsoFuture send(WriteIsoMessage request) {
+				synchronized (stans) {
+					stans.add(new String(request.getIsoValue(11),
+							TestServer.ASCII));
+				}
+				IsoFuture f = new IsoFuture(IsoTraceKey.of(request));
+				f.complete(TestClient.approve(request));
+				return f;
+			}
+		};
+		store = open();
+		queue = new IsoRetryQueue(hostUp, null);
+		queue.setStore(store);
+		Assert.assertEquals(10, queue.recover(TestServer.REGISTRY,
+				TestServer.ASCII));
+		waitFor(queue);
+		Assert.assertEquals(10, queue.getAcknowledged());
+		Assert.assertEquals(0, store.getPending());
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(String.format("%06d", i), stans.get(i));
+		}
+		queue.close();
+		store.close();
+	}
+
+	/**
+	 * A 0100 as the host receives it, or its 0110.
+	 */
+	private static byte[] frame(int stan, boolean response) {
+		WriteIsoMessage request = TestClient.request("310000");
+		request.setIsoValue(11, String.format("%06d", stan).getBytes(
+				TestServer.ASCII));
+		request.setIsoValue(37, String.format("RRN%09d", stan).getBytes(
+				TestServer.ASCII));
+		WriteIsoMessage msg = request;
+		if (response) {
+			byte[] bytes = request.generateIsoMessage();
+			msg = new WriteIsoMessage(TestServer.REGISTRY.schema("0110"),
+					TestServer.ASCII).respondTo(new ReadIsoMessage(
+					TestServer.REGISTRY.schema("0100"), Arrays.copyOfRange(
+							bytes, 7, bytes.length),
+					TestServer.ASCII));
+			msg.setIsoValue(39, "00".getBytes(TestServer.ASCII));
+		}
+		ByteBuffer buf = ByteBuffer.allocate(512);
+		TestClient.HOST_FRAMING.encode(msg, null, buf);
+		buf.flip();
+		byte[] frame = new byte[buf.remaining()];
+		buf.get(frame);
+		return frame;
+	}
+
+	private IsoJournal journal() throws IOException {
+		IsoJournal journal = new IsoJournal(dir, TestClient.HOST_FRAMING,
+				TestServer.REGISTRY, TestServer.ASCII);
+		journal.setSegmentSize(32 * 1024);
+		journal.open();
+		return journal;
+	}
+
+	@Test
+	public void testJournal() throws Exception {
+		final IsoJournal journal = journal();
+		final long[][] ids = new long[4][500];
+		Thread[] writers = new Thread[ids.length];
+		for (int t = 0; t < writers.length; t++) {
+			final int w = t;
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					long connection = journal.nextConnectionId();
+					for (int i = 0; i < 250; i++) {
+						int stan = w * 1000 + i;
+						ids[w][2 * i] = journal.append(IsoJournal.Direction.IN,
+								connection, frame(stan, false), 0,
+								frame(stan, false).length);
+						byte[] out = frame(stan, true);
+						ids[w][2 * i + 1] = journal.append(
+								IsoJournal.Direction.OUT, connection,
+								ByteBuffer.wrap(out));
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread t : writers) {
+			t.join();
+		}
+		Assert.assertEquals(2000, journal.getAppended());
+		// about 110 bytes a record
+		Assert.assertTrue(journal.getSegments() > 4);
+		for (int w = 0; w < ids.length; w++) {
+			checkJournal(journal, w * 1000 + 17, ids[w][34], ids[w][35]);
+			checkJournal(journal, w * 1000 + 249, ids[w][498], ids[w][499]);
+		}
+		Assert.assertTrue(journal.findByRrn("RRN000009999").isEmpty());
+		Assert.assertTrue(journal.findByTerminal("TERN0A10", "009999")
+				.isEmpty());
+		journal.close();
+
+		// the index is reloaded, appends go on
+		IsoJournal reopened = journal();
+		for (int w = 0; w < ids.length; w++) {
+			checkJournal(reopened, w * 1000 + 17, ids[w][34], ids[w][35]);
+		}
+		long id = reopened.append(IsoJournal.Direction.IN, 1, frame(9999,
+				false), 0, frame(9999, false).length);
+		Assert.assertEquals(id, reopened.findByRrn("RRN000009999").get(0)
+				.getId());
+		reopened.close();
+
+		// without the index files the segments are indexed again
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(".jix")) {
+				Assert.assertTrue(f.delete());
+			}
+		}
+		reopened = journal();
+		for (int w = 0; w < ids.length; w++) {
+			checkJournal(reopened, w * 1000 + 249, ids[w][498], ids[w][499]);
+		}
+		Assert.assertEquals(1, reopened.findByTerminal("TERN0A10", "009999")
+				.size());
+		reopened.close();
+
+		// only the last segment in memory, the others read from their files
+		reopened = new IsoJournal(dir, TestClient.HOST_FRAMING,
+				TestServer.REGISTRY, TestServer.ASCII);
+		reopened.setSegmentSize(32 * 1024);
+		reopened.setIndexedSegments(1);
+		reopened.open();
+		for (int w = 0; w < ids.length; w++) {
+			checkJournal(reopened, w * 1000 + 17, ids[w][34], ids[w][35]);
+			checkJournal(reopened, w * 1000 + 249, ids[w][498], ids[w][499]);
+		}
+		Assert.assertTrue(reopened.findByRrn("RRN000008888").isEmpty());
+		reopened.close();
+	}
+
+	@Test
+	public void testJournalIndexAhead() throws Exception {
+		IsoJournal journal = journal();
+		long[] ids = new long[20];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = journal.append(IsoJournal.Direction.IN, 1, frame(i,
+					false), 0, frame(i, false).length);
+		}
+		journal.close();
+		// a crash: the index reached the disk, the tail of the records not
+		int lost = (int) ids[15];
+		File segment = null;
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(".jnl")) {
+				segment = f;
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			raf.seek(lost);
+			raf.write(new byte[(int) raf.length() - lost]);
+		} finally {
+			raf.close();
+		}
+
+		IsoJournal reopened = journal();
+		Assert.assertEquals(1, reopened.findByRrn("RRN000000014").size());
+		Assert.assertTrue(reopened.findByRrn("RRN000000015").isEmpty());
+		long id = reopened.append(IsoJournal.Direction.IN, 1, frame(9999,
+				false), 0, frame(9999, false).length);
+		Assert.assertEquals(ids[15], id);
+		Assert.assertEquals(id, reopened.findByRrn("RRN000009999").get(0)
+				.getId());
+		Assert.assertTrue(reopened.findByRrn("RRN000000016").isEmpty());
+		reopened.sync();
+		reopened.close();
+
+		// the index rewritten from the recovered end is reloaded
+		reopened = journal();
+		Assert.assertEquals(id, reopened.findByRrn("RRN000009999").get(0)
+				.getId());
+		Assert.assertEquals(1, reopened.findByRrn("RRN000000000").size());
+		reopened.close();
+	}
+
+	private static void checkJournal(IsoJournal journal, int stan,
+			long request, long response) {
+		List<IsoJournal.Record> records = journal.findByRrn(String.format(
+				"RRN%09d", stan));
+		for (int by = 0; by < 2; by++) {
+			if (by == 1) {
+				records = journal.findByTerminal("TERN0A10", String.format(
+						"%06d", stan));
+			}
+			Assert.assertEquals(2, records.size());
+			Assert.assertEquals(request, records.get(0).getId());
+			Assert.assertEquals(response, records.get(1).getId());
+			Assert.assertEquals(IsoJournal.Direction.IN, records.get(0)
+					.getDirection());
+			Assert.assertEquals(IsoJournal.Direction.OUT, records.get(1)
+					.getDirection());
+			Assert.assertEquals(records.get(0).getConnectionId(), records
+					.get(1).getConnectionId());
+			Assert.assertArrayEquals(frame(stan, false), records.get(0)
+					.getFrame());
+		}
+		Assert.assertArrayEquals(frame(stan, true), journal.read(response)
+				.getFrame());
+	}
+
+	@Test
+	public void testJournaledLinks() throws Exception {
+		IsoJournal hostJournal = journal();
+		File clientDir = new File(dir, "client");
+		IsoJournal clientJournal = new IsoJournal(clientDir,
+				TestServer.FRAMING, TestServer.REGISTRY, TestServer.ASCII);
+		clientJournal.open();
+		IsoServer host = new IsoServer(new InetSocketAddress("127.0.0.1", 0),
+				TestClient.HOST_FRAMING, TestServer.REGISTRY,
+				TestServer.APPROVE);
+		host.setLoops(1);
+		host.setCharset(TestServer.ASCII);
+		host.setJournal(hostJournal);
+		host.start();
+		IsoClient client = new IsoClient(host.getLocalAddress(),
+				TestServer.FRAMING, TestServer.REGISTRY);
+		client.setCharset(TestServer.ASCII);
+		client.setJournal(clientJournal);
+		try {
+			client.connect();
+			WriteIsoMessage request = TestClient.request("310000");
+			request.setIsoValue(37, "232351126902".getBytes(TestServer.ASCII));
+			client.send(request).get(5, TimeUnit.SECONDS);
+			for (IsoJournal journal : new IsoJournal[] { clientJournal,
+					hostJournal }) {
+				List<IsoJournal.Record> records = journal
+						.findByRrn("232351126902");
+				long deadline = System.currentTimeMillis() + 5000;
+				// the host journals its response as it sends it
+				while (records.size() < 2
+						&& System.currentTimeMillis() < deadline) {
+					Thread.sleep(10);
+					records = journal.findByRrn("232351126902");
+				}
+				Assert.assertEquals(2, records.size());
+				IsoJournal.Direction first = journal == clientJournal ? IsoJournal.Direction.OUT
+						: IsoJournal.Direction.IN;
+				Assert.assertEquals(first, records.get(0).getDirection());
+				Assert.assertFalse(first == records.get(1).getDirection());
+				Assert.assertEquals(records.get(0).getConnectionId(), records
+						.get(1).getConnectionId());
+			}
+		} finally {
+			client.close();
+			host.stop();
+			clientJournal.close();
+			hostJournal.close();
+			for (File f : clientDir.listFiles()) {
+				f.delete();
+			}
+			clientDir.delete();
+		}
+	}
+
+	private static void waitFor(IsoRetryQueue queue)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (queue.getPending() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, queue.getPending());
+	}
+
+}
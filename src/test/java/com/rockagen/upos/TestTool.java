@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rockagen.upos;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.rockagen.upos.client.IsoClient;
+import com.rockagen.upos.message.ReadIsoMessage;
+import com.rockagen.upos.message.WriteIsoMessage;
+import com.rockagen.upos.tool.IsoHostSimulator;
+import com.rockagen.upos.tool.IsoLatencyHistogram;
+import com.rockagen.upos.tool.IsoLoadGenerator;
+import com.rockagen.upos.tool.IsoRequestSampler;
+
+/**
+ * Load generator against the stand-in host
+ *
+ * @author RA
+ */
+public class TestTool {
+
+	@Test
+	public void testHistogram() {
+		IsoLatencyHistogram h = new IsoLatencyHistogram();
+		Assert.assertEquals(0, h.percentile(99));
+		for (long v = 1; v <= 100000; v++) {
+			h.record(v * 1000);
+		}
+		Assert.assertEquals(100000, h.getCount());
+		Assert.assertEquals(100000000L, h.getMax());
+		Assert.assertEquals(50000500L, h.getMean());
+		for (double p : new double[] { 1, 50, 90, 99, 99.9 }) {
+			double expected = p * 1000000;
+			long actual = h.percentile(p);
+			Assert.assertTrue(p + ": " + actual, actual >= expected
+					&& actual <= expected * 1.04);
+		}
+		Assert.assertEquals(100000000L, h.percentile(100));
+		h.record(7);
+		Assert.assertEquals(7, h.percentile(0));
+		h.reset();
+		Assert.assertEquals(0, h.getCount());
+	}
+
+	@Test
+	public void testSampler() {
+		IsoRequestSampler sampler = new IsoRequestSampler(
+				TestServer.REGISTRY.get("0200"), TestServer.ASCII);
+		sampler.setValue(3, "310000");
+		Random random = new Random(7);
+		WriteIsoMessage a = sampler.next(random);
+		WriteIsoMessage b = sampler.next(random);
+		Assert.assertEquals("310000", new String(a.getIsoValue(3)));
+		Assert.assertFalse(a.hasIsoValue(11));
+		Assert.assertFalse(a.hasIsoValue(39));
+		Assert.assertEquals(18, a.getIsoValue(2).length);
+		Assert.assertFalse(new String(a.getIsoValue(2)).equals(new String(b
+				.getIsoValue(2))));
+		// every drawn field decodes by the parser
+		byte[] bytes = a.generateIsoMessage();
+		ReadIsoMessage rim = new ReadIsoMessage(
+				TestServer.REGISTRY.get("0200"), java.util.Arrays.copyOfRange(
+						bytes, 4, bytes.length), TestServer.ASCII);
+		Assert.assertArrayEquals(a.getIsoValue(37), rim.getIsoValue(37));
+		Assert.assertArrayEquals(a.getIsoValue(128), rim.getIsoValue(128));
+
+		// template values of iso8583.xml
+		WriteIsoMessage c = new IsoRequestSampler(
+				TestServer.REGISTRY.get("0820"), TestServer.ASCII)
+				.next(random);
+		Assert.assertEquals("09ABC123456", new String(c.getIsoValue(33)));
+	}
+
+	@Test
+	public void testLoopback() throws Exception {
+		// 0100 carries the "abc" header, 0110 none
+		IsoHostSimulator host = new IsoHostSimulator(new InetSocketAddress(
+				"127.0.0.1", 0), TestClient.HOST_FRAMING, TestServer.REGISTRY);
+		host.setCharset(TestServer.ASCII);
+		host.setLoops(1);
+		host.setLatency(1, 3, TimeUnit.MILLISECONDS);
+		host.addResponseCode("00", 3);
+		host.addResponseCode("51", 1);
+		host.start();
+		List<IsoClient> clients = new ArrayList<IsoClient>();
+		try {
+			for (int i = 0; i < 2; i++) {
+				IsoClient c = new IsoClient(host.getLocalAddress(),
+						TestServer.FRAMING, TestServer.REGISTRY);
+				c.setCharset(TestServer.ASCII);
+				c.connect();
+				clients.add(c);
+			}
+			IsoLoadGenerator load = new IsoLoadGenerator(clients);
+			load.addSampler(new IsoRequestSampler(TestServer.REGISTRY
+					.get("0100"), TestServer.ASCII), 3);
+			load.addSampler(new IsoRequestSampler(TestServer.REGISTRY
+					.get("0100"), TestServer.ASCII).setValue(3, "310000"), 1);
+			load.setRate(400);
+			load.setDuration(1, TimeUnit.SECONDS);
+			load.run();
+
+			Assert.assertEquals(400, load.getSent(), 2);
+			Assert.assertEquals(load.getSent(), load.getCompleted());
+			Assert.assertEquals(0, load.getFailed() + load.getTimedOut());
+			Assert.assertEquals(load.getCompleted(), host.getAnswered());
+			Assert.assertEquals(load.getCompleted(), load.getLatency()
+					.getCount());
+			Assert.assertTrue(load.getLatency().percentile(50) >= 1000000);
+			Map<String, Long> codes = load.getResponseCodes();
+			Assert.assertTrue(codes.toString(), codes.get("00") > codes
+					.get("51"));
+			Assert.assertTrue(load.report(), load.getThroughput() > 300);
+		} finally {
+			for (IsoClient c : clients) {
+				c.close();
+			}
+			host.stop();
+		}
+	}
+
+	@Test
+	public void testDefaultRegistry() throws Exception {
+		IsoHostSimulator host = new IsoHostSimulator(new InetSocketAddress(
+				"127.0.0.1", 0), TestClient.HOST_FRAMING, null);
+		host.setCharset(TestServer.ASCII);
+		host.setLoops(1);
+		host.start();
+		IsoClient c = new IsoClient(host.getLocalAddress(),
+				TestServer.FRAMING, TestServer.REGISTRY);
+		try {
+			c.setCharset(TestServer.ASCII);
+			c.connect();
+			ReadIsoMessage response = c.send(TestClient.request("310000"))
+					.get(5, TimeUnit.SECONDS);
+			Assert.assertEquals("0110", response.getType());
+			Assert.assertEquals(1, host.getAnswered());
+		} finally {
+			c.close();
+			host.stop();
+		}
+	}
+
+}